@@ -21,5 +21,10 @@ public class HelloPlugin implements Plugin {
 		));
 		return result;
 	}
+	
+	@Override
+	public JSONObject getWarmUpData(){
+		return JSON.make("name", "warm-up");
+	}
 
 }
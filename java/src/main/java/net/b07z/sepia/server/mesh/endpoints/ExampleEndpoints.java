@@ -8,7 +8,19 @@ import net.b07z.sepia.server.core.server.RequestPostParameters;
 import net.b07z.sepia.server.core.server.SparkJavaFw;
 import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.plugins.PluginBulkhead;
+import net.b07z.sepia.server.mesh.plugins.PluginJobs;
+import net.b07z.sepia.server.mesh.plugins.PluginLibraries;
+import net.b07z.sepia.server.mesh.plugins.PluginPipeline;
+import net.b07z.sepia.server.mesh.plugins.PluginSchedule;
+import net.b07z.sepia.server.mesh.plugins.PluginScheduler;
+import net.b07z.sepia.server.mesh.plugins.PluginWorkerPool;
+import net.b07z.sepia.server.mesh.plugins.PluginStore;
+import net.b07z.sepia.server.mesh.server.CompressionHandler;
 import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.server.StaticFilesHandler;
+import net.b07z.sepia.server.mesh.tools.AuditLog;
+import net.b07z.sepia.server.mesh.tools.TimeSeriesStats;
 import spark.Request;
 import spark.Response;
 
@@ -52,7 +64,9 @@ public class ExampleEndpoints {
 	
 	/**
 	 * ---STATISTICS POST---<br>
-	 * Example POST endpoint that returns a JSON object with server statistics.
+	 * Example POST endpoint that returns a JSON object with server statistics.<br>
+	 * Optional parameters: 'window' - comma separated time windows like '10s,1m,1h' (max. 24h) to add time-series stats
+	 * (rate, error ratio, latency percentiles) of endpoints and plugins, 'series' - only series starting with this, e.g. 'plugin:'.
 	 */
 	public static String serverStats(Request request, Response response){
 		//Save some server statistics
@@ -62,6 +76,8 @@ public class ExampleEndpoints {
 		//Prepare parameters from request body
 		RequestParameters params = new RequestPostParameters(request);
 		String accessPin = params.getString("pin");
+		String windows = params.getString("window");
+		String seriesPrefix = params.getString("series");
 		
 		//Check parameters
 		if (Is.nullOrEmpty(accessPin)){
@@ -79,6 +95,38 @@ public class ExampleEndpoints {
 		if (isValid){
 			JSON.add(msg, "result", "success");
 			JSON.add(msg, "stats", BasicStatistics.getBasicInfo());
+			JSON.add(msg, "plugin_bulkheads", PluginBulkhead.getAllStats());
+			JSON.add(msg, "plugin_rate_limits", PluginEndpoints.getRateLimitStats());
+			JSON.add(msg, "plugin_concurrency_limit", PluginEndpoints.getConcurrencyLimitStats());
+			JSON.add(msg, "plugin_priority_lanes", PluginScheduler.getStats());
+			JSON.add(msg, "plugin_idempotency", PluginEndpoints.getIdempotencyStats());
+			JSON.add(msg, "audit_log", AuditLog.getStats());
+			JSON.add(msg, "plugin_stores", PluginStore.getAllStats());
+			JSON.add(msg, "plugin_libraries", PluginLibraries.getStats());
+			JSON.add(msg, "plugin_schedules", PluginSchedule.getAllStats());
+			JSON.add(msg, "plugin_pipelines", PluginPipeline.getStats());
+			JSON.add(msg, "plugin_jobs", PluginJobs.getStats());
+			if (PluginWorkerPool.isEnabled()){
+				JSON.add(msg, "plugin_workers", PluginWorkerPool.getStats());
+			}
+			JSON.add(msg, "compression", CompressionHandler.getStats());
+			if (ConfigNode.hostFiles){
+				JSON.add(msg, "static_files", StaticFilesHandler.getStats());
+			}
+			if (Is.notNullOrEmpty(windows)){
+				JSONObject timeSeries = TimeSeriesStats.getInfo();
+				for (String window : windows.split(",")){
+					long windowMs = TimeSeriesStats.parseWindow(window);
+					if (windowMs <= 0){
+						JSONObject error = new JSONObject();
+						JSON.add(error, "result", "fail");
+						JSON.add(error, "error", "Invalid parameter 'window': " + window.trim() + " - use e.g. '30s', '5m' or '1h' (max. 24h).");
+						return SparkJavaFw.returnResult(request, response, error.toJSONString(), 400);
+					}
+					JSON.put(timeSeries, window.trim(), TimeSeriesStats.query(windowMs, Is.notNullOrEmpty(seriesPrefix)? seriesPrefix : null));
+				}
+				JSON.add(msg, "timeseries", timeSeries);
+			}
 			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 200);
 		}else{
 			JSON.add(msg, "result", "fail");
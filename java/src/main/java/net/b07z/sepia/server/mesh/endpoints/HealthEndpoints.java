@@ -0,0 +1,64 @@
+package net.b07z.sepia.server.mesh.endpoints;
+
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.server.SparkJavaFw;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.plugins.PluginLoader;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.server.NodeState;
+import spark.Request;
+import spark.Response;
+
+/**
+ * Endpoints used by load-balancers and monitoring to check the state of the node.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class HealthEndpoints {
+	
+	/**
+	 * ---READINESS GET---<br>
+	 * Returns 200 when the node can handle requests and 503 during startup (settings, modules, plugins, server), 
+	 * while plugins are still compiling or warming up, if loading plugins failed (with 'error') and during shutdown.
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String readiness(Request request, Response response){
+		boolean isReady = NodeState.isReady();
+		
+		//Generate response
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", (isReady)? "success" : "fail");
+		JSON.add(msg, "ready", isReady);
+		JSON.add(msg, "phase", NodeState.getPhase().name());
+		String failure = NodeState.getFailure();
+		if (failure != null){
+			JSON.add(msg, "error", failure);
+		}
+		if (ConfigNode.usePlugins){
+			JSON.add(msg, "plugins_ready", PluginLoader.isReady());
+			JSON.add(msg, "plugins_generation", PluginLoader.getGeneration());
+		}
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), (isReady)? 200 : 503);
+	}
+	
+	/**
+	 * ---LIVENESS GET---<br>
+	 * Returns 200 as long as the server process is up and answering (independent of plugins), 503 after stop.
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String liveness(Request request, Response response){
+		boolean isAlive = NodeState.isAlive();
+		
+		//Generate response
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", (isAlive)? "success" : "fail");
+		JSON.add(msg, "alive", isAlive);
+		JSON.add(msg, "phase", NodeState.getPhase().name());
+		JSON.add(msg, "in_flight", NodeState.getInFlight());
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), (isAlive)? 200 : 503);
+	}
+}
@@ -1,10 +1,14 @@
 package net.b07z.sepia.server.mesh.endpoints;
 
+import java.io.IOException;
+import java.util.function.Supplier;
+
 import javax.servlet.MultipartConfigElement;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.b07z.sepia.server.core.data.Role;
 import net.b07z.sepia.server.core.server.BasicStatistics;
 import net.b07z.sepia.server.core.server.RequestGetOrFormParameters;
 import net.b07z.sepia.server.core.server.RequestParameters;
@@ -14,10 +18,25 @@ import net.b07z.sepia.server.core.tools.Debugger;
 import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.server.core.users.Account;
-import net.b07z.sepia.server.mesh.plugins.Plugin;
+import net.b07z.sepia.server.mesh.plugins.PluginExecutor;
+import net.b07z.sepia.server.mesh.plugins.PluginInputException;
+import net.b07z.sepia.server.mesh.plugins.PluginJobs;
 import net.b07z.sepia.server.mesh.plugins.PluginLoader;
+import net.b07z.sepia.server.mesh.plugins.PluginPipeline;
+import net.b07z.sepia.server.mesh.plugins.PluginPriority;
+import net.b07z.sepia.server.mesh.plugins.PluginRejectedException;
 import net.b07z.sepia.server.mesh.plugins.PluginResult;
+import net.b07z.sepia.server.mesh.plugins.PluginSchedule;
+import net.b07z.sepia.server.mesh.plugins.PluginScheduler;
+import net.b07z.sepia.server.mesh.plugins.PluginUsage;
 import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.server.NodeState;
+import net.b07z.sepia.server.mesh.tools.AdaptiveLimiter;
+import net.b07z.sepia.server.mesh.tools.AuditLog;
+import net.b07z.sepia.server.mesh.tools.Cbor;
+import net.b07z.sepia.server.mesh.tools.IdempotencyCache;
+import net.b07z.sepia.server.mesh.tools.JsonStreams;
+import net.b07z.sepia.server.mesh.tools.RateLimiter;
 import spark.Request;
 import spark.Response;
 
@@ -34,6 +53,71 @@ public class PluginEndpoints {
 	public static final String UPLOAD_FILE_KEY = "upload_file";
 	public static final String UPLOAD_CODE_KEY = "upload_code";
 	public static final String UPLOAD_CODE_CLASS_NAME = "upload_code_class_name"; 	//simple class name
+	
+	public static final int RETRY_AFTER_NOT_READY = 3;		//seconds a client should wait when plugins are not ready
+	public static final long MAX_RESULT_WAIT_MS = 30000;	//max. long-polling time of '/plugin-result' and '/job-result'
+	public static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+	public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 256;
+	public static final String PRIORITY_HEADER = "Plugin-Priority";
+	
+	private static RateLimiter ipRateLimiter;
+	private static RateLimiter userRateLimiter;
+	private static final RateLimiter errorLogLimiter = new RateLimiter(1, 10, 1);		//error log lines of failed calls
+	private static AdaptiveLimiter concurrencyLimiter;
+	private static IdempotencyCache<PluginResult> idempotencyCache;
+	
+	/**
+	 * Create rate limiters and the adaptive concurrency limit for plugin endpoints from {@link ConfigNode} settings. 
+	 */
+	public static void setupRateLimits(){
+		ipRateLimiter = RateLimiter.fromSettings(ConfigNode.pluginsRateLimitIp);
+		userRateLimiter = RateLimiter.fromSettings(ConfigNode.pluginsRateLimitUser);
+		if (ipRateLimiter != null || userRateLimiter != null){
+			log.info("Plugin rate limits - IP: " + ConfigNode.pluginsRateLimitIp + " - user: " + ConfigNode.pluginsRateLimitUser);
+		}
+		concurrencyLimiter = AdaptiveLimiter.fromSettings(ConfigNode.pluginsAdaptiveLimit);
+		if (concurrencyLimiter != null){
+			log.info("Plugin adaptive concurrency limit - initial,min,max: " + ConfigNode.pluginsAdaptiveLimit);
+		}
+	}
+	/**
+	 * Current adaptive concurrency limit, in-flight requests, latencies and shed requests (null if off).
+	 */
+	public static JSONObject getConcurrencyLimitStats(){
+		AdaptiveLimiter limiter = concurrencyLimiter;
+		return (limiter != null)? limiter.getStats() : null;
+	}
+	/**
+	 * Create the store for idempotency keys of '/execute-plugin' from {@link ConfigNode} settings.
+	 */
+	public static void setupIdempotency(){
+		if (ConfigNode.pluginsIdempotencyTtlMs > 0){
+			idempotencyCache = new IdempotencyCache<>(ConfigNode.pluginsIdempotencyTtlMs, ConfigNode.pluginsIdempotencyMaxEntries);
+		}else{
+			idempotencyCache = null;
+		}
+	}
+	/**
+	 * Counters of executed and deduplicated calls with idempotency key (null if off).
+	 */
+	public static JSONObject getIdempotencyStats(){
+		return (idempotencyCache != null)? idempotencyCache.getStats() : null;
+	}
+	/**
+	 * Rate limit statistics (rejected requests, number of tracked keys and evicted keys).
+	 */
+	public static JSONObject getRateLimitStats(){
+		JSONObject stats = new JSONObject();
+		if (ipRateLimiter != null){
+			JSON.put(stats, "ip", JSON.make("rejected", ipRateLimiter.getRejectedCount(), "keys", ipRateLimiter.getKeyCount(),
+					"evicted", ipRateLimiter.getEvictedCount()));
+		}
+		if (userRateLimiter != null){
+			JSON.put(stats, "user", JSON.make("rejected", userRateLimiter.getRejectedCount(), "keys", userRateLimiter.getKeyCount(),
+					"evicted", userRateLimiter.getEvictedCount()));
+		}
+		return stats;
+	}
 
 	/**
 	 * --- EXECUTE PLUGIN POST ---<br>
@@ -42,62 +126,96 @@ public class PluginEndpoints {
 	 * @param response - Spark {@link Response}
 	 */
 	public static String executePlugin(Request request, Response response){
-		//Save some server statistics (A)
-		long tic = System.currentTimeMillis();
-		
 		//Plugins allowed?
 		if (!ConfigNode.usePlugins){
 			return pluginsDeactivatedResponse(request, response);
 		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		//Plugins still compiling or reloading?
+		if (!PluginLoader.isReady()){
+			response.header("Retry-After", Integer.toString(RETRY_AFTER_NOT_READY));
+			return notAvailableResponse(request, response, "503 - Plugins are not ready yet. Please try again later.");
+		}
+		//Node shutting down?
+		if (!NodeState.beginExecution()){
+			return notAvailableResponse(request, response, "503 - Node is shutting down.");
+		}
+		try{
+			return executeWithinLimit(request, response, () -> executePluginRequest(request, response));
+		}finally{
+			NodeState.endExecution();
+		}
+	}
+	private static String executePluginRequest(Request request, Response response){
+		//Save some server statistics (A)
+		long tic = System.currentTimeMillis();
 		
-		//Prepare parameters from request body
-		RequestParameters params = new RequestPostParameters(request);
-		
-		//Restrictions
-		if (ConfigNode.pluginsRequireLocalhost){
-			//String host = request.host();
-			//System.out.println(host.startsWith("localhost") || host.startsWith("127.0.0.1"));
-			String ip = request.ip();
-			if (!ip.equals("0:0:0:0:0:0:0:1") && !ip.equals("127.0.0.1")){
-				return notAllowedResponse(request, response);
-			}
+		//Prepare parameters from request body - JSON and CBOR are parsed directly from the input stream
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid " + ((Cbor.isCbor(request.contentType()))? "CBOR" : "JSON") 
+					+ " body: " + e.getMessage());
 		}
-		if (ConfigNode.pluginsRequirePin){
-			String accessPin = params.getString("pin");
-			if (Is.nullOrEmpty(accessPin) || !accessPin.equals(ConfigNode.accessPin)){
-				return notAllowedResponse(request, response);
-			}
+		
+		//Restrictions and authentication
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
 		}
+		String userId = pluginRequest.userId;
 		
-		//Authenticate
-		String userId = "anonymous";
-		boolean isAllowed = true;
-		if (ConfigNode.pluginsRequireAuthentication){
-			//test account
-			Account account = AuthEndpoints.authenticate(params, request, response);
-			isAllowed = isAllowed(account);
-			if (isAllowed){
-				userId = account.getUserID();
-			}else{
-  				return notAllowedResponse(request, response);
-  			}
+		//Retries of the same call (header or parameter 'idempotencyKey')
+		String idempotencyKey = request.headers(IDEMPOTENCY_HEADER);
+		if (Is.nullOrEmpty(idempotencyKey)){
+			idempotencyKey = pluginRequest.getString("idempotencyKey");
+		}
+		if (idempotencyKey != null && idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH){
+			return invalidBodyResponse(request, response, "400 - Idempotency key is too long (max. " + MAX_IDEMPOTENCY_KEY_LENGTH + ")");
 		}
 		
 		//Now all is good ... run the plugin:
 		
 		//What plugin?
+		String pluginCanonicalName = pluginRequest.getString("canonicalName");
+		PluginPriority priority = getPriority(request, response, pluginRequest, pluginCanonicalName);
 		try{
-			String pluginCanonicalName = params.getString("canonicalName");
-			JSONObject pluginData = params.getJson("data");
+			JSONObject pluginData = pluginRequest.getJson("data");
 			
-			Plugin plugin = PluginLoader.getPlugin(pluginCanonicalName);
-			PluginResult pluginResult = plugin.execute(pluginData);
+			PluginResult pluginResult;
+			boolean isDuplicate = false;
+			if (idempotencyCache != null && Is.notNullOrEmpty(idempotencyKey)){
+				//run once per user, plugin and key - duplicates get the result of the first call
+				//waiting duplicates hold a request slot too, so they wait at most as long as one execution may take
+				IdempotencyCache.Result<PluginResult> result = idempotencyCache.execute(
+						userId + "|" + pluginCanonicalName + "|" + idempotencyKey, 
+						IdempotencyCache.fingerprintJson(pluginData),
+						ConfigNode.pluginsWorkerTimeoutMs,
+						() -> PluginExecutor.execute(pluginCanonicalName, pluginData, priority)
+				);
+				pluginResult = result.value;
+				isDuplicate = result.isDuplicate;
+			}else{
+				pluginResult = PluginExecutor.execute(pluginCanonicalName, pluginData, priority);
+			}
 			
 			//Save some server statistics (B1)
-			BasicStatistics.addOtherApiHit("ep-execute-plugin");
-			BasicStatistics.addOtherApiTime("ep-execute-plugin", tic);
-			
-			log.info("Plugin success. User '" + userId + "' called: " + pluginCanonicalName);
+			if (isDuplicate){
+				BasicStatistics.addOtherApiHit("ep-execute-plugin-deduplicated");
+				BasicStatistics.addOtherApiTime("ep-execute-plugin-deduplicated", tic);
+				response.header("Idempotent-Replayed", "true");
+			}else{
+				BasicStatistics.addOtherApiHit("ep-execute-plugin");
+				BasicStatistics.addOtherApiTime("ep-execute-plugin", tic);
+			}
+			if (!audit(isDuplicate? "execute-plugin-replay" : "execute-plugin", userId, pluginCanonicalName, 200, tic, null)){
+				log.info("Plugin " + (isDuplicate? "result replayed" : "success") + ". User '" + userId + "' called: " + pluginCanonicalName);
+			}
 			
 			//Generate response
 			JSONObject msg = new JSONObject();
@@ -105,16 +223,47 @@ public class PluginEndpoints {
 			JSON.add(msg, "user", userId);
 			JSON.add(msg, "plugin", pluginCanonicalName);
 			JSON.add(msg, "data", pluginResult.getJson());
-			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 200);
+			return writeResult(request, response, msg, 200);
+			
+		//Plugin busy
+		}catch (PluginRejectedException e){
+			//Save some server statistics (B2)
+			BasicStatistics.addOtherApiHit("ep-execute-plugin-rejected");
+			BasicStatistics.addOtherApiTime("ep-execute-plugin-rejected", tic);
+			audit("execute-plugin", userId, pluginCanonicalName, e.getStatusCode(), tic, e.getMessage());
+			
+			return rejectedResponse(request, response, e);
+			
+		//First call with the same idempotency key is still running
+		}catch (IdempotencyCache.WaitTimeoutException e){
+			audit("execute-plugin", userId, pluginCanonicalName, 503, tic, e.getMessage());
+			
+			return rejectedResponse(request, response, new PluginRejectedException(e.getMessage(), 503, 1));
+			
+		//Idempotency key was used for a different request
+		}catch (IdempotencyCache.ConflictException e){
+			audit("execute-plugin", userId, pluginCanonicalName, 422, tic, e.getMessage());
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "result", "fail");
+			JSON.add(msg, "error", "422 - " + e.getMessage());
+			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 422);
+			
+		//Request data doesn't fit input of typed plugin
+		}catch (PluginInputException e){
+			BasicStatistics.addOtherApiHit("ep-execute-plugin-invalid");
+			BasicStatistics.addOtherApiTime("ep-execute-plugin-invalid", tic);
+			audit("execute-plugin", userId, pluginCanonicalName, 400, tic, e.getMessage());
+			
+			return invalidBodyResponse(request, response, "400 - Invalid plugin data: " + e.getMessage());
 			
 		//Plugin error
 		}catch (Exception e){
-			log.error("Plugin error! User '" + userId + "' created exception: " + e.getMessage());
-			Debugger.printStackTrace(e, 3);
+			logCallError("Plugin error! User '" + userId + "' called '" + pluginCanonicalName + "' - msg.: " + e.getMessage());
 			
-			//Save some server statistics (B2)
+			//Save some server statistics (B3)
 			BasicStatistics.addOtherApiHit("ep-execute-plugin-error");
 			BasicStatistics.addOtherApiTime("ep-execute-plugin-error", tic);
+			audit("execute-plugin", userId, pluginCanonicalName, 500, tic, e.getMessage());
 			
 			//Generate response
 			JSONObject msg = new JSONObject();
@@ -124,6 +273,371 @@ public class PluginEndpoints {
 		}
 	}
 	
+	/**
+	 * --- EXECUTE PIPELINE POST ---<br>
+	 * Execute a DAG of plugin steps in one request (see {@link PluginPipeline} for the format) and return the results
+	 * of the output steps. The pipeline is the JSON (or CBOR) body itself or the form parameter 'pipeline'.
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String executePipeline(Request request, Response response){
+		//Plugins allowed?
+		if (!ConfigNode.usePlugins){
+			return pluginsDeactivatedResponse(request, response);
+		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		//Plugins still compiling or reloading?
+		if (!PluginLoader.isReady()){
+			response.header("Retry-After", Integer.toString(RETRY_AFTER_NOT_READY));
+			return notAvailableResponse(request, response, "503 - Plugins are not ready yet. Please try again later.");
+		}
+		//Node shutting down?
+		if (!NodeState.beginExecution()){
+			return notAvailableResponse(request, response, "503 - Node is shutting down.");
+		}
+		try{
+			return executeWithinLimit(request, response, () -> executePipelineRequest(request, response));
+		}finally{
+			NodeState.endExecution();
+		}
+	}
+	private static String executePipelineRequest(Request request, Response response){
+		long tic = System.currentTimeMillis();
+		
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid body: " + e.getMessage());
+		}
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
+		}
+		
+		PluginPipeline pipeline;
+		try{
+			pipeline = PluginPipeline.fromJson((pluginRequest.jsonBody != null)? pluginRequest.jsonBody : pluginRequest.getJson("pipeline"));
+		}catch (IllegalArgumentException e){
+			return invalidBodyResponse(request, response, "400 - " + e.getMessage());
+		}
+		if (Is.notNullOrEmpty(getRequestedPriority(request, pluginRequest))){
+			//one lane for all steps only if the caller asked for it, else each step runs in the lane of its plugin
+			pipeline.setPriority(getPriority(request, response, pluginRequest, null));
+		}
+		try{
+			PluginPipeline.Result result = pipeline.execute(ConfigNode.pluginsPipelineTimeoutMs);
+			
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "user", pluginRequest.userId);
+			JSON.add(msg, "duration_ms", result.durationMs);
+			JSON.add(msg, "results", result.results);
+			if (result.isSuccess()){
+				BasicStatistics.addOtherApiHit("ep-execute-pipeline");
+				BasicStatistics.addOtherApiTime("ep-execute-pipeline", tic);
+				audit("execute-pipeline", pluginRequest.userId, null, 200, tic, null);
+				JSON.add(msg, "result", "success");
+				return writeResult(request, response, msg, 200);
+			}else{
+				BasicStatistics.addOtherApiHit("ep-execute-pipeline-error");
+				BasicStatistics.addOtherApiTime("ep-execute-pipeline-error", tic);
+				log.error("Pipeline error! User '" + pluginRequest.userId + "' - failed steps: " + result.errors.keySet());
+				JSON.add(msg, "result", "fail");
+				JSON.add(msg, "errors", result.errors);
+				int status = 500;
+				if (result.rejection != null){
+					status = result.rejection.getStatusCode();
+					response.header("Retry-After", Integer.toString(result.rejection.getRetryAfterSeconds()));
+				}
+				audit("execute-pipeline", pluginRequest.userId, null, status, tic, "failed steps: " + result.errors.keySet());
+				return writeResult(request, response, msg, status);
+			}
+		}catch (Exception e){
+			logCallError("Pipeline error! User '" + pluginRequest.userId + "' - msg.: " + e.getMessage());
+			BasicStatistics.addOtherApiHit("ep-execute-pipeline-error");
+			BasicStatistics.addOtherApiTime("ep-execute-pipeline-error", tic);
+			audit("execute-pipeline", pluginRequest.userId, null, 500, tic, e.getMessage());
+			
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "result", "fail");
+			JSON.add(msg, "error", "500 - Internal pipeline error: " + e.getMessage());
+			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 500);
+		}
+	}
+	
+	/**
+	 * --- PLUGIN RESULT POST ---<br>
+	 * Get the latest result of a scheduled plugin (see {@link PluginSchedule}) without executing it. 
+	 * Parameters: 'id' of the schedule, optional 'since' (version already seen) and 'waitMs' to wait for a newer result (long-polling).
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String pluginResult(Request request, Response response){
+		//Plugins allowed?
+		if (!ConfigNode.usePlugins){
+			return pluginsDeactivatedResponse(request, response);
+		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid body: " + e.getMessage());
+		}
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
+		}
+		String id = pluginRequest.getString("id");
+		PluginSchedule schedule = (id != null)? PluginSchedule.get(id) : null;
+		if (schedule == null){
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "result", "fail");
+			JSON.add(msg, "error", "404 - No plugin schedule with id: " + id);
+			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 404);
+		}
+		try{
+			long since = pluginRequest.getLong("since", 0);
+			long maxWaitMs = Math.min(Math.max(0, pluginRequest.getLong("waitMs", 0)), MAX_RESULT_WAIT_MS);
+			PluginSchedule.Result result = (maxWaitMs > 0)? schedule.awaitNewer(since, maxWaitMs) : schedule.getLatest();
+			
+			BasicStatistics.addOtherApiHit("plugin-result");
+			
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "result", "success");
+			JSON.add(msg, "id", id);
+			JSON.add(msg, "plugin", schedule.getPluginName());
+			if (result != null){
+				JSON.add(msg, "version", result.version);
+				JSON.add(msg, "timestamp", result.timestamp);
+				JSON.add(msg, "duration_ms", result.durationMs);
+				JSON.add(msg, "data", result.data);
+			}else{
+				JSON.add(msg, "version", 0);
+			}
+			if (schedule.getLastError() != null){
+				JSON.add(msg, "last_error", schedule.getLastError());
+			}
+			return writeResult(request, response, msg, 200);
+			
+		}catch (Exception e){
+			return notAvailableResponse(request, response, "503 - Result not available: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * --- SUBMIT JOB POST ---<br>
+	 * Execute a plugin asynchronously (see {@link PluginJobs}). Same parameters as '/execute-plugin', returns the 'job' ID
+	 * as soon as the job is stored. Get the result via '/job-result'.
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String submitJob(Request request, Response response){
+		long tic = System.currentTimeMillis();
+
+		//Plugins allowed?
+		if (!ConfigNode.usePlugins){
+			return pluginsDeactivatedResponse(request, response);
+		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		//Node shutting down?
+		if (!NodeState.isAcceptingRequests()){
+			return notAvailableResponse(request, response, "503 - Node is shutting down.");
+		}
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid body: " + e.getMessage());
+		}
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
+		}
+		String pluginCanonicalName = pluginRequest.getString("canonicalName");
+		if (Is.nullOrEmpty(pluginCanonicalName)){
+			return invalidBodyResponse(request, response, "400 - Missing 'canonicalName'.");
+		}
+		//lane only if the client asked for one, else the job runs in the lane of the plugin or 'batch'
+		PluginPriority priority = null;
+		if (Is.notNullOrEmpty(getRequestedPriority(request, pluginRequest))){
+			priority = getPriority(request, response, pluginRequest, pluginCanonicalName);
+		}
+		try{
+			String jobId = PluginJobs.submit(pluginCanonicalName, pluginRequest.getJson("data"), pluginRequest.userId, priority);
+
+			BasicStatistics.addOtherApiHit("submit-job");
+			BasicStatistics.addOtherApiTime("submit-job", tic);
+			audit("submit-job", pluginRequest.userId, pluginCanonicalName, 202, tic, null);
+
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "result", "success");
+			JSON.add(msg, "user", pluginRequest.userId);
+			JSON.add(msg, "plugin", pluginCanonicalName);
+			JSON.add(msg, "job", jobId);
+			JSON.add(msg, "state", PluginJobs.QUEUED);
+			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 202);
+
+		//Jobs off or queue full
+		}catch (PluginRejectedException e){
+			BasicStatistics.addOtherApiHit("submit-job-rejected");
+			audit("submit-job", pluginRequest.userId, pluginCanonicalName, e.getStatusCode(), tic, e.getMessage());
+			return rejectedResponse(request, response, e);
+
+		//Journal error
+		}catch (Exception e){
+			log.error("Job error! User '" + pluginRequest.userId + "' could not submit job: " + e.getMessage());
+			BasicStatistics.addOtherApiHit("submit-job-error");
+			audit("submit-job", pluginRequest.userId, pluginCanonicalName, 500, tic, e.getMessage());
+
+			JSONObject msg = new JSONObject();
+			JSON.add(msg, "result", "fail");
+			JSON.add(msg, "error", "500 - Job could not be stored: " + e.getMessage());
+			return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 500);
+		}
+	}
+
+	/**
+	 * --- JOB RESULT POST ---<br>
+	 * Get state and result of a job submitted via '/submit-job'. Parameters: 'id' of the job and optional 'waitMs' to wait
+	 * until the job is finished (long-polling). Jobs of other users are not found.
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String jobResult(Request request, Response response){
+		//Plugins allowed?
+		if (!ConfigNode.usePlugins){
+			return pluginsDeactivatedResponse(request, response);
+		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid body: " + e.getMessage());
+		}
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
+		}
+		String id = pluginRequest.getString("id");
+		try{
+			long maxWaitMs = Math.min(Math.max(0, pluginRequest.getLong("waitMs", 0)), MAX_RESULT_WAIT_MS);
+			JSONObject job = (maxWaitMs > 0)? PluginJobs.await(id, pluginRequest.userId, maxWaitMs) : PluginJobs.get(id, pluginRequest.userId);
+			if (job == null){
+				JSONObject msg = new JSONObject();
+				JSON.add(msg, "result", "fail");
+				JSON.add(msg, "error", "404 - No job with id: " + id);
+				return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 404);
+			}
+			BasicStatistics.addOtherApiHit("job-result");
+
+			Object data = job.remove("result");		//plugin result of the job ('result' is the status of this call)
+			JSON.put(job, "result", "success");
+			JSON.put(job, "job", job.remove("id"));
+			JSON.put(job, "data", data);
+			return writeResult(request, response, job, 200);
+
+		}catch (Exception e){
+			return notAvailableResponse(request, response, "503 - Result not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * --- PLUGIN SCHEDULES POST ---<br>
+	 * List all plugin schedules with timing metrics.
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String pluginSchedules(Request request, Response response){
+		//Plugins allowed?
+		if (!ConfigNode.usePlugins){
+			return pluginsDeactivatedResponse(request, response);
+		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid body: " + e.getMessage());
+		}
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
+		}
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "success");
+		JSON.add(msg, "schedules", PluginSchedule.getAllStats());
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 200);
+	}
+	
+	/**
+	 * --- PLUGIN USAGE POST ---<br>
+	 * Top plugins by CPU time, allocated memory, wall time or calls. Requires role 'superuser' or the access 'pin'.
+	 * Optional parameters: 'top' (default 10) and 'sort' ('cpu', 'allocated', 'wall', 'calls').
+	 * @param request - Spark {@link Request}
+	 * @param response - Spark {@link Response}
+	 */
+	public static String pluginUsage(Request request, Response response){
+		//Plugins allowed?
+		if (!ConfigNode.usePlugins){
+			return pluginsDeactivatedResponse(request, response);
+		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
+		PluginRequest pluginRequest;
+		try{
+			pluginRequest = PluginRequest.read(request);
+		}catch (Exception e){
+			return invalidBodyResponse(request, response, "400 - Invalid body: " + e.getMessage());
+		}
+		String accessError = checkAccess(request, response, pluginRequest);
+		if (accessError != null){
+			return accessError;
+		}
+		//usage of all users and plugins - admins only
+		if (!isAdmin(pluginRequest)){
+			return notAdminResponse(request, response);
+		}
+		int top = (int) Math.max(1, pluginRequest.getLong("top", 10));
+		String sort = pluginRequest.getString("sort");
+		if (Is.nullOrEmpty(sort)){
+			sort = "cpu";
+		}else if (!PluginUsage.SORT_ORDERS.contains(sort)){
+			return invalidBodyResponse(request, response, "400 - Invalid 'sort', use one of: " + String.join(", ", PluginUsage.SORT_ORDERS));
+		}
+		
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "success");
+		JSON.add(msg, "sort", sort);
+		JSON.add(msg, "supported", PluginUsage.getSupport());
+		JSON.add(msg, "plugins", PluginUsage.getTop(top, sort));
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 200);
+	}
+	
 	/**-- UPLOAD PLUGIN POST --<br>
 	 * End-point to send plugin code to.  
 	 * @param request - Spark {@link Request}
@@ -137,7 +651,23 @@ public class PluginEndpoints {
 		if (!ConfigNode.usePlugins){
 			return pluginsDeactivatedResponse(request, response);
 		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
 		
+		//Node shutting down?
+		if (!NodeState.beginExecution()){
+			return notAvailableResponse(request, response, "503 - Node is shutting down.");
+		}
+		try{
+			return uploadPluginRequest(request, response, tic);
+		}finally{
+			NodeState.endExecution();
+		}
+	}
+	private static String uploadPluginRequest(Request request, Response response, long tic){
 		RequestParameters params = new RequestGetOrFormParameters(request);
 		//?? - required to read parameters properly:
 		request.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement("/temp"));
@@ -225,7 +755,23 @@ public class PluginEndpoints {
 		if (!ConfigNode.usePlugins){
 			return pluginsDeactivatedResponse(request, response);
 		}
+		//Too many requests?
+		long waitMs = checkRateLimit(ipRateLimiter, request.ip());
+		if (waitMs > 0){
+			return tooManyRequestsResponse(request, response, waitMs);
+		}
 		
+		//Node shutting down?
+		if (!NodeState.beginExecution()){
+			return notAvailableResponse(request, response, "503 - Node is shutting down.");
+		}
+		try{
+			return deletePluginRequest(request, response, tic);
+		}finally{
+			NodeState.endExecution();
+		}
+	}
+	private static String deletePluginRequest(Request request, Response response, long tic){
 		//Prepare parameters from request body
 		RequestParameters params = new RequestPostParameters(request);
 		
@@ -294,6 +840,227 @@ public class PluginEndpoints {
 		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 400);
 	}
 	
+	private static String notAvailableResponse(Request request, Response response, String error){
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "fail");
+		JSON.add(msg, "error", error);
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 503);
+	}
+	
+	/**
+	 * Parameters of a plugin request. JSON and CBOR bodies are parsed directly from the input stream, 
+	 * other content types (e.g. form data) are read via {@link RequestPostParameters}.
+	 */
+	private static class PluginRequest {
+		JSONObject jsonBody;
+		RequestParameters params;
+		String userId = "anonymous";
+		Account account;		//only with authentication
+		
+		/**
+		 * Read request body. 
+		 * @throws Exception if a JSON or CBOR body is invalid
+		 */
+		static PluginRequest read(Request request) throws Exception {
+			PluginRequest pluginRequest = new PluginRequest();
+			String contentType = request.contentType();
+			if (Cbor.isCbor(contentType)){
+				pluginRequest.jsonBody = Cbor.readObject(request.raw().getInputStream());
+			}else if (JsonStreams.isJson(contentType)){
+				pluginRequest.jsonBody = JsonStreams.parseObject(request.raw().getInputStream());
+			}else{
+				pluginRequest.params = new RequestPostParameters(request);
+				return pluginRequest;
+			}
+			if (pluginRequest.jsonBody == null){
+				pluginRequest.jsonBody = new JSONObject();
+			}
+			return pluginRequest;
+		}
+		
+		String getString(String key){
+			if (jsonBody != null){
+				Object value = jsonBody.get(key);
+				return (value != null)? value.toString() : null;
+			}else{
+				return params.getString(key);
+			}
+		}
+		JSONObject getJson(String key){
+			if (jsonBody != null){
+				Object value = jsonBody.get(key);
+				if (value instanceof JSONObject){
+					return (JSONObject) value;
+				}else if (value instanceof String){
+					return JSON.parseString((String) value);
+				}else{
+					return null;
+				}
+			}else{
+				return params.getJson(key);
+			}
+		}
+		long getLong(String key, long defaultValue){
+			String value = getString(key);
+			try{
+				return (Is.nullOrEmpty(value))? defaultValue : Long.parseLong(value.trim());
+			}catch (NumberFormatException e){
+				return defaultValue;
+			}
+		}
+		/**
+		 * Parameters for authentication. For JSON and CBOR they are created on demand from the parsed body 
+		 * (the input stream is consumed already).
+		 */
+		RequestParameters getParams(){
+			if (params == null){
+				params = new RequestPostParameters(jsonBody);
+			}
+			return params;
+		}
+	}
+	
+	/**
+	 * Check localhost, PIN and authentication restrictions of plugin endpoints and the user rate limit. 
+	 * Sets the user ID of the request.
+	 * @return null if access is allowed, else the error response
+	 */
+	private static String checkAccess(Request request, Response response, PluginRequest pluginRequest){
+		if (ConfigNode.pluginsRequireLocalhost){
+			//String host = request.host();
+			//System.out.println(host.startsWith("localhost") || host.startsWith("127.0.0.1"));
+			String ip = request.ip();
+			if (!ip.equals("0:0:0:0:0:0:0:1") && !ip.equals("127.0.0.1")){
+				return notAllowedResponse(request, response);
+			}
+		}
+		if (ConfigNode.pluginsRequirePin){
+			String accessPin = pluginRequest.getString("pin");
+			if (Is.nullOrEmpty(accessPin) || !accessPin.equals(ConfigNode.accessPin)){
+				return notAllowedResponse(request, response);
+			}
+		}
+		if (ConfigNode.pluginsRequireAuthentication){
+			//test account
+			Account account = AuthEndpoints.authenticate(pluginRequest.getParams(), request, response);
+			if (isAllowed(account)){
+				pluginRequest.userId = account.getUserID();
+				pluginRequest.account = account;
+			}else{
+				return notAllowedResponse(request, response);
+			}
+			long waitMs = checkRateLimit(userRateLimiter, pluginRequest.userId);
+			if (waitMs > 0){
+				return tooManyRequestsResponse(request, response, waitMs);
+			}
+		}
+		return null;
+	}
+	/**
+	 * Write result directly to the response output stream (no intermediate string). 
+	 * Uses CBOR if the client accepts it (or sent CBOR without 'Accept' header), else JSON.
+	 * @return empty string (body is already written)
+	 */
+	private static String writeResult(Request request, Response response, JSONObject msg, int statusCode) throws IOException {
+		response.status(statusCode);
+		if (acceptsCbor(request)){
+			response.type(Cbor.CONTENT_TYPE);
+			Cbor.write(msg, response.raw().getOutputStream());
+		}else{
+			response.type("application/json; charset=utf-8");
+			JsonStreams.write(msg, response.raw().getOutputStream());
+		}
+		return "";
+	}
+	private static boolean acceptsCbor(Request request){
+		String accept = request.headers("Accept");
+		if (Is.nullOrEmpty(accept) || accept.trim().equals("*/*")){
+			return Cbor.isCbor(request.contentType());
+		}else{
+			return Cbor.isCbor(accept);
+		}
+	}
+	
+	//one log line per failed call, rate-limited so a plugin that fails on every call doesn't block request threads on the log
+	private static void logCallError(String message){
+		if (errorLogLimiter.tryAcquire("calls") == 0){
+			log.error(message + " (suppressed so far: " + errorLogLimiter.getRejectedCount() + ")");
+		}
+	}
+	
+	//add call to audit log - false if the audit log is off (or full)
+	private static boolean audit(String endpoint, String userId, String plugin, int status, long tic, String error){
+		return AuditLog.record(endpoint, userId, plugin, status, System.currentTimeMillis() - tic, error);
+	}
+	
+	private static String invalidBodyResponse(Request request, Response response, String error){
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "fail");
+		JSON.add(msg, "error", error);
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 400);
+	}
+	
+	//lane from header or parameter 'priority', plugin and user roles (null if priority scheduling is off)
+	private static PluginPriority getPriority(Request request, Response response, PluginRequest pluginRequest, String pluginCanonicalName){
+		if (!PluginScheduler.isEnabled()){
+			return null;
+		}
+		String requested = getRequestedPriority(request, pluginRequest);
+		PluginPriority priority = PluginScheduler.getPriority(pluginCanonicalName, pluginRequest.account, requested);
+		response.header(PRIORITY_HEADER, priority.name());
+		return priority;
+	}
+	//lane the caller asked for via header or parameter 'priority' (can be null)
+	private static String getRequestedPriority(Request request, PluginRequest pluginRequest){
+		String requested = request.headers(PRIORITY_HEADER);
+		if (Is.nullOrEmpty(requested)){
+			requested = pluginRequest.getString("priority");
+		}
+		return requested;
+	}
+	
+	//run request within the adaptive concurrency limit (if active) - sheds with 503 when the limit is reached
+	private static String executeWithinLimit(Request request, Response response, Supplier<String> execution){
+		AdaptiveLimiter limiter = concurrencyLimiter;
+		if (limiter == null){
+			return execution.get();
+		}
+		if (!limiter.tryAcquire()){
+			BasicStatistics.addOtherApiHit("plugins-overloaded");
+			response.header("Retry-After", "1");
+			return notAvailableResponse(request, response, "503 - Node is overloaded. Please try again later.");
+		}
+		long tic = System.nanoTime();
+		try{
+			return execution.get();
+		}finally{
+			limiter.release(System.nanoTime() - tic);
+		}
+	}
+	
+	private static long checkRateLimit(RateLimiter limiter, String key){
+		if (limiter == null || key == null){
+			return 0;
+		}
+		return limiter.tryAcquire(key);
+	}
+	private static String tooManyRequestsResponse(Request request, Response response, long waitMs){
+		BasicStatistics.addOtherApiHit("plugins-rate-limited");
+		response.header("Retry-After", Long.toString((waitMs + 999) / 1000));
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "fail");
+		JSON.add(msg, "error", "429 - Too many requests. Please try again later.");
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 429);
+	}
+	
+	private static String rejectedResponse(Request request, Response response, PluginRejectedException e){
+		response.header("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "fail");
+		JSON.add(msg, "error", e.getStatusCode() + " - " + e.getMessage() + " Please try again later.");
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), e.getStatusCode());
+	}
+	
 	private static boolean isAllowed(Account account){
 		boolean isAllowed = account.getAccessLevel() >= 0; 		//-1 would be 'fail'
 		//check user role
@@ -302,6 +1069,20 @@ public class PluginEndpoints {
 		}
 		return isAllowed;
 	}
+	//superuser role (with authentication) or the access PIN of the node (like the statistics endpoint)
+	private static boolean isAdmin(PluginRequest pluginRequest){
+		if (pluginRequest.account != null && pluginRequest.account.hasRole(Role.superuser.name())){
+			return true;
+		}
+		String accessPin = pluginRequest.getString("pin");
+		return Is.notNullOrEmpty(accessPin) && Is.notNullOrEmpty(ConfigNode.accessPin) && accessPin.equals(ConfigNode.accessPin);
+	}
+	private static String notAdminResponse(Request request, Response response){
+		JSONObject msg = new JSONObject();
+		JSON.add(msg, "result", "fail");
+		JSON.add(msg, "error", "403 - Requires role '" + Role.superuser.name() + "' or the access PIN.");
+		return SparkJavaFw.returnResult(request, response, msg.toJSONString(), 403);
+	}
 	private static String notAllowedResponse(Request request, Response response){
 		JSONObject msg = new JSONObject();
 		JSON.add(msg, "result", "fail");
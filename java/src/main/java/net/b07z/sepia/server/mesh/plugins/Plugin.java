@@ -10,4 +10,45 @@ public interface Plugin {
 	 * @return {@link PluginResult}
 	 */
 	public PluginResult execute(JSONObject data);
+	
+	/**
+	 * Called by the node right after the plugin was created and before {@link #execute(JSONObject)} or {@link #warmUp()}.
+	 * Override this and keep the context if you need node resources like the persistent {@link PluginStore}.
+	 * @param context - {@link PluginContext} of this plugin
+	 */
+	public default void setContext(PluginContext context){}
+	
+	/**
+	 * Called once per plugin generation (after loading or reloading plugins) on the first instance created, 
+	 * before it is used. Use it e.g. to start periodic tasks via {@link PluginContext#scheduleAtFixedRate}.
+	 * @param context - {@link PluginContext} of this plugin generation
+	 */
+	public default void init(PluginContext context){}
+	
+	/**
+	 * Called on the instance that ran {@link #init(PluginContext)} when the plugin generation ends 
+	 * (reload, upload, delete or node shutdown). Scheduled tasks of the context are already cancelled.
+	 */
+	public default void close(){}
+	
+	/**
+	 * Sample data used by the default {@link #warmUp()} hook. Return null (default) to skip warm-up, 
+	 * e.g. when the plugin has side-effects.
+	 * @return JSONObject with sample data or null
+	 */
+	public default JSONObject getWarmUpData(){
+		return null;
+	}
+	
+	/**
+	 * Called by the node a configurable number of times after loading, before the plugin generation is marked ready.
+	 * The default calls {@link #execute(JSONObject)} with {@link #getWarmUpData()} (if available).
+	 * Override this if you need a warm-up that does not trigger real actions.
+	 */
+	public default void warmUp(){
+		JSONObject sampleData = getWarmUpData();
+		if (sampleData != null){
+			execute(sampleData);
+		}
+	}
 }
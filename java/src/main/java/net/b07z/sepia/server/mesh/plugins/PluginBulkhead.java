@@ -0,0 +1,186 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.Is;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+
+/**
+ * Limits concurrent executions of a single plugin so that a burst against one (heavy) plugin cannot occupy all server threads.
+ * Each bulkhead has a max. number of concurrent executions, a max. number of callers waiting for a free slot, 
+ * a max. waiting time and the HTTP status code used for rejected calls.<br>
+ * Configured per canonical name via {@link ConfigNode#pluginsBulkheads} in the format 
+ * 'max_concurrent,max_queue,queue_timeout_ms,reject_status', e.g. '2,4,1000,503'.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class PluginBulkhead {
+	
+	private static final Logger log = LoggerFactory.getLogger(PluginBulkhead.class);
+	
+	private static final Map<String, PluginBulkhead> bulkheads = new ConcurrentHashMap<>();
+	private static final PluginBulkhead UNLIMITED = new PluginBulkhead("unlimited", 0, 0, 0, 503);
+	
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long queueTimeoutMs;
+	private final int rejectStatus;
+	
+	private final Semaphore slots;
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder waited = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	
+	PluginBulkhead(String name, int maxConcurrent, int maxQueue, long queueTimeoutMs, int rejectStatus){
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueue = maxQueue;
+		this.queueTimeoutMs = queueTimeoutMs;
+		this.rejectStatus = rejectStatus;
+		this.slots = (maxConcurrent > 0)? new Semaphore(maxConcurrent, true) : null;
+	}
+	
+	/**
+	 * Get the bulkhead for a plugin. Plugins without specific settings get their own bulkhead with the limits 
+	 * of the default entry (if any). Names that are no plugin (see {@link PluginLoader#isKnownPlugin(String)}) are not stored.
+	 * @param pluginCanonicalName - canonical name of the plugin
+	 * @return bulkhead (never null, but might be unlimited)
+	 */
+	public static PluginBulkhead get(String pluginCanonicalName){
+		if (!PluginLoader.isKnownPlugin(pluginCanonicalName)){
+			return UNLIMITED;		//execution will fail anyway
+		}
+		return bulkheads.computeIfAbsent(pluginCanonicalName, name -> {
+			String settings = ConfigNode.pluginsBulkheads.get(name);
+			if (Is.nullOrEmpty(settings)){
+				settings = ConfigNode.pluginsBulkheadDefault;
+			}
+			return fromSettings(name, settings);
+		});
+	}
+	
+	/**
+	 * Remove all bulkheads so they are rebuilt from settings (called when plugins are reloaded). 
+	 * Running executions keep their old bulkhead.
+	 */
+	public static void reset(){
+		bulkheads.clear();
+	}
+	
+	/**
+	 * Build bulkhead from settings string 'max_concurrent,max_queue,queue_timeout_ms,reject_status'.
+	 */
+	static PluginBulkhead fromSettings(String name, String settings){
+		if (Is.nullOrEmpty(settings)){
+			return UNLIMITED;
+		}
+		try{
+			String[] values = settings.split(",");
+			int maxConcurrent = Integer.parseInt(values[0].trim());
+			int maxQueue = (values.length > 1)? Integer.parseInt(values[1].trim()) : 0;
+			long queueTimeoutMs = (values.length > 2)? Long.parseLong(values[2].trim()) : 0;
+			int rejectStatus = (values.length > 3)? Integer.parseInt(values[3].trim()) : 503;
+			return new PluginBulkhead(name, maxConcurrent, maxQueue, queueTimeoutMs, rejectStatus);
+		}catch (Exception e){
+			log.error("Invalid bulkhead settings for '" + name + "': " + settings + " - plugin will run without limits.");
+			return UNLIMITED;
+		}
+	}
+	
+	/**
+	 * Try to get an execution slot. If all slots are busy wait in the queue (if allowed). 
+	 * If this returns true you MUST call {@link #release()} afterwards.
+	 * @return true if the plugin can be executed, false if the call was rejected
+	 */
+	public boolean tryAcquire(){
+		if (slots == null){
+			return true;
+		}
+		if (slots.tryAcquire()){
+			accepted.increment();
+			return true;
+		}
+		//all slots busy - queue or reject
+		if (maxQueue <= 0 || queueTimeoutMs <= 0){
+			rejected.increment();
+			return false;
+		}
+		if (queued.incrementAndGet() > maxQueue){
+			queued.decrementAndGet();
+			rejected.increment();
+			return false;
+		}
+		try{
+			waited.increment();
+			if (slots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)){
+				accepted.increment();
+				return true;
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			queued.decrementAndGet();
+		}
+		rejected.increment();
+		return false;
+	}
+	/**
+	 * Release slot acquired with {@link #tryAcquire()}.
+	 */
+	public void release(){
+		if (slots != null){
+			slots.release();
+		}
+	}
+	
+	public boolean isLimited(){
+		return slots != null;
+	}
+	public int getRejectStatus(){
+		return rejectStatus;
+	}
+	public long getRejectedCount(){
+		return rejected.sum();
+	}
+	
+	/**
+	 * Statistics of this bulkhead.
+	 */
+	public JSONObject getStats(){
+		JSONObject stats = new JSONObject();
+		JSON.put(stats, "max_concurrent", maxConcurrent);
+		JSON.put(stats, "max_queue", maxQueue);
+		JSON.put(stats, "queue_timeout_ms", queueTimeoutMs);
+		JSON.put(stats, "running", maxConcurrent - slots.availablePermits());
+		JSON.put(stats, "queued", queued.get());
+		JSON.put(stats, "accepted", accepted.sum());
+		JSON.put(stats, "waited", waited.sum());
+		JSON.put(stats, "rejected", rejected.sum());
+		return stats;
+	}
+	/**
+	 * Statistics of all limited bulkheads by canonical name of plugin.
+	 */
+	public static JSONObject getAllStats(){
+		JSONObject allStats = new JSONObject();
+		for (PluginBulkhead bulkhead : bulkheads.values()){
+			if (bulkhead.isLimited()){
+				JSON.put(allStats, bulkhead.name, bulkhead.getStats());
+			}
+		}
+		return allStats;
+	}
+}
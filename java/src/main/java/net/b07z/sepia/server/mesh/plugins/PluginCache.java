@@ -0,0 +1,96 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory LRU cache of a plugin (get it via {@link PluginContext#getCache()}).
+ * Entries can have a time-to-live. The cache is cleared when the plugin generation ends (class-loader reset),
+ * so it never keeps objects of old plugin classes alive.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginCache {
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, CacheEntry> entries;
+
+	PluginCache(int maxEntries){
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest){
+				return size() > PluginCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get value or null if missing or expired.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T get(String key){
+		CacheEntry entry = entries.get(key);
+		if (entry == null){
+			return null;
+		}else if (entry.expires > 0 && entry.expires < System.currentTimeMillis()){
+			entries.remove(key);
+			return null;
+		}
+		return (T) entry.value;
+	}
+
+	/**
+	 * Store value without expiration (removed only when the cache is full).
+	 */
+	public void put(String key, Object value){
+		put(key, value, 0);
+	}
+	/**
+	 * Store value for a limited time.
+	 * @param ttlMs - time-to-live in milliseconds (0 = no expiration)
+	 */
+	public synchronized void put(String key, Object value, long ttlMs){
+		entries.put(key, new CacheEntry(value, (ttlMs > 0)? (System.currentTimeMillis() + ttlMs) : 0));
+	}
+
+	/**
+	 * Remove value.
+	 */
+	public synchronized void remove(String key){
+		entries.remove(key);
+	}
+
+	/**
+	 * Remove all values.
+	 */
+	public synchronized void clear(){
+		entries.clear();
+	}
+
+	/**
+	 * Number of entries (including expired ones not yet removed).
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Max. number of entries.
+	 */
+	public int getMaxEntries(){
+		return maxEntries;
+	}
+
+	private static class CacheEntry {
+		final Object value;
+		final long expires;
+
+		CacheEntry(Object value, long expires){
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
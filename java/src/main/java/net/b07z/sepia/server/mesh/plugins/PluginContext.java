@@ -0,0 +1,280 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.net.http.HttpClient;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+
+/**
+ * Resources the node provides to a plugin (see {@link Plugin#setContext(PluginContext)}).
+ * Each plugin gets its own context, scoped to the plugin's canonical class name, for one plugin generation:
+ * when the class-loader is reset (reload, upload, delete) the context is closed, meaning scheduled tasks
+ * are cancelled, the cache is cleared and {@link Plugin#close()} is called. The next call creates a new context
+ * and runs {@link Plugin#init(PluginContext)} again.<br>
+ * The HTTP client and the scheduler threads are shared by all plugins and reused across generations.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginContext {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginContext.class);
+
+	//shared by all plugins
+	private static volatile HttpClient httpClient;
+	private static volatile ScheduledThreadPoolExecutor scheduler;
+
+	private final String pluginCanonicalName;
+	private final int generation;
+	private final PluginCache cache;
+	private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+	private final List<Runnable> closeHooks = new CopyOnWriteArrayList<>();
+	private volatile Plugin initializedPlugin;
+	private volatile boolean isClosed = false;
+
+	PluginContext(String pluginCanonicalName, int generation){
+		this.pluginCanonicalName = pluginCanonicalName;
+		this.generation = generation;
+		this.cache = new PluginCache(ConfigNode.pluginsCacheMaxEntries);
+	}
+
+	/**
+	 * Canonical class name of the plugin this context belongs to.
+	 */
+	public String getPluginName(){
+		return pluginCanonicalName;
+	}
+
+	/**
+	 * Plugin generation this context belongs to (see {@link PluginLoader#getGeneration()}).
+	 */
+	public int getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * Closed contexts belong to an old plugin generation and don't accept new tasks.
+	 */
+	public boolean isClosed(){
+		return isClosed;
+	}
+
+	/**
+	 * Persistent key-value store of this plugin. Survives plugin reloads and node restarts.<br>
+	 * Inside worker processes (plugins_isolation=process) calls go to the node and work only while the plugin is executed.
+	 * @return {@link PluginStore}
+	 */
+	public PluginStore getStore(){
+		if (PluginWorker.isWorkerProcess()){
+			return PluginWorker.getRemoteStore(pluginCanonicalName);
+		}
+		return PluginStore.open(pluginCanonicalName);
+	}
+
+	/**
+	 * Bounded in-memory cache of this plugin. Cleared at the end of the plugin generation.
+	 * @return {@link PluginCache}
+	 */
+	public PluginCache getCache(){
+		return cache;
+	}
+
+	/**
+	 * HTTP client shared by all plugins. Keeps connections alive and reuses them across calls,
+	 * so don't build your own client inside {@link Plugin#execute}.
+	 * @return {@link HttpClient}
+	 */
+	public HttpClient getHttpClient(){
+		HttpClient client = httpClient;
+		if (client == null){
+			synchronized (PluginContext.class){
+				if (httpClient == null){
+					//create with permissions of the node (client starts its own threads)
+					httpClient = AccessController.doPrivileged((PrivilegedAction<HttpClient>) () -> HttpClient.newBuilder()
+							.connectTimeout(Duration.ofMillis(ConfigNode.pluginsHttpConnectTimeoutMs))
+							.followRedirects(HttpClient.Redirect.NORMAL)
+							.build());
+				}
+				client = httpClient;
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Run a task once in the background.
+	 * @param task - task to run
+	 * @return {@link Future} to check or cancel the task
+	 */
+	public Future<?> submit(Runnable task){
+		return schedule(task, 0, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * Run a task once after a delay.
+	 * @param task - task to run
+	 * @param delay - delay
+	 * @param unit - unit of delay
+	 * @return {@link ScheduledFuture} to check or cancel the task
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit){
+		checkOpen();
+		return track(getScheduler().schedule(wrap(task), delay, unit));
+	}
+	/**
+	 * Run a task periodically until it is cancelled or the plugin generation ends.
+	 * Errors are logged and don't stop the schedule.
+	 * @param task - task to run
+	 * @param initialDelay - delay of first run
+	 * @param period - time between start of runs
+	 * @param unit - unit of delay and period
+	 * @return {@link ScheduledFuture} to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit){
+		checkOpen();
+		return track(getScheduler().scheduleAtFixedRate(wrap(task), initialDelay, period, unit));
+	}
+
+	/**
+	 * Register an action that runs when this context is closed (end of plugin generation or node shutdown).
+	 * @param hook - e.g. close a connection
+	 */
+	public void onClose(Runnable hook){
+		checkOpen();
+		closeHooks.add(hook);
+	}
+
+	//--- node side ---
+
+	/**
+	 * Call {@link Plugin#init(PluginContext)} if this is the first plugin instance of the context.
+	 */
+	void initIfNeeded(Plugin plugin){
+		if (initializedPlugin != null){
+			return;
+		}
+		synchronized (this){
+			if (initializedPlugin == null && !isClosed){
+				try{
+					plugin.init(this);
+				}catch (Exception e){
+					log.error("Plugin init FAILED for '" + pluginCanonicalName + "' with msg: " + e.getMessage());
+				}
+				initializedPlugin = plugin;
+			}
+		}
+	}
+
+	/**
+	 * Cancel tasks, run close hooks, call {@link Plugin#close()} and clear cache.
+	 */
+	synchronized void close(){
+		if (isClosed){
+			return;
+		}
+		isClosed = true;
+		for (Future<?> task : tasks){
+			task.cancel(false);
+		}
+		tasks.clear();
+		for (Runnable hook : closeHooks){
+			try{
+				hook.run();
+			}catch (Exception e){
+				log.error("Plugin close hook FAILED for '" + pluginCanonicalName + "' with msg: " + e.getMessage());
+			}
+		}
+		closeHooks.clear();
+		if (initializedPlugin != null){
+			try{
+				initializedPlugin.close();
+			}catch (Exception e){
+				log.error("Plugin close FAILED for '" + pluginCanonicalName + "' with msg: " + e.getMessage());
+			}
+			initializedPlugin = null;
+		}
+		cache.clear();
+	}
+
+	/**
+	 * Stop shared scheduler threads (node shutdown). Contexts should be closed before.
+	 */
+	static void shutdownSharedResources(){
+		synchronized (PluginContext.class){
+			if (scheduler != null){
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+			httpClient = null;
+		}
+	}
+
+	/**
+	 * Number of scheduled tasks of this context.
+	 */
+	int getTaskCount(){
+		tasks.removeIf(Future::isDone);
+		return tasks.size();
+	}
+
+	private void checkOpen(){
+		if (isClosed){
+			throw new IllegalStateException("Context of plugin '" + pluginCanonicalName + "' is closed (generation " + generation + " ended).");
+		}
+	}
+
+	private <T extends Future<?>> T track(T future){
+		tasks.removeIf(Future::isDone);
+		tasks.add(future);
+		return future;
+	}
+
+	//log errors instead of stopping periodic tasks silently
+	private Runnable wrap(Runnable task){
+		return () -> {
+			try{
+				task.run();
+			}catch (Exception e){
+				log.error("Plugin task of '" + pluginCanonicalName + "' FAILED with msg: " + e.getMessage());
+			}
+		};
+	}
+
+	private static ScheduledThreadPoolExecutor getScheduler(){
+		ScheduledThreadPoolExecutor executor = scheduler;
+		if (executor == null){
+			synchronized (PluginContext.class){
+				if (scheduler == null){
+					//fixed number of threads, all created here with permissions of the node
+					scheduler = AccessController.doPrivileged((PrivilegedAction<ScheduledThreadPoolExecutor>) () -> {
+						AtomicInteger threadNumber = new AtomicInteger(0);
+						ScheduledThreadPoolExecutor newScheduler = new ScheduledThreadPoolExecutor(
+								Math.max(1, ConfigNode.pluginsSchedulerThreads), runnable -> {
+									Thread thread = new Thread(runnable, "plugin-scheduler-" + threadNumber.incrementAndGet());
+									thread.setDaemon(true);
+									return thread;
+								});
+						newScheduler.setRemoveOnCancelPolicy(true);
+						newScheduler.prestartAllCoreThreads();
+						return newScheduler;
+					});
+				}
+				executor = scheduler;
+			}
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,95 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.tools.TimeSeriesStats;
+
+/**
+ * Central place to execute a plugin. Applies the execution limits (budgets, priority slots, bulkheads) before calling {@link Plugin#execute(JSONObject)}
+ * and records the CPU time and allocations of the call (see {@link PluginUsage}) as well as its time-series (see {@link TimeSeriesStats}).
+ * With plugins_isolation=process the plugin is executed in a worker process instead (see {@link PluginWorkerPool}).
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class PluginExecutor {
+	
+	public static final String SERIES_PREFIX = "plugin:";		//time-series name prefix, see TimeSeriesStats
+	
+	/**
+	 * Load plugin of the current generation and execute it with given data.
+	 * @param pluginCanonicalName - canonical name of class the plugin was compiled from
+	 * @param data - plugin data
+	 * @return {@link PluginResult}
+	 * @throws PluginRejectedException if the plugin is busy or blocked for exceeding its budget
+	 * @throws PluginInputException if the data doesn't fit the input of a {@link TypedPlugin}
+	 * @throws Exception if the plugin could not be loaded or failed
+	 */
+	public static PluginResult execute(String pluginCanonicalName, JSONObject data) throws Exception {
+		return execute(pluginCanonicalName, data, null);
+	}
+	/**
+	 * Load plugin of the current generation and execute it with given data in a priority lane (see {@link PluginScheduler}).
+	 * @param pluginCanonicalName - canonical name of class the plugin was compiled from
+	 * @param data - plugin data
+	 * @param priority - lane or null for the default lane of the plugin
+	 * @return {@link PluginResult}
+	 * @throws PluginRejectedException if the plugin is busy, blocked for exceeding its budget or no slot was free in time
+	 * @throws PluginInputException if the data doesn't fit the input of a {@link TypedPlugin}
+	 * @throws ClassNotFoundException if there is no such plugin
+	 * @throws Exception if the plugin could not be loaded or failed
+	 */
+	public static PluginResult execute(String pluginCanonicalName, JSONObject data, PluginPriority priority) throws Exception {
+		//no usage records, bulkheads or time-series for names that don't exist
+		if (!PluginLoader.isKnownPlugin(pluginCanonicalName)){
+			throw new ClassNotFoundException(pluginCanonicalName);
+		}
+		PluginUsage usage = PluginUsage.get(pluginCanonicalName);
+		usage.checkBudget();
+		//priority slot first: a call waiting for a slot must not hold a bulkhead permit the plugin needs for calls that have one
+		boolean isScheduled = PluginScheduler.isEnabled();
+		if (isScheduled){
+			PluginScheduler.acquire((priority != null)? priority : PluginScheduler.getPriority(pluginCanonicalName, null, null));
+		}
+		PluginBulkhead bulkhead = PluginBulkhead.get(pluginCanonicalName);
+		if (!bulkhead.tryAcquire()){
+			if (isScheduled){
+				PluginScheduler.release();
+			}
+			throw new PluginRejectedException("Plugin '" + pluginCanonicalName + "' is busy.", bulkhead.getRejectStatus(), 1);
+		}
+		long tic = System.nanoTime();
+		boolean failed = true;
+		try{
+			PluginResult result = PluginWorkerPool.isEnabled()? 
+					PluginWorkerPool.execute(pluginCanonicalName, data, usage) : executeLocal(pluginCanonicalName, data, usage);
+			failed = false;
+			return result;
+		}finally{
+			bulkhead.release();
+			if (isScheduled){
+				PluginScheduler.release();
+			}
+			if (ConfigNode.statsTimeSeries){
+				TimeSeriesStats.record(SERIES_PREFIX + pluginCanonicalName, System.nanoTime() - tic, failed);
+			}
+		}
+	}
+	
+	private static PluginResult executeLocal(String pluginCanonicalName, JSONObject data, PluginUsage usage) throws Exception {
+		Plugin plugin = PluginLoader.getPlugin(pluginCanonicalName);
+		long cpuStart = PluginUsage.getThreadCpuNs();
+		long allocStart = PluginUsage.getThreadAllocatedBytes();
+		long tic = System.nanoTime();
+		boolean failed = true;
+		try{
+			PluginResult result = plugin.execute(data);
+			failed = false;
+			return result;
+		}finally{
+			usage.record(PluginUsage.getThreadCpuNs() - cpuStart, PluginUsage.getThreadAllocatedBytes() - allocStart, 
+					System.nanoTime() - tic, failed);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Optional settings of a field of a {@link TypedPlugin} input class.
+ * 
+ * @author Florian Quirin
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface PluginField {
+	
+	/**
+	 * Key in the request data (default: field name).
+	 */
+	String value() default "";
+	
+	/**
+	 * Reject request with 400 if the key is missing or null.
+	 */
+	boolean required() default false;
+}
@@ -0,0 +1,328 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.tools.SandboxClassLoader;
+
+/**
+ * Fills the input class of a {@link TypedPlugin} from request data. The binder of each class is built once
+ * (fields, converters and method handles) and cached via {@link ClassValue}, so it is dropped together
+ * with the plugin classes when the plugin class-loader is reset.<br>
+ * Only classes of sandboxed plugins (and plugin libraries) are inspected with the permissions of the node. Any other class
+ * (e.g. of the node itself) is inspected with the permissions of the caller, so a plugin can't use an input binder to create 
+ * node objects or write their private fields.
+ *
+ * @author Florian Quirin
+ *
+ * @param <T> - input class
+ */
+public class PluginInputBinder<T> {
+
+	private static final ClassValue<PluginInputBinder<?>> binders = new ClassValue<PluginInputBinder<?>>(){
+		@Override
+		protected PluginInputBinder<?> computeValue(Class<?> type){
+			if (type.getClassLoader() instanceof SandboxClassLoader){
+				//reflection on plugin classes with permissions of the node
+				return AccessController.doPrivileged((PrivilegedAction<PluginInputBinder<?>>) () -> new PluginInputBinder<>(type));
+			}else{
+				return new PluginInputBinder<>(type);
+			}
+		}
+	};
+
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+	private final Class<T> type;
+	private final MethodHandle constructor;
+	private final FieldBinder[] fields;
+
+	//converts a JSON value to the field type or throws InvalidValueException
+	private interface Converter {
+		Object convert(Object value);
+	}
+	
+	//thrown by converters, the path is added while unwinding so valid data never builds path strings
+	private static class InvalidValueException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final String problem;
+		String path = "";
+		
+		InvalidValueException(String problem){
+			super(problem, null, false, false);
+			this.problem = problem;
+		}
+		
+		InvalidValueException at(String segment){
+			path = (path.isEmpty() || path.startsWith("["))? (segment + path) : (segment + "." + path);
+			return this;
+		}
+	}
+
+	private static class FieldBinder {
+		final String key;
+		final boolean isRequired;
+		final MethodHandle setter;
+		final Converter converter;
+
+		FieldBinder(String key, boolean isRequired, MethodHandle setter, Converter converter){
+			this.key = key;
+			this.isRequired = isRequired;
+			this.setter = setter;
+			this.converter = converter;
+		}
+	}
+
+	/**
+	 * Get (or build) binder of an input class.
+	 * @throws IllegalStateException if the class can't be used as input (no no-arg constructor, final or unsupported fields)
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PluginInputBinder<T> get(Class<T> type){
+		return (PluginInputBinder<T>) binders.get(type);
+	}
+
+	private PluginInputBinder(Class<T> type){
+		this.type = type;
+		try{
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			Constructor<T> defaultConstructor = type.getDeclaredConstructor();
+			defaultConstructor.setAccessible(true);
+			this.constructor = lookup.unreflectConstructor(defaultConstructor).asType(CONSTRUCTOR_TYPE);
+
+			List<FieldBinder> binders = new ArrayList<>();
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()){
+				for (Field field : c.getDeclaredFields()){
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()){
+						continue;
+					}
+					if (Modifier.isFinal(modifiers)){
+						throw new IllegalStateException("final field '" + field.getName() + "' can't be bound");
+					}
+					PluginField settings = field.getAnnotation(PluginField.class);
+					String key = (settings != null && !settings.value().isEmpty())? settings.value() : field.getName();
+					field.setAccessible(true);
+					binders.add(new FieldBinder(key, settings != null && settings.required(),
+							lookup.unreflectSetter(field).asType(SETTER_TYPE),
+							getConverter(field.getType(), field.getGenericType())));
+				}
+			}
+			this.fields = binders.toArray(new FieldBinder[0]);
+
+		}catch (NoSuchMethodException e){
+			throw new IllegalStateException("Plugin input class '" + type.getName() + "' needs a constructor without arguments.");
+		}catch (IllegalStateException e){
+			throw new IllegalStateException("Plugin input class '" + type.getName() + "' - " + e.getMessage());
+		}catch (ReflectiveOperationException | SecurityException e){
+			throw new IllegalStateException("Plugin input class '" + type.getName() + "' can't be bound: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Create input object from request data.
+	 * @param data - request data (null = empty)
+	 * @return new instance of the input class
+	 * @throws PluginInputException if a field is missing or has the wrong type
+	 */
+	public T bind(JSONObject data){
+		try{
+			return bindFields(data);
+		}catch (InvalidValueException e){
+			throw new PluginInputException("Field '" + e.path + "' " + e.problem);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T bindFields(JSONObject data){
+		try{
+			Object instance = constructor.invokeExact();
+			for (FieldBinder field : fields){
+				Object value = (data != null)? data.get(field.key) : null;
+				if (value == null){
+					if (field.isRequired){
+						throw new InvalidValueException("is missing").at(field.key);
+					}
+					continue;
+				}
+				try{
+					field.setter.invokeExact(instance, field.converter.convert(value));
+				}catch (InvalidValueException e){
+					throw e.at(field.key);
+				}
+			}
+			return (T) instance;
+
+		}catch (InvalidValueException e){
+			throw e;
+		}catch (Throwable e){
+			throw new IllegalStateException("Plugin input class '" + type.getName() + "' could not be created: " + e.getMessage(), e);
+		}
+	}
+
+	//--- converters ---
+
+	private static Converter getConverter(Class<?> fieldType, Type genericType){
+		if (fieldType == String.class){
+			return value -> {
+				if (value instanceof String){
+					return value;
+				}
+				throw wrongType("a string", value);
+			};
+		}else if (fieldType == long.class || fieldType == Long.class){
+			return value -> toLong(value);
+		}else if (fieldType == int.class || fieldType == Integer.class){
+			return value -> {
+				long n = toLong(value);
+				if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE){
+					throw new InvalidValueException("is out of range");
+				}
+				return (int) n;
+			};
+		}else if (fieldType == double.class || fieldType == Double.class){
+			return value -> toNumber(value).doubleValue();
+		}else if (fieldType == float.class || fieldType == Float.class){
+			return value -> toNumber(value).floatValue();
+		}else if (fieldType == boolean.class || fieldType == Boolean.class){
+			return value -> {
+				if (value instanceof Boolean){
+					return value;
+				}
+				throw wrongType("a boolean", value);
+			};
+		}else if (fieldType.isEnum()){
+			Map<String, Object> constants = new HashMap<>();
+			for (Object constant : fieldType.getEnumConstants()){
+				constants.put(((Enum<?>) constant).name().toLowerCase(), constant);
+			}
+			return value -> {
+				Object constant = (value instanceof String)? constants.get(((String) value).toLowerCase()) : null;
+				if (constant == null){
+					throw new InvalidValueException("must be one of: " + constants.keySet());
+				}
+				return constant;
+			};
+		}else if (fieldType == JSONObject.class || fieldType == Map.class){
+			return value -> {
+				if (value instanceof JSONObject){
+					return value;
+				}
+				throw wrongType("an object", value);
+			};
+		}else if (fieldType == JSONArray.class){
+			return value -> {
+				if (value instanceof JSONArray){
+					return value;
+				}
+				throw wrongType("an array", value);
+			};
+		}else if (fieldType == List.class || fieldType == Collection.class){
+			Type elementType = (genericType instanceof ParameterizedType)?
+					((ParameterizedType) genericType).getActualTypeArguments()[0] : Object.class;
+			Converter elementConverter = getConverter(getRawClass(elementType), elementType);
+			return value -> {
+				if (!(value instanceof JSONArray)){
+					throw wrongType("an array", value);
+				}
+				JSONArray array = (JSONArray) value;
+				List<Object> list = new ArrayList<>(array.size());
+				for (int i = 0; i < array.size(); i++){
+					list.add(convertElement(elementConverter, array.get(i), i));
+				}
+				return list;
+			};
+		}else if (fieldType.isArray()){
+			Class<?> componentType = fieldType.getComponentType();
+			Converter elementConverter = getConverter(componentType, componentType);
+			return value -> {
+				if (!(value instanceof JSONArray)){
+					throw wrongType("an array", value);
+				}
+				JSONArray array = (JSONArray) value;
+				Object result = Array.newInstance(componentType, array.size());
+				for (int i = 0; i < array.size(); i++){
+					Object element = convertElement(elementConverter, array.get(i), i);
+					if (element == null && componentType.isPrimitive()){
+						throw new InvalidValueException("must not be null").at("[" + i + "]");
+					}
+					Array.set(result, i, element);
+				}
+				return result;
+			};
+		}else if (fieldType == Object.class){
+			return value -> value;
+		}else if (fieldType.isPrimitive() || fieldType.isInterface() || Modifier.isAbstract(fieldType.getModifiers())
+				|| fieldType.getName().startsWith("java.")){
+			throw new IllegalStateException("unsupported field type " + fieldType.getName());
+		}else{
+			//nested input class - binder is resolved on first use (allows recursive types)
+			return value -> {
+				if (!(value instanceof JSONObject)){
+					throw wrongType("an object", value);
+				}
+				return get(fieldType).bindFields((JSONObject) value);
+			};
+		}
+	}
+
+	private static Object convertElement(Converter converter, Object value, int index){
+		try{
+			return (value != null)? converter.convert(value) : null;
+		}catch (InvalidValueException e){
+			throw e.at("[" + index + "]");
+		}
+	}
+
+	private static Class<?> getRawClass(Type type){
+		if (type instanceof Class){
+			return (Class<?>) type;
+		}else if (type instanceof ParameterizedType){
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		}else{
+			return Object.class;	//wildcards and type variables
+		}
+	}
+
+	private static Number toNumber(Object value){
+		if (value instanceof Number){
+			return (Number) value;
+		}
+		throw wrongType("a number", value);
+	}
+
+	private static long toLong(Object value){
+		if (value instanceof Long || value instanceof Integer){
+			return ((Number) value).longValue();
+		}else if (value instanceof Number){
+			double d = ((Number) value).doubleValue();
+			if (d == Math.rint(d) && !Double.isInfinite(d)){
+				return (long) d;
+			}
+		}
+		throw wrongType("an integer", value);
+	}
+
+	private static InvalidValueException wrongType(String expected, Object value){
+		return new InvalidValueException("must be " + expected + " but is: "
+				+ ((value instanceof JSONObject)? "object" : (value instanceof JSONArray)? "array" : value.getClass().getSimpleName()));
+	}
+}
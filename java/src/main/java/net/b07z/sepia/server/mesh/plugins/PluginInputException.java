@@ -0,0 +1,17 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+/**
+ * Thrown when the request data doesn't fit the input class of a {@link TypedPlugin} (missing or wrong field).
+ * The plugin is not executed and the client gets a 400 response.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class PluginInputException extends IllegalArgumentException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public PluginInputException(String message){
+		super(message);
+	}
+}
@@ -0,0 +1,473 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.server.NodeState;
+import net.b07z.sepia.server.mesh.tools.MappedLogStore;
+
+/**
+ * Asynchronous plugin executions (jobs) for long-running plugins. A job is submitted with an ID for the client, executed
+ * by a pool of workers and its result is kept for {@link ConfigNode#pluginsJobsResultTtlMs} so the client can poll for it.<br>
+ * Every state change of a job is written to a journal ({@link MappedLogStore}, one entry per job). {@link #submit} returns after
+ * the journal was flushed to disk, flushes of concurrent submits are batched ({@link ConfigNode#pluginsJobsFlushMs}).
+ * On shutdown, running jobs are journaled as queued again without counting the attempt. On start, queued jobs are resumed
+ * and jobs that were still running (node crashed) count as an interrupted attempt (a job that was interrupted
+ * {@link ConfigNode#pluginsJobsMaxAttempts} times fails).<br>
+ * Jobs rejected by the execution limits (bulkhead, budget, priority slots) stay queued and are retried after the 'Retry-After' time.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginJobs {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginJobs.class);
+
+	public static final String JOURNAL_FILE = "node-jobs.kvlog";		//in the plugins data folder, '-' can't clash with plugin stores
+
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+
+	private static final long CLEANUP_INTERVAL_MS = 1000;
+	private static final long JOURNAL_COMPACT_MIN_GARBAGE_BYTES = 256 * 1024;
+	private static final long MAX_FLUSH_WAIT_MS = 10000;
+	private static final long LOADER_WAIT_MS = 100;
+
+	private static volatile MappedLogStore journal;
+	private static ScheduledExecutorService timer;		//journal flush and cleanup
+	private static ScheduledExecutorService workers;
+	private static final Map<String, Long> expires = new ConcurrentHashMap<>();		//finished jobs by ID - time to delete
+	private static final Set<String> runningIds = ConcurrentHashMap.newKeySet();		//jobs to queue again on shutdown
+	private static final AtomicInteger queued = new AtomicInteger(0);
+	private static final AtomicInteger running = new AtomicInteger(0);
+
+	//group commit of journal writes
+	private static final Object flushLock = new Object();
+	private static long writeSeq = 0;		//guarded by flushLock
+	private static long flushedSeq = 0;		//guarded by flushLock
+
+	//statistics
+	private static final LongAdder submitted = new LongAdder();
+	private static final LongAdder completed = new LongAdder();
+	private static final LongAdder failed = new LongAdder();
+	private static final LongAdder resumed = new LongAdder();
+	private static final LongAdder retried = new LongAdder();
+	private static final LongAdder flushes = new LongAdder();
+
+	/**
+	 * Open the journal, queue interrupted jobs again and start workers (if {@link ConfigNode#pluginsJobsThreads} &gt; 0).
+	 * @throws IOException if the journal can't be opened
+	 */
+	public static synchronized void start() throws IOException {
+		if (journal != null || ConfigNode.pluginsJobsThreads <= 0){
+			return;
+		}
+		MappedLogStore store = new MappedLogStore(Paths.get(ConfigNode.pluginsFolder + PluginStore.defaultDataFolder, JOURNAL_FILE));
+		timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "plugin-jobs-journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		workers = Executors.newScheduledThreadPool(ConfigNode.pluginsJobsThreads, runnable -> {
+			Thread thread = new Thread(runnable, "plugin-jobs-worker-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		journal = store;
+		expires.clear();
+		runningIds.clear();
+		queued.set(0);
+		running.set(0);
+		//restore finished jobs and queue interrupted ones again (oldest first)
+		List<JSONObject> interrupted = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for (String id : new ArrayList<>(store.keySet())){
+			JSONObject job = read(id);
+			if (job == null){
+				store.remove(id);
+			}else if (isFinished(job)){
+				long expiresAt = getLong(job, "expires");
+				if (expiresAt <= now){
+					store.remove(id);
+				}else{
+					expires.put(id, expiresAt);
+				}
+			}else{
+				interrupted.add(job);
+			}
+		}
+		interrupted.sort((a, b) -> Long.compare(getLong(a, "created"), getLong(b, "created")));
+		for (JSONObject job : interrupted){
+			String id = (String) job.get("id");
+			long attempts = getLong(job, "attempts");
+			if (attempts >= ConfigNode.pluginsJobsMaxAttempts){
+				finish(id, job, null, "Job was interrupted " + attempts + " times.");
+			}else{
+				JSON.put(job, "state", QUEUED);
+				write(id, job);
+				resumed.increment();
+				enqueue(id, 0);
+			}
+		}
+		store.flush();
+		if (ConfigNode.pluginsJobsFlushMs > 0){
+			timer.scheduleWithFixedDelay(PluginJobs::flush, ConfigNode.pluginsJobsFlushMs, ConfigNode.pluginsJobsFlushMs, TimeUnit.MILLISECONDS);
+		}
+		timer.scheduleWithFixedDelay(PluginJobs::removeExpired, CLEANUP_INTERVAL_MS, CLEANUP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		log.info("Plugin jobs started - workers: " + ConfigNode.pluginsJobsThreads + ", resumed jobs: " + interrupted.size()
+				+ ", stored results: " + expires.size());
+	}
+
+	/**
+	 * Stop workers and close the journal (e.g. on shutdown). Running jobs are journaled as queued again (the attempt
+	 * doesn't count), queued and running jobs are resumed on the next start.
+	 */
+	public static synchronized void stop(){
+		MappedLogStore store = journal;
+		if (store == null){
+			return;
+		}
+		//before the journal closes, so a job that finishes in the meantime still stores its result
+		int requeued = 0;
+		for (String id : new ArrayList<>(runningIds)){
+			JSONObject job = read(id);
+			if (job != null && RUNNING.equals(job.get("state"))){
+				JSON.put(job, "state", QUEUED);
+				JSON.put(job, "attempts", Math.max(0, getLong(job, "attempts") - 1));
+				job.remove("started");
+				if (writeOrLog(id, job)){
+					requeued++;
+				}
+			}
+		}
+		if (requeued > 0){
+			log.info("Plugin jobs stopped - queued running jobs again: " + requeued);
+		}
+		journal = null;
+		workers.shutdownNow();
+		timer.shutdownNow();
+		try{
+			store.close();
+		}catch (IOException e){
+			log.error("Failed to close plugin jobs journal - msg.: " + e.getMessage());
+		}
+		synchronized (flushLock){
+			flushLock.notifyAll();		//release waiting submits
+		}
+		synchronized (PluginJobs.class){
+			PluginJobs.class.notifyAll();		//release waiting clients
+		}
+	}
+
+	/**
+	 * Are jobs accepted?
+	 */
+	public static boolean isEnabled(){
+		return journal != null;
+	}
+
+	/**
+	 * Add a job to the queue. Returns when the job is stored on disk.
+	 * @param pluginCanonicalName - canonical name of plugin class
+	 * @param data - plugin data
+	 * @param userId - owner of the job (only the owner can read the result)
+	 * @param priority - lane or null for the lane of the plugin or 'batch'
+	 * @return job ID
+	 * @throws PluginRejectedException if jobs are off or the queue is full
+	 * @throws IOException if the job can't be stored
+	 */
+	public static String submit(String pluginCanonicalName, JSONObject data, String userId, PluginPriority priority) throws IOException {
+		if (!isEnabled()){
+			throw new PluginRejectedException("Plugin jobs are not available.", 503, 3);
+		}
+		if (queued.get() >= ConfigNode.pluginsJobsMaxQueued){
+			throw new PluginRejectedException("Too many queued plugin jobs.", 503, 10);
+		}
+		String id = UUID.randomUUID().toString();
+		JSONObject job = JSON.make(
+				"id", id,
+				"plugin", pluginCanonicalName,
+				"user", userId,
+				"state", QUEUED,
+				"created", System.currentTimeMillis()
+		);
+		JSON.put(job, "data", (data != null)? data : new JSONObject());
+		if (priority != null){
+			JSON.put(job, "priority", priority.name());
+		}
+		JSON.put(job, "attempts", 0);
+		long seq = write(id, job);
+		awaitFlush(seq);
+		submitted.increment();
+		enqueue(id, 0);
+		return id;
+	}
+
+	/**
+	 * Get job of a user (without plugin data).
+	 * @param id - job ID
+	 * @param userId - owner of the job
+	 * @return job or null if it doesn't exist (anymore) or belongs to another user
+	 */
+	public static JSONObject get(String id, String userId){
+		JSONObject job = read(id);
+		if (job == null || !String.valueOf(job.get("user")).equals(userId)){
+			return null;
+		}
+		job.remove("data");
+		return job;
+	}
+
+	/**
+	 * Wait until a job is finished (long-polling). Returns immediately if it is finished already.
+	 * @param id - job ID
+	 * @param userId - owner of the job
+	 * @param maxWaitMs - max. time to wait
+	 * @return job (can still be queued or running) or null, see {@link #get(String, String)}
+	 * @throws InterruptedException
+	 */
+	public static JSONObject await(String id, String userId, long maxWaitMs) throws InterruptedException {
+		long end = System.currentTimeMillis() + maxWaitMs;
+		synchronized (PluginJobs.class){
+			JSONObject job = get(id, userId);
+			while (job != null && !isFinished(job) && isEnabled()){
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0){
+					break;
+				}
+				PluginJobs.class.wait(wait);
+				job = get(id, userId);
+			}
+			return job;
+		}
+	}
+
+	//--- execution ---
+
+	private static void enqueue(String id, long delayMs){
+		queued.incrementAndGet();
+		try{
+			workers.schedule(() -> run(id), delayMs, TimeUnit.MILLISECONDS);
+		}catch (RejectedExecutionException e){
+			queued.decrementAndGet();		//stopped - job stays queued in the journal
+		}
+	}
+
+	private static void run(String id){
+		queued.decrementAndGet();
+		JSONObject job = read(id);
+		if (job == null || !QUEUED.equals(job.get("state"))){
+			return;
+		}
+		if (!PluginLoader.isReady()){
+			enqueue(id, LOADER_WAIT_MS);		//plugins are (re)loading - check again later without blocking a worker
+			return;
+		}
+		if (!NodeState.beginExecution()){
+			return;		//node is shutting down - job stays queued in the journal
+		}
+		running.incrementAndGet();
+		try{
+			//count the attempt before the plugin runs, so a job that crashes the node doesn't run forever
+			JSON.put(job, "state", RUNNING);
+			JSON.put(job, "started", System.currentTimeMillis());
+			JSON.put(job, "attempts", getLong(job, "attempts") + 1);
+			write(id, job);
+			runningIds.add(id);
+
+			String pluginCanonicalName = (String) job.get("plugin");
+			PluginPriority priority = PluginPriority.parse((String) job.get("priority"));
+			if (priority == null){
+				//background work, so 'batch' lane unless the plugin has its own
+				PluginPriority lane = PluginPriority.parse(ConfigNode.pluginsPriorities.get(pluginCanonicalName));
+				priority = (lane != null)? lane : PluginPriority.batch;
+			}
+			PluginResult result = PluginExecutor.execute(pluginCanonicalName, (JSONObject) job.get("data"), priority);
+			finish(id, job, result.getJson(), null);
+
+		}catch (PluginRejectedException e){
+			//busy - try again later
+			retried.increment();
+			JSON.put(job, "state", QUEUED);
+			JSON.put(job, "attempts", Math.max(0, getLong(job, "attempts") - 1));
+			writeOrLog(id, job);
+			enqueue(id, TimeUnit.SECONDS.toMillis(Math.max(1, e.getRetryAfterSeconds())));
+		}catch (Exception e){
+			log.error("Plugin job '" + id + "' FAILED with msg: " + e.getMessage());
+			finish(id, job, null, e.getMessage());
+		}finally{
+			runningIds.remove(id);
+			running.decrementAndGet();
+			NodeState.endExecution();
+		}
+	}
+
+	private static void finish(String id, JSONObject job, JSONObject result, String error){
+		long now = System.currentTimeMillis();
+		long expiresAt = now + ConfigNode.pluginsJobsResultTtlMs;
+		job.remove("data");		//not needed anymore
+		JSON.put(job, "state", (error == null)? DONE : FAILED);
+		JSON.put(job, "finished", now);
+		JSON.put(job, "expires", expiresAt);
+		if (error == null){
+			JSON.put(job, "result", result);
+			completed.increment();
+		}else{
+			JSON.put(job, "error", error);
+			failed.increment();
+		}
+		if (writeOrLog(id, job)){
+			expires.put(id, expiresAt);
+		}
+		synchronized (PluginJobs.class){
+			PluginJobs.class.notifyAll();
+		}
+	}
+
+	//--- journal ---
+
+	private static boolean isFinished(JSONObject job){
+		Object state = job.get("state");
+		return DONE.equals(state) || FAILED.equals(state);
+	}
+
+	private static long getLong(JSONObject json, String key){
+		Object value = json.get(key);
+		return (value instanceof Number)? ((Number) value).longValue() : 0;
+	}
+
+	private static JSONObject read(String id){
+		MappedLogStore store = journal;
+		String value = (store != null && id != null)? store.get(id) : null;
+		return (value != null)? JSON.parseString(value) : null;
+	}
+
+	//write job and return the sequence number for awaitFlush
+	private static long write(String id, JSONObject job) throws IOException {
+		MappedLogStore store = journal;
+		if (store == null){
+			throw new IOException("Plugin jobs journal is closed.");
+		}
+		store.put(id, job.toJSONString());
+		synchronized (flushLock){
+			return ++writeSeq;
+		}
+	}
+	private static boolean writeOrLog(String id, JSONObject job){
+		try{
+			write(id, job);
+			return true;
+		}catch (IOException e){
+			log.error("Failed to write plugin job '" + id + "' - msg.: " + e.getMessage());
+			return false;
+		}
+	}
+
+	//wait until the write with given sequence number is on disk (flushed by the timer together with other writes)
+	private static void awaitFlush(long seq) throws IOException {
+		if (ConfigNode.pluginsJobsFlushMs <= 0){
+			flush();
+			return;
+		}
+		long end = System.currentTimeMillis() + MAX_FLUSH_WAIT_MS;
+		synchronized (flushLock){
+			while (flushedSeq < seq){
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0 || !isEnabled()){
+					throw new IOException("Plugin jobs journal was not flushed in time.");
+				}
+				try{
+					flushLock.wait(wait);
+				}catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for plugin jobs journal.");
+				}
+			}
+		}
+	}
+
+	private static void flush(){
+		MappedLogStore store = journal;
+		long seq;
+		synchronized (flushLock){
+			seq = writeSeq;
+			if (seq == flushedSeq || store == null){
+				return;
+			}
+		}
+		store.flush();
+		flushes.increment();
+		synchronized (flushLock){
+			flushedSeq = Math.max(flushedSeq, seq);
+			flushLock.notifyAll();
+		}
+	}
+
+	private static void removeExpired(){
+		MappedLogStore store = journal;
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> entry : expires.entrySet()){
+			if (entry.getValue() <= now && store != null){
+				try{
+					store.remove(entry.getKey());
+					expires.remove(entry.getKey());
+				}catch (IOException e){
+					log.error("Failed to remove plugin job '" + entry.getKey() + "' - msg.: " + e.getMessage());
+					return;
+				}
+			}
+		}
+		//results of finished jobs are garbage now
+		if (store != null){
+			try{
+				store.compactIfGarbage(JOURNAL_COMPACT_MIN_GARBAGE_BYTES);
+			}catch (IOException e){
+				log.error("Failed to compact plugin jobs journal - msg.: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Number of jobs by state, counters and journal size (null if off).
+	 */
+	public static JSONObject getStats(){
+		MappedLogStore store = journal;
+		if (store == null){
+			return null;
+		}
+		JSONObject stats = JSON.make(
+				"queued", queued.get(),
+				"running", running.get(),
+				"stored_results", expires.size(),
+				"submitted", submitted.sum(),
+				"completed", completed.sum()
+		);
+		JSON.put(stats, "failed", failed.sum());
+		JSON.put(stats, "resumed", resumed.sum());
+		JSON.put(stats, "retried", retried.sum());
+		JSON.put(stats, "flushes", flushes.sum());
+		JSON.put(stats, "journal", store.getStats());
+		return stats;
+	}
+}
@@ -0,0 +1,316 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.ClassBuilder;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.core.tools.SandboxClassLoader;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+
+/**
+ * Shared libraries of all plugins: compiled helper classes (package folders) and JARs in the plugins 'libs' folder.<br>
+ * They are loaded once by a class-loader that sits between the node and the plugin class-loaders (node -&gt; libraries -&gt; plugins),
+ * so plugins don't have to copy helper code into their own source, the classes exist only once in memory and they are not reloaded
+ * when plugins change (changes of libraries need a restart). The library class-loader is a {@link SandboxClassLoader} too, so
+ * library code has the same (restricted) permissions and blacklist as plugin code.<br>
+ * Plugins are compiled against the node class path plus the libraries (see {@link #compile(String, String, File)}).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginLibraries {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginLibraries.class);
+
+	public static String defaultLibraryFolder = "libs/";
+
+	private static LibraryClassLoader libraryClassLoader;		//null until load()
+
+	/**
+	 * Class-loader for the shared library classes with the node class-loader as parent. Compiled classes come from the
+	 * libraries folder (like plugins), classes of JARs are read via a separate loader without parent and defined here, so
+	 * they get the protection domain of a sandbox class-loader (a plain URL class-loader would give library code all permissions
+	 * of the node). Library code can't load classes of the blacklist.
+	 */
+	private static class LibraryClassLoader extends SandboxClassLoader {
+		final List<File> entries;
+		final List<String> blacklist;
+		final URLClassLoader jars;			//only reads class files of JARs, never defines classes
+		final String classPath;				//entries for the compiler class path
+		final LongAdder loadedClasses = new LongAdder();
+		final LongAdder blocked = new LongAdder();
+
+		LibraryClassLoader(File folder, List<File> entries, List<String> blacklist) throws MalformedURLException {
+			super(folder, blacklist);
+			this.entries = entries;
+			this.blacklist = blacklist;
+			List<URL> jarUrls = new ArrayList<>();
+			StringBuilder classPath = new StringBuilder();
+			for (File entry : entries){
+				if (!entry.equals(folder)){
+					jarUrls.add(entry.toURI().toURL());
+				}
+				classPath.append(File.pathSeparator).append(entry.getAbsolutePath());
+			}
+			this.jars = new URLClassLoader(jarUrls.toArray(new URL[0]), null);
+			this.classPath = classPath.toString();
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (isBlacklisted(name, blacklist)){
+				blocked.increment();
+				throw new ClassNotFoundException("Class is not allowed in plugin libraries: " + name);
+			}
+			return super.loadClass(name, resolve);
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			Class<?> c;
+			try{
+				c = super.findClass(name);
+			}catch (ClassNotFoundException e){
+				c = defineJarClass(name);
+			}
+			loadedClasses.increment();
+			return c;
+		}
+
+		private Class<?> defineJarClass(String name) throws ClassNotFoundException {
+			byte[] bytes;
+			try (InputStream in = jars.getResourceAsStream(name.replace('.', '/') + ".class")){
+				if (in == null){
+					throw new ClassNotFoundException(name);
+				}
+				bytes = in.readAllBytes();
+			}catch (IOException e){
+				throw new ClassNotFoundException(name, e);
+			}
+			int lastDot = name.lastIndexOf('.');
+			if (lastDot > 0){
+				String packageName = name.substring(0, lastDot);
+				if (getDefinedPackage(packageName) == null){
+					try{
+						definePackage(packageName, null, null, null, null, null, null, null);
+					}catch (IllegalArgumentException e){
+						//defined in parallel
+					}
+				}
+			}
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+
+		@Override
+		public URL findResource(String name){
+			URL url = super.findResource(name);
+			return (url != null)? url : jars.findResource(name);
+		}
+
+		void closeJars() throws IOException {
+			jars.close();
+		}
+	}
+
+	/**
+	 * Plugin class-loader with the library class-loader as parent: classes are looked up in the libraries (and via their
+	 * parent in the node) first and then in the plugin folder.<br>
+	 * NOTE: {@link SandboxClassLoader} has no constructor with a parent, so the delegation is done here.
+	 */
+	private static class LayeredSandboxClassLoader extends SandboxClassLoader {
+		final ClassLoader libraries;
+		final List<String> blacklist;
+
+		LayeredSandboxClassLoader(File classFolder, List<String> blacklist, ClassLoader libraries) throws MalformedURLException {
+			super(classFolder, blacklist);
+			this.libraries = libraries;
+			this.blacklist = blacklist;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (isBlacklisted(name, blacklist)){
+				throw new ClassNotFoundException("Class is not allowed in plugins: " + name);
+			}
+			synchronized (getClassLoadingLock(name)){
+				Class<?> c = findLoadedClass(name);
+				if (c == null){
+					try{
+						c = libraries.loadClass(name);
+					}catch (ClassNotFoundException e){
+						c = findClass(name);
+					}
+				}
+				if (resolve){
+					resolveClass(c);
+				}
+				return c;
+			}
+		}
+
+		@Override
+		public URL getResource(String name){
+			URL url = libraries.getResource(name);
+			return (url != null)? url : findResource(name);
+		}
+	}
+
+	/**
+	 * Open the libraries folder (if it has any libraries). Call before plugins are compiled, does nothing if libraries
+	 * are loaded already.
+	 * @return number of JARs and class folders found
+	 */
+	public static synchronized int load(){
+		if (libraryClassLoader != null){
+			return libraryClassLoader.entries.size();
+		}
+		File folder = new File(ConfigNode.pluginsFolder + defaultLibraryFolder);
+		List<File> entries = new ArrayList<>();
+		File[] jars = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"));
+		if (jars != null){
+			Arrays.sort(jars);
+			entries.addAll(Arrays.asList(jars));
+		}
+		File[] packages = folder.listFiles(File::isDirectory);
+		if (packages != null && packages.length > 0){
+			entries.add(0, folder);		//compiled helper classes in package folders
+		}
+		if (entries.isEmpty()){
+			return 0;
+		}
+		try{
+			libraryClassLoader = new LibraryClassLoader(folder, Collections.unmodifiableList(entries), ConfigNode.getSandboxBlacklist());
+			log.info("Plugin libraries loaded - JARs: " + ((jars != null)? jars.length : 0)
+					+ ", class folder: " + (entries.get(0) == folder));
+			return entries.size();
+		}catch (MalformedURLException e){
+			log.error("Plugin libraries could not be loaded - msg.: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Close the library class-loader (e.g. on shutdown).
+	 */
+	public static synchronized void close(){
+		if (libraryClassLoader != null){
+			try{
+				libraryClassLoader.closeJars();
+			}catch (IOException e){
+				log.error("Plugin libraries could not be closed - msg.: " + e.getMessage());
+			}
+			libraryClassLoader = null;
+		}
+	}
+
+	/**
+	 * Create the class-loader of a plugin generation (with the shared libraries as parent if there are any).
+	 * @param classFolder - folder of compiled plugins
+	 * @param blacklist - classes and packages plugins can't load
+	 * @throws MalformedURLException
+	 */
+	static SandboxClassLoader newPluginClassLoader(File classFolder, List<String> blacklist) throws MalformedURLException {
+		ClassLoader libraries = libraryClassLoader;
+		return (libraries != null)? new LayeredSandboxClassLoader(classFolder, blacklist, libraries)
+				: new SandboxClassLoader(classFolder, blacklist);
+	}
+
+	/**
+	 * Compile a plugin class to the target folder. Without libraries this is {@link ClassBuilder#compile(String, String, File)},
+	 * with libraries the system compiler is called with the node class path plus the libraries, since ClassBuilder has no class path option.
+	 * @param canonicalName - canonical name of the class
+	 * @param sourceCode - source code of the class
+	 * @param targetFolder - folder for the .class files
+	 * @return compiler errors or empty string
+	 */
+	static String compile(String canonicalName, String sourceCode, File targetFolder){
+		LibraryClassLoader loader = libraryClassLoader;
+		if (loader == null){
+			return ClassBuilder.compile(canonicalName, sourceCode, targetFolder);
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null){
+			return "No Java compiler found (the node has to run on a JDK).";
+		}
+		JavaFileObject source = new SimpleJavaFileObject(
+				URI.create("string:///" + canonicalName.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE){
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors){
+				return sourceCode;
+			}
+		};
+		targetFolder.mkdirs();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)){
+			List<String> options = Arrays.asList(
+					"-classpath", System.getProperty("java.class.path") + loader.classPath,
+					"-d", targetFolder.getAbsolutePath()
+			);
+			if (compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(source)).call()){
+				return "";
+			}
+		}catch (IOException e){
+			return "Compiler failed - msg.: " + e.getMessage();
+		}
+		StringBuilder errors = new StringBuilder();
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()){
+			if (diagnostic.getKind() == Diagnostic.Kind.ERROR){
+				errors.append("line ").append(diagnostic.getLineNumber()).append(": ").append(diagnostic.getMessage(null)).append("\n");
+			}
+		}
+		return (errors.length() > 0)? errors.toString().trim() : "Compilation failed.";
+	}
+
+	//is class in one of the blacklisted packages or a blacklisted class (or one of its inner classes)?
+	private static boolean isBlacklisted(String className, List<String> blacklist){
+		for (String entry : blacklist){
+			if (className.equals(entry) || className.startsWith(entry + ".") || className.startsWith(entry + "$")){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * JARs, classes loaded from libraries and blocked class lookups (null if there are no libraries).
+	 */
+	public static JSONObject getStats(){
+		LibraryClassLoader loader = libraryClassLoader;
+		if (loader == null){
+			return null;
+		}
+		List<String> entries = new ArrayList<>();
+		for (File entry : loader.entries){
+			entries.add(entry.getName());
+		}
+		return JSON.make(
+				"entries", entries,
+				"loaded_classes", loader.loadedClasses.sum(),
+				"blocked", loader.blocked.sum()
+		);
+	}
+}
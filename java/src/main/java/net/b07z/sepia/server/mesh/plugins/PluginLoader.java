@@ -3,10 +3,24 @@ package net.b07z.sepia.server.mesh.plugins;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.lang.reflect.Modifier;
 import java.net.MalformedURLException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +31,7 @@ import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.SandboxClassLoader;
 import net.b07z.sepia.server.core.tools.StringTools;
 import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.tools.DirectoryWatcher;
 
 /**
  * Class that loads plugins aka source-code and compiles it at runtime or startup.
@@ -30,7 +45,19 @@ public class PluginLoader {
 	
 	public static String defaultSourceFolder = "src/";
 	public static String defaultTargetFolder = "compiled/";
-	private static SandboxClassLoader pluginClassLoader; 	//all plugins are stored in this class loader
+	private static volatile SandboxClassLoader pluginClassLoader; 	//all plugins are stored in this class loader (created on first use)
+	private static final Object classLoaderLock = new Object();
+	
+	private static final Set<String> loadedPlugins = ConcurrentHashMap.newKeySet();	//canonical names of plugins in current generation
+	private static final Set<String> nodePlugins = ConcurrentHashMap.newKeySet();		//plugin classes of the node itself found so far (e.g. RuntimePlugin)
+	private static final AtomicInteger generation = new AtomicInteger(0);			//increases with every class-loader reset
+	private static volatile boolean isReady = false;								//plugins compiled and warmed up?
+	
+	//source files index - simple class name to file(s) and file path to compiled version
+	private static final Map<String, Set<File>> sourceIndex = new ConcurrentHashMap<>();
+	private static final Map<String, SourceVersion> compiledSources = new ConcurrentHashMap<>();
+	private static DirectoryWatcher sourceWatcher;
+	private static final Map<String, PluginContext> contexts = new ConcurrentHashMap<>();	//contexts of current generation by plugin canonical name
 	
 	/**
 	 * Get a plugin previously loaded (e.g. on start-up or via plugin endpoint).
@@ -42,20 +69,120 @@ public class PluginLoader {
 	 * @throws MalformedURLException 
 	 */
 	public static Plugin getPlugin(String pluginClassName) throws InstantiationException, IllegalAccessException, ClassNotFoundException, MalformedURLException{
-		if (pluginClassLoader == null){
-			pluginClassLoader = new SandboxClassLoader(
-					new File(ConfigNode.pluginsFolder + defaultTargetFolder), ConfigNode.getSandboxBlacklist());
+		SandboxClassLoader classLoader = pluginClassLoader;
+		if (classLoader == null){
+			//only one class-loader per generation, else parallel calls would load the same plugin class twice
+			synchronized (classLoaderLock){
+				classLoader = pluginClassLoader;
+				if (classLoader == null){
+					PluginLibraries.load();
+					classLoader = PluginLibraries.newPluginClassLoader(
+							new File(ConfigNode.pluginsFolder + defaultTargetFolder), ConfigNode.getSandboxBlacklist());
+					pluginClassLoader = classLoader;
+				}
+			}
 		}
-		Plugin plugin = (Plugin) ClassBuilder.construct(pluginClassLoader, pluginClassName);
+		Plugin plugin = (Plugin) ClassBuilder.construct(classLoader, pluginClassName);
+		PluginContext context = contexts.computeIfAbsent(pluginClassName, name -> new PluginContext(name, generation.get()));
+		plugin.setContext(context);
+		context.initIfNeeded(plugin);
 		return plugin;
 	}
 	/**
-	 * Remove all cached classes from plugin class-loader.
+	 * Remove all cached classes from plugin class-loader and close the plugin contexts of this generation.
 	 */
 	public static void resetClassLoader(){
 		pluginClassLoader = null;
+		generation.incrementAndGet();
+		closeContexts();
+		PluginBulkhead.reset();		//drop bulkheads of deleted plugins
 		log.info("Plugin class-loader has been reset.");
 	}
+	
+	private static void closeContexts(){
+		for (String pluginCanonicalName : new ArrayList<>(contexts.keySet())){
+			PluginContext context = contexts.remove(pluginCanonicalName);
+			if (context != null){
+				context.close();
+			}
+		}
+	}
+	
+	/**
+	 * Create the context of all loaded plugins and run their {@link Plugin#init(PluginContext)} hook.
+	 * @return number of plugins initialized without errors
+	 */
+	public static int initPlugins(){
+		if (PluginWorkerPool.isEnabled()){
+			return 0;	//plugins are initialized inside the worker processes
+		}
+		int initialized = 0;
+		for (String pluginCanonicalName : loadedPlugins){
+			try{
+				getPlugin(pluginCanonicalName);
+				initialized++;
+			}catch (Exception e){
+				log.error("Plugin init FAILED for '" + pluginCanonicalName + "' with msg: " + e.getMessage());
+			}
+		}
+		return initialized;
+	}
+	
+	/**
+	 * Close plugin contexts, shared plugin resources (scheduler threads etc.), stores and libraries. Call on node shutdown.
+	 */
+	public static void shutdown(){
+		stopSourceWatcher();
+		closeContexts();
+		PluginContext.shutdownSharedResources();
+		PluginPipeline.shutdown();
+		PluginWorkerPool.stop();
+		PluginStore.closeAll();
+		pluginClassLoader = null;
+		PluginLibraries.close();
+	}
+	
+	/**
+	 * Current plugin generation. Increases each time the class-loader is reset (reload, upload, delete).
+	 */
+	public static int getGeneration(){
+		return generation.get();
+	}
+	/**
+	 * Are all plugins of the current generation compiled and warmed up?
+	 */
+	public static boolean isReady(){
+		return isReady;
+	}
+	/**
+	 * Canonical names of all plugins compiled for the current generation.
+	 */
+	public static Set<String> getLoadedPlugins(){
+		return loadedPlugins;
+	}
+	/**
+	 * Is there a plugin with this name? True for plugins compiled for the current generation and for plugin classes 
+	 * of the node itself. Check this before keeping any state for a name sent by a client.
+	 * @param pluginCanonicalName - canonical name of plugin class
+	 */
+	public static boolean isKnownPlugin(String pluginCanonicalName){
+		if (pluginCanonicalName == null){
+			return false;
+		}
+		if (loadedPlugins.contains(pluginCanonicalName) || nodePlugins.contains(pluginCanonicalName)){
+			return true;
+		}
+		try{
+			Class<?> c = Class.forName(pluginCanonicalName, false, PluginLoader.class.getClassLoader());
+			if (Plugin.class.isAssignableFrom(c) && !c.isInterface() && !Modifier.isAbstract(c.getModifiers())){
+				nodePlugins.add(pluginCanonicalName);		//only existing classes, so this can't grow with client input
+				return true;
+			}
+		}catch (ClassNotFoundException | LinkageError e){
+			//no such class
+		}
+		return false;
+	}
 	/**
 	 * Clean-up plugins folder by removing all compiled classes and reset class-loader afterwards.
 	 * Usually this would be followed by a reload of classes with e.g.: {@link #loadAllPlugins()}.
@@ -72,18 +199,21 @@ public class PluginLoader {
 			}
 		}
 		//Don't forget to reset the class-loader:
+		loadedPlugins.clear();
 		resetClassLoader();
 		return true;
 	}
 			
 	/**
 	 * Load all .java files from default source code folder, read code, compile and store to
-	 * default target folder.  
+	 * default target folder. Files are compiled in parallel using {@link ConfigNode#pluginsCompileThreads}.
+	 * Afterwards run the warm-up phase (if active) and mark the generation as ready.
 	 * @param cleanUpBefore - remove compiled class-files before?
 	 * @return number of compiled plugins
 	 */
-	public static int loadAllPlugins(boolean cleanUpBefore){
+	public static synchronized int loadAllPlugins(boolean cleanUpBefore){
 		int pluginsLoaded = -1;
+		isReady = false;
 		
 		//Get plugins folder
 		String sourceCodePath = ConfigNode.pluginsFolder + defaultSourceFolder;
@@ -95,18 +225,101 @@ public class PluginLoader {
 			cleanUpPluginsFolder();
 		}
 		
+		//Shared libraries (plugins are compiled against them)
+		PluginLibraries.load();
+		
 		//Iterate all files and take only source code java files
+		sourceIndex.clear();
+		compiledSources.clear();
 		if (files != null){
 			pluginsLoaded++; 	//no error, start at 0
+			List<File> javaFiles = new ArrayList<>();
 			for (File f : files){
-				if (compileJavaPluginToTarget(f, compilePath)){
-					pluginsLoaded++;
+				if (f.getName().endsWith(".java")){
+					javaFiles.add(f);
+					indexSourceFile(f);
+				}
+			}
+			int threads = (ConfigNode.pluginsCompileThreads > 0)? 
+					ConfigNode.pluginsCompileThreads : Runtime.getRuntime().availableProcessors();
+			threads = Math.min(threads, javaFiles.size());
+			if (threads <= 1){
+				for (File f : javaFiles){
+					if (compileJavaPluginToTarget(f, compilePath)){
+						pluginsLoaded++;
+					}
+				}
+			}else{
+				long tic = System.currentTimeMillis();
+				ExecutorService compilePool = Executors.newFixedThreadPool(threads);
+				try{
+					List<Future<Boolean>> results = new ArrayList<>();
+					for (File f : javaFiles){
+						results.add(compilePool.submit(() -> compileJavaPluginToTarget(f, compilePath)));
+					}
+					for (Future<Boolean> result : results){
+						try{
+							if (result.get()){
+								pluginsLoaded++;
+							}
+						}catch (ExecutionException e){
+							log.error("Plugin ERROR - Loading FAILED with msg: " + e.getCause().getMessage());
+						}
+					}
+				}catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+				}finally{
+					compilePool.shutdown();
 				}
+				log.info("Compiled " + javaFiles.size() + " plugin file(s) with " + threads + " threads in " 
+						+ (System.currentTimeMillis() - tic) + "ms");
 			}
 		}
+		
+		//Init and warm-up
+		initPlugins();
+		if (ConfigNode.pluginsWarmUpRuns > 0){
+			warmUpPlugins(ConfigNode.pluginsWarmUpRuns);
+		}
+		isReady = true;
 		return pluginsLoaded;
 	}
 	
+	/**
+	 * Run the {@link Plugin#warmUp()} hook of all loaded plugins a number of times to trigger class loading, 
+	 * static initialization and JIT compilation before the first real call arrives. 
+	 * @param runs - number of warm-up calls per plugin
+	 * @return number of plugins that finished warm-up without errors
+	 */
+	public static int warmUpPlugins(int runs){
+		return warmUpPlugins(loadedPlugins, runs);
+	}
+	/**
+	 * Run the {@link Plugin#warmUp()} hook of the given plugins a number of times.
+	 * @param pluginCanonicalNames - plugins to warm up
+	 * @param runs - number of warm-up calls per plugin
+	 * @return number of plugins that finished warm-up without errors
+	 */
+	public static int warmUpPlugins(Collection<String> pluginCanonicalNames, int runs){
+		if (PluginWorkerPool.isEnabled()){
+			return 0;	//plugin code never runs inside the node in this mode
+		}
+		long tic = System.currentTimeMillis();
+		int warmedUp = 0;
+		for (String pluginCanonicalName : pluginCanonicalNames){
+			try{
+				for (int i=0; i<runs; i++){
+					getPlugin(pluginCanonicalName).warmUp();
+				}
+				warmedUp++;
+			}catch (Exception e){
+				log.error("Plugin warm-up FAILED for '" + pluginCanonicalName + "' with msg: " + e.getMessage());
+			}
+		}
+		log.info("Plugin warm-up finished for " + warmedUp + " plugin(s) after " + (System.currentTimeMillis() - tic) + "ms");
+		return warmedUp;
+	}
+	
 	/**
 	 * Compile a .java file to target path or throw error.
 	 * @param f - File to compile
@@ -120,11 +333,14 @@ public class PluginLoader {
 			log.info("Loading plugin from: " + fullPathAndName);
         	//Get source code
         	String sourceCode;
+        	long lastModified = f.lastModified();
             try (InputStream input = new FileInputStream(f)){
         		sourceCode = FilesAndStreams.getStringFromStream(input, StandardCharsets.UTF_8, "\n");
         		//Compile file to target folder
             	String classSimpleName = ClassBuilder.getSimpleClassNameFromFileName(fileName);
-            	return compileSourceCodeToTarget(classSimpleName, sourceCode, compilePath, false);
+            	boolean compiled = compileSourceCodeToTarget(classSimpleName, sourceCode, compilePath, false);
+            	compiledSources.put(f.getAbsolutePath(), new SourceVersion(getCanonicalName(classSimpleName, sourceCode), lastModified));
+            	return compiled;
         		
         	}catch (Exception e){
         		log.error("Plugin ERROR - Loading FAILED with msg: " + e.getMessage());
@@ -155,19 +371,17 @@ public class PluginLoader {
 	 * @return
 	 */
 	public static boolean compileSourceCodeToTarget(String classSimpleName, String sourceCode, String compilePath, boolean storeCode){
-    	String packageName = StringTools.findFirstRexEx(sourceCode, "^(\\s+|)(package )(.*?);")
-    			.replaceFirst(".*package ", "").replaceFirst(";$", "").trim();
-    	if (packageName.isEmpty()){
-    		throw new RuntimeException("Package name of class missing in source code or invalid.");
-    	}
-		String errors = ClassBuilder.compile(packageName + "." + classSimpleName, sourceCode, new File(compilePath));
+		String canonicalName = getCanonicalName(classSimpleName, sourceCode);
+		String errors = PluginLibraries.compile(canonicalName, sourceCode, new File(compilePath));
 		if (!errors.isEmpty()){
 			throw new RuntimeException("Class '" + classSimpleName + "' - " + errors);
 		}
+		loadedPlugins.add(canonicalName);
 		if (storeCode){
 			String storePath = ConfigNode.pluginsFolder + defaultSourceFolder + classSimpleName + ".java";
 			boolean wrote = FilesAndStreams.writeFileFromList(storePath, Arrays.asList(sourceCode.split("\\R")));
 			if (wrote){
+				indexSourceFile(new File(storePath));
 				log.info("Plugin compiled successfully to target folder and stored as: " + storePath);
 			}else{
 				//try to clean up here?
@@ -179,28 +393,170 @@ public class PluginLoader {
 		return true;
 	}
 	
+	/**
+	 * Get canonical class name from package declaration in source code or throw error.
+	 */
+	private static String getCanonicalName(String classSimpleName, String sourceCode){
+		String packageName = StringTools.findFirstRexEx(sourceCode, "^(\\s+|)(package )(.*?);")
+    			.replaceFirst(".*package ", "").replaceFirst(";$", "").trim();
+    	if (packageName.isEmpty()){
+    		throw new RuntimeException("Package name of class missing in source code or invalid.");
+    	}
+		return packageName + "." + classSimpleName;
+	}
+	
 	/**
 	 * Delete all plugin source files that match given class name.
 	 * @param classSimpleName - Plugins should always be named after their main class (simple name)
 	 * @return
 	 */
 	public static int deletePluginSourceFile(String classSimpleName){
-		List<File> potentialPlugins = FilesAndStreams.directoryToFileList(
-				ConfigNode.pluginsFolder + defaultSourceFolder, null, true);
-		//Iterate all files and take only source code java files
+		Set<File> potentialPlugins = sourceIndex.remove(classSimpleName);
 		int deletedFiles = 0;
 		if (potentialPlugins != null){
 			for (File f : potentialPlugins){
-				String fileName = f.getName();
-				if (fileName.endsWith(".java")){
-					if (fileName.replaceFirst("\\.java$", "").trim().equals(classSimpleName)){
-						f.delete();
-						log.info("Plugin deleted from source directory: " + fileName);
-						deletedFiles++;
-					}
+				if (f.delete()){
+					compiledSources.remove(f.getAbsolutePath());
+					log.info("Plugin deleted from source directory: " + f.getName());
+					deletedFiles++;
 				}
 			}
 		}
 		return deletedFiles;
 	}
+	
+	//--- source index and watcher ---
+	
+	private static void indexSourceFile(File f){
+		String classSimpleName = ClassBuilder.getSimpleClassNameFromFileName(f.getName());
+		sourceIndex.computeIfAbsent(classSimpleName, k -> ConcurrentHashMap.newKeySet()).add(f.getAbsoluteFile());
+	}
+	private static void removeSourceFileFromIndex(File f){
+		String classSimpleName = ClassBuilder.getSimpleClassNameFromFileName(f.getName());
+		Set<File> files = sourceIndex.get(classSimpleName);
+		if (files != null){
+			files.remove(f.getAbsoluteFile());
+			if (files.isEmpty()){
+				sourceIndex.remove(classSimpleName, files);
+			}
+		}
+	}
+	
+	/**
+	 * Get source file(s) of a plugin by simple class name (from index, no folder scan).
+	 * @param classSimpleName - simple name of plugin class
+	 * @return set of files (can be empty)
+	 */
+	public static Set<File> getPluginSourceFiles(String classSimpleName){
+		Set<File> files = sourceIndex.get(classSimpleName);
+		return (files != null)? files : new HashSet<>();
+	}
+	
+	/**
+	 * Watch the plugins source folder and recompile changed files automatically (see {@link #reloadChangedPlugins(Set)}).
+	 * @param debounceMs - wait this long after the last file event before reloading
+	 * @return true if the watcher is running
+	 */
+	public static synchronized boolean startSourceWatcher(long debounceMs){
+		if (sourceWatcher != null){
+			return true;
+		}
+		try{
+			sourceWatcher = new DirectoryWatcher(Paths.get(ConfigNode.pluginsFolder + defaultSourceFolder), 
+					debounceMs, PluginLoader::reloadChangedPlugins).start();
+			return true;
+		}catch (Exception e){
+			log.error("Plugin source watcher FAILED to start with msg: " + e.getMessage());
+			return false;
+		}
+	}
+	/**
+	 * Stop watching the plugins source folder.
+	 */
+	public static synchronized void stopSourceWatcher(){
+		if (sourceWatcher != null){
+			sourceWatcher.close();
+			sourceWatcher = null;
+		}
+	}
+	
+	/**
+	 * Recompile only the plugins whose source files changed, remove compiled classes of deleted files and reset the 
+	 * class-loader (unchanged plugins are loaded again from their existing .class files). 
+	 * Files that were already compiled in their current version (e.g. by the upload endpoint) are skipped.
+	 * @param changedPaths - paths of created, modified or deleted files and folders (the source folder itself means "everything")
+	 * @return number of recompiled plugins
+	 */
+	public static synchronized int reloadChangedPlugins(Set<Path> changedPaths){
+		Path sourceRoot = Paths.get(ConfigNode.pluginsFolder + defaultSourceFolder).toAbsolutePath().normalize();
+		if (changedPaths.contains(sourceRoot)){
+			log.info("Plugin source folder changed (events lost) - reloading all plugins.");
+			return loadAllPlugins(true);
+		}
+		String compilePath = ConfigNode.pluginsFolder + defaultTargetFolder;
+		List<String> recompiled = new ArrayList<>();
+		int removed = 0;
+		for (Path path : changedPaths){
+			File f = path.toFile();
+			if (f.isFile() && f.getName().endsWith(".java")){
+				SourceVersion version = compiledSources.get(f.getAbsolutePath());
+				if (version != null && version.lastModified == f.lastModified()){
+					continue;	//already up-to-date
+				}
+				indexSourceFile(f);
+				if (compileJavaPluginToTarget(f, compilePath)){
+					recompiled.add(compiledSources.get(f.getAbsolutePath()).canonicalName);
+				}
+			}else if (!f.exists()){
+				//deleted file or folder - remove everything we compiled from it
+				String deletedPath = f.getAbsolutePath();
+				for (String sourcePath : new ArrayList<>(compiledSources.keySet())){
+					if (sourcePath.equals(deletedPath) || sourcePath.startsWith(deletedPath + File.separator)){
+						SourceVersion version = compiledSources.remove(sourcePath);
+						removeSourceFileFromIndex(new File(sourcePath));
+						loadedPlugins.remove(version.canonicalName);
+						deleteCompiledClasses(version.canonicalName, compilePath);
+						log.info("Plugin removed after source file was deleted: " + version.canonicalName);
+						removed++;
+					}
+				}
+			}
+		}
+		if (!recompiled.isEmpty() || removed > 0){
+			resetClassLoader();
+			initPlugins();
+			if (ConfigNode.pluginsWarmUpRuns > 0 && !recompiled.isEmpty()){
+				warmUpPlugins(recompiled, ConfigNode.pluginsWarmUpRuns);
+			}
+			log.info("Plugins reloaded - recompiled: " + recompiled.size() + ", removed: " + removed);
+		}
+		return recompiled.size();
+	}
+	
+	//delete class file and inner classes of a plugin
+	private static void deleteCompiledClasses(String canonicalName, String compilePath){
+		int lastDot = canonicalName.lastIndexOf('.');
+		File packageFolder = new File(compilePath + canonicalName.substring(0, lastDot).replace('.', '/'));
+		String simpleName = canonicalName.substring(lastDot + 1);
+		File[] classFiles = packageFolder.listFiles((dir, name) -> 
+				name.equals(simpleName + ".class") || name.startsWith(simpleName + "$"));
+		if (classFiles != null){
+			for (File classFile : classFiles){
+				classFile.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Canonical class name and file modification time of a compiled source file.
+	 */
+	private static class SourceVersion {
+		final String canonicalName;
+		final long lastModified;
+		
+		SourceVersion(String canonicalName, long lastModified){
+			this.canonicalName = canonicalName;
+			this.lastModified = lastModified;
+		}
+	}
 }
@@ -0,0 +1,432 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.tools.Is;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+
+/**
+ * A small DAG of plugin steps executed in one request. Each step names a plugin, its data and optional 'inputs'
+ * that map fields of other step results into its data. Steps run as soon as the steps they depend on are done,
+ * independent branches run in parallel.<br>
+ * Example:
+ * <pre>
+ * {
+ *   "steps": [
+ *     {"id": "a", "plugin": "x.PluginA", "data": {"q": 1}},
+ *     {"id": "b", "plugin": "x.PluginB", "data": {}},
+ *     {"id": "c", "plugin": "x.PluginC", "inputs": {"first": "a.value", "second.name": "b.user.name"}}
+ *   ],
+ *   "output": ["c"]
+ * }
+ * </pre>
+ * Input sources are 'stepId' (whole result) or 'stepId.path.to.field', targets can be nested paths too.
+ * Additional dependencies without data can be given via "after": ["stepId"]. If "output" is missing the results
+ * of all final steps (steps nobody depends on) are returned.<br>
+ * Steps of all pipelines share {@link ConfigNode#pluginsPipelineThreads} threads with a bounded queue, steps that don't fit
+ * are rejected. Unfinished steps of a pipeline that timed out are interrupted (or dropped from the queue) and counted as abandoned.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginPipeline {
+
+	private static ThreadPoolExecutor workers;
+
+	//statistics
+	private static final LongAdder rejectedSteps = new LongAdder();
+	private static final LongAdder abandonedSteps = new LongAdder();
+
+	private final Map<String, Step> steps;		//in order of request
+	private final List<String> outputIds;
+	private PluginPriority priority = null;		//lane of all steps (null = lane of each plugin)
+
+	private PluginPipeline(Map<String, Step> steps, List<String> outputIds){
+		this.steps = steps;
+		this.outputIds = outputIds;
+	}
+
+	private static class Step {
+		final String id;
+		final String plugin;
+		final JSONObject data;
+		final Map<String, String> inputs = new LinkedHashMap<>();		//target path -> source path
+		final Set<String> dependsOn = new LinkedHashSet<>();
+
+		Step(String id, String plugin, JSONObject data){
+			this.id = id;
+			this.plugin = plugin;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Result of a pipeline execution.
+	 */
+	public static class Result {
+		/** Results of the output steps by step ID */
+		public final JSONObject results = new JSONObject();
+		/** Errors by step ID (including steps skipped because a dependency failed) */
+		public final JSONObject errors = new JSONObject();
+		/** If all failures were rejections (busy plugin) this is the first one, else null */
+		public PluginRejectedException rejection;
+		public long durationMs;
+
+		public boolean isSuccess(){
+			return errors.isEmpty();
+		}
+	}
+
+	/**
+	 * Parse and validate pipeline.
+	 * @param pipeline - JSON with 'steps' and optional 'output'
+	 * @return pipeline
+	 * @throws IllegalArgumentException if the pipeline is invalid (missing fields, unknown references, cycles, too many steps)
+	 */
+	public static PluginPipeline fromJson(JSONObject pipeline){
+		Object stepsValue = (pipeline != null)? pipeline.get("steps") : null;
+		if (!(stepsValue instanceof JSONArray) || ((JSONArray) stepsValue).isEmpty()){
+			throw new IllegalArgumentException("Pipeline requires a non-empty array 'steps'.");
+		}
+		JSONArray stepsArray = (JSONArray) stepsValue;
+		if (stepsArray.size() > ConfigNode.pluginsPipelineMaxSteps){
+			throw new IllegalArgumentException("Pipeline has too many steps (max. " + ConfigNode.pluginsPipelineMaxSteps + ").");
+		}
+		Map<String, Step> steps = new LinkedHashMap<>();
+		for (Object o : stepsArray){
+			if (!(o instanceof JSONObject)){
+				throw new IllegalArgumentException("Pipeline steps must be objects.");
+			}
+			JSONObject stepJson = (JSONObject) o;
+			String id = getString(stepJson, "id");
+			String plugin = getString(stepJson, "plugin");
+			if (Is.nullOrEmpty(id) || Is.nullOrEmpty(plugin)){
+				throw new IllegalArgumentException("Pipeline steps require 'id' and 'plugin'.");
+			}
+			if (steps.containsKey(id)){
+				throw new IllegalArgumentException("Pipeline step id is not unique: " + id);
+			}
+			Object data = stepJson.get("data");
+			Step step = new Step(id, plugin, (data instanceof JSONObject)? (JSONObject) data : new JSONObject());
+			Object inputs = stepJson.get("inputs");
+			if (inputs instanceof JSONObject){
+				for (Object entry : ((JSONObject) inputs).entrySet()){
+					Map.Entry<?, ?> input = (Map.Entry<?, ?>) entry;
+					String source = String.valueOf(input.getValue());
+					step.inputs.put(String.valueOf(input.getKey()), source);
+					step.dependsOn.add(source.split("\\.", 2)[0]);
+				}
+			}
+			Object after = stepJson.get("after");
+			if (after instanceof JSONArray){
+				for (Object dependency : (JSONArray) after){
+					step.dependsOn.add(String.valueOf(dependency));
+				}
+			}
+			steps.put(id, step);
+		}
+		//check references and cycles
+		for (Step step : steps.values()){
+			for (String dependency : step.dependsOn){
+				if (!steps.containsKey(dependency)){
+					throw new IllegalArgumentException("Pipeline step '" + step.id + "' references unknown step: " + dependency);
+				}
+			}
+		}
+		checkForCycles(steps);
+		//output
+		List<String> outputIds = new ArrayList<>();
+		Object output = pipeline.get("output");
+		if (output instanceof JSONArray){
+			for (Object id : (JSONArray) output){
+				if (!steps.containsKey(String.valueOf(id))){
+					throw new IllegalArgumentException("Pipeline output references unknown step: " + id);
+				}
+				outputIds.add(String.valueOf(id));
+			}
+		}else{
+			Set<String> required = new HashSet<>();
+			for (Step step : steps.values()){
+				required.addAll(step.dependsOn);
+			}
+			for (String id : steps.keySet()){
+				if (!required.contains(id)){
+					outputIds.add(id);
+				}
+			}
+		}
+		return new PluginPipeline(steps, outputIds);
+	}
+
+	private static String getString(JSONObject json, String key){
+		Object value = json.get(key);
+		return (value != null)? value.toString() : null;
+	}
+
+	//Kahn's algorithm - if not all steps can be sorted there is a cycle
+	private static void checkForCycles(Map<String, Step> steps){
+		Map<String, Integer> openDependencies = new HashMap<>();
+		Map<String, List<String>> dependents = new HashMap<>();
+		Deque<String> ready = new ArrayDeque<>();
+		for (Step step : steps.values()){
+			openDependencies.put(step.id, step.dependsOn.size());
+			for (String dependency : step.dependsOn){
+				dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(step.id);
+			}
+			if (step.dependsOn.isEmpty()){
+				ready.add(step.id);
+			}
+		}
+		int sorted = 0;
+		while (!ready.isEmpty()){
+			String id = ready.poll();
+			sorted++;
+			for (String dependent : dependents.getOrDefault(id, new ArrayList<>())){
+				if (openDependencies.merge(dependent, -1, Integer::sum) == 0){
+					ready.add(dependent);
+				}
+			}
+		}
+		if (sorted < steps.size()){
+			throw new IllegalArgumentException("Pipeline steps have circular dependencies.");
+		}
+	}
+
+	/**
+	 * Set priority lane of all steps (default: lane of each plugin).
+	 */
+	public void setPriority(PluginPriority priority){
+		this.priority = priority;
+	}
+
+	/**
+	 * Execute all steps (via {@link PluginExecutor}, so bulkheads and priority slots apply to each step).
+	 * @param timeoutMs - max. time for the whole pipeline, unfinished steps are reported as errors
+	 * @return {@link Result}
+	 */
+	public Result execute(long timeoutMs){
+		long tic = System.currentTimeMillis();
+		ThreadPoolExecutor executor = getWorkers();
+		Map<String, CompletableFuture<JSONObject>> futures = new HashMap<>();
+		Map<String, Future<?>> tasks = new ConcurrentHashMap<>();		//submitted steps
+		//create futures recursively, dependencies first
+		for (String id : steps.keySet()){
+			createFuture(id, futures, tasks, executor);
+		}
+		Result result = new Result();
+		CompletableFuture<Void> all = CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]));
+		try{
+			all.get(timeoutMs, TimeUnit.MILLISECONDS);
+		}catch (TimeoutException e){
+			for (CompletableFuture<JSONObject> future : futures.values()){
+				future.cancel(false);		//also stops steps that wait for dependencies from being submitted
+			}
+			//free the shared threads: interrupt running steps, queued ones are skipped
+			for (Future<?> task : tasks.values()){
+				if (task.cancel(true)){
+					abandonedSteps.increment();
+				}
+			}
+			executor.purge();
+		}catch (Exception e){
+			//step errors are collected below
+		}
+		boolean onlyRejections = true;
+		for (Map.Entry<String, CompletableFuture<JSONObject>> entry : futures.entrySet()){
+			String id = entry.getKey();
+			CompletableFuture<JSONObject> future = entry.getValue();
+			if (future.isDone() && !future.isCompletedExceptionally()){
+				if (outputIds.contains(id)){
+					JSON.put(result.results, id, future.join());
+				}
+				continue;
+			}
+			Throwable error = getError(future);
+			if (error instanceof PluginRejectedException){
+				if (result.rejection == null){
+					result.rejection = (PluginRejectedException) error;
+				}
+			}else if (!(error instanceof DependencyFailedException)){
+				onlyRejections = false;
+			}
+			JSON.put(result.errors, id, (error != null)? error.getMessage() : "Timeout after " + timeoutMs + "ms");
+		}
+		if (!onlyRejections){
+			result.rejection = null;
+		}
+		result.durationMs = System.currentTimeMillis() - tic;
+		return result;
+	}
+
+	private static Throwable getError(CompletableFuture<JSONObject> future){
+		if (!future.isDone() || future.isCancelled()){
+			return null;	//timeout
+		}
+		try{
+			future.join();
+			return null;
+		}catch (CompletionException e){
+			return (e.getCause() != null)? e.getCause() : e;
+		}
+	}
+
+	private CompletableFuture<JSONObject> createFuture(String id, Map<String, CompletableFuture<JSONObject>> futures, 
+			Map<String, Future<?>> tasks, ThreadPoolExecutor executor){
+		CompletableFuture<JSONObject> existing = futures.get(id);
+		if (existing != null){
+			return existing;
+		}
+		Step step = steps.get(id);
+		Map<String, CompletableFuture<JSONObject>> dependencies = new HashMap<>();
+		for (String dependency : step.dependsOn){
+			dependencies.put(dependency, createFuture(dependency, futures, tasks, executor));
+		}
+		CompletableFuture<JSONObject> future = new CompletableFuture<>();
+		CompletableFuture.allOf(dependencies.values().toArray(new CompletableFuture[0])).whenComplete((ignore, error) -> {
+			if (error != null){
+				future.completeExceptionally(new DependencyFailedException(step.id));
+				return;
+			}
+			if (future.isDone()){
+				return;		//timed out
+			}
+			try{
+				tasks.put(step.id, executor.submit(() -> {
+					try{
+						future.complete(runStep(step, dependencies, priority));
+					}catch (CompletionException e){
+						future.completeExceptionally(e.getCause());
+					}catch (Throwable e){
+						future.completeExceptionally(e);
+					}
+				}));
+			}catch (RejectedExecutionException e){
+				rejectedSteps.increment();
+				future.completeExceptionally(new PluginRejectedException("Too many pipeline steps waiting, try again later.", 503, 1));
+			}
+		});
+		futures.put(id, future);
+		return future;
+	}
+
+	private static JSONObject runStep(Step step, Map<String, CompletableFuture<JSONObject>> dependencies, PluginPriority priority){
+		//copy data and add mapped inputs
+		JSONObject data = new JSONObject(step.data);
+		for (Map.Entry<String, String> input : step.inputs.entrySet()){
+			String[] source = input.getValue().split("\\.", 2);
+			Object value = dependencies.get(source[0]).join();
+			if (source.length > 1){
+				value = getPath(value, source[1]);
+			}
+			putPath(data, input.getKey(), value);
+		}
+		try{
+			PluginResult result = PluginExecutor.execute(step.plugin, data, priority);
+			return (result != null && result.getJson() != null)? result.getJson() : new JSONObject();
+		}catch (RuntimeException e){
+			throw e;
+		}catch (Exception e){
+			throw new CompletionException(e);
+		}
+	}
+
+	private static Object getPath(Object json, String path){
+		Object value = json;
+		for (String key : path.split("\\.")){
+			if (!(value instanceof JSONObject)){
+				return null;
+			}
+			value = ((JSONObject) value).get(key);
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putPath(JSONObject json, String path, Object value){
+		String[] keys = path.split("\\.");
+		JSONObject target = json;
+		for (int i = 0; i < keys.length - 1; i++){
+			//copy nested objects, the request data must stay unchanged
+			Object current = target.get(keys[i]);
+			JSONObject next = (current instanceof JSONObject)? new JSONObject((JSONObject) current) : new JSONObject();
+			target.put(keys[i], next);
+			target = next;
+		}
+		target.put(keys[keys.length - 1], value);
+	}
+
+	private static synchronized ThreadPoolExecutor getWorkers(){
+		if (workers == null){
+			AtomicInteger threadNumber = new AtomicInteger(0);
+			int threads = Math.max(1, ConfigNode.pluginsPipelineThreads);
+			workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<>(Math.max(1, ConfigNode.pluginsPipelineMaxQueued)), runnable -> {
+				Thread thread = new Thread(runnable, "plugin-pipeline-worker-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});		//default policy: reject when the queue is full
+		}
+		return workers;
+	}
+
+	/**
+	 * Running and queued steps of all pipelines, rejected steps (queue full) and steps abandoned after a pipeline timeout.
+	 */
+	public static JSONObject getStats(){
+		ThreadPoolExecutor executor;
+		synchronized (PluginPipeline.class){
+			executor = workers;
+		}
+		return JSON.make(
+				"running", (executor != null)? executor.getActiveCount() : 0,
+				"queued", (executor != null)? executor.getQueue().size() : 0,
+				"rejected", rejectedSteps.sum(),
+				"abandoned", abandonedSteps.sum()
+		);
+	}
+
+	/**
+	 * Stop worker threads (node shutdown).
+	 */
+	static synchronized void shutdown(){
+		if (workers != null){
+			workers.shutdown();
+			workers = null;
+		}
+	}
+
+	/**
+	 * A step was skipped because a step it depends on failed.
+	 */
+	private static class DependencyFailedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		DependencyFailedException(String stepId){
+			super("Skipped '" + stepId + "' - a step it depends on failed.");
+		}
+	}
+}
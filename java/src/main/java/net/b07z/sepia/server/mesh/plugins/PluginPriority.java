@@ -0,0 +1,47 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+/**
+ * Priority lanes of plugin executions (see {@link PluginScheduler}), highest first.
+ *
+ * @author Florian Quirin
+ *
+ */
+public enum PluginPriority {
+	interactive,	//user-facing calls, e.g. voice commands
+	normal,
+	batch;			//background work, e.g. schedules and bulk jobs
+
+	/**
+	 * Parse lane name (case insensitive).
+	 * @return lane or null if the name is empty or unknown
+	 */
+	public static PluginPriority parse(String name){
+		if (name == null){
+			return null;
+		}
+		for (PluginPriority priority : values()){
+			if (priority.name().equalsIgnoreCase(name.trim())){
+				return priority;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The higher one of two lanes (null is ignored).
+	 */
+	public static PluginPriority higher(PluginPriority a, PluginPriority b){
+		if (a == null) return b;
+		if (b == null) return a;
+		return (a.ordinal() <= b.ordinal())? a : b;
+	}
+
+	/**
+	 * The lower one of two lanes (null is ignored).
+	 */
+	public static PluginPriority lower(PluginPriority a, PluginPriority b){
+		if (a == null) return b;
+		if (b == null) return a;
+		return (a.ordinal() >= b.ordinal())? a : b;
+	}
+}
@@ -0,0 +1,29 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+/**
+ * Thrown when a plugin execution is rejected before it starts (e.g. bulkhead full).
+ * Carries the HTTP status code and the suggested 'Retry-After' time for the client.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class PluginRejectedException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int statusCode;
+	private final int retryAfterSeconds;
+	
+	public PluginRejectedException(String message, int statusCode, int retryAfterSeconds){
+		super(message);
+		this.statusCode = statusCode;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+	
+	public int getStatusCode(){
+		return statusCode;
+	}
+	public int getRetryAfterSeconds(){
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,370 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.Is;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.server.NodeState;
+import net.b07z.sepia.server.mesh.tools.CronExpression;
+
+/**
+ * Runs a plugin periodically (fixed rate or cron expression) with a fixed payload and keeps the latest result,
+ * so clients can read it instead of executing the same plugin again and again.<br>
+ * A run is skipped if the previous run of the same schedule is still busy.<br>
+ * Configured via {@link ConfigNode#pluginsSchedules} in the format 'canonical_name;rate_ms=10000;{payload}'
+ * or 'canonical_name;cron=*&#47;5 * * * *;{payload}' (payload is optional).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginSchedule {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginSchedule.class);
+
+	private static final Map<String, PluginSchedule> schedules = new ConcurrentHashMap<>();
+	private static ScheduledExecutorService timer;
+	private static ExecutorService workers;
+
+	private final String id;
+	private final String pluginCanonicalName;
+	private final String payload;		//JSON, parsed for every run so plugins can't change it
+	private final long rateMs;					//fixed rate or ...
+	private final CronExpression cron;			//... cron expression
+
+	private final AtomicBoolean isRunning = new AtomicBoolean(false);
+	private volatile boolean isActive = false;
+	private volatile ScheduledFuture<?> nextTick;
+	private volatile Result latest;				//last successful result
+	private volatile String lastError;
+	private final AtomicLong version = new AtomicLong(0);
+
+	//statistics
+	private final LongAdder runs = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder totalDurationMs = new LongAdder();
+	private final AtomicLong maxDurationMs = new AtomicLong(0);
+	private volatile long lastDurationMs = 0;
+
+	PluginSchedule(String id, String pluginCanonicalName, JSONObject payload, long rateMs, CronExpression cron){
+		this.id = id;
+		this.pluginCanonicalName = pluginCanonicalName;
+		this.payload = ((payload != null)? payload : new JSONObject()).toJSONString();
+		this.rateMs = rateMs;
+		this.cron = cron;
+	}
+
+	/**
+	 * Result of one scheduled run.
+	 */
+	public static class Result {
+		public final long version;
+		public final long timestamp;
+		public final long durationMs;
+		public final JSONObject data;
+
+		Result(long version, long timestamp, long durationMs, JSONObject data){
+			this.version = version;
+			this.timestamp = timestamp;
+			this.durationMs = durationMs;
+			this.data = data;
+		}
+	}
+
+	//--- registry ---
+
+	/**
+	 * Create schedule from settings string 'canonical_name;rate_ms=10000;{payload}' or 'canonical_name;cron=* * * * *;{payload}'.
+	 * @throws IllegalArgumentException if the settings are invalid
+	 */
+	static PluginSchedule fromSettings(String id, String settings){
+		String[] parts = settings.split(";", 3);
+		if (parts.length < 2 || Is.nullOrEmpty(parts[0].trim())){
+			throw new IllegalArgumentException("Schedule '" + id + "' needs at least 'canonical_name;rate_ms=...' or 'canonical_name;cron=...'");
+		}
+		JSONObject payload = (parts.length > 2 && !parts[2].trim().isEmpty())? JSON.parseString(parts[2].trim()) : null;
+		String timing = parts[1].trim();
+		if (timing.startsWith("rate_ms=")){
+			long rateMs = Long.parseLong(timing.substring("rate_ms=".length()).trim());
+			if (rateMs <= 0){
+				throw new IllegalArgumentException("Schedule '" + id + "' needs a positive 'rate_ms'");
+			}
+			return new PluginSchedule(id, parts[0].trim(), payload, rateMs, null);
+		}else if (timing.startsWith("cron=")){
+			return new PluginSchedule(id, parts[0].trim(), payload, 0, new CronExpression(timing.substring("cron=".length())));
+		}else{
+			throw new IllegalArgumentException("Schedule '" + id + "' has unknown timing: " + timing);
+		}
+	}
+
+	/**
+	 * Start all schedules defined in {@link ConfigNode#pluginsSchedules}. Invalid entries are logged and skipped.
+	 * @return number of started schedules
+	 */
+	public static synchronized int startAll(){
+		for (Map.Entry<String, String> entry : ConfigNode.pluginsSchedules.entrySet()){
+			try{
+				register(fromSettings(entry.getKey(), entry.getValue()));
+			}catch (Exception e){
+				log.error("Plugin schedule '" + entry.getKey() + "' is invalid - msg.: " + e.getMessage());
+			}
+		}
+		return schedules.size();
+	}
+
+	/**
+	 * Add (or replace) and start a schedule.
+	 * @param schedule - new schedule
+	 */
+	public static synchronized void register(PluginSchedule schedule){
+		if (schedule.cron != null){
+			try{
+				schedule.cron.next(ZonedDateTime.now());
+			}catch (IllegalStateException e){
+				throw new IllegalArgumentException("Plugin schedule '" + schedule.id + "' - " + e.getMessage());
+			}
+		}
+		if (timer == null){
+			AtomicInteger threadNumber = new AtomicInteger(0);
+			timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "plugin-schedule-timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			workers = Executors.newFixedThreadPool(Math.max(1, ConfigNode.pluginsScheduleThreads), runnable -> {
+				Thread thread = new Thread(runnable, "plugin-schedule-worker-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		schedule.start();
+		//only running schedules are listed
+		PluginSchedule old = schedules.put(schedule.id, schedule);
+		if (old != null){
+			old.stop();
+		}
+		log.info("Plugin schedule '" + schedule.id + "' started - plugin: " + schedule.pluginCanonicalName
+				+ ", " + ((schedule.cron != null)? ("cron: " + schedule.cron) : ("rate: " + schedule.rateMs + "ms")));
+	}
+
+	/**
+	 * Stop and remove a schedule.
+	 * @return true if it existed
+	 */
+	public static synchronized boolean remove(String id){
+		PluginSchedule schedule = schedules.remove(id);
+		if (schedule != null){
+			schedule.stop();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stop all schedules and background threads (e.g. on shutdown).
+	 */
+	public static synchronized void stopAll(){
+		for (PluginSchedule schedule : schedules.values()){
+			schedule.stop();
+		}
+		schedules.clear();
+		if (timer != null){
+			timer.shutdownNow();
+			workers.shutdown();
+			timer = null;
+			workers = null;
+		}
+	}
+
+	/**
+	 * Get schedule by ID or null.
+	 */
+	public static PluginSchedule get(String id){
+		return schedules.get(id);
+	}
+
+	/**
+	 * Info and timing metrics of all schedules.
+	 */
+	public static JSONObject getAllStats(){
+		JSONObject stats = new JSONObject();
+		for (PluginSchedule schedule : schedules.values()){
+			JSON.put(stats, schedule.id, schedule.getStats());
+		}
+		return stats;
+	}
+
+	//--- schedule ---
+
+	private void start(){
+		isActive = true;
+		if (cron != null){
+			scheduleNextCronTick();
+		}else{
+			nextTick = timer.scheduleAtFixedRate(this::tick, 0, rateMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void stop(){
+		isActive = false;
+		ScheduledFuture<?> tick = nextTick;
+		if (tick != null){
+			tick.cancel(false);
+		}
+		synchronized (this){
+			notifyAll();	//release waiting readers
+		}
+	}
+
+	private void scheduleNextCronTick(){
+		ZonedDateTime now = ZonedDateTime.now();
+		long delayMs = Duration.between(now, cron.next(now)).toMillis();
+		nextTick = timer.schedule(() -> {
+			tick();
+			if (isActive){
+				//an exception here would end the schedule without a trace
+				try{
+					scheduleNextCronTick();
+				}catch (Exception e){
+					errors.increment();
+					lastError = e.getMessage();
+					log.error("Plugin schedule '" + id + "' STOPPED, next run failed with msg: " + e.getMessage());
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	//called by timer - hand over to worker or skip if the last run is still busy
+	private void tick(){
+		if (!isActive){
+			return;
+		}
+		if (!isRunning.compareAndSet(false, true)){
+			skipped.increment();
+			return;
+		}
+		try{
+			workers.execute(() -> {
+				try{
+					run();
+				}finally{
+					isRunning.set(false);
+				}
+			});
+		}catch (Exception e){
+			isRunning.set(false);	//workers shut down
+		}
+	}
+
+	private void run(){
+		if (!PluginLoader.isReady() || !NodeState.beginExecution()){
+			skipped.increment();
+			return;
+		}
+		long tic = System.currentTimeMillis();
+		try{
+			//new payload object, plugins might modify their input - background work, so 'batch' lane unless the plugin has its own
+			PluginPriority lane = PluginPriority.parse(ConfigNode.pluginsPriorities.get(pluginCanonicalName));
+			PluginResult result = PluginExecutor.execute(pluginCanonicalName, JSON.parseString(payload), 
+					(lane != null)? lane : PluginPriority.batch);
+			long duration = System.currentTimeMillis() - tic;
+			recordDuration(duration);
+			synchronized (this){
+				latest = new Result(version.incrementAndGet(), tic, duration, result.getJson());
+				lastError = null;
+				notifyAll();
+			}
+		}catch (Exception e){
+			recordDuration(System.currentTimeMillis() - tic);
+			errors.increment();
+			lastError = e.getMessage();
+			log.error("Plugin schedule '" + id + "' FAILED with msg: " + e.getMessage());
+		}finally{
+			NodeState.endExecution();
+		}
+	}
+
+	private void recordDuration(long duration){
+		runs.increment();
+		totalDurationMs.add(duration);
+		lastDurationMs = duration;
+		maxDurationMs.accumulateAndGet(duration, Math::max);
+	}
+
+	/**
+	 * Latest successful result or null.
+	 */
+	public Result getLatest(){
+		return latest;
+	}
+
+	/**
+	 * Wait until there is a result newer than 'sinceVersion' (long-polling). Returns immediately if there is one already.
+	 * @param sinceVersion - version the client has already seen (0 = none)
+	 * @param maxWaitMs - max. time to wait
+	 * @return latest result (can be the old one or null if nothing new arrived in time)
+	 * @throws InterruptedException
+	 */
+	public Result awaitNewer(long sinceVersion, long maxWaitMs) throws InterruptedException {
+		long end = System.currentTimeMillis() + maxWaitMs;
+		synchronized (this){
+			while (isActive && (latest == null || latest.version <= sinceVersion)){
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0){
+					break;
+				}
+				wait(wait);
+			}
+			return latest;
+		}
+	}
+
+	public String getId(){
+		return id;
+	}
+	public String getPluginName(){
+		return pluginCanonicalName;
+	}
+	public String getLastError(){
+		return lastError;
+	}
+
+	/**
+	 * Schedule info and timing metrics.
+	 */
+	public JSONObject getStats(){
+		long runCount = runs.sum();
+		JSONObject stats = JSON.make(
+				"plugin", pluginCanonicalName,
+				"schedule", (cron != null)? ("cron=" + cron) : ("rate_ms=" + rateMs),
+				"runs", runCount,
+				"skipped", skipped.sum(),
+				"errors", errors.sum()
+		);
+		JSON.put(stats, "last_ms", lastDurationMs);
+		JSON.put(stats, "avg_ms", (runCount > 0)? (totalDurationMs.sum() / runCount) : 0L);
+		JSON.put(stats, "max_ms", maxDurationMs.get());
+		JSON.put(stats, "version", version.get());
+		if (lastError != null){
+			JSON.put(stats, "last_error", lastError);
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,262 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.data.Role;
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.core.users.Account;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+
+/**
+ * Node-wide execution slots for plugins with priority lanes ({@link PluginPriority}).<br>
+ * If all {@link ConfigNode#pluginsPrioritySlots} are busy callers wait in the queue of their lane. A free slot goes to the
+ * oldest caller of the highest lane, so interactive calls don't wait behind a burst of batch calls. To avoid starvation a caller
+ * that waited longer than {@link ConfigNode#pluginsPriorityAgingMs} gets every second free slot, no matter its lane (the others
+ * still go to the highest lane). Callers that wait longer than {@link ConfigNode#pluginsPriorityQueueTimeoutMs} are rejected with 503.<br>
+ * The lane of a call is set per plugin, per user role or by the client (see {@link #getPriority(String, Account, String)}).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginScheduler {
+
+	private static final PluginPriority[] LANES = PluginPriority.values();
+
+	private static final ReentrantLock lock = new ReentrantLock();
+	@SuppressWarnings("unchecked")
+	private static final ArrayDeque<Waiter>[] queues = new ArrayDeque[LANES.length];
+	private static final LaneStats[] laneStats = new LaneStats[LANES.length];
+	static {
+		for (int i = 0; i < LANES.length; i++){
+			queues[i] = new ArrayDeque<>();
+			laneStats[i] = new LaneStats();
+		}
+	}
+	private static volatile int slots = 0;
+	private static int freeSlots = 0;			//guarded by lock
+	private static boolean wasAgedGrant = false;	//guarded by lock
+	private static long agingNs;
+	private static long queueTimeoutNs;
+
+	private static class Waiter {
+		final Condition granted = lock.newCondition();
+		final long enqueued = System.nanoTime();
+		boolean isGranted = false;
+	}
+
+	private static class LaneStats {
+		final LongAdder executions = new LongAdder();
+		final LongAdder waited = new LongAdder();
+		final LongAdder totalWaitNs = new LongAdder();
+		final AtomicLong maxWaitNs = new AtomicLong(0);
+		final LongAdder aged = new LongAdder();
+		final LongAdder timeouts = new LongAdder();
+
+		void recordWait(long waitNs, boolean isAged){
+			waited.increment();
+			totalWaitNs.add(waitNs);
+			long max;
+			while ((max = maxWaitNs.get()) < waitNs && !maxWaitNs.compareAndSet(max, waitNs)){
+				//retry
+			}
+			if (isAged){
+				aged.increment();
+			}
+		}
+	}
+
+	/**
+	 * Set number of slots and timing from {@link ConfigNode} (0 slots = no scheduling).
+	 * Call before plugins are executed.
+	 */
+	public static void setup(){
+		lock.lock();
+		try{
+			int newSlots = Math.max(0, ConfigNode.pluginsPrioritySlots);
+			freeSlots += newSlots - slots;
+			slots = newSlots;
+			agingNs = TimeUnit.MILLISECONDS.toNanos(ConfigNode.pluginsPriorityAgingMs);
+			queueTimeoutNs = TimeUnit.MILLISECONDS.toNanos(ConfigNode.pluginsPriorityQueueTimeoutMs);
+			dispatch();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Are executions scheduled by priority?
+	 */
+	public static boolean isEnabled(){
+		return slots > 0;
+	}
+
+	/**
+	 * Lane of a call:<br>
+	 * - default is the lane of the plugin ('plugins_priority.[canonical name]'), else the highest lane of the user's roles
+	 * ('plugins_priority_role.[role]'), else 'normal'<br>
+	 * - the client can request a lane (e.g. via header), but only up to the highest lane of plugin, roles and 'normal'
+	 * @param pluginCanonicalName - plugin or null (e.g. pipeline)
+	 * @param account - authenticated user or null
+	 * @param requested - lane name requested by the client or null
+	 * @return lane (never null)
+	 */
+	public static PluginPriority getPriority(String pluginCanonicalName, Account account, String requested){
+		PluginPriority pluginLane = (pluginCanonicalName != null)?
+				PluginPriority.parse(ConfigNode.pluginsPriorities.get(pluginCanonicalName)) : null;
+		PluginPriority roleLane = null;
+		if (account != null && !ConfigNode.pluginsPriorityRoles.isEmpty()){
+			for (Role role : Role.values()){
+				PluginPriority lane = PluginPriority.parse(ConfigNode.pluginsPriorityRoles.get(role.name()));
+				if (lane != null && account.hasRole(role.name())){
+					roleLane = PluginPriority.higher(roleLane, lane);
+				}
+			}
+		}
+		PluginPriority requestedLane = PluginPriority.parse(requested);
+		if (requestedLane != null){
+			PluginPriority max = PluginPriority.higher(PluginPriority.higher(pluginLane, roleLane), PluginPriority.normal);
+			return PluginPriority.lower(requestedLane, max);
+		}
+		if (pluginLane != null){
+			return pluginLane;
+		}
+		return (roleLane != null)? roleLane : PluginPriority.normal;
+	}
+
+	/**
+	 * Wait for a free slot. If this returns you MUST call {@link #release()} afterwards.
+	 * @param priority - lane (null = normal)
+	 * @throws PluginRejectedException if the call waited too long
+	 */
+	static void acquire(PluginPriority priority){
+		int lane = (priority != null)? priority.ordinal() : PluginPriority.normal.ordinal();
+		LaneStats stats = laneStats[lane];
+		lock.lock();
+		try{
+			if (freeSlots > 0 && isQueueEmpty()){
+				freeSlots--;
+				stats.executions.increment();
+				return;
+			}
+			Waiter waiter = new Waiter();
+			queues[lane].addLast(waiter);
+			long remainingNs = queueTimeoutNs;
+			try{
+				while (!waiter.isGranted && remainingNs > 0){
+					remainingNs = waiter.granted.awaitNanos(remainingNs);
+				}
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			if (waiter.isGranted){
+				stats.executions.increment();
+				return;
+			}
+			queues[lane].remove(waiter);
+			stats.timeouts.increment();
+			throw new PluginRejectedException("No free plugin slot for lane '" + LANES[lane] + "'.", 503, 1);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Release slot and hand it to the next waiting call.
+	 */
+	static void release(){
+		lock.lock();
+		try{
+			freeSlots++;
+			dispatch();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	//give free slots to waiting calls - highest lane, but every second slot to the oldest aged call if any (guarded by lock)
+	private static void dispatch(){
+		while (freeSlots > 0){
+			long now = System.nanoTime();
+			int next = -1;
+			int highest = -1;
+			long oldestAged = Long.MAX_VALUE;
+			for (int i = 0; i < queues.length; i++){
+				Waiter head = queues[i].peekFirst();
+				if (head == null){
+					continue;
+				}
+				if (highest < 0){
+					highest = i;
+				}
+				if (i != highest && !wasAgedGrant && now - head.enqueued >= agingNs && head.enqueued < oldestAged){
+					oldestAged = head.enqueued;
+					next = i;
+				}
+			}
+			if (highest < 0){
+				return;
+			}
+			if (next < 0){
+				next = highest;
+			}
+			wasAgedGrant = (next != highest);
+			Waiter waiter = queues[next].pollFirst();
+			waiter.isGranted = true;
+			freeSlots--;
+			laneStats[next].recordWait(now - waiter.enqueued, next != highest);
+			waiter.granted.signal();
+		}
+	}
+
+	private static boolean isQueueEmpty(){
+		for (ArrayDeque<Waiter> queue : queues){
+			if (!queue.isEmpty()){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Slots and queue wait per lane (null if off).
+	 */
+	public static JSONObject getStats(){
+		if (!isEnabled()){
+			return null;
+		}
+		JSONObject lanes = new JSONObject();
+		int running;
+		lock.lock();
+		try{
+			running = slots - freeSlots;
+			for (int i = 0; i < LANES.length; i++){
+				LaneStats stats = laneStats[i];
+				long waited = stats.waited.sum();
+				JSONObject lane = JSON.make(
+						"queued", queues[i].size(),
+						"executions", stats.executions.sum(),
+						"waited", waited,
+						"avg_wait_ms", (waited > 0)? (stats.totalWaitNs.sum() / waited / 1000000) : 0L,
+						"max_wait_ms", stats.maxWaitNs.get() / 1000000
+				);
+				JSON.put(lane, "aged", stats.aged.sum());
+				JSON.put(lane, "timeouts", stats.timeouts.sum());
+				JSON.put(lanes, LANES[i].name(), lane);
+			}
+		}finally{
+			lock.unlock();
+		}
+		return JSON.make(
+				"slots", slots,
+				"running", running,
+				"lanes", lanes
+		);
+	}
+}
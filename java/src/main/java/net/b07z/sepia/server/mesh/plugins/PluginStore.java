@@ -0,0 +1,320 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.tools.MappedLogStore;
+
+/**
+ * Persistent key-value store of one plugin (get it via {@link PluginContext#getStore()}).
+ * Reads come from memory, writes are appended to a memory-mapped log in the plugins data folder.
+ * Data survives plugin reloads and node restarts. Stores with garbage are compacted every {@link ConfigNode#pluginsStoreCompactMs}.<br>
+ * In worker processes (plugins_isolation=process) every call is sent to the node (see {@link PluginWorker}), the data stays 
+ * in the store files of the node.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginStore {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginStore.class);
+
+	public static String defaultDataFolder = "data/";
+	private static final Map<String, PluginStore> stores = new ConcurrentHashMap<>();
+	private static final long COMPACT_MIN_GARBAGE_BYTES = 64 * 1024;		//don't rewrite a log for a few changed keys
+	private static ScheduledExecutorService compactTimer;		//started with the first store
+
+	private final String pluginCanonicalName;
+	private final Backend store;
+
+	/**
+	 * Where the data of a store lives: the memory-mapped log of the node or, seen from a worker process, the node itself.
+	 */
+	interface Backend {
+		String get(String key) throws IOException;
+		boolean containsKey(String key) throws IOException;
+		Set<String> keySet() throws IOException;
+		int size() throws IOException;
+		void put(String key, String value) throws IOException;
+		boolean remove(String key) throws IOException;
+	}
+
+	private static class LocalBackend implements Backend {
+		final MappedLogStore log;
+
+		LocalBackend(MappedLogStore log){
+			this.log = log;
+		}
+
+		@Override
+		public String get(String key){
+			return log.get(key);
+		}
+		@Override
+		public boolean containsKey(String key){
+			return log.containsKey(key);
+		}
+		@Override
+		public Set<String> keySet(){
+			return log.keySet();
+		}
+		@Override
+		public int size(){
+			return log.size();
+		}
+		@Override
+		public void put(String key, String value) throws IOException {
+			log.put(key, value);
+		}
+		@Override
+		public boolean remove(String key) throws IOException {
+			return log.remove(key);
+		}
+	}
+
+	//read that can fail in worker processes only
+	private interface Read<T> {
+		T run() throws IOException;
+	}
+
+	PluginStore(String pluginCanonicalName, Backend store){
+		this.pluginCanonicalName = pluginCanonicalName;
+		this.store = store;
+	}
+
+	/**
+	 * Get (open) store of a plugin. Stores are kept open until {@link #closeAll()}.
+	 * @param pluginCanonicalName - canonical name of plugin class
+	 */
+	static PluginStore open(String pluginCanonicalName){
+		PluginStore pluginStore = stores.get(pluginCanonicalName);
+		if (pluginStore != null){
+			return pluginStore;
+		}
+		startCompactTimer();
+		return stores.computeIfAbsent(pluginCanonicalName, name -> {
+			try{
+				//plugin code is sandboxed, file access is done with the permissions of the node
+				MappedLogStore store = AccessController.doPrivileged((PrivilegedExceptionAction<MappedLogStore>) () ->
+						new MappedLogStore(Paths.get(ConfigNode.pluginsFolder + defaultDataFolder, name + ".kvlog")));
+				return new PluginStore(name, new LocalBackend(store));
+			}catch (PrivilegedActionException e){
+				throw new UncheckedIOException("Failed to open store of plugin '" + name + "'", (IOException) e.getException());
+			}
+		});
+	}
+
+	private static synchronized void startCompactTimer(){
+		if (compactTimer != null || ConfigNode.pluginsStoreCompactMs <= 0){
+			return;
+		}
+		//the first store can be opened by plugin code, so the thread must not inherit the permissions of the sandbox
+		//(the pool creates its thread when the task is scheduled)
+		compactTimer = AccessController.doPrivileged((PrivilegedAction<ScheduledExecutorService>) () -> {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "plugin-store-compaction");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleWithFixedDelay(PluginStore::compactAll, 
+					ConfigNode.pluginsStoreCompactMs, ConfigNode.pluginsStoreCompactMs, TimeUnit.MILLISECONDS);
+			return timer;
+		});
+	}
+
+	//compact all stores with enough garbage (reads continue during compaction, writes of the store wait)
+	private static void compactAll(){
+		for (PluginStore pluginStore : stores.values()){
+			MappedLogStore store = pluginStore.getLog();
+			if (store == null){
+				continue;
+			}
+			try{
+				store.compactIfGarbage(COMPACT_MIN_GARBAGE_BYTES);
+			}catch (Exception e){
+				log.error("Failed to compact store of plugin '" + pluginStore.pluginCanonicalName + "' - msg.: " + e.getMessage());
+			}
+		}
+	}
+
+	//log of a store on this node or null (store of a worker process)
+	private MappedLogStore getLog(){
+		return (store instanceof LocalBackend)? ((LocalBackend) store).log : null;
+	}
+
+	/**
+	 * Close all stores (e.g. on shutdown).
+	 */
+	public static void closeAll(){
+		synchronized (PluginStore.class){
+			if (compactTimer != null){
+				compactTimer.shutdownNow();
+				compactTimer = null;
+			}
+		}
+		for (PluginStore pluginStore : stores.values()){
+			MappedLogStore store = pluginStore.getLog();
+			if (store == null){
+				continue;
+			}
+			try{
+				store.close();
+			}catch (IOException e){
+				log.error("Failed to close store of plugin '" + pluginStore.pluginCanonicalName + "' - msg.: " + e.getMessage());
+			}
+		}
+		stores.clear();
+	}
+
+	/**
+	 * Statistics of all open stores.
+	 */
+	public static JSONObject getAllStats(){
+		JSONObject stats = new JSONObject();
+		for (PluginStore pluginStore : stores.values()){
+			MappedLogStore store = pluginStore.getLog();
+			if (store != null){
+				JSON.put(stats, pluginStore.pluginCanonicalName, store.getStats());
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Execute a store call a worker process sent for the plugin it is running.
+	 * @param pluginCanonicalName - plugin the node asked the worker to execute (not taken from the request)
+	 * @param request - {op, key, value}
+	 * @return {value} or {error}
+	 */
+	@SuppressWarnings("unchecked")
+	static JSONObject executeRemoteCall(String pluginCanonicalName, JSONObject request){
+		JSONObject response = new JSONObject();
+		try{
+			PluginStore pluginStore = open(pluginCanonicalName);
+			String op = (String) request.get("op");
+			String key = (String) request.get("key");
+			if ("get".equals(op)){
+				JSON.put(response, "value", pluginStore.get(key));
+			}else if ("contains".equals(op)){
+				JSON.put(response, "value", pluginStore.containsKey(key));
+			}else if ("keys".equals(op)){
+				JSONArray keys = new JSONArray();
+				keys.addAll(pluginStore.keys());
+				JSON.put(response, "value", keys);
+			}else if ("size".equals(op)){
+				JSON.put(response, "value", pluginStore.size());
+			}else if ("put".equals(op)){
+				pluginStore.put(key, (String) request.get("value"));
+			}else if ("remove".equals(op)){
+				JSON.put(response, "value", pluginStore.remove(key));
+			}else{
+				JSON.put(response, "error", "Unknown store operation: " + op);
+			}
+		}catch (Exception e){
+			JSON.put(response, "error", e.getMessage());
+		}
+		return response;
+	}
+
+	//--- plugin API ---
+
+	/**
+	 * Get value or null.
+	 */
+	public String get(String key){
+		return read(() -> store.get(key));
+	}
+	/**
+	 * Get value or default.
+	 */
+	public String getOrDefault(String key, String defaultValue){
+		String value = get(key);
+		return (value != null)? value : defaultValue;
+	}
+	/**
+	 * Get value stored via {@link #putJson(String, JSONObject)} or null.
+	 */
+	public JSONObject getJson(String key){
+		String value = get(key);
+		return (value != null)? JSON.parseString(value) : null;
+	}
+	/**
+	 * Does the key exist?
+	 */
+	public boolean containsKey(String key){
+		return read(() -> store.containsKey(key));
+	}
+	/**
+	 * Copy of all keys.
+	 */
+	public Set<String> keys(){
+		return read(() -> new HashSet<>(store.keySet()));
+	}
+	/**
+	 * Number of entries.
+	 */
+	public int size(){
+		return read(() -> store.size());
+	}
+
+	/**
+	 * Store value (null removes the key).
+	 * @throws UncheckedIOException if the value could not be written
+	 */
+	public void put(String key, String value){
+		write(() -> {
+			store.put(key, value);
+			return null;
+		});
+	}
+	/**
+	 * Store JSON object (null removes the key).
+	 * @throws UncheckedIOException if the value could not be written
+	 */
+	public void putJson(String key, JSONObject value){
+		put(key, (value != null)? value.toJSONString() : null);
+	}
+	/**
+	 * Remove key.
+	 * @return true if the key existed
+	 * @throws UncheckedIOException if the change could not be written
+	 */
+	public boolean remove(String key){
+		return write(() -> store.remove(key));
+	}
+
+	private <T> T read(Read<T> action){
+		try{
+			return action.run();
+		}catch (IOException e){
+			throw new UncheckedIOException("Failed to read store of plugin '" + pluginCanonicalName + "'", e);
+		}
+	}
+
+	private <T> T write(PrivilegedExceptionAction<T> action){
+		try{
+			return AccessController.doPrivileged(action);
+		}catch (PrivilegedActionException e){
+			throw new UncheckedIOException("Failed to write store of plugin '" + pluginCanonicalName + "'", (IOException) e.getException());
+		}
+	}
+}
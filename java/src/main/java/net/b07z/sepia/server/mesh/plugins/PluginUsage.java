@@ -0,0 +1,219 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+
+/**
+ * CPU time and allocated bytes of plugin executions, aggregated per canonical name.
+ * Measured on the executing thread via {@link ThreadMXBean} around {@link Plugin#execute(JSONObject)}
+ * (work a plugin hands over to other threads is not included).<br>
+ * Optional soft limits per execution ({@link ConfigNode#pluginsCpuBudgetMs}, {@link ConfigNode#pluginsAllocBudgetMb}):
+ * a plugin exceeding a budget is logged and, with action 'reject', blocked for {@link ConfigNode#pluginsBudgetBlockMs}.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginUsage {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginUsage.class);
+
+	private static final long LOG_INTERVAL_MS = 10000;		//max. one budget warning per plugin in this time
+
+	public static final List<String> SORT_ORDERS = Arrays.asList("cpu", "allocated", "wall", "calls");		//see getTop
+
+	private static final Map<String, PluginUsage> usages = new ConcurrentHashMap<>();
+	private static final ThreadMXBean threadBean;
+	private static final com.sun.management.ThreadMXBean allocationBean;
+	static {
+		//setup with permissions of the node (first call might come from a plugin)
+		threadBean = AccessController.doPrivileged((PrivilegedAction<ThreadMXBean>) () -> {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			try{
+				if (bean.isCurrentThreadCpuTimeSupported() && !bean.isThreadCpuTimeEnabled()){
+					bean.setThreadCpuTimeEnabled(true);
+				}
+				if (bean instanceof com.sun.management.ThreadMXBean){
+					com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+					if (sunBean.isThreadAllocatedMemorySupported() && !sunBean.isThreadAllocatedMemoryEnabled()){
+						sunBean.setThreadAllocatedMemoryEnabled(true);
+					}
+				}
+			}catch (Exception e){
+				log.error("Plugin usage - could not enable thread CPU time or allocation measurement: " + e.getMessage());
+			}
+			return bean;
+		});
+		allocationBean = (threadBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled())?
+					(com.sun.management.ThreadMXBean) threadBean : null;
+	}
+	private static final boolean isCpuTimeEnabled = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+
+	private final String name;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder cpuNs = new LongAdder();
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LongAdder wallNs = new LongAdder();
+	private final AtomicLong maxCpuNs = new AtomicLong(0);
+	private final AtomicLong maxAllocatedBytes = new AtomicLong(0);
+	private final LongAdder overBudget = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private volatile long blockedUntil = 0;
+	private volatile long lastWarning = 0;
+
+	PluginUsage(String name){
+		this.name = name;
+	}
+
+	/**
+	 * Get (or create) usage record of a plugin. Check {@link PluginLoader#isKnownPlugin(String)} first for names sent by clients.
+	 */
+	static PluginUsage get(String pluginCanonicalName){
+		return usages.computeIfAbsent(pluginCanonicalName, PluginUsage::new);
+	}
+
+	/**
+	 * CPU time of the current thread in ns or 0 if not supported.
+	 */
+	static long getThreadCpuNs(){
+		return isCpuTimeEnabled? threadBean.getCurrentThreadCpuTime() : 0;
+	}
+	/**
+	 * Bytes allocated by the current thread so far or 0 if not supported.
+	 */
+	static long getThreadAllocatedBytes(){
+		return (allocationBean != null)? allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	/**
+	 * Throw if the plugin is blocked because it exceeded a budget (action 'reject').
+	 * @throws PluginRejectedException with status 429 and remaining block time
+	 */
+	void checkBudget(){
+		long blockedMs = blockedUntil - System.currentTimeMillis();
+		if (blockedMs > 0){
+			rejected.increment();
+			throw new PluginRejectedException("Plugin '" + name + "' exceeded its CPU or memory budget and is blocked.",
+					429, (int) Math.max(1, (blockedMs + 999) / 1000));
+		}
+	}
+
+	/**
+	 * Add one execution and apply soft limits.
+	 * @param cpu - CPU time in ns
+	 * @param allocated - allocated bytes
+	 * @param wall - wall time in ns
+	 * @param failed - execution threw an exception
+	 */
+	void record(long cpu, long allocated, long wall, boolean failed){
+		calls.increment();
+		if (failed){
+			errors.increment();
+		}
+		cpuNs.add(cpu);
+		allocatedBytes.add(allocated);
+		wallNs.add(wall);
+		maxCpuNs.accumulateAndGet(cpu, Math::max);
+		maxAllocatedBytes.accumulateAndGet(allocated, Math::max);
+
+		boolean isCpuExceeded = ConfigNode.pluginsCpuBudgetMs > 0 && cpu > ConfigNode.pluginsCpuBudgetMs * 1000000L;
+		boolean isAllocExceeded = ConfigNode.pluginsAllocBudgetMb > 0 && allocated > ConfigNode.pluginsAllocBudgetMb * 1048576L;
+		if (isCpuExceeded || isAllocExceeded){
+			overBudget.increment();
+			boolean isReject = "reject".equals(ConfigNode.pluginsBudgetAction);
+			long now = System.currentTimeMillis();
+			if (isReject){
+				blockedUntil = now + ConfigNode.pluginsBudgetBlockMs;
+			}
+			if (now - lastWarning > LOG_INTERVAL_MS){
+				lastWarning = now;
+				log.error("Plugin '" + name + "' exceeded budget - CPU: " + (cpu / 1000000) + "ms, allocated: " + (allocated / 1024) + "KB"
+						+ (isReject? (" - blocked for " + ConfigNode.pluginsBudgetBlockMs + "ms") : ""));
+			}
+		}
+	}
+
+	/**
+	 * Usage of this plugin.
+	 */
+	public JSONObject getStats(){
+		long callCount = calls.sum();
+		long cpu = cpuNs.sum();
+		long allocated = allocatedBytes.sum();
+		JSONObject stats = JSON.make(
+				"plugin", name,
+				"calls", callCount,
+				"errors", errors.sum(),
+				"cpu_ms", cpu / 1000000,
+				"allocated_mb", allocated / 1048576
+		);
+		JSON.put(stats, "wall_ms", wallNs.sum() / 1000000);
+		JSON.put(stats, "avg_cpu_us", (callCount > 0)? (cpu / callCount / 1000) : 0L);
+		JSON.put(stats, "avg_allocated_kb", (callCount > 0)? (allocated / callCount / 1024) : 0L);
+		JSON.put(stats, "max_cpu_ms", maxCpuNs.get() / 1000000);
+		JSON.put(stats, "max_allocated_kb", maxAllocatedBytes.get() / 1024);
+		JSON.put(stats, "over_budget", overBudget.sum());
+		JSON.put(stats, "rejected", rejected.sum());
+		long blockedMs = blockedUntil - System.currentTimeMillis();
+		if (blockedMs > 0){
+			JSON.put(stats, "blocked_ms", blockedMs);
+		}
+		return stats;
+	}
+
+	/**
+	 * Top consumers.
+	 * @param n - max. number of plugins
+	 * @param sortBy - 'cpu' (default), 'allocated', 'wall' or 'calls'
+	 * @return array of usage stats, biggest consumer first
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONArray getTop(int n, String sortBy){
+		Comparator<PluginUsage> order;
+		if ("allocated".equals(sortBy)){
+			order = Comparator.comparingLong(u -> u.allocatedBytes.sum());
+		}else if ("wall".equals(sortBy)){
+			order = Comparator.comparingLong(u -> u.wallNs.sum());
+		}else if ("calls".equals(sortBy)){
+			order = Comparator.comparingLong(u -> u.calls.sum());
+		}else{
+			order = Comparator.comparingLong(u -> u.cpuNs.sum());
+		}
+		List<PluginUsage> sorted = new ArrayList<>(usages.values());
+		sorted.sort(order.reversed());
+		JSONArray top = new JSONArray();
+		for (int i = 0; i < sorted.size() && i < n; i++){
+			top.add(sorted.get(i).getStats());
+		}
+		return top;
+	}
+
+	/**
+	 * Measurements supported by this JVM.
+	 */
+	public static JSONObject getSupport(){
+		return JSON.make(
+				"cpu_time", isCpuTimeEnabled,
+				"allocated_bytes", allocationBean != null
+		);
+	}
+}
@@ -0,0 +1,223 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.Policy;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.core.tools.SandboxSecurityPolicy;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.tools.FramedChannel;
+
+/**
+ * Main class of a plugin worker process (see {@link PluginWorkerPool}). Loads the node settings, then executes
+ * the plugins requested by the node one after another and sends back the results. Node and worker talk via
+ * {@link FramedChannel} on stdin/stdout, anything printed by plugins goes to stderr.<br>
+ * Plugins are loaded from the same compiled folder as in the node. When the node reports a new plugin generation
+ * the class-loader of the worker is reset too.<br>
+ * Calls of the {@link PluginStore} are sent to the node while a plugin is executed (the node owns the store files), 
+ * so they only work on the thread that executes the plugin, not in background tasks of the worker.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginWorker {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginWorker.class);
+
+	//message types
+	static final int MSG_READY = 1;			//worker -> node: {pid}
+	static final int MSG_EXECUTE = 2;		//node -> worker: {plugin, generation, data}
+	static final int MSG_RESULT = 3;		//worker -> node: {result, cpu_ns, allocated_bytes}
+	static final int MSG_ERROR = 4;			//worker -> node: {error, input_error, cpu_ns, allocated_bytes}
+	static final int MSG_STORE = 5;			//worker -> node: {op, key, value} - store call of the executing plugin
+	static final int MSG_STORE_RESULT = 6;	//node -> worker: {value} or {error}
+
+	private static volatile boolean isWorkerProcess = false;
+	private static FramedChannel channel;
+	private static volatile Thread executingThread;
+	private static volatile String executingPlugin;
+	private static final Map<String, PluginStore> remoteStores = new ConcurrentHashMap<>();
+
+	/**
+	 * Store backend of a worker process: every call is a request to the node.
+	 */
+	private static class StoreProxy implements PluginStore.Backend {
+		final String pluginCanonicalName;
+
+		StoreProxy(String pluginCanonicalName){
+			this.pluginCanonicalName = pluginCanonicalName;
+		}
+
+		@Override
+		public String get(String key) throws IOException {
+			return (String) call("get", key, null);
+		}
+		@Override
+		public boolean containsKey(String key) throws IOException {
+			return Boolean.TRUE.equals(call("contains", key, null));
+		}
+		@Override
+		public Set<String> keySet() throws IOException {
+			Set<String> keys = new HashSet<>();
+			for (Object key : (JSONArray) call("keys", null, null)){
+				keys.add((String) key);
+			}
+			return keys;
+		}
+		@Override
+		public int size() throws IOException {
+			return ((Number) call("size", null, null)).intValue();
+		}
+		@Override
+		public void put(String key, String value) throws IOException {
+			call("put", key, value);
+		}
+		@Override
+		public boolean remove(String key) throws IOException {
+			return Boolean.TRUE.equals(call("remove", key, null));
+		}
+
+		//send request and wait for the answer of the node (the node is waiting for the result of the plugin at the same time)
+		private Object call(String op, String key, String value) throws IOException {
+			if (Thread.currentThread() != executingThread || !pluginCanonicalName.equals(executingPlugin)){
+				throw new UnsupportedOperationException("In worker processes the store of plugin '" + pluginCanonicalName 
+						+ "' can only be used while the plugin is executed (not in background tasks).");
+			}
+			JSONObject request = JSON.make("op", op, "key", key, "value", value);
+			FramedChannel.Frame response;
+			try{
+				//stdin/stdout of the worker, plugin code has no permission for that
+				response = AccessController.doPrivileged((PrivilegedExceptionAction<FramedChannel.Frame>) () -> {
+					channel.write(MSG_STORE, request);
+					return channel.read();
+				});
+			}catch (PrivilegedActionException e){
+				throw (IOException) e.getException();
+			}
+			if (response.type != MSG_STORE_RESULT){
+				throw new IOException("Unexpected message from node: " + response.type);
+			}
+			Object error = response.payload.get("error");
+			if (error != null){
+				throw new IOException(error.toString());
+			}
+			return response.payload.get("value");
+		}
+	}
+
+	/**
+	 * True inside a worker process.
+	 */
+	static boolean isWorkerProcess(){
+		return isWorkerProcess;
+	}
+
+	/**
+	 * Store of a plugin inside a worker process (calls are executed by the node).
+	 */
+	static PluginStore getRemoteStore(String pluginCanonicalName){
+		return remoteStores.computeIfAbsent(pluginCanonicalName, name -> new PluginStore(name, new StoreProxy(name)));
+	}
+
+	/**
+	 * Start worker.
+	 * @param args - path of node settings file
+	 */
+	public static void main(String[] args) throws Exception {
+		//stdout belongs to the protocol
+		FileOutputStream protocolOut = new FileOutputStream(FileDescriptor.out);
+		System.setOut(System.err);
+		isWorkerProcess = true;
+
+		if (args.length > 0){
+			ConfigNode.loadSettings(args[0]);
+		}
+		if (ConfigNode.useSandboxPolicy){
+			Policy.setPolicy(new SandboxSecurityPolicy());
+			System.setSecurityManager(new SecurityManager());
+			ConfigNode.setupSandbox();
+		}
+		channel = new FramedChannel(new FileInputStream(FileDescriptor.in), protocolOut);
+		channel.write(MSG_READY, JSON.make("pid", ProcessHandle.current().pid()));
+
+		int generation = -1;
+		while (true){
+			FramedChannel.Frame frame;
+			try{
+				frame = channel.read();
+			}catch (EOFException e){
+				break;		//node closed the pipe
+			}
+			if (frame.type != MSG_EXECUTE){
+				continue;
+			}
+			int requestGeneration = ((Number) frame.payload.get("generation")).intValue();
+			if (requestGeneration != generation){
+				if (generation >= 0){
+					PluginLoader.resetClassLoader();
+				}
+				generation = requestGeneration;
+			}
+			execute(frame.payload);
+		}
+		PluginLoader.shutdown();
+		System.exit(0);
+	}
+
+	//execute plugin and send result or error including CPU time and allocations
+	private static void execute(JSONObject request) throws Exception {
+		String pluginCanonicalName = (String) request.get("plugin");
+		Object data = request.get("data");
+		long cpuStart = PluginUsage.getThreadCpuNs();
+		long allocStart = PluginUsage.getThreadAllocatedBytes();
+		JSONObject response = new JSONObject();
+		int type;
+		Throwable fatal = null;
+		executingPlugin = pluginCanonicalName;
+		executingThread = Thread.currentThread();
+		try{
+			Plugin plugin = PluginLoader.getPlugin(pluginCanonicalName);
+			PluginResult result = plugin.execute((data instanceof JSONObject)? (JSONObject) data : new JSONObject());
+			JSON.put(response, "result", (result != null)? result.getJson() : null);
+			type = MSG_RESULT;
+		}catch (Throwable e){
+			if (e instanceof PluginInputException){
+				JSON.put(response, "error", e.getMessage());
+				JSON.put(response, "input_error", true);
+			}else{
+				JSON.put(response, "error", e.getClass().getSimpleName() + ": " + e.getMessage());
+			}
+			type = MSG_ERROR;
+			if (e instanceof VirtualMachineError){
+				fatal = e;
+			}
+		}finally{
+			executingThread = null;
+			executingPlugin = null;
+		}
+		JSON.put(response, "cpu_ns", PluginUsage.getThreadCpuNs() - cpuStart);
+		JSON.put(response, "allocated_bytes", PluginUsage.getThreadAllocatedBytes() - allocStart);
+		channel.write(type, response);
+		if (fatal != null){
+			//e.g. out of memory - let the node start a fresh worker
+			log.error("Plugin worker stopped after fatal error in '" + pluginCanonicalName + "': " + fatal);
+			System.exit(1);
+		}
+	}
+}
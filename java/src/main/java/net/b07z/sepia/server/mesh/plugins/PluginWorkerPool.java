@@ -0,0 +1,313 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import net.b07z.sepia.server.mesh.tools.FramedChannel;
+
+/**
+ * Pool of pre-started worker JVMs that execute plugins outside of the node (plugins_isolation=process).
+ * The node itself then runs without a security manager, a misbehaving plugin can only take down its worker.<br>
+ * Each worker handles one execution at a time. A worker that doesn't answer within {@link ConfigNode#pluginsWorkerTimeoutMs}
+ * is killed and replaced, so endless loops don't block threads of the node. See {@link PluginWorker} for the protocol.<br>
+ * {@link PluginStore} calls of a plugin are sent back to the node and executed on the store of the plugin the worker runs.
+ * New workers are started on their own thread, so a slow start doesn't delay the timeouts of running calls.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginWorkerPool {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginWorkerPool.class);
+
+	private static final long START_TIMEOUT_MS = 30000;
+	private static final long RESPAWN_DELAY_MS = 1000;
+	private static final long STOP_TIMEOUT_MS = 2000;
+
+	private static final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+	private static final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+	private static final AtomicInteger workerIds = new AtomicInteger(0);
+	private static ScheduledExecutorService watchdog;		//execution timeouts only
+	private static ScheduledExecutorService spawner;		//starts workers (waits up to START_TIMEOUT_MS for each)
+	private static volatile boolean isStarted = false;
+
+	//statistics
+	private static final LongAdder calls = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder timeouts = new LongAdder();
+	private static final LongAdder restarts = new LongAdder();
+	private static final LongAdder totalRoundTripNs = new LongAdder();
+
+	private static class Worker {
+		final int id;
+		final Process process;
+		final FramedChannel channel;
+		volatile boolean isTimedOut = false;
+
+		Worker(int id, Process process){
+			this.id = id;
+			this.process = process;
+			this.channel = new FramedChannel(process.getInputStream(), process.getOutputStream());
+		}
+
+		void kill(){
+			isTimedOut = true;
+			process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * Are plugins executed in worker processes? (false inside the workers themselves)
+	 */
+	public static boolean isEnabled(){
+		return "process".equals(ConfigNode.pluginsIsolation) && !PluginWorker.isWorkerProcess();
+	}
+
+	/**
+	 * Start {@link ConfigNode#pluginsWorkers} workers in the background.
+	 */
+	public static synchronized void start(){
+		if (isStarted){
+			return;
+		}
+		watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "plugin-worker-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		spawner = Executors.newScheduledThreadPool(Math.max(1, ConfigNode.pluginsWorkers), runnable -> {
+			Thread thread = new Thread(runnable, "plugin-worker-spawner-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		isStarted = true;
+		for (int i = 0; i < Math.max(1, ConfigNode.pluginsWorkers); i++){
+			spawner.execute(PluginWorkerPool::spawnWorker);
+		}
+		log.info("Plugin worker pool starting " + Math.max(1, ConfigNode.pluginsWorkers) + " worker process(es) ...");
+	}
+
+	/**
+	 * Stop all workers. Workers get some time to close their plugins before they are killed.
+	 */
+	public static synchronized void stop(){
+		if (!isStarted){
+			return;
+		}
+		isStarted = false;
+		watchdog.shutdownNow();
+		spawner.shutdownNow();
+		List<Worker> stopping = new ArrayList<>(workers);
+		workers.clear();
+		idleWorkers.clear();
+		for (Worker worker : stopping){
+			try{
+				worker.process.getOutputStream().close();		//worker exits at end of input
+			}catch (IOException e){
+				worker.process.destroyForcibly();
+			}
+		}
+		for (Worker worker : stopping){
+			try{
+				if (!worker.process.waitFor(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+					worker.process.destroyForcibly();
+				}
+			}catch (InterruptedException e){
+				worker.process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+		log.info("Plugin worker pool stopped.");
+	}
+
+	/**
+	 * Execute plugin in the next free worker (waits max. {@link ConfigNode#pluginsWorkerTimeoutMs} for one).
+	 * CPU time and allocations measured by the worker are added to the plugin's {@link PluginUsage}.
+	 * @throws PluginRejectedException if no worker is free in time
+	 * @throws PluginInputException if the data doesn't fit a {@link TypedPlugin}
+	 * @throws Exception if the plugin failed, timed out or the worker died
+	 */
+	static PluginResult execute(String pluginCanonicalName, JSONObject data, PluginUsage usage) throws Exception {
+		if (!isStarted){
+			throw new PluginRejectedException("Plugin workers are not running.", 503, 1);
+		}
+		Worker worker = idleWorkers.poll(ConfigNode.pluginsWorkerTimeoutMs, TimeUnit.MILLISECONDS);
+		if (worker == null){
+			throw new PluginRejectedException("No plugin worker available.", 503, 1);
+		}
+		JSONObject request = JSON.make(
+				"plugin", pluginCanonicalName,
+				"generation", PluginLoader.getGeneration(),
+				"data", data
+		);
+		long tic = System.nanoTime();
+		ScheduledFuture<?> timeout = watchdog.schedule(worker::kill, ConfigNode.pluginsWorkerTimeoutMs, TimeUnit.MILLISECONDS);
+		boolean isHealthy = false;
+		try{
+			worker.channel.write(PluginWorker.MSG_EXECUTE, request);
+			FramedChannel.Frame response = worker.channel.read();
+			while (response.type == PluginWorker.MSG_STORE){
+				//store call of the plugin, always scoped to the plugin we asked the worker to execute
+				worker.channel.write(PluginWorker.MSG_STORE_RESULT, PluginStore.executeRemoteCall(pluginCanonicalName, response.payload));
+				response = worker.channel.read();
+			}
+			timeout.cancel(false);
+			isHealthy = true;
+			long roundTrip = System.nanoTime() - tic;
+			boolean failed = (response.type != PluginWorker.MSG_RESULT);
+			usage.record(getLong(response.payload, "cpu_ns"), getLong(response.payload, "allocated_bytes"), roundTrip, failed);
+			calls.increment();
+			totalRoundTripNs.add(roundTrip);
+			if (failed){
+				errors.increment();
+				if (Boolean.TRUE.equals(response.payload.get("input_error"))){
+					throw new PluginInputException((String) response.payload.get("error"));
+				}
+				throw new Exception("Plugin '" + pluginCanonicalName + "' failed in worker " + worker.id + ": " + response.payload.get("error"));
+			}
+			return new PluginResult((JSONObject) response.payload.get("result"));
+
+		}catch (IOException e){
+			timeout.cancel(false);
+			calls.increment();
+			errors.increment();
+			if (worker.isTimedOut){
+				timeouts.increment();
+				throw new Exception("Plugin '" + pluginCanonicalName + "' timed out after " + ConfigNode.pluginsWorkerTimeoutMs
+						+ "ms - worker " + worker.id + " was restarted.");
+			}
+			throw new Exception("Plugin worker " + worker.id + " failed while executing '" + pluginCanonicalName + "': " + e.getMessage(), e);
+		}finally{
+			if (isHealthy && worker.process.isAlive()){
+				idleWorkers.offer(worker);
+			}else{
+				replace(worker);
+			}
+		}
+	}
+
+	private static long getLong(JSONObject json, String key){
+		Object value = json.get(key);
+		return (value instanceof Number)? ((Number) value).longValue() : 0;
+	}
+
+	private static void replace(Worker worker){
+		workers.remove(worker);
+		worker.process.destroyForcibly();
+		restarts.increment();
+		try{
+			if (isStarted){
+				spawner.execute(PluginWorkerPool::spawnWorker);
+			}
+		}catch (Exception e){
+			//pool stopped in the meantime
+		}
+	}
+
+	//start one worker process and wait until it is ready, retry later on failure
+	private static void spawnWorker(){
+		if (!isStarted){
+			return;
+		}
+		int id = workerIds.incrementAndGet();
+		try{
+			List<String> command = new ArrayList<>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			for (String option : ConfigNode.pluginsWorkerJvmOptions.trim().split("\\s+")){
+				if (!option.isEmpty()){
+					command.add(option);
+				}
+			}
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(PluginWorker.class.getName());
+			command.add(ConfigNode.configFile);
+			Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			Worker worker = new Worker(id, process);
+
+			//wait for 'ready' message (blocking read, so the timeout needs its own thread)
+			boolean isReady = false;
+			try{
+				isReady = (readWithTimeout(worker, START_TIMEOUT_MS).type == PluginWorker.MSG_READY);
+			}catch (IOException e){
+				log.error("Plugin worker " + id + " could not start: " + e.getMessage());
+			}
+			if (!isReady || !isStarted){
+				process.destroyForcibly();
+				if (isStarted){
+					spawner.schedule(PluginWorkerPool::spawnWorker, RESPAWN_DELAY_MS, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+			workers.add(worker);
+			idleWorkers.offer(worker);
+			log.info("Plugin worker " + id + " ready (pid " + process.pid() + ")");
+
+		}catch (Exception e){
+			log.error("Plugin worker " + id + " could not start: " + e.getMessage());
+			try{
+				if (isStarted){
+					spawner.schedule(PluginWorkerPool::spawnWorker, RESPAWN_DELAY_MS, TimeUnit.MILLISECONDS);
+				}
+			}catch (Exception ex){
+				//pool stopped in the meantime
+			}
+		}
+	}
+
+	//blocking read that kills the process if nothing arrives in time
+	private static FramedChannel.Frame readWithTimeout(Worker worker, long timeoutMs) throws IOException {
+		Thread killer = new Thread(() -> {
+			try{
+				if (!worker.process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)){
+					worker.kill();
+				}
+			}catch (InterruptedException e){
+				//read finished
+			}
+		}, "plugin-worker-start-" + worker.id);
+		killer.setDaemon(true);
+		killer.start();
+		try{
+			return worker.channel.read();
+		}finally{
+			killer.interrupt();
+		}
+	}
+
+	/**
+	 * Pool size and execution metrics.
+	 */
+	public static JSONObject getStats(){
+		long callCount = calls.sum();
+		JSONObject stats = JSON.make(
+				"workers", workers.size(),
+				"idle", idleWorkers.size(),
+				"calls", callCount,
+				"errors", errors.sum(),
+				"timeouts", timeouts.sum()
+		);
+		JSON.put(stats, "restarts", restarts.sum());
+		JSON.put(stats, "avg_round_trip_us", (callCount > 0)? (totalRoundTripNs.sum() / callCount / 1000) : 0L);
+		return stats;
+	}
+}
@@ -1,10 +1,9 @@
 package net.b07z.sepia.server.mesh.plugins;
 
+import java.util.List;
+
 import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 
-import net.b07z.sepia.server.core.tools.Converters;
-import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.server.core.tools.RuntimeInterface;
 import net.b07z.sepia.server.core.tools.RuntimeInterface.RuntimeResult;
@@ -14,23 +13,31 @@ import net.b07z.sepia.server.core.tools.RuntimeInterface.RuntimeResult;
  * 
  * @author Florian Quirin
  */
-public class RuntimePlugin implements Plugin {
+public class RuntimePlugin implements TypedPlugin<RuntimePlugin.Input> {
+	
+	public static class Input {
+		@PluginField(required = true)
+		List<String> command;
+		long timeout = 5000;
+	}
+	
+	@Override
+	public Class<Input> getInputType(){
+		return Input.class;
+	}
 
 	@Override
-	public PluginResult execute(JSONObject data) {
+	public PluginResult execute(Input input) {
 		//Get runtime command
-		JSONArray cmd = JSON.getJArray(data, "command");
-		long timeout = JSON.getLongOrDefault(data, "timeout", 5000);
-		
-		if (Is.notNullOrEmpty(cmd)){
+		if (!input.command.isEmpty()){
 			boolean restrictCode = false;	//NOTE: change?
-			RuntimeResult cmdResult = RuntimeInterface.runCommand(Converters.jsonArrayToStringList(cmd), timeout, restrictCode);
+			RuntimeResult cmdResult = RuntimeInterface.runCommand(input.command, input.timeout, restrictCode);
 			
 			//Command finished without errors
 			if (cmdResult.getStatusCode() == 0){
 				PluginResult result = new PluginResult(JSON.make(
 						"status", "success",
-						"command", cmd.toString(),
+						"command", JSONArray.toJSONString(input.command),
 						"data", cmdResult.getOutput()
 				));
 				return result;
@@ -39,7 +46,7 @@ public class RuntimePlugin implements Plugin {
 			}else{
 				PluginResult result = new PluginResult(JSON.make(
 						"status", "fail",
-						"command", cmd.toString(),
+						"command", JSONArray.toJSONString(input.command),
 						"error", cmdResult.getException(),
 						"code", cmdResult.getStatusCode(),
 						"data", cmdResult.getOutput()
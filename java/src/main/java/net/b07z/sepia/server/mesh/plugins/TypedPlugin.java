@@ -0,0 +1,34 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A plugin that gets its request data as instance of its own input class instead of a {@link JSONObject}.<br>
+ * The input class needs a no-argument constructor, its (non-final) fields are filled from the request data 
+ * with the same names, see {@link PluginField} to rename a field or make it required. Supported field types: 
+ * String, numbers, boolean, enums, lists and arrays of those, nested input classes, JSONObject and JSONArray.
+ * Data that doesn't fit is rejected with {@link PluginInputException} (400) before {@link #execute(Object)} is called.
+ * 
+ * @author Florian Quirin
+ *
+ * @param <I> - input class
+ */
+public interface TypedPlugin<I> extends Plugin {
+	
+	/**
+	 * Class of the plugin input.
+	 */
+	public Class<I> getInputType();
+	
+	/**
+	 * Execute plugin with bound input.
+	 * @param input - request data as input class
+	 * @return {@link PluginResult}
+	 */
+	public PluginResult execute(I input);
+	
+	@Override
+	public default PluginResult execute(JSONObject data){
+		return execute(PluginInputBinder.get(getInputType()).bind(data));
+	}
+}
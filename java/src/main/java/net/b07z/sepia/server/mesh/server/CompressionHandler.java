@@ -0,0 +1,356 @@
+package net.b07z.sepia.server.mesh.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * Jetty handler that compresses responses with gzip or deflate if the client supports it ('Accept-Encoding') 
+ * and the body is larger than a threshold. Responses are streamed, only the first bytes are held back until it is clear 
+ * if the body is compressed. Records compression ratio and CPU time spent compressing.<br>
+ * NOTE: Brotli is not supported since there is no pure Java encoder in the JDK.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class CompressionHandler extends HandlerWrapper {
+	
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	
+	//statistics
+	private static final LongAdder responsesCompressed = new LongAdder();
+	private static final LongAdder responsesSkipped = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder cpuNanos = new LongAdder();
+	
+	private final int minBytes;
+	
+	public CompressionHandler(int minBytes){
+		this.minBytes = minBytes;
+	}
+	
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) 
+			throws IOException, ServletException {
+		String encoding = chooseEncoding(request.getHeader("Accept-Encoding"));
+		if (encoding == null || "HEAD".equals(request.getMethod())){
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		CompressingResponse compressingResponse = new CompressingResponse(response, encoding, minBytes);
+		super.handle(target, baseRequest, request, compressingResponse);
+		compressingResponse.finish();
+	}
+	
+	/**
+	 * Choose 'gzip' or 'deflate' depending on the 'Accept-Encoding' header (gzip preferred). 
+	 * @return encoding or null
+	 */
+	static String chooseEncoding(String acceptEncoding){
+		if (acceptEncoding == null){
+			return null;
+		}
+		String gzip = null;
+		String deflate = null;
+		for (String part : acceptEncoding.toLowerCase().split(",")){
+			String[] codingAndQ = part.trim().split(";");
+			String coding = codingAndQ[0].trim();
+			boolean isAllowed = codingAndQ.length < 2 || !codingAndQ[1].trim().matches("q=0(\\.0*)?");
+			if (coding.equals("gzip") && isAllowed){
+				gzip = "gzip";
+			}else if (coding.equals("deflate") && isAllowed){
+				deflate = "deflate";
+			}
+		}
+		return (gzip != null)? gzip : deflate;
+	}
+	
+	static boolean isCompressible(String contentType){
+		if (contentType == null){
+			return false;
+		}
+		String type = contentType.toLowerCase();
+		return type.startsWith("text/") || type.contains("json") || type.contains("javascript") 
+				|| type.contains("xml") || type.contains("cbor") || type.contains("svg");
+	}
+	
+	private static long getCpuTime(){
+		return (threadBean.isCurrentThreadCpuTimeSupported())? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+	
+	/**
+	 * Compression statistics (responses, bytes in/out, ratio, CPU time).
+	 */
+	public static JSONObject getStats(){
+		long in = bytesIn.sum();
+		long out = bytesOut.sum();
+		JSONObject stats = JSON.make(
+				"compressed", responsesCompressed.sum(),
+				"skipped", responsesSkipped.sum(),
+				"bytes_in", in,
+				"bytes_out", out,
+				"ratio", (in > 0)? ((double) out / in) : 1.0d
+		);
+		JSON.put(stats, "cpu_ms", cpuNanos.sum() / 1000000);
+		return stats;
+	}
+	
+	//----------------------------
+	
+	/**
+	 * Response wrapper that decides on compression when the body is committed: uncompressed if a 'Content-Encoding' is set
+	 * or the 'Content-Type' is not compressible, else by 'Content-Length' if known. Without length the first 'minBytes' are held 
+	 * back, responses that end before are sent uncompressed. After the decision everything streams through the compressor 
+	 * or directly to the client.
+	 */
+	private static class CompressingResponse extends HttpServletResponseWrapper {
+		private final String encoding;
+		private final int minBytes;
+		private long contentLength = -1;
+		private CompressingStream outputStream;
+		private PrintWriter writer;
+		
+		CompressingResponse(HttpServletResponse response, String encoding, int minBytes){
+			super(response);
+			this.encoding = encoding;
+			this.minBytes = minBytes;
+		}
+		
+		//complete the body (if the handler didn't close the stream)
+		void finish() throws IOException {
+			if (writer != null){
+				writer.flush();
+			}
+			if (outputStream != null){
+				outputStream.close();
+			}
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream(){
+			if (outputStream == null){
+				outputStream = new CompressingStream(this);
+			}
+			return outputStream;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null){
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+		
+		private boolean isDecided(){
+			return outputStream != null && outputStream.out != null;
+		}
+		
+		@Override
+		public void setContentLength(int len){
+			setContentLengthLong(len);
+		}
+		@Override
+		public void setContentLengthLong(long len){
+			if (!isDecided()){
+				contentLength = len;		//set when the body is sent uncompressed
+			}else if (!outputStream.isCompressing()){
+				super.setContentLengthLong(len);
+			}
+		}
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null){
+				writer.flush();
+			}
+			if (outputStream != null){
+				outputStream.flush();
+			}
+			//headers can't be committed before the decision
+			if (outputStream == null || isDecided()){
+				super.flushBuffer();
+			}
+		}
+		@Override
+		public void reset(){
+			super.reset();
+			contentLength = -1;
+			if (outputStream != null && !isDecided()){
+				outputStream.head.reset();
+			}
+		}
+		@Override
+		public void resetBuffer(){
+			super.resetBuffer();
+			if (outputStream != null && !isDecided()){
+				outputStream.head.reset();
+			}
+		}
+	}
+	
+	/**
+	 * Output stream of {@link CompressingResponse}. 
+	 */
+	private static class CompressingStream extends ServletOutputStream {
+		private final CompressingResponse response;
+		private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);		//held back until the decision
+		private ServletOutputStream out;		//stream of the wrapped response, null until the decision
+		private DeflaterOutputStream zipOut;		//null if not compressed
+		private boolean closed = false;
+		
+		CompressingStream(CompressingResponse response){
+			this.response = response;
+		}
+		
+		boolean isCompressing(){
+			return zipOut != null;
+		}
+		
+		//decide when the first byte is written, if possible
+		private boolean isDecidedUncompressed(){
+			HttpServletResponse wrapped = (HttpServletResponse) response.getResponse();
+			return wrapped.getHeader("Content-Encoding") != null || !isCompressible(wrapped.getContentType())
+					|| (response.contentLength >= 0 && response.contentLength < response.minBytes);
+		}
+		private boolean isDecidedCompressed(){
+			return response.contentLength >= response.minBytes || head.size() >= response.minBytes;
+		}
+		
+		private void decide(boolean compress) throws IOException {
+			HttpServletResponse wrapped = (HttpServletResponse) response.getResponse();
+			if (compress){
+				wrapped.setHeader("Content-Encoding", response.encoding);
+				wrapped.addHeader("Vary", "Accept-Encoding");
+				out = wrapped.getOutputStream();
+				OutputStream countingOut = new CountingStream(out);
+				//sync flush: a flush of the handler sends what was compressed so far
+				zipOut = (response.encoding.equals("gzip"))? 
+						new GZIPOutputStream(countingOut, true) : new DeflaterOutputStream(countingOut, true);
+				responsesCompressed.increment();
+			}else{
+				if (response.contentLength >= 0){
+					wrapped.setContentLengthLong(response.contentLength);
+				}else if (closed){
+					wrapped.setContentLengthLong(head.size());
+				}
+				out = wrapped.getOutputStream();
+				responsesSkipped.increment();
+			}
+			if (head.size() > 0){
+				byte[] buffered = head.toByteArray();
+				head.reset();
+				write(buffered, 0, buffered.length);
+			}
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{ (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out == null){
+				if (isDecidedUncompressed()){
+					decide(false);
+				}else{
+					head.write(b, off, len);
+					if (isDecidedCompressed()){
+						decide(true);
+					}
+					return;
+				}
+			}
+			if (zipOut != null){
+				long cpuStart = getCpuTime();
+				zipOut.write(b, off, len);
+				cpuNanos.add(getCpuTime() - cpuStart);
+				bytesIn.add(len);
+			}else{
+				out.write(b, off, len);
+			}
+		}
+		@Override
+		public void flush() throws IOException {
+			//before the decision there is at most 'minBytes' to flush
+			if (zipOut != null){
+				long cpuStart = getCpuTime();
+				zipOut.flush();
+				cpuNanos.add(getCpuTime() - cpuStart);
+			}else if (out != null){
+				out.flush();
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			if (closed){
+				return;
+			}
+			closed = true;
+			if (out == null){
+				decide(false);		//ended below the threshold
+			}
+			if (zipOut != null){
+				long cpuStart = getCpuTime();
+				zipOut.close();		//writes the trailer and releases the deflater
+				cpuNanos.add(getCpuTime() - cpuStart);
+			}
+		}
+		
+		@Override
+		public boolean isReady(){
+			return out == null || out.isReady();
+		}
+		@Override
+		public void setWriteListener(WriteListener writeListener){
+			try{
+				if (out == null){
+					decide(false);		//async writes go directly to the client
+				}
+			}catch (IOException e){
+				throw new IllegalStateException(e);
+			}
+			out.setWriteListener(writeListener);
+		}
+	}
+	
+	/**
+	 * Counts compressed bytes sent to the client. 
+	 */
+	private static class CountingStream extends FilterOutputStream {
+		CountingStream(OutputStream out){
+			super(out);
+		}
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesOut.increment();
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesOut.add(len);
+		}
+	}
+}
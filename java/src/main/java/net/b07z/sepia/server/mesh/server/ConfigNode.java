@@ -2,7 +2,9 @@ package net.b07z.sepia.server.mesh.server;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +15,17 @@ import net.b07z.sepia.server.core.tools.Is;
 import net.b07z.sepia.server.core.tools.SandboxClassLoader;
 import net.b07z.sepia.server.core.users.AuthenticationAssistAPI;
 import net.b07z.sepia.server.mesh.endpoints.ExampleEndpoints;
+import net.b07z.sepia.server.mesh.plugins.PluginBulkhead;
+import net.b07z.sepia.server.mesh.plugins.PluginExecutor;
+import net.b07z.sepia.server.mesh.plugins.PluginInputBinder;
+import net.b07z.sepia.server.mesh.plugins.PluginJobs;
+import net.b07z.sepia.server.mesh.plugins.PluginLibraries;
+import net.b07z.sepia.server.mesh.plugins.PluginLoader;
+import net.b07z.sepia.server.mesh.plugins.PluginPipeline;
+import net.b07z.sepia.server.mesh.plugins.PluginSchedule;
+import net.b07z.sepia.server.mesh.plugins.PluginScheduler;
+import net.b07z.sepia.server.mesh.plugins.PluginWorkerPool;
+import net.b07z.sepia.server.mesh.tools.RateLimiter;
 
 /**
  * Read, write and store Mesh-Node server configuration.
@@ -38,6 +51,19 @@ public class ConfigNode {
 	public static boolean useSandboxPolicy = true;							//enable security policy to restrict e.g. access to 'System.exit()'
 	public static boolean hostFiles = false;								//use web-server?
 	public static String privacyPolicyLink = "http://localhost:20780/privacy-policy.html";		//link to privacy policy in case you host files
+	public static int staticFilesCacheMb = 32;								//memory used to cache web-server files
+	public static int staticFilesMaxCachedKb = 512;							//larger files are not cached but sent via memory-mapped reads
+	public static String staticFilesCacheControl = "public, max-age=3600";	//'Cache-Control' header of web-server files
+	public static String staticFilesCacheControlHtml = "no-cache";			//'Cache-Control' header of HTML pages (revalidated via ETag)
+	public static long shutdownDrainTimeoutMs = 10000;						//max. time to wait for running plugin executions on shutdown
+	public static boolean compressionEnabled = true;						//compress responses (gzip/deflate) if the client accepts it
+	public static int compressionMinBytes = 1024;							//compress only responses larger than this
+	public static boolean http2Enabled = true;								//offer HTTP/2 via ALPN in SSL mode ('--ssl')
+	public static int tlsSessionCacheSize = 10000;							//number of TLS sessions cached for resumption (0 = off)
+	public static int tlsSessionTimeoutSec = 3600;							//lifetime of cached TLS sessions
+	public static boolean tlsSessionTickets = true;						//allow stateless TLS session resumption via tickets (JDK 13+)
+	public static boolean statsTimeSeries = true;							//keep 1s/1min/1h time-series of endpoint and plugin calls for '/server-stats'
+	public static int statsMaxSeries = 128;									//max. number of time-series (endpoints + plugins)
 	
 	public static String accessPin = "123456";						//**user defined access pin for non-critical access e.g. to statistics
 	public static String localName = "sepia-mesh-node";						//**user defined local server name
@@ -51,6 +77,52 @@ public class ConfigNode {
 	public static Role pluginsRequiredRole = Role.developer;		//required role to execute a plugin (only used when auth. required)
 	public static boolean pluginsRequireLocalhost = false;			//only allow localhost plugin calls? (handy for client controls)
 	public static boolean pluginsRequirePin = false;				//ask for PIN when using a plugin?
+	public static int pluginsWarmUpRuns = 0;						//number of warm-up calls per plugin after loading (0 = off)
+	public static boolean pluginsLoadInBackground = true;			//compile plugins after server start (server answers '/ping' etc. immediately)
+	public static int pluginsCompileThreads = 0;					//threads used to compile plugins in parallel (0 = number of CPU cores)
+	public static String pluginsIsolation = "sandbox";				//'sandbox': plugins run inside the node (with security manager if 'useSandboxPolicy') or 'process': plugins run in worker JVMs
+	public static int pluginsWorkers = 2;							//number of worker processes (isolation 'process')
+	public static String pluginsWorkerJvmOptions = "-Xmx256m";		//JVM options of worker processes
+	public static long pluginsWorkerTimeoutMs = 30000;				//max. time of one execution in a worker before it is killed and restarted
+	public static boolean pluginsWatchSources = false;				//watch plugins source folder and recompile changed files automatically
+	public static long pluginsWatchDebounceMs = 500;				//wait this long after the last file change before recompiling
+	public static int pluginsSchedulerThreads = 2;					//threads shared by all plugins for background and periodic tasks
+	public static int pluginsCacheMaxEntries = 1000;				//max. entries of the in-memory cache of each plugin
+	public static long pluginsHttpConnectTimeoutMs = 10000;			//connect timeout of the HTTP client shared by plugins
+	public static long pluginsStoreCompactMs = 600000;				//interval to compact plugin stores that have garbage (0 = only on writes)
+	public static int pluginsScheduleThreads = 2;					//threads running scheduled plugins
+	public static int pluginsPipelineThreads = 4;					//threads running steps of plugin pipelines (shared by all requests)
+	public static int pluginsPipelineMaxQueued = 100;				//max. steps waiting for a pipeline thread (more are rejected)
+	public static int pluginsPipelineMaxSteps = 20;					//max. number of steps in one pipeline request
+	public static long pluginsPipelineTimeoutMs = 30000;			//max. execution time of one pipeline request
+	public static Map<String, String> pluginsSchedules = new ConcurrentHashMap<>();	//scheduled plugins by ID: 'canonical_name;rate_ms=10000;{payload}' or 'canonical_name;cron=* * * * *;{payload}'
+	public static String pluginsBulkheadDefault = "";				//default execution limits per plugin: 'max_concurrent,max_queue,queue_timeout_ms,reject_status' (empty = no limits)
+	public static Map<String, String> pluginsBulkheads = new ConcurrentHashMap<>();	//execution limits by plugin canonical name (same format as default)
+	public static long pluginsCpuBudgetMs = 0;						//soft limit of CPU time per plugin execution (0 = off)
+	public static long pluginsAllocBudgetMb = 0;					//soft limit of allocated memory per plugin execution (0 = off)
+	public static String pluginsBudgetAction = "log";				//what to do if a plugin exceeds a budget: 'log' or 'reject' (block plugin for some time)
+	public static long pluginsBudgetBlockMs = 60000;				//time a plugin is blocked after exceeding a budget (action 'reject')
+	public static long pluginsIdempotencyTtlMs = 60000;			//keep results of '/execute-plugin' calls with idempotency key this long (0 = off)
+	public static int pluginsIdempotencyMaxEntries = 10000;			//max. number of stored idempotency keys
+	public static boolean auditLog = false;							//write plugin calls to an asynchronous audit log (instead of synchronous info logs)
+	public static String auditLogFolder = "log/audit/";				//folder of audit log files
+	public static int auditLogBufferSize = 8192;					//max. number of records waiting for the writer (more are dropped and counted)
+	public static long auditLogFlushMs = 1000;						//max. time records stay in the write buffer
+	public static long auditLogMaxFileMb = 50;						//rotate audit log file after this size
+	public static int auditLogMaxFiles = 10;						//delete oldest audit log files when there are more
+	public static String pluginsRateLimitIp = "";					//rate limit per IP for plugin endpoints: 'requests_per_second,burst' (empty = off)
+	public static String pluginsRateLimitUser = "";					//rate limit per user ID for plugin endpoints (only with authentication): 'requests_per_second,burst'
+	public static int pluginsPrioritySlots = 0;						//node-wide concurrent plugin executions served by priority lane (0 = no scheduling)
+	public static long pluginsPriorityQueueTimeoutMs = 10000;		//max. time a call waits for a slot before it is rejected
+	public static long pluginsPriorityAgingMs = 2000;				//calls that waited this long are served first, no matter their lane (starvation protection)
+	public static Map<String, String> pluginsPriorities = new ConcurrentHashMap<>();	//lane by plugin canonical name: 'interactive', 'normal' or 'batch'
+	public static Map<String, String> pluginsPriorityRoles = new ConcurrentHashMap<>();	//lane by user role (highest lane of the user's roles wins)
+	public static int pluginsJobsThreads = 2;						//workers of asynchronous plugin jobs (0 = no jobs)
+	public static int pluginsJobsMaxQueued = 1000;					//max. number of queued jobs (more are rejected)
+	public static long pluginsJobsResultTtlMs = 3600000;			//keep results of finished jobs this long
+	public static long pluginsJobsFlushMs = 20;						//batch journal flushes of submitted jobs (max. extra wait of a submit, 0 = flush each submit)
+	public static int pluginsJobsMaxAttempts = 3;					//a job fails if the node stopped this often while it was running
+	public static String pluginsAdaptiveLimit = "";					//adaptive concurrency limit of plugin execution endpoints: 'initial,min,max[,probeWindows]' (empty = off, probes of the no-load latency shed requests shortly, default at most every 600 windows = 60s)
 	
 	//Modules and APIs to know
 	public static String assistEndpointUrl = "http://localhost:20721/";		//SEPIA Assist-API endpoint URL (e.g. for authentication)
@@ -67,6 +139,18 @@ public class ConfigNode {
 	public static void setupSandbox(){
 		blackList.add(ConfigNode.class.getPackage().getName()); 		//server.*
 		blackList.add(ExampleEndpoints.class.getPackage().getName());	//endpoints.*
+		blackList.add(RateLimiter.class.getPackage().getName());		//tools.*
+		//node internals of the plugins package (plugins would skip limits, queues and users of other calls)
+		blackList.add(PluginLoader.class.getName());
+		blackList.add(PluginLibraries.class.getName());
+		blackList.add(PluginExecutor.class.getName());
+		blackList.add(PluginBulkhead.class.getName());
+		blackList.add(PluginScheduler.class.getName());
+		blackList.add(PluginSchedule.class.getName());
+		blackList.add(PluginPipeline.class.getName());
+		blackList.add(PluginJobs.class.getName());
+		blackList.add(PluginWorkerPool.class.getName());
+		blackList.add(PluginInputBinder.class.getName());		//used via TypedPlugin only
 	}
 	public static void addToSandboxBlackList(String classOrPackageName){
     	blackList.add(classOrPackageName);
@@ -85,6 +169,11 @@ public class ConfigNode {
 	
 	//---------- helpers ----------
 	
+	private static final String PLUGINS_BULKHEAD_PREFIX = "plugins_bulkhead.";		//followed by plugin canonical name
+	private static final String PLUGINS_SCHEDULE_PREFIX = "plugins_schedule.";		//followed by schedule ID
+	private static final String PLUGINS_PRIORITY_PREFIX = "plugins_priority.";		//followed by plugin canonical name
+	private static final String PLUGINS_PRIORITY_ROLE_PREFIX = "plugins_priority_role.";	//followed by user role
+	
 	/**
 	 * Load server settings from properties file. 
 	 */
@@ -102,6 +191,15 @@ public class ConfigNode {
 			allowInternalCalls = Boolean.valueOf(settings.getProperty("allow_internal_calls"));
 			allowGlobalDevRequests = Boolean.valueOf(settings.getProperty("allow_global_dev_requests"));
 			enableCORS = Boolean.valueOf(settings.getProperty("enable_CORS"));
+			shutdownDrainTimeoutMs = Long.valueOf(settings.getProperty("shutdown_drain_timeout_ms", "10000"));
+			compressionEnabled = Boolean.valueOf(settings.getProperty("compression_enabled", "true"));
+			compressionMinBytes = Integer.valueOf(settings.getProperty("compression_min_bytes", "1024"));
+			http2Enabled = Boolean.valueOf(settings.getProperty("http2_enabled", "true"));
+			tlsSessionCacheSize = Integer.valueOf(settings.getProperty("tls_session_cache_size", "10000"));
+			tlsSessionTimeoutSec = Integer.valueOf(settings.getProperty("tls_session_timeout_sec", "3600"));
+			tlsSessionTickets = Boolean.valueOf(settings.getProperty("tls_session_tickets", "true"));
+			statsTimeSeries = Boolean.valueOf(settings.getProperty("stats_timeseries", "true"));
+			statsMaxSeries = Integer.valueOf(settings.getProperty("stats_max_series", "128"));
 			
 			//plugin stuff
 			usePlugins = Boolean.valueOf(settings.getProperty("use_plugins"));
@@ -112,10 +210,71 @@ public class ConfigNode {
 			}
 			pluginsRequireLocalhost = Boolean.valueOf(settings.getProperty("plugins_require_localhost", "false"));
 			pluginsRequirePin = Boolean.valueOf(settings.getProperty("plugins_require_pin", "false"));
+			pluginsWarmUpRuns = Integer.valueOf(settings.getProperty("plugins_warm_up_runs", "0"));
+			pluginsLoadInBackground = Boolean.valueOf(settings.getProperty("plugins_load_in_background", "true"));
+			pluginsCompileThreads = Integer.valueOf(settings.getProperty("plugins_compile_threads", "0"));
+			pluginsWatchSources = Boolean.valueOf(settings.getProperty("plugins_watch_sources", "false"));
+			pluginsIsolation = settings.getProperty("plugins_isolation", "sandbox");
+			pluginsWorkers = Integer.valueOf(settings.getProperty("plugins_workers", "2"));
+			pluginsWorkerJvmOptions = settings.getProperty("plugins_worker_jvm_options", "-Xmx256m");
+			pluginsWorkerTimeoutMs = Long.valueOf(settings.getProperty("plugins_worker_timeout_ms", "30000"));
+			pluginsWatchDebounceMs = Long.valueOf(settings.getProperty("plugins_watch_debounce_ms", "500"));
+			pluginsSchedulerThreads = Integer.valueOf(settings.getProperty("plugins_scheduler_threads", "2"));
+			pluginsCacheMaxEntries = Integer.valueOf(settings.getProperty("plugins_cache_max_entries", "1000"));
+			pluginsHttpConnectTimeoutMs = Long.valueOf(settings.getProperty("plugins_http_connect_timeout_ms", "10000"));
+			pluginsStoreCompactMs = Long.valueOf(settings.getProperty("plugins_store_compact_ms", "600000"));
+			pluginsScheduleThreads = Integer.valueOf(settings.getProperty("plugins_schedule_threads", "2"));
+			pluginsPipelineThreads = Integer.valueOf(settings.getProperty("plugins_pipeline_threads", "4"));
+			pluginsPipelineMaxQueued = Integer.valueOf(settings.getProperty("plugins_pipeline_max_queued", "100"));
+			pluginsPipelineMaxSteps = Integer.valueOf(settings.getProperty("plugins_pipeline_max_steps", "20"));
+			pluginsPipelineTimeoutMs = Long.valueOf(settings.getProperty("plugins_pipeline_timeout_ms", "30000"));
+			pluginsCpuBudgetMs = Long.valueOf(settings.getProperty("plugins_cpu_budget_ms", "0"));
+			pluginsAllocBudgetMb = Long.valueOf(settings.getProperty("plugins_alloc_budget_mb", "0"));
+			pluginsBudgetAction = settings.getProperty("plugins_budget_action", "log");
+			pluginsBudgetBlockMs = Long.valueOf(settings.getProperty("plugins_budget_block_ms", "60000"));
+			pluginsIdempotencyTtlMs = Long.valueOf(settings.getProperty("plugins_idempotency_ttl_ms", "60000"));
+			pluginsIdempotencyMaxEntries = Integer.valueOf(settings.getProperty("plugins_idempotency_max_entries", "10000"));
+			auditLog = Boolean.valueOf(settings.getProperty("audit_log", "false"));
+			auditLogFolder = settings.getProperty("audit_log_folder", "log/audit/");
+			auditLogBufferSize = Integer.valueOf(settings.getProperty("audit_log_buffer_size", "8192"));
+			auditLogFlushMs = Long.valueOf(settings.getProperty("audit_log_flush_ms", "1000"));
+			auditLogMaxFileMb = Long.valueOf(settings.getProperty("audit_log_max_file_mb", "50"));
+			auditLogMaxFiles = Integer.valueOf(settings.getProperty("audit_log_max_files", "10"));
+			pluginsBulkheadDefault = settings.getProperty("plugins_bulkhead_default", "");
+			pluginsRateLimitIp = settings.getProperty("plugins_rate_limit_ip", "");
+			pluginsRateLimitUser = settings.getProperty("plugins_rate_limit_user", "");
+			pluginsAdaptiveLimit = settings.getProperty("plugins_adaptive_limit", "");
+			pluginsJobsThreads = Integer.valueOf(settings.getProperty("plugins_jobs_threads", "2"));
+			pluginsJobsMaxQueued = Integer.valueOf(settings.getProperty("plugins_jobs_max_queued", "1000"));
+			pluginsJobsResultTtlMs = Long.valueOf(settings.getProperty("plugins_jobs_result_ttl_ms", "3600000"));
+			pluginsJobsFlushMs = Long.valueOf(settings.getProperty("plugins_jobs_flush_ms", "20"));
+			pluginsJobsMaxAttempts = Integer.valueOf(settings.getProperty("plugins_jobs_max_attempts", "3"));
+			pluginsPrioritySlots = Integer.valueOf(settings.getProperty("plugins_priority_slots", "0"));
+			pluginsPriorityQueueTimeoutMs = Long.valueOf(settings.getProperty("plugins_priority_queue_timeout_ms", "10000"));
+			pluginsPriorityAgingMs = Long.valueOf(settings.getProperty("plugins_priority_aging_ms", "2000"));
+			pluginsBulkheads.clear();
+			pluginsSchedules.clear();
+			pluginsPriorities.clear();
+			pluginsPriorityRoles.clear();
+			for (String key : settings.stringPropertyNames()){
+				if (key.startsWith(PLUGINS_BULKHEAD_PREFIX)){
+					pluginsBulkheads.put(key.substring(PLUGINS_BULKHEAD_PREFIX.length()), settings.getProperty(key));
+				}else if (key.startsWith(PLUGINS_SCHEDULE_PREFIX)){
+					pluginsSchedules.put(key.substring(PLUGINS_SCHEDULE_PREFIX.length()), settings.getProperty(key));
+				}else if (key.startsWith(PLUGINS_PRIORITY_PREFIX)){
+					pluginsPriorities.put(key.substring(PLUGINS_PRIORITY_PREFIX.length()), settings.getProperty(key));
+				}else if (key.startsWith(PLUGINS_PRIORITY_ROLE_PREFIX)){
+					pluginsPriorityRoles.put(key.substring(PLUGINS_PRIORITY_ROLE_PREFIX.length()), settings.getProperty(key));
+				}
+			}
 			
 			//webserver
 			hostFiles = Boolean.valueOf(settings.getProperty("host_files"));
 			privacyPolicyLink = settings.getProperty("privacy_policy");
+			staticFilesCacheMb = Integer.valueOf(settings.getProperty("static_files_cache_mb", "32"));
+			staticFilesMaxCachedKb = Integer.valueOf(settings.getProperty("static_files_max_cached_kb", "512"));
+			staticFilesCacheControl = settings.getProperty("static_files_cache_control", "public, max-age=3600");
+			staticFilesCacheControlHtml = settings.getProperty("static_files_cache_control_html", "no-cache");
 			
 			//security and policies
 			useSandboxPolicy = Boolean.valueOf(settings.getProperty("use_sandbox_security_policy"));
@@ -147,6 +306,15 @@ public class ConfigNode {
 		settings.setProperty("allow_internal_calls", Boolean.toString(allowInternalCalls));
 		settings.setProperty("allow_global_dev_requests", Boolean.toString(allowGlobalDevRequests));
 		settings.setProperty("enable_CORS", Boolean.toString(enableCORS));
+		settings.setProperty("shutdown_drain_timeout_ms", Long.toString(shutdownDrainTimeoutMs));
+		settings.setProperty("compression_enabled", Boolean.toString(compressionEnabled));
+		settings.setProperty("compression_min_bytes", Integer.toString(compressionMinBytes));
+		settings.setProperty("http2_enabled", Boolean.toString(http2Enabled));
+		settings.setProperty("tls_session_cache_size", Integer.toString(tlsSessionCacheSize));
+		settings.setProperty("tls_session_timeout_sec", Integer.toString(tlsSessionTimeoutSec));
+		settings.setProperty("tls_session_tickets", Boolean.toString(tlsSessionTickets));
+		settings.setProperty("stats_timeseries", Boolean.toString(statsTimeSeries));
+		settings.setProperty("stats_max_series", Integer.toString(statsMaxSeries));
 		
 		//plugins stuff
 		settings.setProperty("use_plugins", Boolean.toString(usePlugins));
@@ -154,10 +322,68 @@ public class ConfigNode {
 		settings.setProperty("plugins_required_user_role", pluginsRequiredRole.name());
 		settings.setProperty("plugins_require_localhost", Boolean.toString(pluginsRequireLocalhost));
 		settings.setProperty("plugins_require_pin", Boolean.toString(pluginsRequirePin));
+		settings.setProperty("plugins_warm_up_runs", Integer.toString(pluginsWarmUpRuns));
+		settings.setProperty("plugins_load_in_background", Boolean.toString(pluginsLoadInBackground));
+		settings.setProperty("plugins_compile_threads", Integer.toString(pluginsCompileThreads));
+		settings.setProperty("plugins_isolation", pluginsIsolation);
+		settings.setProperty("plugins_workers", Integer.toString(pluginsWorkers));
+		settings.setProperty("plugins_worker_jvm_options", pluginsWorkerJvmOptions);
+		settings.setProperty("plugins_worker_timeout_ms", Long.toString(pluginsWorkerTimeoutMs));
+		settings.setProperty("plugins_watch_sources", Boolean.toString(pluginsWatchSources));
+		settings.setProperty("plugins_watch_debounce_ms", Long.toString(pluginsWatchDebounceMs));
+		settings.setProperty("plugins_scheduler_threads", Integer.toString(pluginsSchedulerThreads));
+		settings.setProperty("plugins_cache_max_entries", Integer.toString(pluginsCacheMaxEntries));
+		settings.setProperty("plugins_http_connect_timeout_ms", Long.toString(pluginsHttpConnectTimeoutMs));
+		settings.setProperty("plugins_store_compact_ms", Long.toString(pluginsStoreCompactMs));
+		settings.setProperty("plugins_schedule_threads", Integer.toString(pluginsScheduleThreads));
+		settings.setProperty("plugins_pipeline_threads", Integer.toString(pluginsPipelineThreads));
+		settings.setProperty("plugins_pipeline_max_queued", Integer.toString(pluginsPipelineMaxQueued));
+		settings.setProperty("plugins_pipeline_max_steps", Integer.toString(pluginsPipelineMaxSteps));
+		settings.setProperty("plugins_pipeline_timeout_ms", Long.toString(pluginsPipelineTimeoutMs));
+		settings.setProperty("plugins_cpu_budget_ms", Long.toString(pluginsCpuBudgetMs));
+		settings.setProperty("plugins_alloc_budget_mb", Long.toString(pluginsAllocBudgetMb));
+		settings.setProperty("plugins_budget_action", pluginsBudgetAction);
+		settings.setProperty("plugins_budget_block_ms", Long.toString(pluginsBudgetBlockMs));
+		settings.setProperty("plugins_idempotency_ttl_ms", Long.toString(pluginsIdempotencyTtlMs));
+		settings.setProperty("plugins_idempotency_max_entries", Integer.toString(pluginsIdempotencyMaxEntries));
+		settings.setProperty("audit_log", Boolean.toString(auditLog));
+		settings.setProperty("audit_log_folder", auditLogFolder);
+		settings.setProperty("audit_log_buffer_size", Integer.toString(auditLogBufferSize));
+		settings.setProperty("audit_log_flush_ms", Long.toString(auditLogFlushMs));
+		settings.setProperty("audit_log_max_file_mb", Long.toString(auditLogMaxFileMb));
+		settings.setProperty("audit_log_max_files", Integer.toString(auditLogMaxFiles));
+		settings.setProperty("plugins_bulkhead_default", pluginsBulkheadDefault);
+		settings.setProperty("plugins_rate_limit_ip", pluginsRateLimitIp);
+		settings.setProperty("plugins_rate_limit_user", pluginsRateLimitUser);
+		settings.setProperty("plugins_adaptive_limit", pluginsAdaptiveLimit);
+		settings.setProperty("plugins_jobs_threads", Integer.toString(pluginsJobsThreads));
+		settings.setProperty("plugins_jobs_max_queued", Integer.toString(pluginsJobsMaxQueued));
+		settings.setProperty("plugins_jobs_result_ttl_ms", Long.toString(pluginsJobsResultTtlMs));
+		settings.setProperty("plugins_jobs_flush_ms", Long.toString(pluginsJobsFlushMs));
+		settings.setProperty("plugins_jobs_max_attempts", Integer.toString(pluginsJobsMaxAttempts));
+		settings.setProperty("plugins_priority_slots", Integer.toString(pluginsPrioritySlots));
+		settings.setProperty("plugins_priority_queue_timeout_ms", Long.toString(pluginsPriorityQueueTimeoutMs));
+		settings.setProperty("plugins_priority_aging_ms", Long.toString(pluginsPriorityAgingMs));
+		for (Map.Entry<String, String> bulkhead : pluginsBulkheads.entrySet()){
+			settings.setProperty(PLUGINS_BULKHEAD_PREFIX + bulkhead.getKey(), bulkhead.getValue());
+		}
+		for (Map.Entry<String, String> schedule : pluginsSchedules.entrySet()){
+			settings.setProperty(PLUGINS_SCHEDULE_PREFIX + schedule.getKey(), schedule.getValue());
+		}
+		for (Map.Entry<String, String> priority : pluginsPriorities.entrySet()){
+			settings.setProperty(PLUGINS_PRIORITY_PREFIX + priority.getKey(), priority.getValue());
+		}
+		for (Map.Entry<String, String> priority : pluginsPriorityRoles.entrySet()){
+			settings.setProperty(PLUGINS_PRIORITY_ROLE_PREFIX + priority.getKey(), priority.getValue());
+		}
 		
 		//webserver
 		settings.setProperty("host_files", Boolean.toString(hostFiles));
 		settings.setProperty("privacy_policy", privacyPolicyLink);
+		settings.setProperty("static_files_cache_mb", Integer.toString(staticFilesCacheMb));
+		settings.setProperty("static_files_max_cached_kb", Integer.toString(staticFilesMaxCachedKb));
+		settings.setProperty("static_files_cache_control", staticFilesCacheControl);
+		settings.setProperty("static_files_cache_control_html", staticFilesCacheControlHtml);
 		
 		//security and policies
 		settings.setProperty("use_sandbox_security_policy", Boolean.toString(useSandboxPolicy));
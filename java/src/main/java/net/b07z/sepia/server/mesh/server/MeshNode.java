@@ -17,8 +17,16 @@ import net.b07z.sepia.server.core.tools.JSON;
 import net.b07z.sepia.server.core.tools.SandboxSecurityPolicy;
 import net.b07z.sepia.server.mesh.endpoints.AuthEndpoints;
 import net.b07z.sepia.server.mesh.endpoints.ExampleEndpoints;
+import net.b07z.sepia.server.mesh.endpoints.HealthEndpoints;
 import net.b07z.sepia.server.mesh.endpoints.PluginEndpoints;
+import net.b07z.sepia.server.mesh.plugins.PluginJobs;
 import net.b07z.sepia.server.mesh.plugins.PluginLoader;
+import net.b07z.sepia.server.mesh.plugins.PluginSchedule;
+import net.b07z.sepia.server.mesh.plugins.PluginScheduler;
+import net.b07z.sepia.server.mesh.plugins.PluginWorkerPool;
+import net.b07z.sepia.server.mesh.tools.AuditLog;
+import net.b07z.sepia.server.mesh.tools.TimeSeriesStats;
+import net.b07z.sepia.server.mesh.server.NodeState.Phase;
 
 /**
  * Default Mesh-Node server with handling of configuration and server setup. 
@@ -41,6 +49,9 @@ public class MeshNode implements MeshNodeInterface {
 	public static boolean isSSL = false;
 	private static String keystorePwd = "13371337";
 	
+	public static final String ENDPOINT_SERIES_PREFIX = "endpoint:";		//time-series name prefix, see TimeSeriesStats
+	private static final String REQUEST_TIC = "mesh-node-tic";
+	
 	//---------------------------------------------------
 	
 	@Override
@@ -50,6 +61,8 @@ public class MeshNode implements MeshNodeInterface {
 		get("/ping", (request, response) -> 			CoreEndpoints.ping(request, response, ConfigNode.SERVERNAME));
 		get("/validate", (request, response) -> 		CoreEndpoints.validateServer(request, response,	ConfigNode.SERVERNAME, 
 															ConfigNode.apiVersion, ConfigNode.localName, ConfigNode.localSecret));
+		get("/ready", (request, response) -> 			HealthEndpoints.readiness(request, response));
+		get("/live", (request, response) -> 			HealthEndpoints.liveness(request, response));
 		
 		get("/hello-world", (request, response) -> 		ExampleEndpoints.helloWorld(request, response));
 		post("/server-stats", (request, response) -> 	ExampleEndpoints.serverStats(request, response));
@@ -57,26 +70,73 @@ public class MeshNode implements MeshNodeInterface {
 		post("/authentication", (request, response) -> 	AuthEndpoints.defaultAuthentication(request, response));
 		
 		post("/execute-plugin", (request, response) -> 	PluginEndpoints.executePlugin(request, response));
+		post("/execute-pipeline", (request, response) -> 	PluginEndpoints.executePipeline(request, response));
 		post("/upload-plugin", (request, response) -> 	PluginEndpoints.uploadPlugin(request, response));
 		post("/delete-plugin", (request, response) -> 	PluginEndpoints.deletePlugin(request, response));
+		post("/plugin-result", (request, response) -> 	PluginEndpoints.pluginResult(request, response));
+		post("/plugin-schedules", (request, response) -> 	PluginEndpoints.pluginSchedules(request, response));
+		post("/plugin-usage", (request, response) -> 		PluginEndpoints.pluginUsage(request, response));
+		post("/submit-job", (request, response) -> 		PluginEndpoints.submitJob(request, response));
+		post("/job-result", (request, response) -> 		PluginEndpoints.jobResult(request, response));
 	}
 
 	@Override
 	public void start(String[] args) {
+		//graceful shutdown on SIGTERM, Ctrl+C etc.
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(), "mesh-node-shutdown"));
+		
 		//load settings
+		NodeState.setPhase(Phase.settings);
 		loadSettings(args);
 		
 		//load statics and setup modules (loading stuff to memory etc.)
+		NodeState.setPhase(Phase.modules);
 		setupModules();
 		
-		//load plugins (if allowed)
-		loadPlugins();
-				
 		//setup server with port, CORS and error handling etc. 
+		NodeState.setPhase(Phase.server);
 		setupServer();
 		
 		//SERVER END-POINTS
 		loadEndpoints();
+		
+		//load plugins (if allowed) - in background the server can answer '/ping' etc. while plugins compile
+		NodeState.setPhase(Phase.plugins);
+		if (ConfigNode.pluginsLoadInBackground){
+			Thread pluginsLoader = new Thread(() -> {
+				try{
+					loadPlugins();
+				}catch (Throwable e){
+					//nobody else would see it - node stays alive, but '/ready' reports the failure
+					log.error("Loading plugins FAILED - node is not ready - msg.: " + e, e);
+					NodeState.setFailed("Loading plugins failed: " + e);
+					return;
+				}
+				if (NodeState.getPhase() == Phase.plugins){
+					NodeState.setPhase(Phase.ready);
+				}
+			}, "mesh-node-plugins-loader");
+			pluginsLoader.setDaemon(true);
+			pluginsLoader.start();
+		}else{
+			loadPlugins();
+			NodeState.setPhase(Phase.ready);
+		}
+	}
+	
+	@Override
+	public void stop(){
+		if (NodeState.getPhase() == Phase.stopped || NodeState.getPhase() == Phase.draining){
+			return;
+		}
+		log.info("Stopping " + ConfigNode.SERVERNAME + " - draining plugin executions (max. " + ConfigNode.shutdownDrainTimeoutMs + "ms) ...");
+		PluginSchedule.stopAll();
+		NodeState.drain(ConfigNode.shutdownDrainTimeoutMs);
+		spark.Spark.stop();
+		PluginJobs.stop();
+		PluginLoader.shutdown();
+		AuditLog.stop();
+		NodeState.setPhase(Phase.stopped);
 	}
 	
 	//---------------------------------------------------
@@ -113,8 +173,13 @@ public class MeshNode implements MeshNodeInterface {
 		
 		//set security
 		if (ConfigNode.useSandboxPolicy) {
-			Policy.setPolicy(new SandboxSecurityPolicy());
-			System.setSecurityManager(new SecurityManager());
+			if (PluginWorkerPool.isEnabled()){
+				//plugins run in worker processes, the security manager is only installed there
+				log.info("Plugins run in worker processes - no security manager in node.");
+			}else{
+				Policy.setPolicy(new SandboxSecurityPolicy());
+				System.setSecurityManager(new SecurityManager());
+			}
 			ConfigNode.setupSandbox();
 		}
 		if (isSSL){
@@ -123,7 +188,7 @@ public class MeshNode implements MeshNodeInterface {
 				
 		//host files?
 		if (ConfigNode.hostFiles){
-			staticFiles.externalLocation(ConfigNode.webServerFolder);
+			//NOTE: files are served by the StaticFilesHandler (see NodeServerFactory)
 			log.info("Web-server is active and uses folder: " + ConfigNode.webServerFolder);
 		}
 		
@@ -179,6 +244,9 @@ public class MeshNode implements MeshNodeInterface {
 		startGMT = DateTime.getGMT(date, "dd.MM.yyyy' - 'HH:mm:ss' - GMT'");
 		log.info("Starting " + ConfigNode.SERVERNAME + " " + ConfigNode.apiVersion + " (" + serverType + ")");
 		log.info("date: " + startGMT);
+		
+		//use our own Jetty setup (compression etc.) - has to happen before the first route or filter is defined
+		NodeServerFactory.register();
 				
 		/*
 		//TODO: do we need to set this? https://wiki.eclipse.org/Jetty/Howto/High_Load
@@ -205,8 +273,25 @@ public class MeshNode implements MeshNodeInterface {
 		//do something before end-point evaluation - e.g. authentication
 		before((request, response) -> {
 			//System.out.println("BEFORE TEST 1"); 		//DEBUG
+			if (ConfigNode.statsTimeSeries){
+				request.attribute(REQUEST_TIC, System.nanoTime());
+			}
 		});
 		
+		//time-series of endpoint calls (web-server files don't get here)
+		if (ConfigNode.statsTimeSeries){
+			TimeSeriesStats.setMaxSeries(ConfigNode.statsMaxSeries);
+			afterAfter((request, response) -> {
+				Long tic = request.attribute(REQUEST_TIC);
+				if (tic != null){
+					int status = response.status();
+					//404s share one series so unknown paths can't fill the series limit
+					String endpoint = (status == 404)? "(unmatched)" : request.pathInfo();
+					TimeSeriesStats.record(ENDPOINT_SERIES_PREFIX + endpoint, System.nanoTime() - tic, status >= 500);
+				}
+			});
+		}
+		
 		//ERROR handling - TODO: improve
 		SparkJavaFw.handleError();
 	}
@@ -215,18 +300,41 @@ public class MeshNode implements MeshNodeInterface {
 	 * All kinds of things that should be loaded on startup.
 	 */
 	public void setupModules(){
-		ConfigNode.setupAuthModule();	//Authentication module
+		ConfigNode.setupAuthModule();			//Authentication module
+		PluginEndpoints.setupRateLimits();		//Rate limits for plugin endpoints
+		PluginEndpoints.setupIdempotency();		//Deduplication of retried plugin calls
+		PluginScheduler.setup();				//Priority lanes of plugin executions
+		if (ConfigNode.auditLog){				//Audit log of plugin calls
+			AuditLog.start(ConfigNode.auditLogFolder, ConfigNode.auditLogBufferSize, ConfigNode.auditLogFlushMs, 
+					ConfigNode.auditLogMaxFileMb, ConfigNode.auditLogMaxFiles);
+		}
 	}
 	
 	/**
 	 * Load all plugins to class loader (if allowed). 
 	 * Cleans up target folder before (where the compiled classes land).
+	 * Afterwards watch the source folder for changes (if active).
 	 */
 	public void loadPlugins(){
 		if (ConfigNode.usePlugins){
+			if (PluginWorkerPool.isEnabled()){
+				PluginWorkerPool.start();		//workers start while plugins compile
+			}
 			boolean cleanUpBefore = true;
 			int total = PluginLoader.loadAllPlugins(cleanUpBefore);
 			log.info("Total plugins loaded: " + total);
+			if (ConfigNode.pluginsWatchSources){
+				PluginLoader.startSourceWatcher(ConfigNode.pluginsWatchDebounceMs);
+			}
+			int schedules = PluginSchedule.startAll();
+			if (schedules > 0){
+				log.info("Plugin schedules started: " + schedules);
+			}
+			try{
+				PluginJobs.start();
+			}catch (Exception e){
+				log.error("Plugin jobs could not be started - msg.: " + e.getMessage());
+			}
 		}
 	}
 
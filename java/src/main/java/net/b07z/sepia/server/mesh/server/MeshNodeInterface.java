@@ -18,4 +18,10 @@ public interface MeshNodeInterface {
 	 * @param args - arguments like "--test" or "--live" to switch server config etc.
 	 */
 	public void start(String[] args);
+	
+	/**
+	 * Stop the mesh node server gracefully (stop accepting requests and drain in-flight executions).
+	 * Default does nothing, so existing nodes keep working.
+	 */
+	public default void stop(){}
 }
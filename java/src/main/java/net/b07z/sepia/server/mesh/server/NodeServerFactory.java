@@ -0,0 +1,215 @@
+package net.b07z.sepia.server.mesh.server;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.ForwardedRequestCustomizer;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.ExceptionMapper;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServerFactory;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import spark.embeddedserver.jetty.websocket.WebSocketHandlerWrapper;
+import spark.http.matching.MatcherFilter;
+import spark.route.Routes;
+import spark.ssl.SslStores;
+import spark.staticfiles.StaticFilesConfiguration;
+
+/**
+ * Creates the embedded Jetty server used by Spark so we can add our own handlers (e.g. response compression, web-server files) 
+ * in front of the Spark routes and our own SSL connector (HTTP/2 via ALPN, TLS session resumption). 
+ * Register via {@link #register()} BEFORE the first route or filter is defined.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class NodeServerFactory implements EmbeddedServerFactory, JettyServerFactory {
+	
+	private static final Logger log = LoggerFactory.getLogger(NodeServerFactory.class);
+	
+	//connector settings - known after Spark calls 'ignite'
+	private String host;
+	private int port;
+	private SslStores sslStores;
+	private boolean trustForwardHeaders = true;		//Spark default
+	
+	/**
+	 * Use this factory for the default Spark (Jetty) server.
+	 */
+	public static void register(){
+		EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new NodeServerFactory());
+	}
+	
+	//--- EmbeddedServerFactory ---
+	
+	@Override
+	public EmbeddedServer create(Routes routeMatcher, StaticFilesConfiguration staticFilesConfiguration, 
+			ExceptionMapper exceptionMapper, boolean hasMultipleHandler){
+		MatcherFilter matcherFilter = new MatcherFilter(routeMatcher, staticFilesConfiguration, exceptionMapper, false, hasMultipleHandler);
+		matcherFilter.init(null);
+		
+		JettyHandler sparkHandler = new JettyHandler(matcherFilter);
+		sparkHandler.getSessionCookieConfig().setHttpOnly(true);
+		
+		EmbeddedJettyServer jettyServer = new EmbeddedJettyServer(this, wrapHandler(sparkHandler));
+		
+		//remember connector settings before Jetty server is created
+		return new EmbeddedServer(){
+			@Override
+			public int ignite(String host, int port, SslStores sslStores, int maxThreads, int minThreads, int threadIdleTimeoutMillis) 
+					throws Exception {
+				NodeServerFactory.this.host = host;
+				NodeServerFactory.this.port = port;
+				NodeServerFactory.this.sslStores = sslStores;
+				return jettyServer.ignite(host, port, sslStores, maxThreads, minThreads, threadIdleTimeoutMillis);
+			}
+			@Override
+			public void configureWebSockets(Map<String, WebSocketHandlerWrapper> webSocketHandlers, Optional<Long> webSocketIdleTimeoutMillis){
+				jettyServer.configureWebSockets(webSocketHandlers, webSocketIdleTimeoutMillis);
+			}
+			@Override
+			public void trustForwardHeaders(boolean trust){
+				NodeServerFactory.this.trustForwardHeaders = trust;
+				jettyServer.trustForwardHeaders(trust);
+			}
+			@Override
+			public void join() throws InterruptedException {
+				jettyServer.join();
+			}
+			@Override
+			public void extinguish(){
+				jettyServer.extinguish();
+			}
+			@Override
+			public int activeThreadCount(){
+				return jettyServer.activeThreadCount();
+			}
+		};
+	}
+	
+	/**
+	 * Put our own handlers in front of the Spark handler.
+	 */
+	private Handler wrapHandler(Handler sparkHandler){
+		Handler handler = sparkHandler;
+		if (ConfigNode.compressionEnabled){
+			CompressionHandler compressionHandler = new CompressionHandler(ConfigNode.compressionMinBytes);
+			compressionHandler.setHandler(handler);
+			handler = compressionHandler;
+		}
+		if (ConfigNode.hostFiles){
+			//serves web-server files before anything else (with its own caching and precompressed files)
+			StaticFilesHandler staticFilesHandler = new StaticFilesHandler(ConfigNode.webServerFolder, 
+					ConfigNode.staticFilesCacheMb * 1024L * 1024L, ConfigNode.staticFilesMaxCachedKb * 1024);
+			staticFilesHandler.setHandler(handler);
+			handler = staticFilesHandler;
+		}
+		return handler;
+	}
+	
+	//--- JettyServerFactory (same defaults as Spark) ---
+	
+	@Override
+	public Server create(int maxThreads, int minThreads, int threadTimeoutMillis){
+		Server server;
+		if (maxThreads > 0){
+			int min = (minThreads > 0)? minThreads : 8;
+			int idleTimeout = (threadTimeoutMillis > 0)? threadTimeoutMillis : 60000;
+			server = new Server(new QueuedThreadPool(maxThreads, min, idleTimeout));
+		}else{
+			server = new Server();
+		}
+		addSecureConnector(server);
+		return server;
+	}
+	
+	@Override
+	public Server create(ThreadPool threadPool){
+		Server server = (threadPool != null)? new Server(threadPool) : new Server();
+		addSecureConnector(server);
+		return server;
+	}
+	
+	/**
+	 * In SSL mode build our own connector with TLS session cache and (optionally) HTTP/2 via ALPN.
+	 * Without SSL nothing is added and Spark creates its default HTTP/1.1 connector.
+	 */
+	private void addSecureConnector(Server server){
+		if (sslStores == null){
+			return;
+		}
+		//TLS - with session cache for resumption of previous sessions (abbreviated handshake)
+		if (!ConfigNode.tlsSessionTickets){
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "false");
+		}
+		SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+		sslContextFactory.setKeyStorePath(sslStores.keystoreFile());
+		if (sslStores.keystorePassword() != null){
+			sslContextFactory.setKeyStorePassword(sslStores.keystorePassword());
+		}
+		if (sslStores.certAlias() != null){
+			sslContextFactory.setCertAlias(sslStores.certAlias());
+		}
+		if (sslStores.trustStoreFile() != null){
+			sslContextFactory.setTrustStorePath(sslStores.trustStoreFile());
+		}
+		if (sslStores.trustStorePassword() != null){
+			sslContextFactory.setTrustStorePassword(sslStores.trustStorePassword());
+		}
+		if (sslStores.needsClientCert()){
+			sslContextFactory.setNeedClientAuth(true);
+			sslContextFactory.setWantClientAuth(true);
+		}
+		sslContextFactory.setSessionCachingEnabled(ConfigNode.tlsSessionCacheSize > 0);
+		sslContextFactory.setSslSessionCacheSize(ConfigNode.tlsSessionCacheSize);
+		sslContextFactory.setSslSessionTimeout(ConfigNode.tlsSessionTimeoutSec);
+		
+		HttpConfiguration httpsConfig = new HttpConfiguration();
+		httpsConfig.setSecureScheme("https");
+		httpsConfig.setSecurePort(port);
+		httpsConfig.addCustomizer(new SecureRequestCustomizer());
+		if (trustForwardHeaders){
+			//client IP and scheme from 'X-Forwarded-*' headers of a proxy, like Spark's own connector
+			httpsConfig.addCustomizer(new ForwardedRequestCustomizer());
+		}
+		HttpConnectionFactory http1 = new HttpConnectionFactory(httpsConfig);
+		
+		ServerConnector connector;
+		if (ConfigNode.http2Enabled){
+			//HTTP/2 (h2) with fallback to HTTP/1.1 negotiated via ALPN
+			HTTP2ServerConnectionFactory http2 = new HTTP2ServerConnectionFactory(httpsConfig);
+			ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+			alpn.setDefaultProtocol(http1.getProtocol());
+			sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+			sslContextFactory.setUseCipherSuitesOrder(true);
+			SslConnectionFactory tls = new SslConnectionFactory(sslContextFactory, alpn.getProtocol());
+			connector = new ServerConnector(server, tls, alpn, http2, http1);
+		}else{
+			SslConnectionFactory tls = new SslConnectionFactory(sslContextFactory, http1.getProtocol());
+			connector = new ServerConnector(server, tls, http1);
+		}
+		connector.setHost(host);
+		connector.setPort(port);
+		server.addConnector(connector);
+		log.info("SSL connector - HTTP/2: " + ConfigNode.http2Enabled + ", TLS session cache: " + ConfigNode.tlsSessionCacheSize 
+				+ " (timeout " + ConfigNode.tlsSessionTimeoutSec + "s), session tickets: " + ConfigNode.tlsSessionTickets);
+	}
+}
@@ -0,0 +1,132 @@
+package net.b07z.sepia.server.mesh.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.mesh.plugins.PluginLoader;
+
+/**
+ * Tracks the life-cycle phase of the node (startup, ready, draining etc.) and in-flight plugin executions
+ * (calls, pipelines, schedules, jobs and plugin uploads or deletes, which compile and reload plugins).
+ * Used by the health endpoints and the graceful shutdown.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class NodeState {
+	
+	private static final Logger log = LoggerFactory.getLogger(NodeState.class);
+	
+	/**
+	 * Life-cycle phases of the node in the order they usually occur.
+	 */
+	public enum Phase {
+		created,
+		settings,
+		modules,
+		server,
+		plugins,
+		ready,
+		failed,		//startup failed (e.g. loading plugins), the node stays alive but is not ready
+		draining,
+		stopped
+	}
+	
+	private static volatile Phase phase = Phase.created;
+	private static volatile String failure;		//reason of phase 'failed'
+	private static final AtomicInteger inFlight = new AtomicInteger(0);
+	
+	/**
+	 * Switch to next life-cycle phase.
+	 */
+	public static void setPhase(Phase newPhase){
+		phase = newPhase;
+		log.info("Node phase: " + newPhase.name());
+	}
+	public static Phase getPhase(){
+		return phase;
+	}
+	/**
+	 * Switch to phase 'failed' (not ready) and keep the reason for the readiness endpoint.
+	 */
+	public static void setFailed(String reason){
+		failure = reason;
+		setPhase(Phase.failed);
+	}
+	/**
+	 * Reason of a failed startup or null.
+	 */
+	public static String getFailure(){
+		return (phase == Phase.failed)? failure : null;
+	}
+	
+	/**
+	 * Is the process up and able to answer at all (liveness)?
+	 */
+	public static boolean isAlive(){
+		return phase != Phase.stopped;
+	}
+	/**
+	 * Did the node finish startup and are all plugins loaded so it can take traffic (readiness)?
+	 */
+	public static boolean isReady(){
+		return phase == Phase.ready && (!ConfigNode.usePlugins || PluginLoader.isReady());
+	}
+	/**
+	 * Is the node accepting new plugin executions (false during shutdown)?
+	 */
+	public static boolean isAcceptingRequests(){
+		return phase != Phase.draining && phase != Phase.stopped;
+	}
+	
+	//------- in-flight tracking -------
+	
+	/**
+	 * Register the start of a plugin execution. Call {@link #endExecution()} in a 'finally' block if this returns true.
+	 * @return true if the execution may start, false if the node is draining
+	 */
+	public static boolean beginExecution(){
+		inFlight.incrementAndGet();
+		if (!isAcceptingRequests()){
+			inFlight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	/**
+	 * Register the end of a plugin execution.
+	 */
+	public static void endExecution(){
+		inFlight.decrementAndGet();
+	}
+	public static int getInFlight(){
+		return inFlight.get();
+	}
+	
+	/**
+	 * Stop accepting new executions and wait for in-flight ones to finish.
+	 * @param timeoutMs - max. time to wait
+	 * @return true if all executions finished in time
+	 */
+	public static boolean drain(long timeoutMs){
+		setPhase(Phase.draining);
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (inFlight.get() > 0 && System.currentTimeMillis() < deadline){
+			try{
+				Thread.sleep(25);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		int remaining = inFlight.get();
+		if (remaining > 0){
+			log.warn("Drain timeout reached after " + timeoutMs + "ms with " + remaining + " plugin execution(s) still running.");
+		}else{
+			log.info("All plugin executions finished.");
+		}
+		return remaining == 0;
+	}
+}
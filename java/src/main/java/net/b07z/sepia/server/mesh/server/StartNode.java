@@ -5,6 +5,7 @@ import static spark.Spark.*;
 import net.b07z.sepia.server.core.endpoints.CoreEndpoints;
 import net.b07z.sepia.server.core.tools.Debugger;
 import net.b07z.sepia.server.mesh.endpoints.ExampleEndpoints;
+import net.b07z.sepia.server.mesh.endpoints.HealthEndpoints;
 import net.b07z.sepia.server.mesh.endpoints.PluginEndpoints;
 
 /**
@@ -22,6 +23,8 @@ public class StartNode extends MeshNode {
 		get("/ping", (request, response) -> 			CoreEndpoints.ping(request, response, ConfigNode.SERVERNAME));
 		get("/validate", (request, response) -> 		CoreEndpoints.validateServer(request, response,	ConfigNode.SERVERNAME, 
 															ConfigNode.apiVersion, ConfigNode.localName, ConfigNode.localSecret));
+		get("/ready", (request, response) -> 			HealthEndpoints.readiness(request, response));
+		get("/live", (request, response) -> 			HealthEndpoints.liveness(request, response));
 		
 		get("/hello-world", (request, response) -> 		ExampleEndpoints.helloWorld(request, response));
 		post("/server-stats", (request, response) -> 	ExampleEndpoints.serverStats(request, response));
@@ -29,8 +32,14 @@ public class StartNode extends MeshNode {
 		//post("/authentication", (request, response) -> 	AuthEndpoints.defaultAuthentication(request, response));
 		
 		post("/execute-plugin", (request, response) -> 	PluginEndpoints.executePlugin(request, response));
+		post("/execute-pipeline", (request, response) -> 	PluginEndpoints.executePipeline(request, response));
 		post("/upload-plugin", (request, response) -> 	PluginEndpoints.uploadPlugin(request, response));
 		post("/delete-plugin", (request, response) -> 	PluginEndpoints.deletePlugin(request, response));
+		post("/plugin-result", (request, response) -> 	PluginEndpoints.pluginResult(request, response));
+		post("/plugin-schedules", (request, response) -> 	PluginEndpoints.pluginSchedules(request, response));
+		post("/plugin-usage", (request, response) -> 		PluginEndpoints.pluginUsage(request, response));
+		post("/submit-job", (request, response) -> 		PluginEndpoints.submitJob(request, response));
+		post("/job-result", (request, response) -> 		PluginEndpoints.jobResult(request, response));
 		
 		//MODIFY THIS AS YOU PLEASE AND ADD YOUR OWN ENDPOINTS :-)
 	}
@@ -0,0 +1,486 @@
+package net.b07z.sepia.server.mesh.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.tools.DirectoryWatcher;
+
+/**
+ * Jetty handler for the web-server folder (replaces Spark's 'staticFiles.externalLocation').<br>
+ * Small files are kept in an in-memory LRU cache, large files are sent via memory-mapped reads. Responses get
+ * strong ETags, 'Last-Modified' and 'Cache-Control' headers and conditional requests are answered with 304.
+ * If a client accepts gzip a precompressed '.gz' file next to the original is sent (or the cached file is compressed once).
+ * The folder is watched and cache entries are dropped as soon as files change.<br>
+ * Requests that don't match a file are passed on to the Spark routes.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class StaticFilesHandler extends HandlerWrapper {
+
+	private static final Logger log = LoggerFactory.getLogger(StaticFilesHandler.class);
+
+	private static final String INDEX_FILE = "index.html";
+	private static final int ENTRY_OVERHEAD = 128;			//rough memory used by an entry without data
+	private static final int MAX_MISSING_KEYS = 1024;		//"not found" results are kept apart so scans can't evict files
+	private static final StaticFile NOT_FOUND = new StaticFile(null, 0, 0, null, null);
+
+	//statistics
+	private static final LongAdder cacheHits = new LongAdder();
+	private static final LongAdder cacheMisses = new LongAdder();
+	private static final LongAdder notModified = new LongAdder();
+	private static final LongAdder mappedReads = new LongAdder();
+	private static final LongAdder bytesSent = new LongAdder();
+	private static volatile FileCache activeCache;
+
+	private final Path root;
+	private final FileCache cache;
+	private final int maxCachedFileBytes;
+	private final MimeTypes mimeTypes = new MimeTypes();
+	private DirectoryWatcher watcher;
+
+	/**
+	 * Create handler for a folder.
+	 * @param folder - web-server folder
+	 * @param cacheMaxBytes - max. memory used by cached files
+	 * @param maxCachedFileBytes - files larger than this are not cached but read via memory-mapping
+	 */
+	public StaticFilesHandler(String folder, long cacheMaxBytes, int maxCachedFileBytes){
+		this.root = Paths.get(folder).toAbsolutePath().normalize();
+		this.cache = new FileCache(cacheMaxBytes);
+		this.maxCachedFileBytes = maxCachedFileBytes;
+		activeCache = this.cache;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		try{
+			watcher = new DirectoryWatcher(root, 50, this::invalidate).start();
+		}catch (Exception e){
+			log.error("Web-server folder can't be watched, cache is disabled - msg.: " + e.getMessage());
+			cache.setEnabled(false);
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (watcher != null){
+			watcher.close();
+		}
+		cache.clear();
+		super.doStop();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		String method = request.getMethod();
+		boolean isHead = "HEAD".equals(method);
+		String key = (isHead || "GET".equals(method))? toKey(target) : null;
+		StaticFile file = (key != null)? getFile(key) : null;
+		if (file == null){
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		baseRequest.setHandled(true);
+
+		//choose representation - original or gzip
+		StaticFile sendFile = file;
+		byte[] sendData = file.data;
+		String etag = file.etag;
+		boolean isGzip = false;
+		boolean compressible = CompressionHandler.isCompressible(file.contentType);
+		if (compressible && "gzip".equals(CompressionHandler.chooseEncoding(request.getHeader("Accept-Encoding")))){
+			StaticFile gzFile = getFile(key + ".gz");
+			if (gzFile != null){
+				sendFile = gzFile;
+				sendData = gzFile.data;
+				etag = gzipEtag(gzFile.etag);
+				isGzip = true;
+			}else if (file.data != null && ConfigNode.compressionEnabled && file.data.length >= ConfigNode.compressionMinBytes){
+				sendData = cache.getGzipData(key, file);
+				etag = gzipEtag(file.etag);
+				isGzip = true;
+			}
+		}
+		if (compressible){
+			response.addHeader("Vary", "Accept-Encoding");
+		}
+		response.setContentType(file.contentType);
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", file.lastModified);
+		response.setHeader("Cache-Control", file.contentType.startsWith("text/html")?
+				ConfigNode.staticFilesCacheControlHtml : ConfigNode.staticFilesCacheControl);
+
+		//conditional request?
+		if (isNotModified(request, etag, file.lastModified)){
+			notModified.increment();
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (isGzip){
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		if (sendData != null){
+			response.setContentLength(sendData.length);
+			if (!isHead){
+				response.getOutputStream().write(sendData);
+				bytesSent.add(sendData.length);
+			}
+		}else{
+			response.setContentLengthLong(sendFile.size);
+			if (!isHead){
+				sendMapped(sendFile.path, sendFile.size, response.getOutputStream());
+			}
+		}
+	}
+
+	/**
+	 * Web-server cache statistics.
+	 */
+	public static JSONObject getStats(){
+		FileCache cache = activeCache;
+		JSONObject stats = JSON.make(
+				"cache_hits", cacheHits.sum(),
+				"cache_misses", cacheMisses.sum(),
+				"not_modified", notModified.sum(),
+				"mapped_reads", mappedReads.sum(),
+				"bytes_sent", bytesSent.sum()
+		);
+		JSON.put(stats, "cache_entries", (cache != null)? cache.size() : 0);
+		JSON.put(stats, "cache_bytes", (cache != null)? cache.getBytes() : 0L);
+		return stats;
+	}
+
+	//----------------------------
+
+	/**
+	 * Convert request target to a cache key (path relative to root with '/' separator).
+	 * @return key or null if the path is outside of the root folder
+	 */
+	private String toKey(String target){
+		if (target == null || target.indexOf('\0') >= 0){
+			return null;
+		}
+		String relative = target.replaceFirst("^/+", "");
+		Path path;
+		try{
+			path = root.resolve(relative).normalize();
+		}catch (Exception e){
+			return null;	//invalid path
+		}
+		if (!path.startsWith(root)){
+			return null;
+		}
+		return toKey(path);
+	}
+	private String toKey(Path path){
+		return root.relativize(path).toString().replace('\\', '/');
+	}
+
+	/**
+	 * Get file from cache or disk.
+	 * @return file or null if there is no such file
+	 */
+	private StaticFile getFile(String key) throws IOException {
+		StaticFile file = cache.get(key);
+		if (file != null){
+			cacheHits.increment();
+		}else{
+			cacheMisses.increment();
+			long generation = cache.getGeneration();
+			file = loadFile(key);
+			cache.put(key, file, generation);
+		}
+		return (file == NOT_FOUND)? null : file;
+	}
+
+	private StaticFile loadFile(String key) throws IOException {
+		Path path = root.resolve(key);
+		try{
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			if (attributes.isDirectory()){
+				path = path.resolve(INDEX_FILE);
+				attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			}
+			if (!attributes.isRegularFile()){
+				return NOT_FOUND;
+			}
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			byte[] data = null;
+			long size = attributes.size();
+			if (size <= maxCachedFileBytes){
+				data = Files.readAllBytes(path);
+				size = data.length;
+			}
+			return new StaticFile(path, size, lastModified, getContentType(path), data);
+
+		}catch (NoSuchFileException e){
+			return NOT_FOUND;
+		}
+	}
+
+	private String getContentType(Path path){
+		String fileName = path.getFileName().toString();
+		if (fileName.endsWith(".gz")){
+			//precompressed variant is sent with the type of the original
+			fileName = fileName.substring(0, fileName.length() - 3);
+		}
+		String type = mimeTypes.getMimeByExtension(fileName);
+		if (type == null){
+			return "application/octet-stream";
+		}else if (type.startsWith("text/") || type.contains("javascript") || type.contains("json")){
+			return type + "; charset=utf-8";
+		}else{
+			return type;
+		}
+	}
+
+	private static String gzipEtag(String etag){
+		return etag.substring(0, etag.length() - 1) + "-gz\"";
+	}
+
+	private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified){
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null){
+			for (String tag : ifNoneMatch.split(",")){
+				String t = tag.trim();
+				if (t.equals("*") || t.equals(etag) || t.equals("W/" + etag)){
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		return ifModifiedSince > 0 && (lastModified / 1000) <= (ifModifiedSince / 1000);
+	}
+
+	/**
+	 * Send a large file via memory-mapped read (zero-copy if the output is Jetty's own).
+	 */
+	private static void sendMapped(Path path, long size, OutputStream out) throws IOException {
+		mappedReads.increment();
+		if (size > Integer.MAX_VALUE){
+			Files.copy(path, out);
+		}else{
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				if (out instanceof HttpOutput){
+					((HttpOutput) out).sendContent(buffer);
+				}else{
+					Channels.newChannel(out).write(buffer);
+				}
+			}
+		}
+		bytesSent.add(size);
+	}
+
+	/**
+	 * Drop cache entries of changed files (called by the folder watcher).
+	 */
+	private void invalidate(Set<Path> changed){
+		for (Path path : changed){
+			if (path.equals(root)){
+				cache.clear();
+				return;
+			}
+			String key = toKey(path);
+			cache.remove(key);
+			//folder requests are cached under the folder key and deleted folders take their content with them
+			Path parent = path.getParent();
+			if (parent != null && parent.startsWith(root)){
+				cache.remove(toKey(parent));
+			}
+			cache.removeChildren(key + "/");
+		}
+	}
+
+	//----------------------------
+
+	/**
+	 * File data and meta info.
+	 */
+	private static class StaticFile {
+		final Path path;
+		final long size;
+		final long lastModified;
+		final String contentType;
+		final String etag;
+		final byte[] data;		//null for large files
+		byte[] gzipData;		//compressed once on demand (guarded by cache)
+
+		StaticFile(Path path, long size, long lastModified, String contentType, byte[] data){
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.data = data;
+			this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+		}
+
+		long memorySize(){
+			return ENTRY_OVERHEAD + ((data != null)? data.length : 0) + ((gzipData != null)? gzipData.length : 0);
+		}
+	}
+
+	/**
+	 * LRU cache limited by memory size. Keys of missing files are kept in a small LRU set of their own.
+	 * Every invalidation increases the generation, a file loaded in an older generation is not stored (it may be outdated already).
+	 */
+	private static class FileCache {
+		private final long maxBytes;
+		private final LinkedHashMap<String, StaticFile> entries = new LinkedHashMap<>(256, 0.75f, true);
+		private final LinkedHashMap<String, Boolean> missing = new LinkedHashMap<String, Boolean>(64, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest){
+				return size() > MAX_MISSING_KEYS;
+			}
+		};
+		private long bytes = 0;
+		private long generation = 0;
+		private boolean enabled = true;
+
+		FileCache(long maxBytes){
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized void setEnabled(boolean enabled){
+			this.enabled = enabled;
+			clear();
+		}
+
+		synchronized StaticFile get(String key){
+			StaticFile file = entries.get(key);
+			if (file == null && missing.get(key) != null){
+				return NOT_FOUND;
+			}
+			return file;
+		}
+
+		synchronized long getGeneration(){
+			return generation;
+		}
+
+		/**
+		 * Store a file loaded in the given generation (see {@link #getGeneration()}), unless something was invalidated meanwhile.
+		 */
+		synchronized void put(String key, StaticFile file, long loadedInGeneration){
+			if (!enabled || loadedInGeneration != generation){
+				return;
+			}else if (file == NOT_FOUND){
+				missing.put(key, Boolean.TRUE);
+				return;
+			}else if (file.memorySize() > maxBytes){
+				return;
+			}
+			removeEntry(key);
+			entries.put(key, file);
+			bytes += file.memorySize();
+			evict();
+		}
+
+		/**
+		 * Get gzip data of a cached file, compress if not done yet.
+		 */
+		byte[] getGzipData(String key, StaticFile file) throws IOException {
+			synchronized (this){
+				if (file.gzipData != null){
+					return file.gzipData;
+				}
+			}
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(file.data.length / 4 + 64);
+			try (GZIPOutputStream zipOut = new GZIPOutputStream(compressed)){
+				zipOut.write(file.data);
+			}
+			byte[] gzipData = compressed.toByteArray();
+			synchronized (this){
+				if (file.gzipData == null && entries.get(key) == file){
+					file.gzipData = gzipData;
+					bytes += gzipData.length;
+					evict();
+				}
+			}
+			return gzipData;
+		}
+
+		synchronized void remove(String key){
+			generation++;
+			removeEntry(key);
+		}
+		private void removeEntry(String key){
+			missing.remove(key);
+			StaticFile old = entries.remove(key);
+			if (old != null){
+				bytes -= old.memorySize();
+			}
+		}
+
+		synchronized void removeChildren(String keyPrefix){
+			generation++;
+			Iterator<Map.Entry<String, StaticFile>> it = entries.entrySet().iterator();
+			while (it.hasNext()){
+				Map.Entry<String, StaticFile> entry = it.next();
+				if (entry.getKey().startsWith(keyPrefix)){
+					bytes -= entry.getValue().memorySize();
+					it.remove();
+				}
+			}
+			missing.keySet().removeIf(key -> key.startsWith(keyPrefix));
+		}
+
+		synchronized void clear(){
+			generation++;
+			entries.clear();
+			missing.clear();
+			bytes = 0;
+		}
+
+		synchronized int size(){
+			return entries.size();
+		}
+
+		synchronized long getBytes(){
+			return bytes;
+		}
+
+		private void evict(){
+			Iterator<Map.Entry<String, StaticFile>> it = entries.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()){
+				bytes -= it.next().getValue().memorySize();
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.Is;
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * Adaptive concurrency limit based on observed latency (similar to TCP Vegas).<br>
+ * Each sample window compares its average latency with the no-load latency to estimate how many requests are waiting
+ * in queues: queue = limit * (1 - minRtt / rtt). If the queue is short the limit grows, if it is long the limit shrinks.
+ * Requests beyond the limit are rejected right away instead of waiting in a queue.<br>
+ * The no-load latency is the lowest window average (not the fastest single request, the node serves a mix of fast and slow calls).
+ * It can only be measured when the queues are empty, so every few windows (default {@link #DEFAULT_PROBE_WINDOWS}) the limit drops
+ * to a quarter for two windows, one to drain the queues and one to measure a new no-load latency (like the 'ProbeRTT' phase of TCP BBR).
+ * This also follows plugins that got slower. After the first probe, a probe is skipped if the estimated queue is short (the no-load
+ * latency still fits).<br>
+ * Note: under full load a probe sheds up to 3/4 of the requests for two windows (about 200ms), i.e. with the default there can be a short
+ * burst of 503 responses once a minute. Clients should retry, or the interval can be changed (or probes turned off) via the
+ * 4th value of the settings, see {@link #fromSettings(String)}.<br>
+ * {@link #tryAcquire()} and {@link #release(long)} only use atomics, the limit is recomputed once per window by the thread that wins a CAS.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class AdaptiveLimiter {
+
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+	public static final int DEFAULT_PROBE_WINDOWS = 600;		//60s
+	private static final int FIRST_PROBE_WINDOWS = 10;		//the first windows may already be queued (initial limit too high)
+	private static final long DEFAULT_WINDOW_NS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int WINDOW_MIN_SAMPLES = 10;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final int probeInterval;		//windows between probes (0 = never)
+	private final long windowNs;
+
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private volatile int limit;
+
+	//current window
+	private final LongAdder windowSamples = new LongAdder();
+	private final LongAdder windowRttNs = new LongAdder();
+	private final AtomicInteger windowMaxInFlight = new AtomicInteger(0);
+	private final LongAdder windowShed = new LongAdder();
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private final AtomicBoolean isUpdating = new AtomicBoolean(false);
+
+	//state of the limit calculation (only changed by the updating thread)
+	private double estimatedLimit;
+	private long windows = 0;
+	private long nextProbe;
+	private int probeWindows = 0;		//remaining windows of a probe
+	private volatile double rttNs = 0;
+	private volatile double minRttNs = 0;
+	private volatile double queueSize = 0;
+	private volatile double shedRatio = 0;
+
+	//statistics
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+	private final LongAdder probes = new LongAdder();
+	private final LongAdder probesSkipped = new LongAdder();
+
+	/**
+	 * Create limiter that probes the no-load latency every {@link #DEFAULT_PROBE_WINDOWS} windows.
+	 * @param initialLimit - start value
+	 * @param minLimit - never go below
+	 * @param maxLimit - never go above
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit){
+		this(initialLimit, minLimit, maxLimit, DEFAULT_PROBE_WINDOWS);
+	}
+	/**
+	 * Create limiter.
+	 * @param initialLimit - start value
+	 * @param minLimit - never go below
+	 * @param maxLimit - never go above
+	 * @param probeWindows - windows (100ms) between two probes of the no-load latency, 0 to never probe
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int probeWindows){
+		this(initialLimit, minLimit, maxLimit, probeWindows, DEFAULT_WINDOW_NS);
+	}
+	AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int probeWindows, long windowNs){
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		this.estimatedLimit = this.limit;
+		this.probeInterval = Math.max(0, probeWindows);
+		this.nextProbe = (this.probeInterval > 0)? Math.min(FIRST_PROBE_WINDOWS, this.probeInterval) : Long.MAX_VALUE;
+		this.windowNs = windowNs;
+	}
+
+	/**
+	 * Create limiter from settings string 'initial,min,max[,probeWindows]', e.g. '20,4,200' or '20,4,200,100'
+	 * (probe every 10s, 0 = never).
+	 * @return limiter or null if settings are empty or invalid (no limit)
+	 */
+	public static AdaptiveLimiter fromSettings(String settings){
+		if (Is.nullOrEmpty(settings)){
+			return null;
+		}
+		try{
+			String[] values = settings.split(",");
+			int probeWindows = (values.length > 3)? Integer.parseInt(values[3].trim()) : DEFAULT_PROBE_WINDOWS;
+			return new AdaptiveLimiter(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+					Integer.parseInt(values[2].trim()), probeWindows);
+		}catch (Exception e){
+			log.error("Invalid adaptive limit settings (use 'initial,min,max[,probeWindows]'): " + settings);
+			return null;
+		}
+	}
+
+	/**
+	 * Try to start a request. Call {@link #release(long)} when it is done.
+	 * @return false if the limit is reached (shed request)
+	 */
+	public boolean tryAcquire(){
+		int current;
+		do{
+			current = inFlight.get();
+			if (current >= limit){
+				shed.increment();
+				windowShed.increment();
+				return false;
+			}
+		}while (!inFlight.compareAndSet(current, current + 1));
+		accepted.increment();
+		int max;
+		while ((max = windowMaxInFlight.get()) < current + 1 && !windowMaxInFlight.compareAndSet(max, current + 1)){
+			//retry
+		}
+		return true;
+	}
+
+	/**
+	 * Finish a request started with {@link #tryAcquire()}.
+	 * @param rttNs - duration of the request
+	 */
+	public void release(long rttNs){
+		inFlight.decrementAndGet();
+		windowSamples.increment();
+		windowRttNs.add(rttNs);
+		long start = windowStart.get();
+		long now = System.nanoTime();
+		if (now - start >= windowNs && windowSamples.sum() >= WINDOW_MIN_SAMPLES && isUpdating.compareAndSet(false, true)){
+			try{
+				if (windowStart.compareAndSet(start, now)){
+					updateLimit();
+				}
+			}finally{
+				isUpdating.set(false);
+			}
+		}
+	}
+
+	//new limit from the samples of the window that just ended
+	private void updateLimit(){
+		long samples = windowSamples.sumThenReset();
+		long rttSum = windowRttNs.sumThenReset();
+		long shedCount = windowShed.sumThenReset();
+		int maxInFlight = windowMaxInFlight.getAndSet(inFlight.get());
+		if (samples == 0){
+			return;
+		}
+		double rtt = (double) rttSum / samples;
+		rttNs = rtt;
+		shedRatio = (double) shedCount / (samples + shedCount);
+		windows++;
+
+		//probe: first window drains the queues, second window is the no-load latency
+		if (probeWindows > 0){
+			probeWindows--;
+			if (probeWindows == 0){
+				minRttNs = rtt;
+				limit = (int) estimatedLimit;
+			}
+			return;
+		}
+		minRttNs = (minRttNs == 0)? rtt : Math.min(minRttNs, rtt);
+		double queue = estimatedLimit * (1 - minRttNs / rtt);
+		queueSize = queue;
+		double step = Math.max(1, Math.log10(estimatedLimit));
+		double alpha = 3 * step;
+		double beta = 6 * step;
+		if (windows >= nextProbe){
+			nextProbe = windows + probeInterval;
+			//the first windows may have been queued already, later probes only if there is a queue
+			if (probes.sum() == 0 || queue >= alpha){
+				probeWindows = 2;
+				probes.increment();
+				limit = (int) Math.max(minLimit, estimatedLimit / 4);
+				return;
+			}
+			probesSkipped.increment();
+		}
+		double newLimit = estimatedLimit;
+		if (queue < alpha){
+			//don't grow if the limit was not even used (the latency says nothing about more requests)
+			if (maxInFlight >= estimatedLimit / 2){
+				newLimit = estimatedLimit + step;
+			}
+		}else if (queue > beta){
+			newLimit = estimatedLimit - Math.max(step, (queue - beta) / 2);		//back off faster if queues are long
+		}
+		estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		limit = (int) estimatedLimit;
+	}
+
+	/**
+	 * Current limit.
+	 */
+	public int getLimit(){
+		return limit;
+	}
+
+	/**
+	 * Current number of requests.
+	 */
+	public int getInFlight(){
+		return inFlight.get();
+	}
+
+	/**
+	 * Limit, in-flight requests, latencies, estimated queue and shed requests (total and ratio of the last window).
+	 */
+	public JSONObject getStats(){
+		JSONObject stats = JSON.make(
+				"limit", limit,
+				"in_flight", inFlight.get(),
+				"accepted", accepted.sum(),
+				"shed", shed.sum(),
+				"shed_ratio", Math.round(shedRatio * 1000) / 1000.0
+		);
+		JSON.put(stats, "rtt_ms", Math.round(rttNs / 1000) / 1000.0);
+		JSON.put(stats, "min_rtt_ms", Math.round(minRttNs / 1000) / 1000.0);
+		JSON.put(stats, "queue", Math.round(queueSize * 10) / 10.0);
+		JSON.put(stats, "probes", probes.sum());
+		JSON.put(stats, "probes_skipped", probesSkipped.sum());
+		JSON.put(stats, "min_limit", minLimit);
+		JSON.put(stats, "max_limit", maxLimit);
+		JSON.put(stats, "probe_windows", probeInterval);
+		return stats;
+	}
+}
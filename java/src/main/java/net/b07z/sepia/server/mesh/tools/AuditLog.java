@@ -0,0 +1,318 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * Asynchronous audit log of plugin calls (one JSON line per call: time, endpoint, user, plugin, status, duration, error).<br>
+ * Request threads only put the record into a lock-free ring buffer, a background thread writes the records in batches
+ * to daily files 'audit-yyyy-MM-dd.N.log' that are rotated by size. If the buffer is full the record is dropped
+ * and counted, request threads never wait for the disk.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class AuditLog {
+
+	private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+	private static final int MAX_BATCH = 1024;
+	private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long ERROR_LOG_INTERVAL_MS = 60000;		//max. one error log line per interval (e.g. full disk)
+
+	private static volatile AuditLog instance;
+
+	private final File folder;
+	private final long flushIntervalMs;
+	private final long maxFileBytes;
+	private final int maxFiles;
+
+	//ring buffer: producers claim a sequence via CAS on 'tail', the single writer thread moves 'head'
+	private final AtomicReferenceArray<Record> slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(0);
+	private volatile long head = 0;
+
+	private final Thread writerThread;
+	private volatile boolean isRunning = true;
+	private OutputStream out;
+	private LocalDate fileDate;
+	private int filePart;
+	private long fileBytes;
+	private long lastFlush;
+	private long lastErrorLog;
+	private long errorsSinceLog;
+
+	//statistics
+	private final LongAdder written = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder writeErrors = new LongAdder();
+	private final LongAdder rotations = new LongAdder();
+
+	private static class Record {
+		final long timestamp;
+		final String endpoint;
+		final String user;
+		final String plugin;
+		final int status;
+		final long durationMs;
+		final String error;
+
+		Record(long timestamp, String endpoint, String user, String plugin, int status, long durationMs, String error){
+			this.timestamp = timestamp;
+			this.endpoint = endpoint;
+			this.user = user;
+			this.plugin = plugin;
+			this.status = status;
+			this.durationMs = durationMs;
+			this.error = error;
+		}
+	}
+
+	private AuditLog(File folder, int bufferSize, long flushIntervalMs, long maxFileBytes, int maxFiles){
+		this.folder = folder;
+		this.flushIntervalMs = flushIntervalMs;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		int capacity = Math.max(16, Integer.highestOneBit(bufferSize - 1) << 1);	//next power of two
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+		this.writerThread = new Thread(this::writeLoop, "audit-log-writer");
+		this.writerThread.setDaemon(true);
+	}
+
+	/**
+	 * Start audit log (replaces a running one).
+	 * @param folder - target folder of log files
+	 * @param bufferSize - max. number of records waiting for the writer (rounded to power of two)
+	 * @param flushIntervalMs - max. time records stay in the file buffer
+	 * @param maxFileMb - rotate file after this size
+	 * @param maxFiles - delete oldest files when there are more
+	 */
+	public static synchronized void start(String folder, int bufferSize, long flushIntervalMs, long maxFileMb, int maxFiles){
+		stop();
+		File dir = new File(folder);
+		if (!dir.exists() && !dir.mkdirs()){
+			log.error("Audit log folder could not be created: " + dir.getAbsolutePath());
+			return;
+		}
+		AuditLog auditLog = new AuditLog(dir, bufferSize, flushIntervalMs, maxFileMb * 1024 * 1024, maxFiles);
+		auditLog.writerThread.start();
+		instance = auditLog;
+		log.info("Audit log active - folder: " + dir.getAbsolutePath() + ", buffer: " + auditLog.slots.length());
+	}
+
+	/**
+	 * Write remaining records and stop the writer.
+	 */
+	public static synchronized void stop(){
+		AuditLog auditLog = instance;
+		if (auditLog == null){
+			return;
+		}
+		instance = null;
+		auditLog.isRunning = false;
+		LockSupport.unpark(auditLog.writerThread);
+		try{
+			auditLog.writerThread.join(5000);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Is the audit log running?
+	 */
+	public static boolean isActive(){
+		return instance != null;
+	}
+
+	/**
+	 * Add record (never blocks). Does nothing if the audit log is off.
+	 * @param endpoint - e.g. 'execute-plugin'
+	 * @param user - user ID
+	 * @param plugin - canonical name of plugin (or null)
+	 * @param status - HTTP status
+	 * @param durationMs - time spent
+	 * @param error - error message or null
+	 * @return false if the record was dropped (buffer full or off)
+	 */
+	public static boolean record(String endpoint, String user, String plugin, int status, long durationMs, String error){
+		AuditLog auditLog = instance;
+		if (auditLog == null){
+			return false;
+		}
+		return auditLog.offer(new Record(System.currentTimeMillis(), endpoint, user, plugin, status, durationMs, error));
+	}
+
+	private boolean offer(Record record){
+		long sequence;
+		do{
+			sequence = tail.get();
+			if (sequence - head >= slots.length()){
+				dropped.increment();
+				return false;
+			}
+		}while (!tail.compareAndSet(sequence, sequence + 1));
+		slots.set((int) (sequence & mask), record);
+		return true;
+	}
+
+	//--- writer thread ---
+
+	private void writeLoop(){
+		StringBuilder line = new StringBuilder(256);
+		while (true){
+			boolean running = isRunning;
+			int count = 0;
+			try{
+				while (count < MAX_BATCH && head < tail.get()){
+					int index = (int) (head & mask);
+					Record record = slots.get(index);
+					if (record == null){
+						Thread.onSpinWait();		//claimed but not yet published, producer is about to set it
+						continue;
+					}
+					slots.set(index, null);
+					head++;
+					write(record, line);
+					count++;
+				}
+				if (out != null && (System.currentTimeMillis() - lastFlush >= flushIntervalMs || !running)){
+					out.flush();
+					lastFlush = System.currentTimeMillis();
+				}
+			}catch (IOException e){
+				writeErrors.increment();
+				logWriteError(e);
+				closeWriter();
+			}
+			if (!running && head >= tail.get()){
+				break;
+			}
+			if (count == 0 && head >= tail.get()){
+				LockSupport.parkNanos(Math.min(IDLE_PARK_NS, TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs))));
+			}
+		}
+		closeWriter();
+	}
+
+	private void write(Record record, StringBuilder line) throws IOException {
+		line.setLength(0);
+		line.append("{\"ts\":").append(record.timestamp)
+			.append(",\"endpoint\":\"").append(JSONObject.escape(String.valueOf(record.endpoint)))
+			.append("\",\"user\":\"").append(JSONObject.escape(String.valueOf(record.user))).append('"');
+		if (record.plugin != null){
+			line.append(",\"plugin\":\"").append(JSONObject.escape(record.plugin)).append('"');
+		}
+		line.append(",\"status\":").append(record.status)
+			.append(",\"ms\":").append(record.durationMs);
+		if (record.error != null){
+			line.append(",\"error\":\"").append(JSONObject.escape(record.error)).append('"');
+		}
+		line.append("}\n");
+
+		byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+		prepareFile(bytes.length);
+		out.write(bytes);
+		fileBytes += bytes.length;
+		written.increment();
+	}
+
+	//one line per interval, a failing disk would otherwise log every batch
+	private void logWriteError(IOException e){
+		errorsSinceLog++;
+		long now = System.currentTimeMillis();
+		if (now - lastErrorLog >= ERROR_LOG_INTERVAL_MS){
+			log.error("Audit log write FAILED (" + errorsSinceLog + "x since last report) - msg.: " + e.getMessage());
+			lastErrorLog = now;
+			errorsSinceLog = 0;
+		}
+	}
+
+	//open file of the day or rotate if the current one is too big
+	private void prepareFile(int nextBytes) throws IOException {
+		LocalDate today = LocalDate.now();
+		if (out != null && today.equals(fileDate) && fileBytes + nextBytes <= maxFileBytes){
+			return;
+		}
+		boolean isSameDay = today.equals(fileDate);
+		if (out != null){
+			closeWriter();
+			rotations.increment();
+		}
+		//next part of the day, skip parts that are full already (e.g. after restart)
+		int part = isSameDay? (filePart + 1) : 0;
+		File file = new File(folder, "audit-" + today + "." + part + ".log");
+		while (file.exists() && file.length() >= maxFileBytes){
+			part++;
+			file = new File(folder, "audit-" + today + "." + part + ".log");
+		}
+		out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+		fileDate = today;
+		filePart = part;
+		fileBytes = file.length();
+		deleteOldFiles();
+	}
+
+	private void deleteOldFiles(){
+		File[] files = folder.listFiles((dir, name) -> name.startsWith("audit-") && name.endsWith(".log"));
+		if (files == null || files.length <= maxFiles){
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < files.length - maxFiles; i++){
+			if (!files[i].delete()){
+				log.error("Audit log could not delete old file: " + files[i].getName());
+			}
+		}
+	}
+
+	private void closeWriter(){
+		if (out != null){
+			try{
+				out.close();
+			}catch (IOException e){
+				writeErrors.increment();
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Written, dropped and buffered records (null if off).
+	 */
+	public static JSONObject getStats(){
+		AuditLog auditLog = instance;
+		if (auditLog == null){
+			return null;
+		}
+		JSONObject stats = JSON.make(
+				"written", auditLog.written.sum(),
+				"dropped", auditLog.dropped.sum(),
+				"buffered", auditLog.tail.get() - auditLog.head,
+				"capacity", auditLog.slots.length(),
+				"write_errors", auditLog.writeErrors.sum()
+		);
+		JSON.put(stats, "rotations", auditLog.rotations.sum());
+		return stats;
+	}
+}
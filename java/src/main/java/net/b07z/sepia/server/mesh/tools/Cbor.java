@@ -0,0 +1,316 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Minimal CBOR (RFC 8949) encoder and decoder for JSON-like data.<br>
+ * Decodes into the same structures json-simple creates ({@link JSONObject}, {@link JSONArray}, String, Long, Double, Boolean, null)
+ * so plugins can't tell the difference between a CBOR and a JSON request. Byte strings are decoded to Base64 strings, 
+ * tags are ignored.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class Cbor {
+	
+	public static final String CONTENT_TYPE = "application/cbor";
+	
+	private static final int MAJOR_UINT = 0;
+	private static final int MAJOR_NINT = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_TEXT = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+	private static final int MAJOR_TAG = 6;
+	private static final int MAJOR_SIMPLE = 7;
+	
+	private static final int INDEFINITE = 31;
+	private static final int BREAK = 0xFF;
+	private static final int MAX_DEPTH = 256;
+	private static final int READ_CHUNK_SIZE = 64 * 1024;		//strings longer than this are read in chunks
+	
+	/**
+	 * Is the given content-type (or accept header) CBOR?
+	 */
+	public static boolean isCbor(String contentType){
+		return contentType != null && contentType.toLowerCase().contains(CONTENT_TYPE);
+	}
+	
+	//------- encode -------
+	
+	/**
+	 * Encode object (Map, Collection, String, Number, Boolean, byte[] or null) to stream. The stream is flushed but not closed.
+	 * Other objects are written as text via 'toString()'.
+	 */
+	public static void write(Object value, OutputStream out) throws IOException {
+		BufferedOutputStream bufferedOut = new BufferedOutputStream(out, JsonStreams.BUFFER_SIZE);
+		writeValue(value, bufferedOut);
+		bufferedOut.flush();
+	}
+	
+	private static void writeValue(Object value, OutputStream out) throws IOException {
+		if (value == null){
+			out.write(0xF6);
+		}else if (value instanceof String){
+			writeText((String) value, out);
+		}else if (value instanceof Boolean){
+			out.write(((Boolean) value)? 0xF5 : 0xF4);
+		}else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+			long n = ((Number) value).longValue();
+			if (n >= 0){
+				writeHead(MAJOR_UINT, n, out);
+			}else{
+				writeHead(MAJOR_NINT, -1 - n, out);
+			}
+		}else if (value instanceof Number){
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			out.write(0xFB);
+			writeLong(bits, out);
+		}else if (value instanceof Map){
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeHead(MAJOR_MAP, map.size(), out);
+			for (Map.Entry<?, ?> e : map.entrySet()){
+				writeText(String.valueOf(e.getKey()), out);
+				writeValue(e.getValue(), out);
+			}
+		}else if (value instanceof Collection){
+			Collection<?> list = (Collection<?>) value;
+			writeHead(MAJOR_ARRAY, list.size(), out);
+			for (Object o : list){
+				writeValue(o, out);
+			}
+		}else if (value instanceof Object[]){
+			Object[] array = (Object[]) value;
+			writeHead(MAJOR_ARRAY, array.length, out);
+			for (Object o : array){
+				writeValue(o, out);
+			}
+		}else if (value instanceof byte[]){
+			byte[] bytes = (byte[]) value;
+			writeHead(MAJOR_BYTES, bytes.length, out);
+			out.write(bytes);
+		}else{
+			writeText(value.toString(), out);
+		}
+	}
+	
+	private static void writeText(String s, OutputStream out) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeHead(MAJOR_TEXT, bytes.length, out);
+		out.write(bytes);
+	}
+	
+	private static void writeHead(int major, long n, OutputStream out) throws IOException {
+		int m = major << 5;
+		if (n < 24){
+			out.write(m | (int) n);
+		}else if (n <= 0xFFL){
+			out.write(m | 24);
+			out.write((int) n);
+		}else if (n <= 0xFFFFL){
+			out.write(m | 25);
+			out.write((int) (n >> 8));
+			out.write((int) n);
+		}else if (n <= 0xFFFFFFFFL){
+			out.write(m | 26);
+			out.write((int) (n >> 24));
+			out.write((int) (n >> 16));
+			out.write((int) (n >> 8));
+			out.write((int) n);
+		}else{
+			out.write(m | 27);
+			writeLong(n, out);
+		}
+	}
+	
+	private static void writeLong(long n, OutputStream out) throws IOException {
+		for (int shift = 56; shift >= 0; shift -= 8){
+			out.write((int) (n >> shift));
+		}
+	}
+	
+	//------- decode -------
+	
+	/**
+	 * Decode one CBOR data item from stream.
+	 * @return JSONObject, JSONArray, String, Long, Double, Boolean or null
+	 * @throws IOException on invalid or truncated data
+	 */
+	public static Object read(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, JsonStreams.BUFFER_SIZE));
+		return readValue(dataIn, dataIn.readUnsignedByte(), 0);
+	}
+	/**
+	 * Decode a CBOR map from stream.
+	 * @return JSONObject or null if the stream is empty
+	 * @throws IOException on invalid data or if the item is not a map
+	 */
+	public static JSONObject readObject(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, JsonStreams.BUFFER_SIZE));
+		int initial = dataIn.read();
+		if (initial < 0){
+			return null;
+		}
+		Object value = readValue(dataIn, initial, 0);
+		if (!(value instanceof JSONObject)){
+			throw new IOException("CBOR data item is not a map.");
+		}
+		return (JSONObject) value;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Object readValue(DataInputStream in, int initial, int depth) throws IOException {
+		if (depth > MAX_DEPTH){
+			throw new IOException("CBOR data is nested too deeply.");
+		}
+		int major = initial >> 5;
+		int info = initial & 0x1F;
+		switch (major){
+			case MAJOR_UINT:
+				return readLength(in, info);
+			case MAJOR_NINT:
+				return -1 - readLength(in, info);
+			case MAJOR_BYTES:
+				return Base64.getEncoder().encodeToString(readChunks(in, MAJOR_BYTES, info));
+			case MAJOR_TEXT:
+				return new String(readChunks(in, MAJOR_TEXT, info), StandardCharsets.UTF_8);
+			case MAJOR_ARRAY: {
+				JSONArray array = new JSONArray();
+				if (info == INDEFINITE){
+					int next;
+					while ((next = in.readUnsignedByte()) != BREAK){
+						array.add(readValue(in, next, depth + 1));
+					}
+				}else{
+					long n = readLength(in, info);
+					for (long i = 0; i < n; i++){
+						array.add(readValue(in, in.readUnsignedByte(), depth + 1));
+					}
+				}
+				return array;
+			}
+			case MAJOR_MAP: {
+				JSONObject map = new JSONObject();
+				if (info == INDEFINITE){
+					int next;
+					while ((next = in.readUnsignedByte()) != BREAK){
+						Object key = readValue(in, next, depth + 1);
+						map.put(String.valueOf(key), readValue(in, in.readUnsignedByte(), depth + 1));
+					}
+				}else{
+					long n = readLength(in, info);
+					for (long i = 0; i < n; i++){
+						Object key = readValue(in, in.readUnsignedByte(), depth + 1);
+						map.put(String.valueOf(key), readValue(in, in.readUnsignedByte(), depth + 1));
+					}
+				}
+				return map;
+			}
+			case MAJOR_TAG:
+				readLength(in, info);
+				return readValue(in, in.readUnsignedByte(), depth + 1);
+			default:
+				return readSimple(in, info);
+		}
+	}
+	
+	private static Object readSimple(DataInputStream in, int info) throws IOException {
+		switch (info){
+			case 20: return Boolean.FALSE;
+			case 21: return Boolean.TRUE;
+			case 22: return null;
+			case 23: return null; 		//undefined
+			case 24: in.readUnsignedByte(); return null;
+			case 25: return (double) halfToFloat(in.readUnsignedShort());
+			case 26: return (double) Float.intBitsToFloat(in.readInt());
+			case 27: return Double.longBitsToDouble(in.readLong());
+			default:
+				if (info < 20){
+					return null;	//unassigned simple value
+				}
+				throw new IOException("Invalid CBOR simple value: " + info);
+		}
+	}
+	
+	private static long readLength(DataInputStream in, int info) throws IOException {
+		if (info < 24){
+			return info;
+		}
+		switch (info){
+			case 24: return in.readUnsignedByte();
+			case 25: return in.readUnsignedShort();
+			case 26: return in.readInt() & 0xFFFFFFFFL;
+			case 27: {
+				long n = in.readLong();
+				if (n < 0){
+					throw new IOException("CBOR integer too large.");
+				}
+				return n;
+			}
+			default:
+				throw new IOException("Invalid CBOR length info: " + info);
+		}
+	}
+	
+	private static byte[] readChunks(DataInputStream in, int major, int info) throws IOException {
+		if (info != INDEFINITE){
+			long n = readLength(in, info);
+			if (n > Integer.MAX_VALUE - 8){
+				throw new IOException("CBOR string too large.");
+			}
+			if (n <= READ_CHUNK_SIZE){
+				byte[] bytes = new byte[(int) n];
+				in.readFully(bytes);
+				return bytes;
+			}
+			//don't trust the header: memory grows with the data that really arrives (truncated bodies fail early)
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(READ_CHUNK_SIZE);
+			byte[] chunk = new byte[READ_CHUNK_SIZE];
+			long remaining = n;
+			while (remaining > 0){
+				int len = (int) Math.min(remaining, READ_CHUNK_SIZE);
+				in.readFully(chunk, 0, len);
+				bytes.write(chunk, 0, len);
+				remaining -= len;
+			}
+			return bytes.toByteArray();
+		}
+		//indefinite length: concatenate definite chunks until 'break'
+		ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+		int next;
+		while ((next = in.readUnsignedByte()) != BREAK){
+			if ((next >> 5) != major || (next & 0x1F) == INDEFINITE){
+				throw new IOException("Invalid CBOR string chunk.");
+			}
+			chunks.write(readChunks(in, major, next & 0x1F));
+		}
+		return chunks.toByteArray();
+	}
+	
+	private static float halfToFloat(int half){
+		int exp = (half >> 10) & 0x1F;
+		int mant = half & 0x3FF;
+		float value;
+		if (exp == 0){
+			value = (float) (mant * Math.pow(2, -24));
+		}else if (exp != 31){
+			value = (float) ((mant + 1024) * Math.pow(2, exp - 25));
+		}else{
+			value = (mant == 0)? Float.POSITIVE_INFINITY : Float.NaN;
+		}
+		return ((half & 0x8000) != 0)? -value : value;
+	}
+}
@@ -0,0 +1,124 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * Minimal cron expression with the 5 standard fields: minute (0-59), hour (0-23), day of month (1-31), month (1-12)
+ * and day of week (0-7, 0 and 7 = Sunday). Each field supports '*', single values, ranges 'a-b', steps '* /n' or 'a-b/n'
+ * (without space) and lists 'a,b,c'. Like classic cron, if day of month AND day of week are restricted a day matches
+ * when either of them matches.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CronExpression {
+
+	private static final int MAX_ITERATIONS = 100000;
+
+	private final String expression;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet daysOfMonth;
+	private final BitSet months;
+	private final BitSet daysOfWeek;
+	private final boolean isDayOfMonthRestricted;
+	private final boolean isDayOfWeekRestricted;
+
+	/**
+	 * Parse expression, e.g. "*&#47;5 * * * *" (every 5 minutes) or "0 8 * * 1-5" (8:00 on weekdays).
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	public CronExpression(String expression){
+		this.expression = expression.trim();
+		String[] fields = this.expression.split("\\s+");
+		if (fields.length != 5){
+			throw new IllegalArgumentException("Cron expression needs 5 fields (min hour day month weekday): " + expression);
+		}
+		minutes = parseField(fields[0], 0, 59);
+		hours = parseField(fields[1], 0, 23);
+		daysOfMonth = parseField(fields[2], 1, 31);
+		months = parseField(fields[3], 1, 12);
+		daysOfWeek = parseField(fields[4], 0, 7);
+		if (daysOfWeek.get(7)){
+			daysOfWeek.set(0);		//Sunday
+		}
+		//restricted = doesn't cover every day (e.g. '*/2' is, '*' or '1-31' isn't)
+		isDayOfMonthRestricted = daysOfMonth.cardinality() < 31;
+		isDayOfWeekRestricted = daysOfWeek.get(0, 7).cardinality() < 7;
+	}
+
+	private static BitSet parseField(String field, int min, int max){
+		BitSet values = new BitSet(max + 1);
+		for (String part : field.split(",")){
+			int step = 1;
+			String range = part;
+			int slash = part.indexOf('/');
+			if (slash >= 0){
+				step = Integer.parseInt(part.substring(slash + 1));
+				range = part.substring(0, slash);
+				if (step < 1){
+					throw new IllegalArgumentException("Invalid step in cron field: " + field);
+				}
+			}
+			int from, to;
+			if (range.equals("*")){
+				from = min;
+				to = max;
+			}else if (range.contains("-")){
+				String[] fromTo = range.split("-", 2);
+				from = Integer.parseInt(fromTo[0]);
+				to = Integer.parseInt(fromTo[1]);
+			}else{
+				from = Integer.parseInt(range);
+				to = (slash >= 0)? max : from;
+			}
+			if (from < min || to > max || from > to){
+				throw new IllegalArgumentException("Cron field value out of range " + min + "-" + max + ": " + field);
+			}
+			for (int i = from; i <= to; i += step){
+				values.set(i);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Next time (full minute) after the given time that matches the expression.
+	 * @param after - start time (exclusive)
+	 * @return next matching time
+	 * @throws IllegalStateException if there is no match (e.g. '0 0 31 2 *')
+	 */
+	public ZonedDateTime next(ZonedDateTime after){
+		ZonedDateTime t = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+		for (int i = 0; i < MAX_ITERATIONS; i++){
+			if (!months.get(t.getMonthValue())){
+				t = t.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+			}else if (!matchesDay(t)){
+				t = t.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+			}else if (!hours.get(t.getHour())){
+				t = t.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+			}else if (!minutes.get(t.getMinute())){
+				t = t.plusMinutes(1);
+			}else{
+				return t;
+			}
+		}
+		throw new IllegalStateException("Cron expression never matches: " + expression);
+	}
+
+	private boolean matchesDay(ZonedDateTime t){
+		boolean dayOfMonth = daysOfMonth.get(t.getDayOfMonth());
+		boolean dayOfWeek = daysOfWeek.get(t.getDayOfWeek().getValue() % 7);
+		if (isDayOfMonthRestricted && isDayOfWeekRestricted){
+			return dayOfMonth || dayOfWeek;
+		}
+		return dayOfMonth && dayOfWeek;
+	}
+
+	@Override
+	public String toString(){
+		return expression;
+	}
+}
@@ -0,0 +1,153 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a folder and all sub-folders with the {@link WatchService} and reports changed paths (created, modified, deleted)
+ * to a listener. Events are collected until there was no new event for 'debounceMs', so a copy of many files
+ * results in one call.<br>
+ * If the OS dropped events (overflow) the root folder itself is reported, meaning "anything might have changed".
+ *
+ * @author Florian Quirin
+ *
+ */
+public class DirectoryWatcher implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+	private final Path root;
+	private final long debounceMs;
+	private final Consumer<Set<Path>> listener;
+	private final Map<WatchKey, Path> watchedFolders = new ConcurrentHashMap<>();
+	private WatchService watchService;
+	private Thread watcherThread;
+
+	/**
+	 * Create watcher. Call {@link #start()} to begin.
+	 * @param root - folder to watch (including sub-folders)
+	 * @param debounceMs - wait this long after the last event before calling the listener
+	 * @param listener - receives the set of changed absolute paths (files and folders)
+	 */
+	public DirectoryWatcher(Path root, long debounceMs, Consumer<Set<Path>> listener){
+		this.root = root.toAbsolutePath().normalize();
+		this.debounceMs = debounceMs;
+		this.listener = listener;
+	}
+
+	/**
+	 * Register all folders and start watcher thread (daemon).
+	 * @return this
+	 * @throws IOException
+	 */
+	public DirectoryWatcher start() throws IOException {
+		watchService = root.getFileSystem().newWatchService();
+		registerAll(root, null);
+		watcherThread = new Thread(this::watch, "dir-watcher-" + root.getFileName());
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+		log.info("Watching folder: " + root);
+		return this;
+	}
+
+	/**
+	 * Root folder of this watcher.
+	 */
+	public Path getRoot(){
+		return root;
+	}
+
+	@Override
+	public void close(){
+		try{
+			if (watchService != null){
+				watchService.close();
+			}
+		}catch (IOException e){
+			log.error("Failed to close watcher of: " + root + " - msg.: " + e.getMessage());
+		}
+	}
+
+	//register folder and sub-folders, add all existing files to 'found' (if not null)
+	private void registerAll(Path folder, Set<Path> found) throws IOException {
+		try (Stream<Path> paths = Files.walk(folder)){
+			paths.forEach(path -> {
+				if (Files.isDirectory(path)){
+					try{
+						watchedFolders.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+					}catch (IOException e){
+						log.error("Failed to watch folder: " + path + " - msg.: " + e.getMessage());
+					}
+				}else if (found != null){
+					found.add(path);
+				}
+			});
+		}
+	}
+
+	private void watch(){
+		Set<Path> changed = new HashSet<>();
+		try{
+			while (true){
+				//block until something happens, then keep collecting until it is quiet for 'debounceMs'
+				WatchKey key = changed.isEmpty()? watchService.take() : watchService.poll(debounceMs, TimeUnit.MILLISECONDS);
+				if (key == null){
+					notifyListener(changed);
+					changed = new HashSet<>();
+					continue;
+				}
+				Path folder = watchedFolders.get(key);
+				for (WatchEvent<?> event : key.pollEvents()){
+					if (event.kind() == OVERFLOW || folder == null){
+						changed.add(root);
+						continue;
+					}
+					Path path = folder.resolve((Path) event.context());
+					changed.add(path);
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)){
+						//new folder (e.g. copied with content) - watch it and report what is already inside
+						try{
+							registerAll(path, changed);
+						}catch (IOException e){
+							log.error("Failed to watch new folder: " + path + " - msg.: " + e.getMessage());
+						}
+					}
+				}
+				if (!key.reset()){
+					watchedFolders.remove(key);
+				}
+			}
+		}catch (InterruptedException | ClosedWatchServiceException e){
+			//closed
+		}
+	}
+
+	private void notifyListener(Set<Path> changed){
+		try{
+			listener.accept(changed);
+		}catch (Exception e){
+			log.error("Watcher listener of: " + root + " failed - msg.: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Length-prefixed message frames over a pair of streams (e.g. stdin/stdout of a worker process).<br>
+ * Frame: 4 byte length (of everything after it), 1 byte message type, payload as CBOR map (see {@link Cbor}).
+ * Reads and writes are not thread-safe, use one channel per conversation.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class FramedChannel {
+
+	public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+	/**
+	 * One received frame.
+	 */
+	public static class Frame {
+		public final int type;
+		public final JSONObject payload;
+
+		Frame(int type, JSONObject payload){
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+
+	public FramedChannel(InputStream in, OutputStream out){
+		this.in = new DataInputStream(new BufferedInputStream(in, JsonStreams.BUFFER_SIZE));
+		this.out = new DataOutputStream(new BufferedOutputStream(out, JsonStreams.BUFFER_SIZE));
+	}
+
+	/**
+	 * Write one frame and flush.
+	 * @param type - message type (0-255)
+	 * @param payload - message data or null
+	 * @throws IOException if the stream is closed or the frame is too big
+	 */
+	public void write(int type, JSONObject payload) throws IOException {
+		buffer.reset();
+		Cbor.write((payload != null)? payload : new JSONObject(), buffer);
+		if (buffer.size() + 1 > MAX_FRAME_BYTES){
+			throw new IOException("Frame too big: " + buffer.size() + " bytes");
+		}
+		out.writeInt(buffer.size() + 1);
+		out.writeByte(type);
+		buffer.writeTo(out);
+		out.flush();
+		if (buffer.size() > JsonStreams.BUFFER_SIZE * 16){
+			buffer = new ByteArrayOutputStream(4096);		//don't keep huge buffers after a big message
+		}
+	}
+
+	/**
+	 * Read the next frame (blocks until it is complete).
+	 * @return frame
+	 * @throws EOFException if the other side closed the stream
+	 * @throws IOException on invalid frames
+	 */
+	public Frame read() throws IOException {
+		int length = in.readInt();
+		if (length < 1 || length > MAX_FRAME_BYTES){
+			throw new IOException("Invalid frame length: " + length);
+		}
+		int type = in.readUnsignedByte();
+		byte[] payload = new byte[length - 1];
+		in.readFully(payload);
+		return new Frame(type, Cbor.readObject(new ByteArrayInputStream(payload)));
+	}
+}
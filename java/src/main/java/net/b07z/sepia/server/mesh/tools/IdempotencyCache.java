@@ -0,0 +1,302 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * Runs an action at most once per idempotency key. Concurrent calls with the same key wait for the running action
+ * (up to a given time) and get its result, calls after it finished get the stored result until it expires. Failed actions
+ * are not stored, so the client can retry them.<br>
+ * Each key remembers a fingerprint of its request, reusing a key for a different request is a {@link ConflictException}.
+ * The number of stored results is bounded, the ones closest to expiration are removed first.
+ *
+ * @author Florian Quirin
+ *
+ * @param <V> - result type
+ */
+public class IdempotencyCache<V> {
+
+	private final long ttlMs;
+	private final int maxEntries;
+	private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+	private final AtomicBoolean isCleaning = new AtomicBoolean(false);
+
+	//statistics
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder attached = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder waitTimeouts = new LongAdder();
+
+	private static class Entry<V> {
+		final String fingerprint;
+		final CompletableFuture<V> result = new CompletableFuture<>();
+		volatile long expires = Long.MAX_VALUE;		//set when the action is done
+
+		Entry(String fingerprint){
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/**
+	 * Key was used before for a different request.
+	 */
+	public static class ConflictException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public ConflictException(String message){
+			super(message);
+		}
+	}
+
+	/**
+	 * Call with the same key is still running after the max. wait time.
+	 */
+	public static class WaitTimeoutException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public WaitTimeoutException(String message){
+			super(message);
+		}
+	}
+
+	/**
+	 * Result of {@link IdempotencyCache#execute}.
+	 */
+	public static class Result<V> {
+		public final V value;
+		public final boolean isDuplicate;		//result of an earlier or concurrent call
+
+		Result(V value, boolean isDuplicate){
+			this.value = value;
+			this.isDuplicate = isDuplicate;
+		}
+	}
+
+	/**
+	 * Create cache.
+	 * @param ttlMs - how long results of finished actions are kept
+	 * @param maxEntries - max. number of keys
+	 */
+	public IdempotencyCache(long ttlMs, int maxEntries){
+		this.ttlMs = ttlMs;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Fingerprint of a request for {@link #execute}: SHA-256 of the request as hex string 
+	 * (collisions would replay the result of a different request).
+	 * @param request - e.g. request body
+	 */
+	public static String fingerprint(String request){
+		try{
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(request.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash){
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-256 is not available", e);		//every JVM has it
+		}
+	}
+
+	/**
+	 * Fingerprint of parsed JSON or CBOR data for {@link #execute}. Uses a canonical form, so the same data gives the same
+	 * fingerprint independent of the order of keys and of the number type (e.g. 1, 1.0 and 1e0 are equal).
+	 * @param data - JSONObject, JSONArray, String, Number, Boolean or null
+	 */
+	public static String fingerprintJson(Object data){
+		StringBuilder canonical = new StringBuilder();
+		appendCanonical(canonical, data);
+		return fingerprint(canonical.toString());
+	}
+
+	//JSON with sorted keys and numbers as plain decimals without trailing zeros
+	private static void appendCanonical(StringBuilder sb, Object value){
+		if (value == null){
+			sb.append("null");
+		}else if (value instanceof Map){
+			Map<String, Object> sorted = new TreeMap<>();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()){
+				sorted.put(String.valueOf(e.getKey()), e.getValue());
+			}
+			sb.append('{');
+			boolean isFirst = true;
+			for (Map.Entry<String, Object> e : sorted.entrySet()){
+				if (!isFirst){
+					sb.append(',');
+				}
+				isFirst = false;
+				sb.append('"').append(JSONValue.escape(e.getKey())).append("\":");
+				appendCanonical(sb, e.getValue());
+			}
+			sb.append('}');
+		}else if (value instanceof List){
+			sb.append('[');
+			boolean isFirst = true;
+			for (Object item : (List<?>) value){
+				if (!isFirst){
+					sb.append(',');
+				}
+				isFirst = false;
+				appendCanonical(sb, item);
+			}
+			sb.append(']');
+		}else if (value instanceof Number){
+			sb.append(canonicalNumber((Number) value));
+		}else if (value instanceof Boolean){
+			sb.append(value);
+		}else if (value instanceof byte[]){
+			sb.append('"').append(Base64.getEncoder().encodeToString((byte[]) value)).append('"');
+		}else{
+			sb.append('"').append(JSONValue.escape(value.toString())).append('"');
+		}
+	}
+
+	private static String canonicalNumber(Number n){
+		BigDecimal decimal;
+		if (n instanceof BigDecimal){
+			decimal = (BigDecimal) n;
+		}else if (n instanceof BigInteger){
+			decimal = new BigDecimal((BigInteger) n);
+		}else if (n instanceof Double || n instanceof Float){
+			double d = n.doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)){
+				return Double.toString(d);
+			}
+			decimal = BigDecimal.valueOf(d);
+		}else{
+			decimal = BigDecimal.valueOf(n.longValue());
+		}
+		return (decimal.signum() == 0)? "0" : decimal.stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * Run action or get the result of the running or finished action with the same key.
+	 * @param key - idempotency key (should include user and target to keep clients apart)
+	 * @param fingerprint - identifies the request (e.g. hash of the body)
+	 * @param maxWaitMs - max. time to wait for a running action with the same key (e.g. the request timeout)
+	 * @param action - action to run once
+	 * @return {@link Result} with value and duplicate flag
+	 * @throws ConflictException if the key was used for a different request
+	 * @throws WaitTimeoutException if the action with the same key is still running after 'maxWaitMs'
+	 * @throws Exception thrown by the action (also for calls waiting for it)
+	 */
+	public Result<V> execute(String key, String fingerprint, long maxWaitMs, Callable<V> action) throws Exception {
+		Entry<V> entry = new Entry<>(fingerprint);
+		while (true){
+			Entry<V> existing = entries.putIfAbsent(key, entry);
+			if (existing == null){
+				break;
+			}
+			if (existing.expires < System.currentTimeMillis()){
+				entries.remove(key, existing);		//expired, try again
+				continue;
+			}
+			if (!Objects.equals(existing.fingerprint, fingerprint)){
+				conflicts.increment();
+				throw new ConflictException("Idempotency key was already used for a different request.");
+			}
+			if (existing.result.isDone()){
+				replayed.increment();
+			}else{
+				attached.increment();
+			}
+			try{
+				return new Result<>(existing.result.get(maxWaitMs, TimeUnit.MILLISECONDS), true);
+			}catch (ExecutionException e){
+				throw (e.getCause() instanceof Exception)? (Exception) e.getCause() : e;
+			}catch (TimeoutException e){
+				waitTimeouts.increment();
+				throw new WaitTimeoutException("Call with the same idempotency key is still running.");
+			}
+		}
+		if (entries.size() > maxEntries){
+			cleanUp();
+		}
+		executed.increment();
+		try{
+			V value = action.call();
+			entry.expires = System.currentTimeMillis() + ttlMs;
+			entry.result.complete(value);
+			return new Result<>(value, false);
+		}catch (Exception e){
+			entries.remove(key, entry);		//don't store failures, allow retry
+			entry.result.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	//remove expired results, then the finished ones that expire first, until the cache is at 90%
+	private void cleanUp(){
+		if (!isCleaning.compareAndSet(false, true)){
+			return;
+		}
+		try{
+			long now = System.currentTimeMillis();
+			entries.values().removeIf(entry -> entry.expires < now);
+			int excess = entries.size() - (maxEntries * 9 / 10);
+			if (excess > 0){
+				List<Map.Entry<String, Entry<V>>> finished = new ArrayList<>();
+				for (Map.Entry<String, Entry<V>> e : entries.entrySet()){
+					if (e.getValue().result.isDone()){
+						finished.add(e);
+					}
+				}
+				finished.sort(Comparator.comparingLong(e -> e.getValue().expires));
+				for (int i = 0; i < excess && i < finished.size(); i++){
+					entries.remove(finished.get(i).getKey(), finished.get(i).getValue());
+				}
+			}
+		}finally{
+			isCleaning.set(false);
+		}
+	}
+
+	/**
+	 * Number of keys (running and finished).
+	 */
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Counters of executed and deduplicated calls.
+	 */
+	public JSONObject getStats(){
+		JSONObject stats = JSON.make(
+				"keys", entries.size(),
+				"executed", executed.sum(),
+				"attached", attached.sum(),
+				"replayed", replayed.sum(),
+				"conflicts", conflicts.sum()
+		);
+		JSON.put(stats, "wait_timeouts", waitTimeouts.sum());
+		JSON.put(stats, "ttl_ms", ttlMs);
+		return stats;
+	}
+}
@@ -0,0 +1,166 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.json.simple.parser.Yytoken;
+
+/**
+ * Read JSON directly from input streams and write it directly to output streams without building intermediate strings.
+ * Parsers and write buffers are reused per thread.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class JsonStreams {
+	
+	public static final int BUFFER_SIZE = 8192;
+	
+	private static final ThreadLocal<JSONParser> parsers = ThreadLocal.withInitial(JSONParser::new);
+	private static final ThreadLocal<Utf8StreamWriter> writers = ThreadLocal.withInitial(() -> new Utf8StreamWriter(BUFFER_SIZE));
+	
+	/**
+	 * Is the given content-type JSON?
+	 */
+	public static boolean isJson(String contentType){
+		return contentType != null && contentType.toLowerCase().contains("application/json");
+	}
+	
+	/**
+	 * Parse a JSON object from stream (UTF-8). The stream is not closed.
+	 * @param in - input stream, e.g. request body
+	 * @return JSONObject or null if stream is empty
+	 * @throws ParseException if JSON is invalid or not an object
+	 * @throws IOException
+	 */
+	public static JSONObject parseObject(InputStream in) throws IOException, ParseException {
+		Object parsed;
+		try{
+			parsed = parsers.get().parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+		}catch (ParseException e){
+			Object token = e.getUnexpectedObject();
+			if (token instanceof Yytoken && ((Yytoken) token).type == Yytoken.TYPE_EOF && e.getPosition() == 0){
+				return null;	//empty body (EOF later means the JSON was cut off)
+			}
+			throw e;
+		}
+		if (parsed != null && !(parsed instanceof JSONObject)){
+			throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, parsed);
+		}
+		return (JSONObject) parsed;
+	}
+	
+	/**
+	 * Write JSON object to stream (UTF-8) using a reusable buffer. The stream is flushed but not closed.
+	 * @param json - JSON object
+	 * @param out - output stream, e.g. response body
+	 * @throws IOException
+	 */
+	public static void write(Map<?, ?> json, OutputStream out) throws IOException {
+		Utf8StreamWriter writer = writers.get();
+		writer.setStream(out);
+		try{
+			JSONObject.writeJSONString(json, writer);
+			writer.flush();
+		}finally{
+			writer.setStream(null);
+		}
+	}
+	
+	/**
+	 * Writer that encodes UTF-8 into a fixed byte buffer and passes full buffers on to the current stream.
+	 */
+	static class Utf8StreamWriter extends Writer {
+		private final byte[] buffer;
+		private int pos = 0;
+		private OutputStream out;
+		private int highSurrogate = -1;
+		
+		Utf8StreamWriter(int bufferSize){
+			this.buffer = new byte[bufferSize];
+		}
+		
+		void setStream(OutputStream out){
+			this.out = out;
+			this.pos = 0;
+			this.highSurrogate = -1;
+		}
+		
+		@Override
+		public void write(int c) throws IOException {
+			if (pos + 4 > buffer.length){
+				flushBuffer();
+			}
+			if (highSurrogate >= 0){
+				int hi = highSurrogate;
+				highSurrogate = -1;
+				if (Character.isLowSurrogate((char) c)){
+					int cp = Character.toCodePoint((char) hi, (char) c);
+					buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+					buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+					return;
+				}
+				buffer[pos++] = '?';		//unpaired surrogate
+				if (pos + 4 > buffer.length){
+					flushBuffer();
+				}
+			}
+			if (c < 0x80){
+				buffer[pos++] = (byte) c;
+			}else if (c < 0x800){
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}else if (Character.isHighSurrogate((char) c)){
+				highSurrogate = c;
+			}else if (Character.isLowSurrogate((char) c)){
+				buffer[pos++] = '?';		//unpaired surrogate
+			}else{
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++){
+				write(cbuf[i]);
+			}
+		}
+		
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++){
+				write(str.charAt(i));
+			}
+		}
+		
+		private void flushBuffer() throws IOException {
+			if (pos > 0){
+				out.write(buffer, 0, pos);
+				pos = 0;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * Persistent String key-value store. All entries are kept in memory (fast reads), every change is appended to a
+ * memory-mapped log file. On open the log is replayed, a torn record at the end (e.g. after a crash) is dropped.
+ * The log is compacted (rewritten with live entries only) when more than half of it is garbage or via {@link #compactIfGarbage(long)}
+ * (e.g. from a timer). Reads never wait for writes or compaction.<br>
+ * Record format: type (1 byte), key length (4), value length (4), key, value (UTF-8), CRC32 (4).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class MappedLogStore implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedLogStore.class);
+
+	private static final byte TYPE_END = 0;			//unused (zero-filled) part of the file
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_REMOVE = 2;
+	private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4;
+	private static final int MIN_CAPACITY = 64 * 1024;
+	private static final long COMPACT_MIN_BYTES = 1024 * 1024;		//don't compact small logs
+
+	private final Path file;
+	private final Map<String, String> entries = new ConcurrentHashMap<>();
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private long liveBytes = 0;			//size of records that are still needed
+	private long compactions = 0;
+	private boolean isClosed = false;
+
+	/**
+	 * Open or create a store.
+	 * @param file - log file
+	 * @throws IOException
+	 */
+	public MappedLogStore(Path file) throws IOException {
+		this.file = file;
+		Path compacted = getCompactFile();
+		if (!Files.exists(file) && Files.exists(compacted)){
+			//crashed right before the compacted log replaced the old one
+			Files.move(compacted, file);
+		}else{
+			Files.deleteIfExists(compacted);
+		}
+		if (file.getParent() != null){
+			Files.createDirectories(file.getParent());
+		}
+		openAndReplay();
+	}
+
+	private Path getCompactFile(){
+		return file.resolveSibling(file.getFileName() + ".compact");
+	}
+
+	private void openAndReplay() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, size));
+		while (buffer.remaining() >= RECORD_OVERHEAD){
+			int start = buffer.position();
+			try{
+				byte type = buffer.get();
+				if (type != TYPE_PUT && type != TYPE_REMOVE){
+					buffer.position(start);
+					break;
+				}
+				int keyLength = buffer.getInt();
+				int valueLength = buffer.getInt();
+				if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength + 4 > buffer.remaining()){
+					throw new BufferUnderflowException();
+				}
+				byte[] key = new byte[keyLength];
+				byte[] value = new byte[valueLength];
+				buffer.get(key);
+				buffer.get(value);
+				int crc = buffer.getInt();
+				if (crc != checksum(type, key, value)){
+					throw new BufferUnderflowException();
+				}
+				apply(type, new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8), buffer.position() - start);
+			}catch (BufferUnderflowException e){
+				log.error("Store '" + file + "' has an incomplete record at byte " + start + " - dropped the rest.");
+				buffer.position(start);
+				break;
+			}
+		}
+		//clear everything behind the last valid record
+		int end = buffer.position();
+		for (int i = end; i < buffer.limit() && buffer.get(i) != TYPE_END; i++){
+			buffer.put(i, TYPE_END);
+		}
+	}
+
+	//apply record to memory and keep track of live bytes
+	private void apply(byte type, String key, String value, int recordSize){
+		//put replaces in one step, so concurrent readers never see a missing key while it is overwritten
+		String old = (type == TYPE_PUT)? entries.put(key, value) : entries.remove(key);
+		if (old != null){
+			liveBytes -= recordSize(key, old);
+		}
+		if (type == TYPE_PUT){
+			liveBytes += recordSize;
+		}
+	}
+
+	private static int recordSize(String key, String value){
+		return RECORD_OVERHEAD + utf8Length(key) + utf8Length(value);
+	}
+	private static int utf8Length(String s){
+		return s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static int checksum(byte type, byte[] key, byte[] value){
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(key);
+		crc.update(value);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Get value of key or null.
+	 */
+	public String get(String key){
+		return entries.get(key);
+	}
+
+	/**
+	 * Does the key exist?
+	 */
+	public boolean containsKey(String key){
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * All keys (live view).
+	 */
+	public Set<String> keySet(){
+		return entries.keySet();
+	}
+
+	/**
+	 * Number of entries.
+	 */
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Store value for key.
+	 * @throws IOException if the log can't be written
+	 */
+	public synchronized void put(String key, String value) throws IOException {
+		if (value == null){
+			remove(key);
+			return;
+		}
+		append(TYPE_PUT, key, value);
+	}
+
+	/**
+	 * Remove key.
+	 * @return true if the key existed
+	 * @throws IOException if the log can't be written
+	 */
+	public synchronized boolean remove(String key) throws IOException {
+		if (!entries.containsKey(key)){
+			return false;
+		}
+		append(TYPE_REMOVE, key, "");
+		return true;
+	}
+
+	private void append(byte type, String key, String value) throws IOException {
+		if (isClosed){
+			throw new IOException("Store is closed: " + file);
+		}
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+		int size = RECORD_OVERHEAD + keyBytes.length + valueBytes.length;
+		ensureCapacity(size);
+		buffer.put(type);
+		buffer.putInt(keyBytes.length);
+		buffer.putInt(valueBytes.length);
+		buffer.put(keyBytes);
+		buffer.put(valueBytes);
+		buffer.putInt(checksum(type, keyBytes, valueBytes));
+		apply(type, key, value, size);
+		if (needsCompaction()){
+			compact();
+		}
+	}
+
+	//map file again (after compaction) and continue writing at 'position' - entries in memory stay as they are
+	private void remap(int position) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, channel.size()));
+		buffer.position(position);
+	}
+
+	//grow file and mapping if the next record doesn't fit
+	private void ensureCapacity(int recordSize) throws IOException {
+		if (buffer.remaining() >= recordSize){
+			return;
+		}
+		int position = buffer.position();
+		long newCapacity = Math.max((long) buffer.capacity() * 2, (long) position + recordSize + MIN_CAPACITY);
+		if (newCapacity > Integer.MAX_VALUE){
+			throw new IOException("Store is full: " + file);
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+		buffer.position(position);
+	}
+
+	private boolean needsCompaction(){
+		int used = buffer.position();
+		return used > COMPACT_MIN_BYTES && liveBytes < used / 2;
+	}
+
+	/**
+	 * Compact the log if it has at least 'minGarbageBytes' of replaced and removed records. Writes only compact large logs 
+	 * that are more than half garbage, this also cleans up logs that are rarely written.
+	 * @return true if the log was compacted
+	 * @throws IOException
+	 */
+	public synchronized boolean compactIfGarbage(long minGarbageBytes) throws IOException {
+		if (isClosed || buffer.position() - liveBytes < Math.max(1, minGarbageBytes)){
+			return false;
+		}
+		compact();
+		return true;
+	}
+
+	/**
+	 * Rewrite the log with live entries only. The new log is written to a separate file first and replaces the old one
+	 * when it is complete. The entries in memory are not touched (the new log has exactly the same content).
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		if (isClosed){
+			throw new IOException("Store is closed: " + file);
+		}
+		long tic = System.currentTimeMillis();
+		int before = buffer.position();
+		int after;
+		Path compacted = getCompactFile();
+		Files.deleteIfExists(compacted);
+		try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			MappedByteBuffer outBuffer = out.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, liveBytes * 2));
+			for (Map.Entry<String, String> entry : entries.entrySet()){
+				byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				byte[] valueBytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+				outBuffer.put(TYPE_PUT);
+				outBuffer.putInt(keyBytes.length);
+				outBuffer.putInt(valueBytes.length);
+				outBuffer.put(keyBytes);
+				outBuffer.put(valueBytes);
+				outBuffer.putInt(checksum(TYPE_PUT, keyBytes, valueBytes));
+			}
+			outBuffer.force();
+			after = outBuffer.position();
+		}
+		buffer.force();
+		channel.close();
+		try{
+			Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			compactions++;
+			liveBytes = after;
+		}catch (IOException e){
+			//e.g. Windows won't replace a file that is still mapped - keep old log
+			log.error("Store '" + file + "' compaction failed, keeping old log - msg.: " + e.getMessage());
+			Files.deleteIfExists(compacted);
+			after = before;
+		}
+		remap(after);
+		log.info("Store '" + file.getFileName() + "' compacted from " + before + " to " + buffer.position() + " bytes in "
+				+ (System.currentTimeMillis() - tic) + "ms");
+	}
+
+	/**
+	 * Write changes to disk now (they are in the OS page cache already and survive a crash of the JVM, but not of the OS).
+	 */
+	public synchronized void flush(){
+		if (!isClosed){
+			buffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (isClosed){
+			return;
+		}
+		buffer.force();
+		channel.close();
+		isClosed = true;
+	}
+
+	/**
+	 * Entries, size of log and live data.
+	 */
+	public synchronized JSONObject getStats(){
+		return JSON.make(
+				"entries", entries.size(),
+				"log_bytes", buffer.position(),
+				"live_bytes", liveBytes,
+				"compactions", compactions
+		);
+	}
+}
@@ -0,0 +1,152 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.b07z.sepia.server.core.tools.Is;
+
+/**
+ * Lock-free token-bucket rate limiter with one bucket per key (e.g. user ID or IP).<br>
+ * Each bucket is a single {@link AtomicLong} holding the 'theoretical arrival time' of the next request 
+ * (GCRA, equivalent to a token bucket with given rate and burst size), so a check costs one map lookup and one CAS.
+ * When the number of keys grows too large, buckets that are full again are removed. If that is not enough (e.g. many
+ * limited keys of a scan), the buckets closest to full (oldest TAT) are evicted too, so memory is bounded by 'maxKeys'.
+ * An evicted key starts with a full bucket again.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class RateLimiter {
+	
+	private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+	
+	public static final int DEFAULT_MAX_KEYS = 10000;
+	
+	private final long emissionIntervalNanos;		//time to refill one token
+	private final long burstToleranceNanos;			//time to refill the whole bucket
+	private final int maxKeys;
+	
+	private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+	private final AtomicBoolean isCleaning = new AtomicBoolean(false);
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	
+	/**
+	 * Create rate limiter.
+	 * @param requestsPerSecond - tokens refilled per second
+	 * @param burst - max. tokens in a bucket (requests allowed at once)
+	 * @param maxKeys - max. number of buckets, more trigger the removal of full (or nearly full) buckets
+	 */
+	public RateLimiter(double requestsPerSecond, int burst, int maxKeys){
+		this.emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		this.burstToleranceNanos = emissionIntervalNanos * Math.max(1, burst);
+		this.maxKeys = maxKeys;
+	}
+	
+	/**
+	 * Create rate limiter from settings string 'requests_per_second,burst', e.g. '5,20'.
+	 * @return limiter or null if settings are empty or invalid (no limit)
+	 */
+	public static RateLimiter fromSettings(String settings){
+		if (Is.nullOrEmpty(settings)){
+			return null;
+		}
+		try{
+			String[] values = settings.split(",");
+			double rate = Double.parseDouble(values[0].trim());
+			int burst = (values.length > 1)? Integer.parseInt(values[1].trim()) : (int) Math.ceil(rate);
+			if (rate <= 0){
+				return null;
+			}
+			return new RateLimiter(rate, burst, DEFAULT_MAX_KEYS);
+		}catch (Exception e){
+			log.error("Invalid rate limit settings: " + settings + " - rate limit is NOT active!");
+			return null;
+		}
+	}
+	
+	/**
+	 * Take one token from the bucket of given key.
+	 * @param key - e.g. user ID or IP
+	 * @return 0 if the request is allowed or the time in milliseconds until a token is available
+	 */
+	public long tryAcquire(String key){
+		AtomicLong tat = buckets.get(key);
+		if (tat == null){
+			tat = new AtomicLong(Long.MIN_VALUE);
+			AtomicLong existing = buckets.putIfAbsent(key, tat);
+			if (existing != null){
+				tat = existing;
+			}else if (buckets.size() > maxKeys){
+				removeBuckets(key);
+			}
+		}
+		long now = System.nanoTime();
+		while (true){
+			long oldTat = tat.get();
+			long newTat = Math.max(oldTat, now) + emissionIntervalNanos;
+			long waitNanos = newTat - burstToleranceNanos - now;
+			if (waitNanos > 0){
+				rejected.increment();
+				return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+			}
+			if (tat.compareAndSet(oldTat, newTat)){
+				return 0;
+			}
+		}
+	}
+	
+	/**
+	 * Number of rejected requests since start.
+	 */
+	public long getRejectedCount(){
+		return rejected.sum();
+	}
+	/**
+	 * Number of buckets that were removed before they were full again (too many keys).
+	 */
+	public long getEvictedCount(){
+		return evicted.sum();
+	}
+	/**
+	 * Number of active buckets.
+	 */
+	public int getKeyCount(){
+		return buckets.size();
+	}
+	
+	//remove full buckets, then the oldest ones until there is some room again (the new key is kept)
+	private void removeBuckets(String newKey){
+		if (!isCleaning.compareAndSet(false, true)){
+			return;
+		}
+		try{
+			long now = System.nanoTime();
+			buckets.entrySet().removeIf(e -> e.getValue().get() <= now && !e.getKey().equals(newKey));
+			int excess = buckets.size() - (maxKeys - maxKeys / 10);
+			if (excess > 0){
+				long[] tats = buckets.values().stream().mapToLong(AtomicLong::get).sorted().toArray();
+				long oldestTat = tats[Math.min(excess, tats.length) - 1];
+				Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator();
+				while (excess > 0 && it.hasNext()){
+					Map.Entry<String, AtomicLong> e = it.next();
+					if (e.getValue().get() <= oldestTat && !e.getKey().equals(newKey)){
+						it.remove();
+						excess--;
+						evicted.increment();
+					}
+				}
+			}
+		}finally{
+			isCleaning.set(false);
+		}
+	}
+}
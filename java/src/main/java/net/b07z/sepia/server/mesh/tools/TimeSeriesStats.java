@@ -0,0 +1,287 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.tools.JSON;
+
+/**
+ * In-memory time-series of calls (e.g. per endpoint and plugin) for windowed rates, error ratios and latency percentiles.<br>
+ * Each series keeps fixed rings of buckets: 60 x 1s, 60 x 1min and 24 x 1h. A call is added to the current bucket of each ring
+ * (the minute and hour rings are the rollups), a bucket is replaced via CAS when its time slot comes around again. Updates
+ * never lock, memory is bounded by the number of series ({@link #setMaxSeries(int)}).<br>
+ * Latencies go to a log-scale histogram (2 bins per power of two in microseconds), percentiles are interpolated inside a bin and
+ * therefore approximate (worst case about +-20%).
+ *
+ * @author Florian Quirin
+ *
+ */
+public class TimeSeriesStats {
+
+	public static final long MAX_WINDOW_MS = 24 * 3600000L;
+
+	private static final Map<String, TimeSeriesStats> series = new ConcurrentHashMap<>();
+	private static volatile int maxSeries = 128;
+	private static final LongAdder droppedCalls = new LongAdder();
+
+	//bucket layout: counters followed by the latency histogram
+	private static final int COUNT = 0;
+	private static final int ERRORS = 1;
+	private static final int SUM_US = 2;
+	private static final int MAX_US = 3;
+	private static final int BINS_OFFSET = 4;
+	private static final int MAX_EXPONENT = 31;		//2^31us = ~36min, longer calls land in the last bin
+	private static final int BINS = (MAX_EXPONENT + 1) * 2;
+
+	private final long created = System.currentTimeMillis();
+	private final Ring[] rings = {
+		new Ring(1000, 60),
+		new Ring(60000, 60),
+		new Ring(3600000, 24)
+	};
+
+	private static class Bucket {
+		final long slot;		//time / resolution
+		final AtomicLongArray values = new AtomicLongArray(BINS_OFFSET + BINS);
+
+		Bucket(long slot){
+			this.slot = slot;
+		}
+	}
+
+	private static class Ring {
+		final long resolutionMs;
+		final AtomicReferenceArray<Bucket> buckets;
+
+		Ring(long resolutionMs, int size){
+			this.resolutionMs = resolutionMs;
+			this.buckets = new AtomicReferenceArray<>(size);
+		}
+
+		long spanMs(){
+			return resolutionMs * buckets.length();
+		}
+
+		//bucket of the time slot, replaces the old one of that position (null if the clock went back)
+		Bucket getForWrite(long slot){
+			int i = (int) (slot % buckets.length());
+			Bucket bucket = buckets.get(i);
+			while (bucket == null || bucket.slot < slot){
+				Bucket fresh = new Bucket(slot);
+				if (buckets.compareAndSet(i, bucket, fresh)){
+					return fresh;
+				}
+				bucket = buckets.get(i);
+			}
+			return (bucket.slot == slot)? bucket : null;
+		}
+
+		Bucket getForRead(long slot){
+			Bucket bucket = buckets.get((int) (slot % buckets.length()));
+			return (bucket != null && bucket.slot == slot)? bucket : null;
+		}
+	}
+
+	/**
+	 * Max. number of series (default 128). Calls of new series beyond this are ignored and counted.
+	 */
+	public static void setMaxSeries(int max){
+		maxSeries = max;
+	}
+
+	/**
+	 * Add call to series (created on first call).
+	 * @param name - series name, e.g. 'endpoint:/execute-plugin'
+	 * @param durationNs - duration of the call
+	 * @param failed - count as error
+	 */
+	public static void record(String name, long durationNs, boolean failed){
+		TimeSeriesStats stats = series.get(name);
+		if (stats == null){
+			if (series.size() >= maxSeries){
+				droppedCalls.increment();
+				return;
+			}
+			stats = series.computeIfAbsent(name, key -> new TimeSeriesStats());
+		}
+		stats.add(System.currentTimeMillis(), Math.max(0, durationNs / 1000), failed);
+	}
+
+	private void add(long now, long durationUs, boolean failed){
+		int bin = BINS_OFFSET + getBin(durationUs);
+		for (Ring ring : rings){
+			Bucket bucket = ring.getForWrite(now / ring.resolutionMs);
+			if (bucket == null){
+				continue;
+			}
+			AtomicLongArray values = bucket.values;
+			values.incrementAndGet(COUNT);
+			if (failed){
+				values.incrementAndGet(ERRORS);
+			}
+			values.addAndGet(SUM_US, durationUs);
+			values.incrementAndGet(bin);
+			long max;
+			while ((max = values.get(MAX_US)) < durationUs && !values.compareAndSet(MAX_US, max, durationUs)){
+				//retry
+			}
+		}
+	}
+
+	//bin = 2 * exponent + half of the octave
+	private static int getBin(long us){
+		long v = Math.max(1, us);
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		if (exponent > MAX_EXPONENT){
+			return BINS - 1;
+		}
+		int half = (exponent > 0)? (int) ((v >> (exponent - 1)) & 1) : 0;
+		return exponent * 2 + half;
+	}
+
+	//lower bound of a bin in microseconds
+	private static double getBinLower(int bin){
+		int exponent = bin / 2;
+		return (exponent > 0)? ((1L << exponent) + (bin % 2) * (1L << (exponent - 1))) : 1;
+	}
+	
+	private static double getBinWidth(int bin){
+		int exponent = bin / 2;
+		return (exponent > 0)? (1L << (exponent - 1)) : 1;
+	}
+
+	/**
+	 * Stats of the last 'windowMs' (uses the finest ring that covers the window, the current bucket is included).
+	 * @return JSON with count, errors, error_ratio, rate_per_s, avg_ms, p50_ms, p90_ms, p99_ms, max_ms
+	 */
+	public JSONObject query(long windowMs){
+		long now = System.currentTimeMillis();
+		windowMs = Math.max(1, Math.min(windowMs, MAX_WINDOW_MS));
+		Ring ring = rings[rings.length - 1];
+		for (Ring r : rings){
+			if (r.spanMs() >= windowMs){
+				ring = r;
+				break;
+			}
+		}
+		long currentSlot = now / ring.resolutionMs;
+		int slots = (int) Math.min(ring.buckets.length(), (windowMs + ring.resolutionMs - 1) / ring.resolutionMs);
+		long[] sum = new long[BINS_OFFSET + BINS];
+		for (long slot = currentSlot - slots + 1; slot <= currentSlot; slot++){
+			Bucket bucket = ring.getForRead(slot);
+			if (bucket == null){
+				continue;
+			}
+			for (int i = 0; i < sum.length; i++){
+				long value = bucket.values.get(i);
+				sum[i] = (i == MAX_US)? Math.max(sum[i], value) : (sum[i] + value);
+			}
+		}
+		//covered time: full buckets plus the running one, but not more than the series exists
+		long coveredMs = (slots - 1) * ring.resolutionMs + (now % ring.resolutionMs) + 1;
+		coveredMs = Math.max(1, Math.min(coveredMs, now - created + 1));
+
+		long count = sum[COUNT];
+		JSONObject stats = JSON.make(
+				"count", count,
+				"errors", sum[ERRORS],
+				"error_ratio", (count > 0)? round((double) sum[ERRORS] / count) : 0.0,
+				"rate_per_s", round(count * 1000.0 / coveredMs),
+				"avg_ms", (count > 0)? round(sum[SUM_US] / 1000.0 / count) : 0.0
+		);
+		JSON.put(stats, "p50_ms", getPercentileMs(sum, count, 0.50));
+		JSON.put(stats, "p90_ms", getPercentileMs(sum, count, 0.90));
+		JSON.put(stats, "p99_ms", getPercentileMs(sum, count, 0.99));
+		JSON.put(stats, "max_ms", round(sum[MAX_US] / 1000.0));
+		return stats;
+	}
+
+	private static double getPercentileMs(long[] sum, long count, double percentile){
+		if (count == 0){
+			return 0.0;
+		}
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int bin = 0; bin < BINS; bin++){
+			long inBin = sum[BINS_OFFSET + bin];
+			if (seen + inBin >= rank){
+				//interpolate inside the bin, but never beyond the max. value
+				double value = getBinLower(bin) + getBinWidth(bin) * (rank - seen) / inBin;
+				return round(Math.min(value, sum[MAX_US]) / 1000.0);
+			}
+			seen += inBin;
+		}
+		return round(sum[MAX_US] / 1000.0);
+	}
+
+	private static double round(double value){
+		return Math.round(value * 1000.0) / 1000.0;
+	}
+
+	/**
+	 * Stats of all series starting with 'prefix' over the last 'windowMs'.
+	 * @param windowMs - time window (max. 24h)
+	 * @param prefix - e.g. 'plugin:' or null for all
+	 * @return JSON with series name as key
+	 */
+	public static JSONObject query(long windowMs, String prefix){
+		List<String> names = new ArrayList<>(series.keySet());
+		Collections.sort(names);
+		JSONObject result = new JSONObject();
+		for (String name : names){
+			if (prefix == null || name.startsWith(prefix)){
+				JSON.put(result, name, series.get(name).query(windowMs));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Parse window like '30s', '5m', '1h' or milliseconds.
+	 * @return window in ms or -1 if invalid or larger than {@link #MAX_WINDOW_MS}
+	 */
+	public static long parseWindow(String window){
+		if (window == null || window.trim().isEmpty()){
+			return -1;
+		}
+		String w = window.trim().toLowerCase();
+		long factor = 1;
+		if (w.endsWith("ms")){
+			w = w.substring(0, w.length() - 2);
+		}else if (w.endsWith("s")){
+			factor = 1000;
+		}else if (w.endsWith("m")){
+			factor = 60000;
+		}else if (w.endsWith("h")){
+			factor = 3600000;
+		}
+		if (factor > 1){
+			w = w.substring(0, w.length() - 1);
+		}
+		try{
+			long ms = Long.parseLong(w) * factor;
+			return (ms > 0 && ms <= MAX_WINDOW_MS)? ms : -1;
+		}catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Number of series and calls of series that were dropped because of the limit.
+	 */
+	public static JSONObject getInfo(){
+		return JSON.make(
+				"series", series.size(),
+				"max_series", maxSeries,
+				"dropped_calls", droppedCalls.sum()
+		);
+	}
+}
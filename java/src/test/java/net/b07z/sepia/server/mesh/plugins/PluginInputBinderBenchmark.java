@@ -0,0 +1,119 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Speed of the input binder of typed plugins compared to reading the same fields from the {@link JSONObject} by hand,
+ * for a flat input and an input with a list of nested objects.<br>
+ * Run with the test class path, e.g.: java -cp target/classes:target/test-classes:target/lib/*
+ * net.b07z.sepia.server.mesh.plugins.PluginInputBinderBenchmark [seconds]
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginInputBinderBenchmark {
+
+	public static class Item {
+		@PluginField(required = true)
+		String name;
+		long count;
+	}
+
+	public static class Input {
+		@PluginField(required = true)
+		String text;
+		long id;
+		double ratio;
+		boolean flag;
+		List<Item> items;
+	}
+
+	private interface Call {
+		Object run();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0)? Integer.parseInt(args[0]) : 3;
+
+		System.out.println("input;method;calls_per_s;ns_per_call");
+		for (int items : new int[]{ 0, 20 }){
+			JSONObject data = makeData(items);
+			String name = (items == 0)? "flat" : "nested-" + items;
+			PluginInputBinder<Input> binder = PluginInputBinder.get(Input.class);
+			run(name, "binder", () -> binder.bind(data), seconds);
+			run(name, "manual", () -> bindManually(data), seconds);
+		}
+	}
+
+	private static void run(String name, String method, Call call, int seconds){
+		measure(call, 1);		//warm-up
+		double callsPerS = measure(call, seconds);
+		System.out.println(name + ";" + method + ";" + Math.round(callsPerS) + ";" + Math.round(1e9 / callsPerS));
+	}
+
+	//calls per second, results are consumed so the JIT can't drop the calls
+	private static double measure(Call call, int seconds){
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		long calls = 0;
+		int sink = 0;
+		long tic = System.nanoTime();
+		while (System.nanoTime() < end){
+			for (int i = 0; i < 1000; i++){
+				sink += System.identityHashCode(call.run());
+			}
+			calls += 1000;
+		}
+		double elapsedS = (System.nanoTime() - tic) / 1e9;
+		if (sink == 42){
+			System.out.print("");
+		}
+		return calls / elapsedS;
+	}
+
+	//what a plugin without binder does (with the same checks)
+	private static Input bindManually(JSONObject data){
+		Input input = new Input();
+		Object text = data.get("text");
+		if (!(text instanceof String)){
+			throw new PluginInputException("Field 'text' is missing");
+		}
+		input.text = (String) text;
+		input.id = ((Number) data.get("id")).longValue();
+		input.ratio = ((Number) data.get("ratio")).doubleValue();
+		input.flag = (Boolean) data.get("flag");
+		JSONArray items = (JSONArray) data.get("items");
+		if (items != null){
+			input.items = new ArrayList<>(items.size());
+			for (Object o : items){
+				JSONObject itemData = (JSONObject) o;
+				Item item = new Item();
+				item.name = (String) itemData.get("name");
+				if (item.name == null){
+					throw new PluginInputException("Field 'name' is missing");
+				}
+				item.count = ((Number) itemData.get("count")).longValue();
+				input.items.add(item);
+			}
+		}
+		return input;
+	}
+
+	private static JSONObject makeData(int items) throws Exception {
+		StringBuilder json = new StringBuilder("{\"text\": \"Hello world\", \"id\": 123456, \"ratio\": 0.75, \"flag\": true");
+		if (items > 0){
+			json.append(", \"items\": [");
+			for (int i = 0; i < items; i++){
+				json.append((i > 0)? ", " : "").append("{\"name\": \"item-").append(i).append("\", \"count\": ").append(i).append("}");
+			}
+			json.append("]");
+		}
+		json.append("}");
+		return (JSONObject) new JSONParser().parse(json.toString());
+	}
+}
@@ -0,0 +1,211 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+/**
+ * Tests of the input binder of typed plugins.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginInputBinderTest {
+
+	public enum Mode { FAST, SLOW }
+
+	public static class Item {
+		@PluginField(required = true)
+		String name;
+		int count = 1;
+	}
+
+	public static class Input {
+		String text;
+		long id;
+		int small;
+		double ratio;
+		float weight;
+		boolean flag;
+		Boolean optionalFlag;
+		Mode mode;
+		@PluginField("user_name")
+		String userName;
+		List<String> tags;
+		int[] numbers;
+		List<Item> items;
+		Item main;
+		JSONObject raw;
+		JSONArray rawList;
+		Object any;
+		transient String ignored = "keep";
+		static String shared = "static";
+	}
+
+	public static class Tree {
+		String name;
+		List<Tree> children;
+	}
+
+	public static class Required {
+		@PluginField(value = "key", required = true)
+		String value;
+	}
+
+	public static class Base {
+		String inherited;
+	}
+
+	public static class Derived extends Base {
+		String own;
+	}
+
+	public static class WithFinalField {
+		final String value = "x";
+	}
+
+	public static class WithoutDefaultConstructor {
+		String value;
+		public WithoutDefaultConstructor(String value){
+			this.value = value;
+		}
+	}
+
+	public static class WithUnsupportedField {
+		Date date;
+	}
+
+	private static JSONObject parse(String json){
+		try{
+			return (JSONObject) new JSONParser().parse(json);
+		}catch (Exception e){
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static <T> String bindError(Class<T> type, String json){
+		try{
+			PluginInputBinder.get(type).bind(parse(json));
+		}catch (PluginInputException e){
+			return e.getMessage();
+		}
+		fail("Expected PluginInputException");
+		return null;
+	}
+
+	private static void assertUnusable(Class<?> type, String messagePart){
+		try{
+			PluginInputBinder.get(type);
+			fail("Expected IllegalStateException");
+		}catch (IllegalStateException e){
+			assertTrue(e.getMessage(), e.getMessage().contains(messagePart));
+		}
+	}
+
+	@Test
+	public void testBindAllTypes(){
+		Input input = PluginInputBinder.get(Input.class).bind(parse("{"
+				+ "\"text\": \"hello\", \"id\": 12345678901, \"small\": 7, \"ratio\": 0.5, \"weight\": 2, \"flag\": true,"
+				+ "\"mode\": \"Slow\", \"user_name\": \"Alice\", \"tags\": [\"a\", \"b\"], \"numbers\": [1, 2, 3],"
+				+ "\"items\": [{\"name\": \"x\", \"count\": 3}, {\"name\": \"y\"}], \"main\": {\"name\": \"m\"},"
+				+ "\"raw\": {\"k\": 1}, \"rawList\": [1, \"two\"], \"any\": 42, \"ignored\": \"no\", \"shared\": \"no\""
+				+ "}"));
+		assertEquals("hello", input.text);
+		assertEquals(12345678901L, input.id);
+		assertEquals(7, input.small);
+		assertEquals(0.5, input.ratio, 0.0);
+		assertEquals(2.0f, input.weight, 0.0f);
+		assertTrue(input.flag);
+		assertNull(input.optionalFlag);
+		assertEquals(Mode.SLOW, input.mode);
+		assertEquals("Alice", input.userName);
+		assertEquals(Arrays.asList("a", "b"), input.tags);
+		assertArrayEquals(new int[]{ 1, 2, 3 }, input.numbers);
+		assertEquals(2, input.items.size());
+		assertEquals("x", input.items.get(0).name);
+		assertEquals(3, input.items.get(0).count);
+		assertEquals(1, input.items.get(1).count);		//default of the class
+		assertEquals("m", input.main.name);
+		assertEquals(1L, input.raw.get("k"));
+		assertEquals(2, input.rawList.size());
+		assertEquals(42L, input.any);
+		assertEquals("keep", input.ignored);
+		assertEquals("static", Input.shared);
+	}
+
+	@Test
+	public void testEmptyData(){
+		Input input = PluginInputBinder.get(Input.class).bind(null);
+		assertNull(input.text);
+		assertEquals(0, input.id);
+		input = PluginInputBinder.get(Input.class).bind(new JSONObject());
+		assertNull(input.items);
+	}
+
+	@Test
+	public void testInheritedAndRecursiveFields(){
+		Derived derived = PluginInputBinder.get(Derived.class).bind(parse("{\"inherited\": \"a\", \"own\": \"b\"}"));
+		assertEquals("a", derived.inherited);
+		assertEquals("b", derived.own);
+
+		Tree tree = PluginInputBinder.get(Tree.class).bind(parse(
+				"{\"name\": \"root\", \"children\": [{\"name\": \"leaf\", \"children\": []}]}"));
+		assertEquals("root", tree.name);
+		assertEquals("leaf", tree.children.get(0).name);
+		assertTrue(tree.children.get(0).children.isEmpty());
+	}
+
+	@Test
+	public void testIntegersFromDoubles(){
+		Input input = PluginInputBinder.get(Input.class).bind(parse("{\"id\": 3.0}"));
+		assertEquals(3, input.id);
+		assertEquals("Field 'id' must be an integer but is: Double", bindError(Input.class, "{\"id\": 3.5}"));
+	}
+
+	@Test
+	public void testErrorMessages(){
+		assertEquals("Field 'key' is missing", bindError(Required.class, "{}"));
+		assertEquals("Field 'key' is missing", bindError(Required.class, "{\"key\": null}"));
+		assertEquals("Field 'text' must be a string but is: Long", bindError(Input.class, "{\"text\": 5}"));
+		assertEquals("Field 'flag' must be a boolean but is: String", bindError(Input.class, "{\"flag\": \"true\"}"));
+		assertEquals("Field 'small' is out of range", bindError(Input.class, "{\"small\": 3000000000}"));
+		assertEquals("Field 'tags' must be an array but is: object", bindError(Input.class, "{\"tags\": {}}"));
+		assertEquals("Field 'main' must be an object but is: array", bindError(Input.class, "{\"main\": []}"));
+		assertTrue(bindError(Input.class, "{\"mode\": \"medium\"}").startsWith("Field 'mode' must be one of: "));
+	}
+
+	@Test
+	public void testErrorPaths(){
+		assertEquals("Field 'items[1].name' is missing", bindError(Input.class, "{\"items\": [{\"name\": \"a\"}, {}]}"));
+		assertEquals("Field 'main.count' must be an integer but is: String",
+				bindError(Input.class, "{\"main\": {\"name\": \"a\", \"count\": \"x\"}}"));
+		assertEquals("Field 'tags[0]' must be a string but is: Long", bindError(Input.class, "{\"tags\": [1]}"));
+		assertEquals("Field 'numbers[1]' must not be null", bindError(Input.class, "{\"numbers\": [1, null]}"));
+		assertEquals("Field 'children[0].children[0].name' must be a string but is: Boolean",
+				bindError(Tree.class, "{\"children\": [{\"children\": [{\"name\": true}]}]}"));
+	}
+
+	@Test
+	public void testUnusableClasses(){
+		assertUnusable(WithFinalField.class, "final field 'value'");
+		assertUnusable(WithoutDefaultConstructor.class, "needs a constructor without arguments");
+		assertUnusable(WithUnsupportedField.class, "unsupported field type java.util.Date");
+	}
+
+	@Test
+	public void testBinderIsCached(){
+		assertSame(PluginInputBinder.get(Input.class), PluginInputBinder.get(Input.class));
+	}
+}
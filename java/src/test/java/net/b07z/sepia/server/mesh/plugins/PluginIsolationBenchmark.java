@@ -0,0 +1,199 @@
+package net.b07z.sepia.server.mesh.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Policy;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.core.tools.SandboxSecurityPolicy;
+import net.b07z.sepia.server.mesh.endpoints.PluginEndpoints;
+import net.b07z.sepia.server.mesh.server.ConfigNode;
+import spark.Spark;
+
+/**
+ * Request throughput and latency of the '/execute-plugin' endpoint with plugins running in worker processes
+ * (plugins_isolation=process) and inside the node with the sandbox security policy (plugins_isolation=sandbox),
+ * with and without a store call per execution.<br>
+ * The plugin is compiled from source into the plugins folder like every other plugin, so in sandbox mode it is loaded by the
+ * sandbox class-loader and runs under the security manager. Process mode is measured first since the node doesn't
+ * install a security manager in that mode.<br>
+ * Run with the test class path (Java 17+ needs '-Djava.security.manager=allow'), e.g.:
+ * java -Djava.security.manager=allow -cp target/classes:target/test-classes:target/lib/*
+ * net.b07z.sepia.server.mesh.plugins.PluginIsolationBenchmark [seconds] [threads]
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PluginIsolationBenchmark {
+
+	private static final int WARM_UP_CALLS = 2000;
+	private static final int LATENCY_CALLS = 5000;
+
+	private static final String PLUGIN_NAME = "benchmark.EchoPlugin";
+	private static final String PLUGIN_SOURCE = "package benchmark;\n"
+			+ "import org.json.simple.JSONObject;\n"
+			+ "import net.b07z.sepia.server.core.tools.JSON;\n"
+			+ "import net.b07z.sepia.server.mesh.plugins.*;\n"
+			+ "/** Returns the input, optionally after a store round trip. */\n"
+			+ "public class EchoPlugin implements Plugin {\n"
+			+ "	private PluginContext context;\n"
+			+ "	@Override\n"
+			+ "	public void setContext(PluginContext context){\n"
+			+ "		this.context = context;\n"
+			+ "	}\n"
+			+ "	@Override\n"
+			+ "	public PluginResult execute(JSONObject data){\n"
+			+ "		if (Boolean.TRUE.equals(data.get(\"store\"))){\n"
+			+ "			PluginStore store = context.getStore();\n"
+			+ "			store.put(\"last\", (String) data.get(\"text\"));\n"
+			+ "			JSON.put(data, \"text\", store.get(\"last\"));\n"
+			+ "		}\n"
+			+ "		return new PluginResult(data);\n"
+			+ "	}\n"
+			+ "}\n";
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0)? Integer.parseInt(args[0]) : 5;
+		int threads = (args.length > 1)? Integer.parseInt(args[1]) : 4;
+
+		File folder = Files.createTempDirectory("plugin-benchmark").toFile();
+		ConfigNode.pluginsFolder = folder.getAbsolutePath() + File.separator;
+		ConfigNode.usePlugins = true;
+		ConfigNode.statsTimeSeries = false;
+		ConfigNode.pluginsWorkers = threads;
+		ConfigNode.configFile = new File(folder, "node.properties").getAbsolutePath();
+		ConfigNode.saveSettings(ConfigNode.configFile);		//read by the worker processes
+		ConfigNode.setupSandbox();
+
+		File sourceFolder = new File(ConfigNode.pluginsFolder + PluginLoader.defaultSourceFolder);
+		sourceFolder.mkdirs();
+		Files.write(new File(sourceFolder, "EchoPlugin.java").toPath(), PLUGIN_SOURCE.getBytes(StandardCharsets.UTF_8));
+		if (PluginLoader.loadAllPlugins(false) != 1){
+			throw new IllegalStateException("Benchmark plugin did not compile.");
+		}
+
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)){
+			port = socket.getLocalPort();
+		}
+		System.setProperty("http.maxConnections", Integer.toString(threads));		//keep-alive connection per client thread
+		Spark.port(port);
+		Spark.post("/execute-plugin", (request, response) -> PluginEndpoints.executePlugin(request, response));
+		Spark.awaitInitialization();
+		URL url = new URL("http://localhost:" + port + "/execute-plugin");
+		try{
+			System.out.println("mode;store;threads;requests_per_s;p50_us;p99_us;max_us");
+			for (String mode : Arrays.asList("process", "sandbox")){
+				ConfigNode.pluginsIsolation = mode;
+				if (PluginWorkerPool.isEnabled()){
+					PluginWorkerPool.start();
+					waitForWorkers(threads);
+				}else{
+					//same as the node on start-up
+					Policy.setPolicy(new SandboxSecurityPolicy());
+					System.setSecurityManager(new SecurityManager());
+				}
+				for (boolean useStore : new boolean[]{ false, true }){
+					JSONObject body = JSON.make("canonicalName", PLUGIN_NAME, "data", JSON.make("text", "hello", "store", useStore));
+					byte[] bodyBytes = body.toJSONString().getBytes(StandardCharsets.UTF_8);
+					for (int i = 0; i < WARM_UP_CALLS; i++){
+						call(url, bodyBytes);
+					}
+					long[] latencies = measureLatency(url, bodyBytes);
+					double throughput = measureThroughput(url, bodyBytes, threads, seconds);
+					System.out.println(mode + ";" + useStore + ";" + threads + ";" + Math.round(throughput) + ";"
+							+ percentile(latencies, 0.50) + ";" + percentile(latencies, 0.99) + ";" + latencies[latencies.length - 1]);
+				}
+				PluginWorkerPool.stop();
+			}
+		}finally{
+			Spark.stop();
+			Spark.awaitStop();
+			PluginLoader.shutdown();
+		}
+	}
+
+	//one request on a kept-alive connection (the body must be read completely for that)
+	private static void call(URL url, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setFixedLengthStreamingMode(body.length);
+		try (OutputStream out = connection.getOutputStream()){
+			out.write(body);
+		}
+		int status = connection.getResponseCode();
+		try (InputStream in = (status == 200)? connection.getInputStream() : connection.getErrorStream()){
+			byte[] response = (in != null)? in.readAllBytes() : new byte[0];
+			if (status != 200){
+				throw new IOException("HTTP " + status + ": " + new String(response, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	//single client, sorted latencies in microseconds
+	private static long[] measureLatency(URL url, byte[] body) throws Exception {
+		long[] latencies = new long[LATENCY_CALLS];
+		for (int i = 0; i < LATENCY_CALLS; i++){
+			long tic = System.nanoTime();
+			call(url, body);
+			latencies[i] = (System.nanoTime() - tic) / 1000;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	//requests per second of all client threads together
+	private static double measureThroughput(URL url, byte[] body, int threads, int seconds) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		LongAdder calls = new LongAdder();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		Future<?>[] futures = new Future<?>[threads];
+		long tic = System.nanoTime();
+		for (int t = 0; t < threads; t++){
+			futures[t] = pool.submit(() -> {
+				while (System.nanoTime() < end){
+					call(url, body);
+					calls.increment();
+				}
+				return null;
+			});
+		}
+		for (Future<?> future : futures){
+			future.get();
+		}
+		double elapsedS = (System.nanoTime() - tic) / 1e9;
+		pool.shutdown();
+		return calls.sum() / elapsedS;
+	}
+
+	private static long percentile(long[] sorted, double p){
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	private static void waitForWorkers(int workers) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 60000;
+		while (((Number) PluginWorkerPool.getStats().get("idle")).intValue() < workers){
+			if (System.currentTimeMillis() > timeout){
+				throw new IllegalStateException("Plugin workers did not start.");
+			}
+			Thread.sleep(100);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package net.b07z.sepia.server.mesh.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import spark.Spark;
+
+/**
+ * Cost of TLS handshakes of the SSL connector built by {@link NodeServerFactory}: handshake time and latency of a whole request
+ * (connect, handshake, request and response) for full handshakes (new client session) and resumed ones (TLS session cache or
+ * tickets), compared to the request latency and requests per second on a kept-alive connection.
+ * Also prints the protocol the server selects via ALPN.<br>
+ * The optional arguments override the TLS settings of {@link ConfigNode}, e.g. '500 0 false' to compare with resumption
+ * turned off on the server:<br>
+ * java -cp target/classes:target/test-classes:target/lib/* net.b07z.sepia.server.mesh.server.NodeServerFactoryBenchmark
+ * [handshakes] [tls_session_cache_size] [tls_session_tickets]
+ *
+ * @author Florian Quirin
+ *
+ */
+public class NodeServerFactoryBenchmark {
+
+	private static final String PASSWORD = "benchmark";
+	private static final byte[] REQUEST = "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	public static void main(String[] args) throws Exception {
+		int handshakes = (args.length > 0)? Integer.parseInt(args[0]) : 500;
+		ConfigNode.tlsSessionCacheSize = (args.length > 1)? Integer.parseInt(args[1]) : ConfigNode.tlsSessionCacheSize;
+		ConfigNode.tlsSessionTickets = (args.length > 2)? Boolean.parseBoolean(args[2]) : ConfigNode.tlsSessionTickets;
+		ConfigNode.hostFiles = false;
+
+		File keystore = createKeystore();
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)){
+			port = socket.getLocalPort();
+		}
+		NodeServerFactory.register();
+		Spark.port(port);
+		Spark.secure(keystore.getAbsolutePath(), PASSWORD, null, null);
+		Spark.get("/ping", (request, response) -> "pong");
+		Spark.awaitInitialization();
+		try{
+			SSLContext shared = newClientContext();
+			System.out.println("ALPN protocol: " + getAlpnProtocol(shared, port));
+			//warm-up
+			for (int i = 0; i < 100; i++){
+				request(newClientContext(), port);
+				request(shared, port);
+			}
+			System.out.println("http2=" + ConfigNode.http2Enabled + ", session_cache=" + ConfigNode.tlsSessionCacheSize
+					+ ", tickets=" + ConfigNode.tlsSessionTickets);
+			System.out.println("connection;handshake_p50_us;handshake_p99_us;request_p50_us;request_p99_us;requests_per_s");
+			long[][] full = new long[2][handshakes];
+			long[][] resumed = new long[2][handshakes];
+			for (int i = 0; i < handshakes; i++){
+				request(newClientContext(), port, full, i);
+				request(shared, port, resumed, i);
+			}
+			print("full", full[0], full[1]);
+			print("resumed", resumed[0], resumed[1]);
+			keepAlive(shared, port, handshakes, 3);
+		}finally{
+			Spark.stop();
+			Spark.awaitStop();
+			keystore.delete();
+			keystore.getParentFile().delete();
+		}
+	}
+
+	//handshake times can be null (kept-alive connection), requests per second from the average request latency
+	private static void print(String name, long[] handshakes, long[] requests){
+		String handshakeP50 = "-";
+		String handshakeP99 = "-";
+		if (handshakes != null){
+			Arrays.sort(handshakes);
+			handshakeP50 = Long.toString(percentile(handshakes, 0.50));
+			handshakeP99 = Long.toString(percentile(handshakes, 0.99));
+		}
+		Arrays.sort(requests);
+		double avgUs = Arrays.stream(requests).average().orElse(0);
+		System.out.println(name + ";" + handshakeP50 + ";" + handshakeP99 + ";" + percentile(requests, 0.50) + ";" 
+				+ percentile(requests, 0.99) + ";" + Math.round(1e6 / avgUs));
+	}
+
+	private static long percentile(long[] sorted, double p){
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	private static String getAlpnProtocol(SSLContext context, int port) throws Exception {
+		try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)){
+			SSLParameters parameters = socket.getSSLParameters();
+			parameters.setApplicationProtocols(new String[]{ "h2", "http/1.1" });
+			socket.setSSLParameters(parameters);
+			socket.startHandshake();
+			return socket.getApplicationProtocol();
+		}
+	}
+
+	//new connection with one request - time of connect and handshake and of the whole request in microseconds
+	private static void request(SSLContext context, int port) throws Exception {
+		request(context, port, new long[2][1], 0);
+	}
+	private static void request(SSLContext context, int port, long[][] latencies, int i) throws Exception {
+		long tic = System.nanoTime();
+		try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)){
+			socket.startHandshake();
+			latencies[0][i] = (System.nanoTime() - tic) / 1000;
+			//the request also reads the session ticket (TLS 1.3 sends it after the handshake)
+			readResponse(socket, REQUEST);
+			latencies[1][i] = (System.nanoTime() - tic) / 1000;
+		}
+	}
+
+	//send request and read the response headers and body
+	private static void readResponse(SSLSocket socket, byte[] request) throws Exception {
+		OutputStream out = socket.getOutputStream();
+		out.write(request);
+		out.flush();
+		InputStream in = socket.getInputStream();
+		int contentLength = 0;
+		String line;
+		while (!(line = readLine(in)).isEmpty()){
+			if (line.toLowerCase().startsWith("content-length:")){
+				contentLength = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		for (int i = 0; i < contentLength; i++){
+			in.read();
+		}
+	}
+
+	//header line without buffering (so nothing of the next response is lost)
+	private static String readLine(InputStream in) throws Exception {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n'){
+			if (c < 0){
+				throw new EOFException();
+			}else if (c != '\r'){
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	//requests on one connection (no handshakes) - latency of single requests, then throughput for some seconds
+	private static void keepAlive(SSLContext context, int port, int requests, int seconds) throws Exception {
+		try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)){
+			long[] latencies = new long[requests];
+			for (int i = 0; i < requests; i++){
+				long tic = System.nanoTime();
+				readResponse(socket, REQUEST);
+				latencies[i] = (System.nanoTime() - tic) / 1000;
+			}
+			print("keep-alive", null, latencies);
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			long tic = System.nanoTime();
+			long count = 0;
+			while (System.nanoTime() < end){
+				readResponse(socket, REQUEST);
+				count++;
+			}
+			System.out.println("keep-alive requests per s (" + seconds + "s loop): " + Math.round(count / ((System.nanoTime() - tic) / 1e9)));
+		}
+	}
+
+	//the benchmark server has a self-signed certificate
+	private static SSLContext newClientContext() throws Exception {
+		TrustManager trustAll = new X509TrustManager(){
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType){}
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType){}
+			@Override
+			public X509Certificate[] getAcceptedIssuers(){
+				return new X509Certificate[0];
+			}
+		};
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[]{ trustAll }, new SecureRandom());
+		return context;
+	}
+
+	private static File createKeystore() throws Exception {
+		File keystore = new File(Files.createTempDirectory("node-benchmark").toFile(), "keystore.jks");
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "benchmark", "-keyalg", "EC", "-groupname", "secp256r1",
+				"-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS", "-keystore", keystore.getAbsolutePath(),
+				"-storepass", PASSWORD, "-keypass", PASSWORD).inheritIO().start();
+		if (process.waitFor() != 0){
+			throw new IllegalStateException("keytool failed");
+		}
+		return keystore;
+	}
+}
@@ -0,0 +1,164 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of accepted requests with and without the adaptive limit when the node is overloaded.<br>
+ * Latency model: a node that can run 'slots' plugin calls in parallel, calls take an exponentially distributed time
+ * (mean 'service_ms'), the rest waits in a FIFO queue (M/M/c). Requests arrive at a fixed rate (open loop, the clients
+ * don't slow down) at a multiple of the capacity. Without limit the queue grows for as long as the overload lasts,
+ * with the limit the excess is shed right away and accepted requests keep a latency close to the service time.<br>
+ * Run with the test class path, e.g.: java -cp target/classes:target/test-classes:target/lib/*
+ * net.b07z.sepia.server.mesh.tools.AdaptiveLimiterBenchmark [seconds] [slots] [service_ms]
+ *
+ * @author Florian Quirin
+ *
+ */
+public class AdaptiveLimiterBenchmark {
+
+	private static final double[] LOADS = { 0.5, 1.5, 3.0 };		//offered load relative to capacity
+
+	/**
+	 * Simulated node: 'slots' parallel calls and a queue.
+	 */
+	private static class Node {
+		private final int slots;
+		private final double serviceMs;
+		private final ScheduledExecutorService timer;
+		private final Queue<Runnable> queue = new ArrayDeque<>();
+		private int busy = 0;		//guarded by this
+
+		Node(int slots, double serviceMs, ScheduledExecutorService timer){
+			this.slots = slots;
+			this.serviceMs = serviceMs;
+			this.timer = timer;
+		}
+
+		//run 'onDone' when the call is finished
+		void call(Runnable onDone){
+			synchronized (this){
+				if (busy >= slots){
+					queue.add(onDone);
+					return;
+				}
+				busy++;
+			}
+			start(onDone);
+		}
+
+		private void start(Runnable onDone){
+			long serviceUs = Math.round(-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * serviceMs * 1000);
+			timer.schedule(() -> {
+				onDone.run();
+				Runnable next;
+				synchronized (this){
+					next = queue.poll();
+					if (next == null){
+						busy--;
+					}
+				}
+				if (next != null){
+					start(next);
+				}
+			}, serviceUs, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * Latencies of accepted requests and shed requests of one run.
+	 */
+	private static class Result {
+		private long[] latenciesUs = new long[1 << 16];
+		private int count = 0;
+		private final LongAdder shed = new LongAdder();
+
+		synchronized void add(long latencyUs){
+			if (count == latenciesUs.length){
+				latenciesUs = Arrays.copyOf(latenciesUs, count * 2);
+			}
+			latenciesUs[count++] = latencyUs;
+		}
+
+		synchronized long percentileMs(double p){
+			if (count == 0){
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(latenciesUs, count);
+			Arrays.sort(sorted);
+			return sorted[Math.min(count - 1, (int) (count * p))] / 1000;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0)? Integer.parseInt(args[0]) : 10;
+		int slots = (args.length > 1)? Integer.parseInt(args[1]) : 8;
+		double serviceMs = (args.length > 2)? Double.parseDouble(args[2]) : 5;
+		double capacityPerS = slots * 1000 / serviceMs;
+
+		System.out.println("capacity " + Math.round(capacityPerS) + " req/s (" + slots + " slots, " + serviceMs + "ms mean)");
+		System.out.println("load;limit;accepted_per_s;shed_ratio;p50_ms;p99_ms;max_ms;final_limit");
+		for (double load : LOADS){
+			for (boolean useLimit : new boolean[]{ false, true }){
+				AdaptiveLimiter limiter = (useLimit)? new AdaptiveLimiter(20, 1, 200) : null;
+				Result result = run(limiter, slots, serviceMs, capacityPerS * load, seconds);
+				long accepted = result.count;
+				long shed = result.shed.sum();
+				System.out.println(load + ";" + (useLimit? "adaptive" : "none") + ";" + Math.round((double) accepted / seconds) + ";"
+						+ Math.round(1000.0 * shed / Math.max(1, accepted + shed)) / 1000.0 + ";"
+						+ result.percentileMs(0.50) + ";" + result.percentileMs(0.99) + ";" + result.percentileMs(1.0) + ";"
+						+ ((limiter != null)? limiter.getLimit() : "-"));
+			}
+		}
+	}
+
+	//requests at 'ratePerS' for 'seconds', returns after all accepted requests are done
+	private static Result run(AdaptiveLimiter limiter, int slots, double serviceMs, double ratePerS, int seconds) throws Exception {
+		ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+		Node node = new Node(slots, serviceMs, timer);
+		Result result = new Result();
+		LongAdder open = new LongAdder();
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		double intervalNs = 1e9 / ratePerS;
+		long sent = 0;
+		while (true){
+			long now = System.nanoTime();
+			if (now >= end){
+				break;
+			}
+			//send everything that is due (the sender never waits for responses)
+			while (start + sent * intervalNs <= now){
+				sent++;
+				long arrival = System.nanoTime();
+				if (limiter != null && !limiter.tryAcquire()){
+					result.shed.increment();
+					continue;
+				}
+				open.increment();
+				node.call(() -> {
+					long latencyNs = System.nanoTime() - arrival;
+					if (limiter != null){
+						limiter.release(latencyNs);
+					}
+					result.add(latencyNs / 1000);
+					open.decrement();
+				});
+			}
+			TimeUnit.MICROSECONDS.sleep(100 + random.nextInt(100));
+		}
+		while (open.sum() > 0){
+			Thread.sleep(10);
+		}
+		timer.shutdown();
+		return result;
+	}
+}
@@ -0,0 +1,171 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests of the adaptive concurrency limit. Windows of 0ns end with every 10th sample, so the limit changes deterministically.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class AdaptiveLimiterTest {
+
+	private static final long FAST_NS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long SLOW_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	//one window: 'requests' parallel requests, repeated until the window has 10 samples
+	private static void runWindow(AdaptiveLimiter limiter, int requests, long rttNs){
+		for (int i = 0; i < 10 / requests; i++){
+			for (int r = 0; r < requests; r++){
+				assertTrue(limiter.tryAcquire());
+			}
+			for (int r = 0; r < requests; r++){
+				limiter.release(rttNs);
+			}
+		}
+	}
+
+	@Test
+	public void testInitialLimitIsClamped(){
+		assertEquals(4, new AdaptiveLimiter(1, 4, 10).getLimit());
+		assertEquals(10, new AdaptiveLimiter(50, 4, 10).getLimit());
+		assertEquals(1, new AdaptiveLimiter(0, 0, 0).getLimit());
+	}
+
+	@Test
+	public void testShedsBeyondLimit(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+		limiter.release(FAST_NS);
+		assertTrue(limiter.tryAcquire());
+	}
+
+	@Test
+	public void testFromSettings(){
+		assertNull(AdaptiveLimiter.fromSettings(""));
+		assertNull(AdaptiveLimiter.fromSettings("20,4"));
+		assertNull(AdaptiveLimiter.fromSettings("a,b,c"));
+		AdaptiveLimiter limiter = AdaptiveLimiter.fromSettings("20, 4, 200");
+		assertNotNull(limiter);
+		assertEquals(20, limiter.getLimit());
+		assertNotNull(AdaptiveLimiter.fromSettings("20,4,200,0"));
+	}
+
+	@Test
+	public void testGrowsWhenLatencyIsStable(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 100, 0, 0);
+		for (int i = 0; i < 5; i++){
+			runWindow(limiter, 10, FAST_NS);
+		}
+		assertTrue(limiter.getLimit() > 10);
+	}
+
+	@Test
+	public void testDoesNotGrowWhenLimitIsNotUsed(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 100, 0, 0);
+		for (int i = 0; i < 5; i++){
+			runWindow(limiter, 2, FAST_NS);
+		}
+		assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	public void testShrinksWhenLatencyGrows(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 100, 0, 0);
+		runWindow(limiter, 10, FAST_NS);
+		int before = limiter.getLimit();
+		runWindow(limiter, 10, SLOW_NS);
+		runWindow(limiter, 10, SLOW_NS);
+		assertTrue(limiter.getLimit() < before);
+		assertTrue(limiter.getLimit() >= 1);
+	}
+
+	@Test
+	public void testProbeDropsLimitAndRestoresIt(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 100, 3, 0);
+		runWindow(limiter, 10, FAST_NS);
+		runWindow(limiter, 10, FAST_NS);
+		int before = limiter.getLimit();
+		runWindow(limiter, 10, FAST_NS);		//3rd window starts the probe
+		int probeLimit = limiter.getLimit();
+		assertEquals(before / 4, probeLimit);
+		runWindow(limiter, probeLimit, FAST_NS);	//drain
+		assertEquals(probeLimit, limiter.getLimit());
+		runWindow(limiter, probeLimit, FAST_NS);	//measure
+		assertEquals(before, limiter.getLimit());
+	}
+
+	@Test
+	public void testProbeIsSkippedWithoutQueue(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 100, 3, 0);
+		for (int i = 0; i < 3; i++){
+			runWindow(limiter, 10, FAST_NS);		//3rd window starts the first probe
+		}
+		runWindow(limiter, limiter.getLimit(), FAST_NS);		//drain
+		runWindow(limiter, limiter.getLimit(), FAST_NS);		//measure
+		int before = limiter.getLimit();
+		runWindow(limiter, 10, FAST_NS);		//6th window: probe is due, but no queue
+		assertTrue(limiter.getLimit() >= before);
+		assertEquals(1L, limiter.getStats().get("probes"));
+		assertEquals(1L, limiter.getStats().get("probes_skipped"));
+		runWindow(limiter, 10, FAST_NS);
+		runWindow(limiter, 10, FAST_NS);
+		before = limiter.getLimit();
+		runWindow(limiter, 10, SLOW_NS);		//9th window: probe is due and latency says there is a queue
+		assertEquals(before / 4, limiter.getLimit());
+		assertEquals(2L, limiter.getStats().get("probes"));
+	}
+
+	@Test
+	public void testNoProbeIfDisabled(){
+		AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 20, 0, 0);
+		for (int i = 0; i < 20; i++){
+			runWindow(limiter, 10, FAST_NS);
+			assertEquals(20, limiter.getLimit());
+		}
+	}
+
+	@Test
+	public void testInFlightNeverExceedsLimit() throws Exception {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(4, 4, 4, 0);
+		AtomicInteger running = new AtomicInteger(0);
+		AtomicInteger maxRunning = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try{
+			Future<?>[] futures = new Future<?>[8];
+			for (int t = 0; t < futures.length; t++){
+				futures[t] = pool.submit(() -> {
+					for (int i = 0; i < 20000; i++){
+						if (limiter.tryAcquire()){
+							maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+							running.decrementAndGet();
+							limiter.release(FAST_NS);
+						}
+					}
+				});
+			}
+			for (Future<?> future : futures){
+				future.get();
+			}
+		}finally{
+			pool.shutdown();
+		}
+		assertTrue(maxRunning.get() <= 4);
+		assertEquals(0, limiter.getInFlight());
+	}
+}
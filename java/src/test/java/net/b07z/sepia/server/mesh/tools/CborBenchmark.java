@@ -0,0 +1,118 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Encode and decode speed and size of plugin requests as CBOR and as JSON (streamed), for a small and a large body.<br>
+ * Run with the test class path, e.g.: java -cp target/classes:target/test-classes:target/lib/*
+ * net.b07z.sepia.server.mesh.tools.CborBenchmark [seconds]
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CborBenchmark {
+
+	private interface Codec {
+		byte[] encode(Map<String, Object> body) throws Exception;
+		JSONObject decode(byte[] data) throws Exception;
+	}
+
+	private static final Codec CBOR = new Codec(){
+		@Override
+		public byte[] encode(Map<String, Object> body) throws Exception {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+			Cbor.write(body, out);
+			return out.toByteArray();
+		}
+		@Override
+		public JSONObject decode(byte[] data) throws Exception {
+			return Cbor.readObject(new ByteArrayInputStream(data));
+		}
+	};
+	private static final Codec JSON = new Codec(){
+		@Override
+		public byte[] encode(Map<String, Object> body) throws Exception {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+			JsonStreams.write(body, out);
+			return out.toByteArray();
+		}
+		@Override
+		public JSONObject decode(byte[] data) throws Exception {
+			return JsonStreams.parseObject(new ByteArrayInputStream(data));
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0)? Integer.parseInt(args[0]) : 3;
+
+		System.out.println("body;format;bytes;encode_per_s;decode_per_s");
+		for (int items : new int[]{ 1, 1000 }){
+			Map<String, Object> body = makeBody(items);
+			String name = (items == 1)? "small" : "large";
+			run(name, "cbor", CBOR, body, seconds);
+			run(name, "json", JSON, body, seconds);
+		}
+	}
+
+	private static void run(String name, String format, Codec codec, Map<String, Object> body, int seconds) throws Exception {
+		byte[] data = codec.encode(body);
+		//warm-up
+		measure(() -> codec.encode(body), 1);
+		measure(() -> codec.decode(data), 1);
+		double encodes = measure(() -> codec.encode(body), seconds);
+		double decodes = measure(() -> codec.decode(data), seconds);
+		System.out.println(name + ";" + format + ";" + data.length + ";" + Math.round(encodes) + ";" + Math.round(decodes));
+	}
+
+	private interface Call {
+		Object run() throws Exception;
+	}
+
+	//calls per second, results are consumed so the JIT can't drop the calls
+	private static double measure(Call call, int seconds) throws Exception {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		long calls = 0;
+		int sink = 0;
+		long tic = System.nanoTime();
+		while (System.nanoTime() < end){
+			for (int i = 0; i < 100; i++){
+				sink += call.run().hashCode();
+			}
+			calls += 100;
+		}
+		double elapsedS = (System.nanoTime() - tic) / 1e9;
+		if (sink == 42){
+			System.out.print("");
+		}
+		return calls / elapsedS;
+	}
+
+	//request like the ones of the plugin endpoints: some fields and a list of records
+	private static Map<String, Object> makeBody(int items){
+		List<Object> records = new ArrayList<>();
+		for (int i = 0; i < items; i++){
+			Map<String, Object> record = new LinkedHashMap<>();
+			record.put("id", i);
+			record.put("name", "record-" + i);
+			record.put("value", i * 0.5);
+			record.put("active", (i % 2) == 0);
+			records.add(record);
+		}
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("text", "Hello world, this is a test.");
+		data.put("timestamp", System.currentTimeMillis());
+		data.put("records", records);
+		Map<String, Object> body = new LinkedHashMap<>();
+		body.put("canonicalName", "net.b07z.sepia.server.mesh.plugins.HelloPlugin");
+		body.put("data", data);
+		return body;
+	}
+}
@@ -0,0 +1,179 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests of the CBOR encoder and decoder.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CborTest {
+
+	private static byte[] encode(Object value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Cbor.write(value, out);
+		return out.toByteArray();
+	}
+
+	private static Object decode(byte[] bytes) throws IOException {
+		return Cbor.read(new ByteArrayInputStream(bytes));
+	}
+
+	private static byte[] bytes(int... values){
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++){
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testIsCbor(){
+		assertTrue(Cbor.isCbor("application/cbor"));
+		assertTrue(Cbor.isCbor("Application/CBOR; charset=binary"));
+		assertTrue(!Cbor.isCbor("application/json"));
+		assertTrue(!Cbor.isCbor(null));
+	}
+
+	@Test
+	public void testEncodeRfcExamples() throws IOException {
+		//RFC 8949, appendix A
+		assertTrue(Arrays.equals(bytes(0x00), encode(0)));
+		assertTrue(Arrays.equals(bytes(0x17), encode(23)));
+		assertTrue(Arrays.equals(bytes(0x18, 0x18), encode(24)));
+		assertTrue(Arrays.equals(bytes(0x19, 0x03, 0xe8), encode(1000)));
+		assertTrue(Arrays.equals(bytes(0x1a, 0x00, 0x0f, 0x42, 0x40), encode(1000000)));
+		assertTrue(Arrays.equals(bytes(0x1b, 0x00, 0x00, 0x00, 0xe8, 0xd4, 0xa5, 0x10, 0x00), encode(1000000000000L)));
+		assertTrue(Arrays.equals(bytes(0x20), encode(-1)));
+		assertTrue(Arrays.equals(bytes(0x39, 0x03, 0xe7), encode(-1000)));
+		assertTrue(Arrays.equals(bytes(0xf4), encode(false)));
+		assertTrue(Arrays.equals(bytes(0xf5), encode(true)));
+		assertTrue(Arrays.equals(bytes(0xf6), encode(null)));
+		assertTrue(Arrays.equals(bytes(0x64, 0x49, 0x45, 0x54, 0x46), encode("IETF")));
+		assertTrue(Arrays.equals(bytes(0x62, 0xc3, 0xbc), encode("ü")));
+		assertTrue(Arrays.equals(bytes(0xfb, 0x3f, 0xf1, 0x99, 0x99, 0x99, 0x99, 0x99, 0x9a), encode(1.1)));
+		assertTrue(Arrays.equals(bytes(0x83, 0x01, 0x02, 0x03), encode(Arrays.asList(1, 2, 3))));
+	}
+
+	@Test
+	public void testDecodeRfcExamples() throws IOException {
+		assertEquals(0L, decode(bytes(0x00)));
+		assertEquals(1000L, decode(bytes(0x19, 0x03, 0xe8)));
+		assertEquals(-1000L, decode(bytes(0x39, 0x03, 0xe7)));
+		//uint64 max doesn't fit into a long
+		try{
+			decode(bytes(0x1b, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff));
+			fail("Expected IOException");
+		}catch (IOException e){
+			//expected
+		}
+		assertEquals(1.0, decode(bytes(0xf9, 0x3c, 0x00)));				//half precision
+		assertEquals(-4.0, decode(bytes(0xf9, 0xc4, 0x00)));
+		assertEquals(100000.0, decode(bytes(0xfa, 0x47, 0xc3, 0x50, 0x00)));	//single precision
+		assertEquals(Double.POSITIVE_INFINITY, decode(bytes(0xf9, 0x7c, 0x00)));
+		assertEquals(Boolean.TRUE, decode(bytes(0xf5)));
+		assertNull(decode(bytes(0xf7)));									//undefined
+		assertEquals("a", decode(bytes(0xc0, 0x61, 0x61)));				//tags are skipped
+		assertEquals("streaming", decode(bytes(0x7f, 0x65, 0x73, 0x74, 0x72, 0x65, 0x61, 0x64, 0x6d, 0x69, 0x6e, 0x67, 0xff)));
+		assertEquals(Base64.getEncoder().encodeToString(bytes(1, 2, 3, 4)), decode(bytes(0x44, 0x01, 0x02, 0x03, 0x04)));
+	}
+
+	@Test
+	public void testIndefiniteContainers() throws IOException {
+		//{_ "a": 1, "b": [_ 2, 3]}
+		Object value = decode(bytes(0xbf, 0x61, 0x61, 0x01, 0x61, 0x62, 0x9f, 0x02, 0x03, 0xff, 0xff));
+		assertTrue(value instanceof JSONObject);
+		JSONObject map = (JSONObject) value;
+		assertEquals(1L, map.get("a"));
+		assertEquals(Arrays.asList(2L, 3L), map.get("b"));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Map<String, Object> inner = new LinkedHashMap<>();
+		inner.put("n", -123456789012L);
+		inner.put("d", 0.25);
+		inner.put("none", null);
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("text", "Hello äöü 😀");
+		map.put("flag", true);
+		map.put("list", Arrays.asList(1, "two", 3.5, false));
+		map.put("inner", inner);
+
+		JSONObject decoded = Cbor.readObject(new ByteArrayInputStream(encode(map)));
+		assertEquals(map.get("text"), decoded.get("text"));
+		assertEquals(Boolean.TRUE, decoded.get("flag"));
+		JSONArray list = (JSONArray) decoded.get("list");
+		assertEquals(Arrays.asList(1L, "two", 3.5, false), list);
+		JSONObject decodedInner = (JSONObject) decoded.get("inner");
+		assertEquals(-123456789012L, decodedInner.get("n"));
+		assertEquals(0.25, decodedInner.get("d"));
+		assertTrue(decodedInner.containsKey("none"));
+		assertNull(decodedInner.get("none"));
+	}
+
+	@Test
+	public void testLargeStringRoundTrip() throws IOException {
+		char[] chars = new char[200 * 1024 + 17];
+		for (int i = 0; i < chars.length; i++){
+			chars[i] = (char) ('a' + (i % 26));
+		}
+		String text = new String(chars);
+		assertEquals(text, decode(encode(text)));
+	}
+
+	@Test
+	public void testReadObjectOfEmptyStream() throws IOException {
+		assertNull(Cbor.readObject(new ByteArrayInputStream(new byte[0])));
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadObjectRejectsNonMap() throws IOException {
+		Cbor.readObject(new ByteArrayInputStream(bytes(0x83, 0x01, 0x02, 0x03)));
+	}
+
+	@Test(expected = EOFException.class)
+	public void testTruncatedData() throws IOException {
+		decode(bytes(0x64, 0x49, 0x45));
+	}
+
+	@Test(expected = EOFException.class)
+	public void testHugeLengthHeaderFailsWithoutAllocation() throws IOException {
+		//text of 2GB - 16 bytes announced, but only a few bytes follow
+		decode(bytes(0x7a, 0x7f, 0xff, 0xff, 0xf0, 0x61, 0x62, 0x63));
+	}
+
+	@Test(expected = IOException.class)
+	public void testStringLongerThanArrayLimit() throws IOException {
+		decode(bytes(0x7b, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00));
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidChunkInIndefiniteString() throws IOException {
+		decode(bytes(0x7f, 0x41, 0x61, 0xff));		//byte string chunk in a text string
+	}
+
+	@Test(expected = IOException.class)
+	public void testNestingLimit() throws IOException {
+		byte[] nested = new byte[1000];
+		Arrays.fill(nested, (byte) 0x81);		//array of one element, 1000 times
+		decode(nested);
+	}
+}
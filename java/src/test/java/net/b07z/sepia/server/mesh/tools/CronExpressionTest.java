@@ -0,0 +1,135 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.DayOfWeek;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import org.junit.Test;
+
+/**
+ * Tests of the cron expression parser and next-time calculation.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CronExpressionTest {
+
+	//Thursday
+	private static final ZonedDateTime START = ZonedDateTime.of(2026, 1, 15, 10, 7, 30, 0, ZoneOffset.UTC);
+
+	private static ZonedDateTime next(String expression, ZonedDateTime after){
+		return new CronExpression(expression).next(after);
+	}
+
+	private static ZonedDateTime utc(int year, int month, int day, int hour, int minute){
+		return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, ZoneOffset.UTC);
+	}
+
+	private static void assertInvalid(String expression){
+		try{
+			new CronExpression(expression);
+			fail("Expected IllegalArgumentException: " + expression);
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void testEveryMinute(){
+		assertEquals(utc(2026, 1, 15, 10, 8), next("* * * * *", START));
+		//start time is exclusive
+		assertEquals(utc(2026, 1, 15, 10, 9), next("* * * * *", utc(2026, 1, 15, 10, 8)));
+	}
+
+	@Test
+	public void testSteps(){
+		assertEquals(utc(2026, 1, 15, 10, 10), next("*/5 * * * *", START));
+		assertEquals(utc(2026, 1, 15, 10, 15), next("15/15 * * * *", START));
+		assertEquals(utc(2026, 1, 15, 12, 0), next("0 0-23/3 * * *", START));
+	}
+
+	@Test
+	public void testListsAndRanges(){
+		assertEquals(utc(2026, 1, 15, 10, 20), next("5,20,40 * * * *", START));
+		assertEquals(utc(2026, 1, 15, 11, 0), next("0 9-17 * * *", START));
+		assertEquals(utc(2026, 1, 16, 9, 0), next("0 9 * * *", START));
+	}
+
+	@Test
+	public void testWeekdays(){
+		//8:00 on weekdays, after Thursday 10:07 is Friday, after Friday is Monday
+		assertEquals(utc(2026, 1, 16, 8, 0), next("0 8 * * 1-5", START));
+		assertEquals(utc(2026, 1, 19, 8, 0), next("0 8 * * 1-5", utc(2026, 1, 16, 8, 0)));
+		//0 and 7 are Sunday
+		assertEquals(DayOfWeek.SUNDAY, next("0 0 * * 0", START).getDayOfWeek());
+		assertEquals(DayOfWeek.SUNDAY, next("0 0 * * 7", START).getDayOfWeek());
+	}
+
+	@Test
+	public void testMonthsAndYearWrap(){
+		assertEquals(utc(2026, 3, 1, 0, 0), next("0 0 1 3 *", START));
+		assertEquals(utc(2027, 1, 1, 0, 0), next("0 0 1 1 *", START));
+		assertEquals(utc(2028, 2, 29, 12, 0), next("0 12 29 2 *", START));		//next leap day
+	}
+
+	@Test
+	public void testDayOfMonthOrDayOfWeek(){
+		//both restricted: the 1st of the month OR a Monday
+		assertEquals(utc(2026, 1, 19, 0, 0), next("0 0 1 * 1", START));
+		assertEquals(utc(2026, 2, 1, 0, 0), next("0 0 1 * 1", utc(2026, 1, 31, 0, 0)));
+		//only day of week restricted
+		assertEquals(utc(2026, 1, 19, 0, 0), next("0 0 * * 1", START));
+	}
+
+	@Test
+	public void testFieldsCoveringEveryDayAreNotRestricted(){
+		//'1-31' is every day of the month, so only Monday counts
+		assertEquals(utc(2026, 1, 19, 0, 0), next("0 0 1-31 * 1", START));
+		//'0-6' and '*/1' are every day of the week, so only the 1st counts
+		assertEquals(utc(2026, 2, 1, 0, 0), next("0 0 1 * 0-6", START));
+		assertEquals(utc(2026, 2, 1, 0, 0), next("0 0 1 * */1", START));
+		//'*/2' is restricted: odd days OR Monday (Friday 16th is neither)
+		assertEquals(utc(2026, 1, 17, 0, 0), next("0 0 */2 * 1", START));
+		assertEquals(utc(2026, 1, 19, 0, 0), next("0 0 */2 * 1", utc(2026, 1, 17, 0, 0)));
+	}
+
+	@Test
+	public void testTimeZone(){
+		ZoneId berlin = ZoneId.of("Europe/Berlin");
+		ZonedDateTime start = ZonedDateTime.of(2026, 3, 28, 3, 0, 0, 0, berlin);
+		ZonedDateTime t = next("30 2 * * *", start);
+		assertTrue(t.isAfter(start));
+		assertEquals(2, t.getHour());
+		assertEquals(30, t.getMinute());
+		assertEquals(berlin, t.getZone());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNeverMatches(){
+		next("0 0 31 2 *", START);
+	}
+
+	@Test
+	public void testInvalidExpressions(){
+		assertInvalid("* * * *");
+		assertInvalid("* * * * * *");
+		assertInvalid("60 * * * *");
+		assertInvalid("* 24 * * *");
+		assertInvalid("* * 0 * *");
+		assertInvalid("* * * 13 *");
+		assertInvalid("* * * * 8");
+		assertInvalid("5-1 * * * *");
+		assertInvalid("*/0 * * * *");
+		assertInvalid("a * * * *");
+	}
+
+	@Test
+	public void testToString(){
+		assertEquals("0 8 * * 1-5", new CronExpression("  0 8 * * 1-5 ").toString());
+	}
+}
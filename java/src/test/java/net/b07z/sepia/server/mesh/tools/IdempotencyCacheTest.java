@@ -0,0 +1,201 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import net.b07z.sepia.server.core.tools.JSON;
+import net.b07z.sepia.server.mesh.tools.IdempotencyCache.ConflictException;
+import net.b07z.sepia.server.mesh.tools.IdempotencyCache.Result;
+import net.b07z.sepia.server.mesh.tools.IdempotencyCache.WaitTimeoutException;
+
+/**
+ * Tests of the idempotency cache.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class IdempotencyCacheTest {
+
+	private static final long WAIT_MS = 5000;
+
+	private static long getLong(IdempotencyCache<?> cache, String key){
+		return ((Number) cache.getStats().get(key)).longValue();
+	}
+
+	@Test
+	public void testFingerprint(){
+		//SHA-256 test vector
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", IdempotencyCache.fingerprint("abc"));
+		assertEquals(64, IdempotencyCache.fingerprint("").length());
+		assertEquals(IdempotencyCache.fingerprint("{\"a\":1}"), IdempotencyCache.fingerprint("{\"a\":1}"));
+		assertFalse(IdempotencyCache.fingerprint("{\"a\":1}").equals(IdempotencyCache.fingerprint("{\"a\":2}")));
+	}
+
+	@Test
+	public void testFingerprintJsonIsCanonical() throws Exception {
+		JSONObject json = JsonStreams.parseObject(new ByteArrayInputStream(
+				"{\"b\": 1.0, \"a\": [1, 2.50, {\"y\": \"ü\", \"x\": null}], \"c\": true}".getBytes("UTF-8")));
+		JSONObject reordered = JsonStreams.parseObject(new ByteArrayInputStream(
+				"{\"c\": true, \"a\": [1.0, 2.5, {\"x\": null, \"y\": \"ü\"}], \"b\": 1}".getBytes("UTF-8")));
+		assertEquals(IdempotencyCache.fingerprintJson(json), IdempotencyCache.fingerprintJson(reordered));
+		//same data as CBOR
+		ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+		Cbor.write(json, cbor);
+		JSONObject fromCbor = Cbor.readObject(new ByteArrayInputStream(cbor.toByteArray()));
+		assertEquals(IdempotencyCache.fingerprintJson(json), IdempotencyCache.fingerprintJson(fromCbor));
+		//different data
+		JSON.put(reordered, "b", 2L);
+		assertFalse(IdempotencyCache.fingerprintJson(json).equals(IdempotencyCache.fingerprintJson(reordered)));
+		assertFalse(IdempotencyCache.fingerprintJson("1").equals(IdempotencyCache.fingerprintJson(1L)));
+		assertEquals(IdempotencyCache.fingerprintJson(null), IdempotencyCache.fingerprintJson(null));
+	}
+
+	@Test
+	public void testRunsOnceAndReplays() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 100);
+		AtomicInteger calls = new AtomicInteger(0);
+		Result<String> first = cache.execute("key", "fp", WAIT_MS, () -> "result-" + calls.incrementAndGet());
+		Result<String> second = cache.execute("key", "fp", WAIT_MS, () -> "result-" + calls.incrementAndGet());
+		assertEquals("result-1", first.value);
+		assertFalse(first.isDuplicate);
+		assertEquals("result-1", second.value);
+		assertTrue(second.isDuplicate);
+		assertEquals(1, calls.get());
+		assertEquals(1, getLong(cache, "executed"));
+		assertEquals(1, getLong(cache, "replayed"));
+		//other keys run
+		assertEquals("result-2", cache.execute("other", "fp", WAIT_MS, () -> "result-" + calls.incrementAndGet()).value);
+	}
+
+	@Test
+	public void testConflict() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 100);
+		cache.execute("key", "fp-1", WAIT_MS, () -> "a");
+		try{
+			cache.execute("key", "fp-2", WAIT_MS, () -> "b");
+			fail("Expected ConflictException");
+		}catch (ConflictException e){
+			//expected
+		}
+		assertEquals(1, getLong(cache, "conflicts"));
+	}
+
+	@Test
+	public void testFailuresAreNotStored() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 100);
+		try{
+			cache.execute("key", "fp", WAIT_MS, () -> {
+				throw new IOException("boom");
+			});
+			fail("Expected IOException");
+		}catch (IOException e){
+			assertEquals("boom", e.getMessage());
+		}
+		assertEquals(0, cache.size());
+		Result<String> retry = cache.execute("key", "fp", WAIT_MS, () -> "ok");
+		assertEquals("ok", retry.value);
+		assertFalse(retry.isDuplicate);
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<>(20, 100);
+		cache.execute("key", "fp-1", WAIT_MS, () -> "a");
+		Thread.sleep(50);
+		//expired keys can be reused, even for a different request
+		Result<String> result = cache.execute("key", "fp-2", WAIT_MS, () -> "b");
+		assertEquals("b", result.value);
+		assertFalse(result.isDuplicate);
+	}
+
+	@Test
+	public void testConcurrentCallsAttach() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 100);
+		AtomicInteger calls = new AtomicInteger(0);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try{
+			Future<Result<String>> first = pool.submit(() -> cache.execute("key", "fp", WAIT_MS, () -> {
+				calls.incrementAndGet();
+				running.countDown();
+				release.await();
+				return "done";
+			}));
+			assertTrue(running.await(5, TimeUnit.SECONDS));
+			@SuppressWarnings("unchecked")
+			Future<Result<String>>[] others = new Future[3];
+			for (int i = 0; i < others.length; i++){
+				others[i] = pool.submit(() -> cache.execute("key", "fp", WAIT_MS, () -> "again-" + calls.incrementAndGet()));
+			}
+			Thread.sleep(50);
+			release.countDown();
+			assertEquals("done", first.get().value);
+			for (Future<Result<String>> other : others){
+				assertEquals("done", other.get().value);
+				assertTrue(other.get().isDuplicate);
+			}
+		}finally{
+			pool.shutdown();
+		}
+		assertEquals(1, calls.get());
+		assertEquals(3, getLong(cache, "attached") + getLong(cache, "replayed"));
+	}
+
+	@Test
+	public void testWaitIsBounded() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 100);
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try{
+			Future<Result<String>> first = pool.submit(() -> cache.execute("key", "fp", WAIT_MS, () -> {
+				running.countDown();
+				release.await();
+				return "done";
+			}));
+			assertTrue(running.await(5, TimeUnit.SECONDS));
+			long tic = System.currentTimeMillis();
+			try{
+				cache.execute("key", "fp", 50, () -> "again");
+				fail("Expected WaitTimeoutException");
+			}catch (WaitTimeoutException e){
+				assertTrue(System.currentTimeMillis() - tic < 2000);
+			}
+			assertEquals(1, getLong(cache, "wait_timeouts"));
+			release.countDown();
+			assertEquals("done", first.get().value);
+			//the running call is not affected, later calls get its result
+			assertEquals("done", cache.execute("key", "fp", 50, () -> "again").value);
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSizeIsBounded() throws Exception {
+		IdempotencyCache<Integer> cache = new IdempotencyCache<>(60000, 100);
+		for (int i = 0; i < 1000; i++){
+			final int n = i;
+			cache.execute("key-" + i, "fp", WAIT_MS, () -> n);
+		}
+		assertTrue(cache.size() <= 101);
+		//newest results are kept
+		assertTrue(cache.execute("key-999", "fp", WAIT_MS, () -> -1).isDuplicate);
+	}
+}
@@ -0,0 +1,71 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+/**
+ * Tests of reading and writing JSON streams.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class JsonStreamsTest {
+
+	private static JSONObject parse(String json) throws IOException, ParseException {
+		return JsonStreams.parseObject(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static void assertInvalid(String json) throws IOException {
+		try{
+			parse(json);
+			fail("Expected ParseException: " + json);
+		}catch (ParseException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void testParseObject() throws Exception {
+		JSONObject json = parse("{\"command\": \"täst\", \"n\": 1}");
+		assertEquals("täst", json.get("command"));
+		assertEquals(1L, json.get("n"));
+	}
+
+	@Test
+	public void testEmptyBody() throws Exception {
+		assertNull(parse(""));
+	}
+
+	@Test
+	public void testTruncatedBody() throws Exception {
+		assertInvalid("{\"command\":");
+		assertInvalid("{");
+		assertInvalid("{\"a\": 1");
+	}
+
+	@Test
+	public void testNotAnObject() throws Exception {
+		assertInvalid("[1, 2]");
+		assertInvalid("\"text\"");
+	}
+
+	@Test
+	public void testWriteAndParse() throws Exception {
+		JSONObject json = new JSONObject();
+		json.put("text", "line\n\"quoted\" ünïcode €");
+		json.put("n", 42L);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStreams.write(json, out);
+		assertEquals(json, parse(new String(out.toByteArray(), StandardCharsets.UTF_8)));
+	}
+}
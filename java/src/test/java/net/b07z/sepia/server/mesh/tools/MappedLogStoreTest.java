@@ -0,0 +1,216 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the memory-mapped key-value log.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class MappedLogStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path newFile(){
+		return folder.getRoot().toPath().resolve("store.log");
+	}
+
+	private static long getLong(MappedLogStore store, String key){
+		return ((Number) store.getStats().get(key)).longValue();
+	}
+
+	@Test
+	public void testPutGetRemove() throws IOException {
+		try (MappedLogStore store = new MappedLogStore(newFile())){
+			assertNull(store.get("a"));
+			store.put("a", "1");
+			store.put("b", "2");
+			store.put("a", "3");
+			assertEquals("3", store.get("a"));
+			assertEquals(2, store.size());
+			assertTrue(store.remove("b"));
+			assertFalse(store.remove("b"));
+			assertFalse(store.containsKey("b"));
+			assertEquals(1, store.keySet().size());
+		}
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		Path file = newFile();
+		try (MappedLogStore store = new MappedLogStore(file)){
+			store.put("key", "value");
+			store.put("umlaut-äöü", "emoji-😀");
+			store.put("empty", "");
+			store.put("removed", "x");
+			store.remove("removed");
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals(3, store.size());
+			assertEquals("value", store.get("key"));
+			assertEquals("emoji-😀", store.get("umlaut-äöü"));
+			assertEquals("", store.get("empty"));
+			assertFalse(store.containsKey("removed"));
+			//continues writing behind the last record
+			store.put("next", "1");
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals(4, store.size());
+			assertEquals("1", store.get("next"));
+		}
+	}
+
+	@Test
+	public void testTornRecordIsDropped() throws IOException {
+		Path file = newFile();
+		long end;
+		try (MappedLogStore store = new MappedLogStore(file)){
+			store.put("a", "1");
+			end = getLong(store, "log_bytes");
+			store.put("b", "2");
+		}
+		//damage the last record (e.g. crash in the middle of a write)
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")){
+			raf.seek(end + 10);
+			raf.write('X');
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals("1", store.get("a"));
+			assertNull(store.get("b"));
+			assertEquals(end, getLong(store, "log_bytes"));
+			store.put("c", "3");
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals(2, store.size());
+			assertEquals("3", store.get("c"));
+		}
+	}
+
+	@Test
+	public void testGrowsBeyondInitialMapping() throws IOException {
+		Path file = newFile();
+		String value = new String(new char[1000]).replace('\0', 'v');
+		try (MappedLogStore store = new MappedLogStore(file)){
+			for (int i = 0; i < 500; i++){
+				store.put("key-" + i, value);
+			}
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals(500, store.size());
+			assertEquals(value, store.get("key-499"));
+		}
+	}
+
+	@Test
+	public void testAutomaticCompaction() throws IOException {
+		Path file = newFile();
+		String value = new String(new char[1000]).replace('\0', 'v');
+		try (MappedLogStore store = new MappedLogStore(file)){
+			for (int i = 0; i < 5000; i++){
+				store.put("key-" + (i % 10), value + i);
+			}
+			assertTrue(getLong(store, "compactions") > 0);
+			assertTrue(getLong(store, "log_bytes") < 2 * 1024 * 1024);
+			assertEquals(value + 4999, store.get("key-9"));
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals(10, store.size());
+			assertEquals(value + 4990, store.get("key-0"));
+		}
+		assertFalse(Files.exists(file.resolveSibling("store.log.compact")));
+	}
+
+	@Test
+	public void testCompactIfGarbage() throws IOException {
+		Path file = newFile();
+		try (MappedLogStore store = new MappedLogStore(file)){
+			for (int i = 0; i < 100; i++){
+				store.put("key", "value-" + i);
+			}
+			long before = getLong(store, "log_bytes");
+			assertFalse(store.compactIfGarbage(1024 * 1024));
+			assertTrue(store.compactIfGarbage(1));
+			long after = getLong(store, "log_bytes");
+			assertTrue(after < before);
+			assertEquals(after, getLong(store, "live_bytes"));
+			assertFalse(store.compactIfGarbage(1));		//no garbage left
+			store.put("other", "1");
+		}
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals(2, store.size());
+			assertEquals("value-99", store.get("key"));
+		}
+	}
+
+	@Test
+	public void testReadsDuringCompaction() throws Exception {
+		try (MappedLogStore store = new MappedLogStore(newFile())){
+			for (int i = 0; i < 100; i++){
+				store.put("key-" + i, "value-" + i);
+			}
+			AtomicBoolean done = new AtomicBoolean(false);
+			AtomicLong misses = new AtomicLong(0);
+			Thread reader = new Thread(() -> {
+				int i = 0;
+				while (!done.get()){
+					if (store.get("key-" + (i++ % 100)) == null){
+						misses.incrementAndGet();
+					}
+				}
+			});
+			reader.start();
+			for (int c = 0; c < 20; c++){
+				store.put("key-" + c, "value-" + c);
+				store.compact();
+			}
+			done.set(true);
+			reader.join();
+			assertEquals(0, misses.get());
+		}
+	}
+
+	@Test
+	public void testRecoversCompactedLog() throws IOException {
+		Path file = newFile();
+		try (MappedLogStore store = new MappedLogStore(file)){
+			store.put("a", "1");
+		}
+		//crash right before the compacted log replaced the old one
+		Files.move(file, file.resolveSibling("store.log.compact"));
+		try (MappedLogStore store = new MappedLogStore(file)){
+			assertEquals("1", store.get("a"));
+		}
+	}
+
+	@Test
+	public void testClosedStore() throws IOException {
+		MappedLogStore store = new MappedLogStore(newFile());
+		store.put("a", "1");
+		store.close();
+		store.close();		//twice is fine
+		assertFalse(store.compactIfGarbage(1));
+		try{
+			store.put("b", "2");
+			fail("Expected IOException");
+		}catch (IOException e){
+			//expected
+		}
+	}
+}
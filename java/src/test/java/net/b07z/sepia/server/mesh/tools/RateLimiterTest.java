@@ -0,0 +1,103 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests of the token-bucket rate limiter.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void testFromSettings(){
+		assertNull(RateLimiter.fromSettings(""));
+		assertNull(RateLimiter.fromSettings(null));
+		assertNull(RateLimiter.fromSettings("0,5"));
+		assertNull(RateLimiter.fromSettings("abc"));
+		assertNotNull(RateLimiter.fromSettings("5,20"));
+		assertNotNull(RateLimiter.fromSettings("2.5"));
+	}
+
+	@Test
+	public void testBurstThenReject(){
+		RateLimiter limiter = new RateLimiter(1, 3, 100);		//1 per second, burst of 3
+		for (int i = 0; i < 3; i++){
+			assertEquals(0, limiter.tryAcquire("a"));
+		}
+		long waitMs = limiter.tryAcquire("a");
+		assertTrue(waitMs > 0 && waitMs <= 1000);
+		assertEquals(1, limiter.getRejectedCount());
+		//other keys have their own bucket
+		assertEquals(0, limiter.tryAcquire("b"));
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(50, 1, 100);		//one token every 20ms
+		assertEquals(0, limiter.tryAcquire("a"));
+		assertTrue(limiter.tryAcquire("a") > 0);
+		Thread.sleep(30);
+		assertEquals(0, limiter.tryAcquire("a"));
+	}
+
+	@Test
+	public void testParallelRequestsDontExceedBurst() throws Exception {
+		RateLimiter limiter = new RateLimiter(0.001, 100, 100);	//no refill during the test
+		AtomicInteger allowed = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try{
+			Future<?>[] futures = new Future<?>[8];
+			for (int t = 0; t < futures.length; t++){
+				futures[t] = pool.submit(() -> {
+					for (int i = 0; i < 1000; i++){
+						if (limiter.tryAcquire("shared") == 0){
+							allowed.incrementAndGet();
+						}
+					}
+				});
+			}
+			for (Future<?> future : futures){
+				future.get();
+			}
+		}finally{
+			pool.shutdown();
+		}
+		assertEquals(100, allowed.get());
+		assertEquals(8000 - 100, limiter.getRejectedCount());
+	}
+
+	@Test
+	public void testFullBucketsAreRemoved(){
+		RateLimiter limiter = new RateLimiter(1000000, 1, 100);	//buckets are full again after 1µs
+		for (int i = 0; i < 1000; i++){
+			limiter.tryAcquire("key-" + i);
+		}
+		assertTrue(limiter.getKeyCount() <= 101);
+		assertEquals(0, limiter.getEvictedCount());
+	}
+
+	@Test
+	public void testKeysAreBoundedIfBucketsAreNotFull(){
+		RateLimiter limiter = new RateLimiter(0.001, 2, 100);		//buckets never refill during the test
+		for (int i = 0; i < 1000; i++){
+			assertEquals(0, limiter.tryAcquire("key-" + i));
+		}
+		assertTrue(limiter.getKeyCount() <= 101);
+		assertTrue(limiter.getEvictedCount() > 0);
+		//the newest keys are still limited
+		assertEquals(0, limiter.tryAcquire("key-999"));
+		assertTrue(limiter.tryAcquire("key-999") > 0);
+	}
+}
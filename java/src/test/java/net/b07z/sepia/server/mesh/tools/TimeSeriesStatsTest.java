@@ -0,0 +1,127 @@
+package net.b07z.sepia.server.mesh.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests of the in-memory time-series. Series are global, so each test uses its own names.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class TimeSeriesStatsTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static JSONObject query(String name, long windowMs){
+		return (JSONObject) TimeSeriesStats.query(windowMs, name).get(name);
+	}
+
+	private static double getDouble(JSONObject stats, String key){
+		return ((Number) stats.get(key)).doubleValue();
+	}
+
+	private static long getLong(JSONObject stats, String key){
+		return ((Number) stats.get(key)).longValue();
+	}
+
+	@Test
+	public void testParseWindow(){
+		assertEquals(30000, TimeSeriesStats.parseWindow("30s"));
+		assertEquals(300000, TimeSeriesStats.parseWindow("5m"));
+		assertEquals(3600000, TimeSeriesStats.parseWindow(" 1H "));
+		assertEquals(250, TimeSeriesStats.parseWindow("250ms"));
+		assertEquals(1500, TimeSeriesStats.parseWindow("1500"));
+		assertEquals(TimeSeriesStats.MAX_WINDOW_MS, TimeSeriesStats.parseWindow("24h"));
+		assertEquals(-1, TimeSeriesStats.parseWindow("25h"));
+		assertEquals(-1, TimeSeriesStats.parseWindow("0s"));
+		assertEquals(-1, TimeSeriesStats.parseWindow("-5m"));
+		assertEquals(-1, TimeSeriesStats.parseWindow("abc"));
+		assertEquals(-1, TimeSeriesStats.parseWindow(""));
+		assertEquals(-1, TimeSeriesStats.parseWindow(null));
+	}
+
+	@Test
+	public void testCountsErrorsAndLatency(){
+		String name = "test:counts";
+		TimeSeriesStats.record(name, 10 * MS, false);
+		TimeSeriesStats.record(name, 20 * MS, false);
+		TimeSeriesStats.record(name, 30 * MS, true);
+		TimeSeriesStats.record(name, 40 * MS, true);
+		for (long windowMs : new long[]{ 60000, 3600000, TimeSeriesStats.MAX_WINDOW_MS }){
+			JSONObject stats = query(name, windowMs);
+			assertEquals(4, getLong(stats, "count"));
+			assertEquals(2, getLong(stats, "errors"));
+			assertEquals(0.5, getDouble(stats, "error_ratio"), 0.0);
+			assertEquals(25.0, getDouble(stats, "avg_ms"), 0.001);
+			assertEquals(40.0, getDouble(stats, "max_ms"), 0.001);
+			assertTrue(getDouble(stats, "rate_per_s") > 0);
+		}
+	}
+
+	@Test
+	public void testPercentilesAreApproximate(){
+		String name = "test:percentiles";
+		for (int i = 1; i <= 1000; i++){
+			TimeSeriesStats.record(name, i * MS / 10, false);		//0.1ms to 100ms
+		}
+		JSONObject stats = query(name, 60000);
+		assertEquals(50.0, getDouble(stats, "p50_ms"), 50.0 * 0.2);
+		assertEquals(90.0, getDouble(stats, "p90_ms"), 90.0 * 0.2);
+		assertEquals(99.0, getDouble(stats, "p99_ms"), 99.0 * 0.2);
+		assertTrue(getDouble(stats, "p99_ms") <= getDouble(stats, "max_ms"));
+	}
+
+	@Test
+	public void testVeryLongCallsLandInLastBin(){
+		String name = "test:long";
+		TimeSeriesStats.record(name, TimeUnit.HOURS.toNanos(2), false);
+		JSONObject stats = query(name, 60000);
+		assertEquals(7200000.0, getDouble(stats, "max_ms"), 0.001);
+		assertTrue(getDouble(stats, "p99_ms") <= 7200000.0);
+		assertTrue(getDouble(stats, "p99_ms") > 0);
+	}
+
+	@Test
+	public void testEmptyWindow(){
+		String name = "test:empty";
+		TimeSeriesStats.record(name, -5, false);		//negative durations count as 0
+		JSONObject stats = query(name, 1000);
+		assertEquals(1, getLong(stats, "count"));
+		assertEquals(0.0, getDouble(stats, "max_ms"), 0.0);
+		assertTrue(TimeSeriesStats.query(1000, "test:missing").isEmpty());
+	}
+
+	@Test
+	public void testPrefix(){
+		TimeSeriesStats.record("prefix-a:one", MS, false);
+		TimeSeriesStats.record("prefix-a:two", MS, false);
+		TimeSeriesStats.record("prefix-b:one", MS, false);
+		JSONObject result = TimeSeriesStats.query(60000, "prefix-a:");
+		assertEquals(2, result.size());
+		assertTrue(result.containsKey("prefix-a:one"));
+		assertFalse(result.containsKey("prefix-b:one"));
+	}
+
+	@Test
+	public void testMaxSeries(){
+		long series = getLong(TimeSeriesStats.getInfo(), "series");
+		long dropped = getLong(TimeSeriesStats.getInfo(), "dropped_calls");
+		TimeSeriesStats.setMaxSeries((int) series);
+		try{
+			TimeSeriesStats.record("test:over-limit", MS, false);
+			JSONObject info = TimeSeriesStats.getInfo();
+			assertEquals(series, getLong(info, "series"));
+			assertEquals(dropped + 1, getLong(info, "dropped_calls"));
+			assertTrue(TimeSeriesStats.query(60000, "test:over-limit").isEmpty());
+		}finally{
+			TimeSeriesStats.setMaxSeries(128);
+		}
+	}
+}